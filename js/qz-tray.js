@@ -46,7 +46,7 @@ var qz = (function() {
 
         //stream types
         streams: {
-            serial: 'SERIAL', usb: 'USB', hid: 'HID', printer: 'PRINTER', file: 'FILE', socket: 'SOCKET'
+            serial: 'SERIAL', usb: 'USB', hid: 'HID', printer: 'PRINTER', file: 'FILE', socket: 'SOCKET', job: 'JOB'
         },
 
 
@@ -195,6 +195,7 @@ var qz = (function() {
                         _qz.log.trace(evt);
 
                         _qz.websocket.connection = null;
+                        _qz.security.session = null;
                         _qz.websocket.callClose(evt);
                         _qz.log.info("Closed connection with QZ Tray");
 
@@ -253,11 +254,15 @@ var qz = (function() {
                                 }
 
                                 hashing.then(function(hashed) {
+                                    if (_qz.security.canSessionSign(obj.call)) {
+                                        obj.signAlgorithm = "HMAC";
+                                        return _qz.security.sessionSign(hashed);
+                                    }
                                     return _qz.security.callSign(hashed);
                                 }).then(function(signature) {
                                     _qz.log.trace("Signature for call", signature);
                                     obj.signature = signature || "";
-                                    obj.signAlgorithm = _qz.security.signAlgorithm;
+                                    obj.signAlgorithm = obj.signAlgorithm || _qz.security.signAlgorithm;
 
                                     _qz.signContent = undefined;
                                     _qz.websocket.connection.send(_qz.tools.stringify(obj));
@@ -324,6 +329,9 @@ var qz = (function() {
                                     case _qz.streams.file:
                                         _qz.file.callFile(JSON.parse(returned.event));
                                         break;
+                                    case _qz.streams.job:
+                                        _qz.jobs.callJob(JSON.parse(returned.event));
+                                        break;
                                     default:
                                         _qz.log.allay("Cannot determine stream type for callback", returned);
                                         break;
@@ -414,6 +422,45 @@ var qz = (function() {
                 });
             },
 
+            /** Size of each binary frame used when uploading data */
+            uploadChunkSize: 1024 * 1024,
+
+            /**
+             * Sends binary data to QZ Tray as a series of binary frames, resolving with a token later calls can reference using the <code>upload</code> flavor.
+             * Each frame is laid out as <code>[4 byte header length][JSON header][payload]</code>.
+             */
+            upload: function(data) {
+                if (!_qz.compatible.binary()) {
+                    // older versions ignore binary frames, so would never reply
+                    return _qz.tools.promise(function(resolve, reject) { reject(new Error("Binary uploads require QZ Tray 2.2.5 or newer")); });
+                }
+
+                return _qz.tools.toUint8Array(data).then(function(bytes) {
+                    return _qz.tools.promise(function(resolve, reject) {
+                        var uid = _qz.websocket.setup.newUID();
+                        _qz.websocket.pendingCalls[uid] = { resolve: resolve, reject: reject };
+
+                        var encoder = new TextEncoder();
+                        var size = _qz.websocket.uploadChunkSize;
+                        var sequence = 0, offset = 0;
+                        do {
+                            var chunk = bytes.subarray(offset, offset + size);
+                            offset += chunk.length;
+
+                            var header = encoder.encode(JSON.stringify({ upload: uid, sequence: sequence++, final: offset >= bytes.length, uid: uid }));
+                            var frame = new Uint8Array(4 + header.length + chunk.length);
+                            new DataView(frame.buffer).setUint32(0, header.length);
+                            frame.set(header, 4);
+                            frame.set(chunk, 4 + header.length);
+
+                            _qz.websocket.connection.send(frame.buffer);
+                        } while(offset < bytes.length);
+                    });
+                }).then(function(result) {
+                    return result.token;
+                });
+            },
+
             /** Library of promises awaiting a response, uid -> promise */
             pendingCalls: {},
 
@@ -471,7 +518,25 @@ var qz = (function() {
 
                 forceRaw: false,
                 encoding: null,
-                spool: null
+                spool: null,
+
+                job: null
+            }
+        },
+
+
+        jobs: {
+            /** List of functions called when receiving print job progress. */
+            jobCallbacks: [],
+            /** Calls all functions registered to listen for print job events. */
+            callJob: function(streamEvent) {
+                if (Array.isArray(_qz.jobs.jobCallbacks)) {
+                    for(var i = 0; i < _qz.jobs.jobCallbacks.length; i++) {
+                        _qz.jobs.jobCallbacks[i](streamEvent);
+                    }
+                } else {
+                    _qz.jobs.jobCallbacks(streamEvent);
+                }
             }
         },
 
@@ -605,6 +670,35 @@ var qz = (function() {
             /** Signing algorithm used on signatures */
             signAlgorithm: "SHA1",
 
+            /** Signing session started by {@link qz.security.startSession}, as <code>{ key, expires }</code> */
+            session: null,
+
+            /** Whether a call can be signed with the session key instead of the signature promise */
+            canSessionSign: function(callName) {
+                var session = _qz.security.session;
+                return session != null && callName !== 'security.startSession'
+                    && session.expires - 5000 > Date.now()
+                    && typeof crypto !== 'undefined' && crypto.subtle != undefined;
+            },
+
+            /** Signs a hash with the session key using HMAC-SHA256, resolving with the base64 encoded result */
+            sessionSign: function(hashed) {
+                var session = _qz.security.session;
+                if (!session.cryptoKey) {
+                    var raw = atob(session.key);
+                    var bytes = new Uint8Array(raw.length);
+                    for(var i = 0; i < raw.length; i++) { bytes[i] = raw.charCodeAt(i); }
+
+                    session.cryptoKey = crypto.subtle.importKey('raw', bytes, { name: 'HMAC', hash: 'SHA-256' }, false, ['sign']);
+                }
+
+                return session.cryptoKey.then(function(key) {
+                    return crypto.subtle.sign('HMAC', key, new TextEncoder().encode(hashed));
+                }).then(function(mac) {
+                    return _qz.tools.uint8ArrayToBase64(new Uint8Array(mac));
+                });
+            },
+
             rejectOnCertFailure: false,
 
             needsSigned: function(callName) {
@@ -619,6 +713,7 @@ var qz = (function() {
                     "hid.closeStream",
                     "hid.releaseDevice",
                     "file.stopListening",
+                    "security.endSession",
                     "getVersion"
                 ];
 
@@ -799,6 +894,56 @@ var qz = (function() {
                 throw new Error("A connection to QZ has not been established yet");
             },
 
+            isBinary: function(data) {
+                return (typeof Uint8Array !== 'undefined' && data instanceof Uint8Array)
+                    || (typeof ArrayBuffer !== 'undefined' && data instanceof ArrayBuffer)
+                    || (typeof Blob !== 'undefined' && data instanceof Blob);
+            },
+
+            toUint8Array: function(data) {
+                if (data instanceof Uint8Array) { return _qz.tools.promise(function(resolve) { resolve(data); }); }
+                if (data instanceof ArrayBuffer) { return _qz.tools.promise(function(resolve) { resolve(new Uint8Array(data)); }); }
+
+                return _qz.tools.promise(function(resolve, reject) {
+                    var reader = new FileReader();
+                    reader.onload = function() { resolve(new Uint8Array(reader.result)); };
+                    reader.onerror = function() { reject(reader.error); };
+                    reader.readAsArrayBuffer(data);
+                });
+            },
+
+            /**
+             * Replaces any binary (Uint8Array, ArrayBuffer, Blob) data with an upload token, sending the bytes as binary frames.
+             * Versions without binary frame support are sent the data as base64 instead.
+             */
+            uploadBinary: function(printData) {
+                var sequence = _qz.tools.promise(function(r) { r(); });
+                for(var i = 0; i < printData.length; i++) {
+                    if (printData[i].constructor === Object && _qz.tools.isBinary(printData[i].data)) {
+                        (function(item) {
+                            if (!_qz.compatible.binary()) {
+                                sequence = sequence.then(function() {
+                                    return _qz.tools.toUint8Array(item.data);
+                                }).then(function(bytes) {
+                                    item.flavor = 'base64';
+                                    item.data = _qz.tools.uint8ArrayToBase64(bytes);
+                                });
+                                return;
+                            }
+
+                            sequence = sequence.then(function() {
+                                return _qz.websocket.upload(item.data);
+                            }).then(function(token) {
+                                item.flavor = 'upload';
+                                item.data = token;
+                            });
+                        })(printData[i]);
+                    }
+                }
+
+                return sequence;
+            },
+
             uint8ArrayToHex: function(uint8) {
                 return Array.from(uint8)
                     .map(function(i) { return i.toString(16).padStart(2, '0'); })
@@ -839,11 +984,19 @@ var qz = (function() {
         },
 
         compatible: {
+            /** Binary frame uploads are supported by 2.2.5+ */
+            binary: function() {
+                return _qz.tools.versionCompare(2, 2, 5) >= 0;
+            },
+
             /** Converts message format to a previous version's */
             data: function(printData) {
                 // special handling for Uint8Array
                 for(var i = 0; i < printData.length; i++) {
                     if (printData[i].constructor === Object && printData[i].data instanceof Uint8Array) {
+                        if (!printData[i].flavor && !_qz.compatible.binary()) {
+                            printData[i].flavor = 'base64';
+                        }
                         if (printData[i].flavor) {
                             var flavor = printData[i].flavor.toString().toUpperCase();
                             switch(flavor) {
@@ -1083,14 +1236,17 @@ var qz = (function() {
 
         /**
          * Set the printer assigned to this config.
-         * @param {string|Object} newPrinter Name of printer. Use object type to specify printing to file or host.
+         * @param {string|Object|Array<string|Object>} newPrinter Name of printer. Use object type to specify printing to file or host.
+         *  Use an array to print the same data to several printers, rendering it once and printing to each in parallel.
          *  @param {string} [newPrinter.name] Name of printer to send printing.
          *  @param {string} [newPrinter.file] DEPRECATED: Name of file to send printing.
          *  @param {string} [newPrinter.host] IP address or host name to send printing.
          *  @param {string} [newPrinter.port] Port used by &lt;printer.host>.
          */
         this.setPrinter = function(newPrinter) {
-            if (typeof newPrinter === 'string') {
+            if (Array.isArray(newPrinter)) {
+                newPrinter = newPrinter.map(function(p) { return typeof p === 'string' ? { name: p } : p; });
+            } else if (typeof newPrinter === 'string') {
                 newPrinter = { name: newPrinter };
             }
             this.printer = newPrinter;
@@ -1323,6 +1479,36 @@ var qz = (function() {
              */
             getNetworkInfo: _qz.compatible.networking,
 
+            /**
+             * List every client currently connected to QZ Tray, along with the resources each is using.
+             * Useful for finding which client is holding ports or devices open on a shared print server.
+             *
+             * @param {string} [signature] Pre-signed signature of hashed JSON string containing <code>call='websocket.getConnections'</code>, <code>params</code> object, and <code>timestamp</code>.
+             * @param {number} [signingTimestamp] Required with <code>signature</code>. Timestamp used with pre-signed content.
+             *
+             * @returns {Promise<Array<Object>|Error>} Each connection's <code>remoteAddress</code>, <code>commonName</code>, <code>fingerprint</code>, <code>trusted</code>,
+             *  <code>connected</code> and <code>lastActivity</code> times, <code>calls</code> made, <code>inFlight</code> calls, <code>bytesIn</code>, <code>bytesOut</code>,
+             *  open <code>serialPorts</code> and <code>sockets</code>, and counts of open <code>devices</code>, <code>fileListeners</code> and <code>uploads</code>.
+             *
+             * @memberof qz.websocket
+             */
+            getConnections: function(signature, signingTimestamp) {
+                return _qz.websocket.dataPromise('websocket.getConnections', null, signature, signingTimestamp);
+            },
+
+            /**
+             * Calls from each connection run one at a time, in the order they were sent, while calls from different
+             * connections run in parallel.
+             *
+             * @returns {Promise<Object|Error>} Counts of calls <code>queued</code> and <code>active</code> across all connections,
+             *  calls <code>rejected</code> because a connection had too many pending, and the <code>queueDepth</code> allowed per connection.
+             *
+             * @memberof qz.websocket
+             */
+            getDispatcher: function() {
+                return _qz.websocket.dataPromise('websocket.getDispatcher');
+            },
+
             /**
              * @returns {Object<{socket: String, host: String, port: Number}>} Details of active websocket connection
              *
@@ -1533,6 +1719,11 @@ var qz = (function() {
              *   @param {number} [options.spool.size=null] Number of pages per spool.  Default is no limit.  If <code>spool.end</code> is provided, defaults to <code>1</code>
              *   @param {string} [options.spool.end=null] Raw only: Character(s) denoting end of a page to control spooling.
              *
+             *  @param {Object} [options.job=null] Print job queueing options.
+             *   @param {boolean} [options.job.async=false] Resolve <code>qz.print</code> with the job details as soon as the job is queued, instead of once it has printed.
+             *   @param {number} [options.job.priority=0] Queued jobs with a higher priority are printed first.
+             *   @param {boolean} [options.job.progress] Send job progress to the <code>qz.jobs.setJobCallbacks</code> callbacks. Defaults to <code>options.job.async</code>.
+             *
              * @memberof qz.configs
              */
             setDefaults: function(options) {
@@ -1542,7 +1733,8 @@ var qz = (function() {
             /**
              * Creates new printer config to be used in printing.
              *
-             * @param {string|object} printer Name of printer. Use object type to specify printing to file or host.
+             * @param {string|object|Array<string|object>} printer Name of printer. Use object type to specify printing to file or host.
+             *  Use an array to print the same data to several printers, rendering it once and printing to each in parallel.
              *  @param {string} [printer.name] Name of printer to send printing.
              *  @param {string} [printer.file] Name of file to send printing.
              *  @param {string} [printer.host] IP address or host name to send printing.
@@ -1577,9 +1769,10 @@ var qz = (function() {
          *  @param {string} data.type Printing type. Valid types are <code>[pixel | raw*]</code>. *Default
          *  @param {string} data.format Format of data type used. *Default per type<p/>
          *      For <code>[pixel]</code> types, valid formats are <code>[html | image* | pdf]</code>.<p/>
-         *      For <code>[raw]</code> types, valid formats are <code>[command* | html | image | pdf]</code>.
+         *      For <code>[raw]</code> types, valid formats are <code>[command* | html | image | pdf | template]</code>.
          *  @param {string} data.flavor Flavor of data format used. *Default per format<p/>
-         *      For <code>[command]</code> formats, valid flavors are <code>[base64 | file | hex | plain* | xml]</code>.<p/>
+         *      For <code>[command]</code> formats, valid flavors are <code>[base64 | file | hex | plain* | upload | xml]</code>.<p/>
+         *      Binary <code>Uint8Array</code>, <code>ArrayBuffer</code> or <code>Blob</code> data without a flavor is sent as binary frames and printed using the <code>upload</code> flavor.<p/>
          *      For <code>[html]</code> formats, valid flavors are <code>[file* | plain]</code>.<p/>
          *      For <code>[image]</code> formats, valid flavors are <code>[base64 | file*]</code>.<p/>
          *      For <code>[pdf]</code> formats, valid flavors are <code>[base64 | file*]</code>.
@@ -1592,6 +1785,8 @@ var qz = (function() {
          *   @param {boolean|string|Array<Array<number>>} [data.options.overlay=false] Optional with <code>[raw]</code> type <code>[image]</code> format.
          *       Boolean sets entire layer, string sets mask image, Array sets array of rectangles in format <code>[x1,y1,x2,y2]</code>.
          *   @param {string} [data.options.xmlTag] Required with <code>[xml]</code> flavor. Tag name containing base64 formatted data.
+         *   @param {string} [data.options.template] Required with <code>[template]</code> format. Token from <code>qz.templates.register</code>.
+         *       The data is then an array of rows, each an array of values in field order or an object of values by field name.
          *   @param {number} [data.options.pageWidth] Optional with <code>[html | pdf]</code> formats. Width of the rendering.
          *       Defaults to paper width.
          *   @param {number} [data.options.pageHeight] Optional with <code>[html | pdf]</code> formats. Height of the rendering.
@@ -1606,9 +1801,11 @@ var qz = (function() {
          *     <code>{string|Array<string>} [signature]</code> Pre-signed signature(s) of the JSON string for containing <code>call</code>, <code>params</code>, and <code>timestamp</code>.<p/>
          *     <code>{number|Array<number>} [signingTimestamps]</code> Required to match with <code>signature</code>. Timestamps for each of the passed pre-signed content.
          *
-         * @returns {Promise<null|Error>}
+         * @returns {Promise<null|Object|Array<Object>|Error>} Details of the last job, such as its <code>jobId</code>, when printed with <code>options.job.async</code>.
+         *          When the config lists several printers, details of the job for each printer in the same order, including its <code>state</code> and any <code>error</code>.
          *
          * @see qz.configs.create
+         * @see qz.jobs
          *
          * @memberof qz
          */
@@ -1652,7 +1849,9 @@ var qz = (function() {
                     data: mapping.data
                 };
 
-                return _qz.websocket.dataPromise('print', params, mapping.signature, mapping.timestamp);
+                return _qz.tools.uploadBinary(mapping.data).then(function() {
+                    return _qz.websocket.dataPromise('print', params, mapping.signature, mapping.timestamp);
+                });
             };
 
             //chain instead of Promise.all, so resumeOnError can collect each error
@@ -1695,6 +1894,209 @@ var qz = (function() {
         },
 
 
+        /**
+         * Calls related to tracking print jobs queued by <code>qz.print</code>.
+         * @namespace qz.jobs
+         * @since 2.2.5
+         */
+        jobs: {
+            /**
+             * @param {string} [jobId] Job to look up. Lists all jobs from this connection if omitted.
+             *
+             * @returns {Promise<Object|Array<Object>|Error>} Job details: <code>jobId</code>, <code>state</code>, <code>priority</code>, <code>destination</code>,
+             *  <code>created</code>, <code>started</code> and <code>ended</code> times, rendered <code>page</code> of <code>pages</code>,
+             *  <code>printerJobIds</code> assigned by the printer's spooler, and any <code>error</code>.
+             *  States are <code>[QUEUED | PARSING | RENDERING | SPOOLED | COMPLETE | FAILED | CANCELLED]</code>.
+             *
+             * @memberof qz.jobs
+             */
+            status: function(jobId) {
+                return _qz.websocket.dataPromise('print.status', jobId === undefined ? null : { jobId: jobId });
+            },
+
+            /**
+             * Jobs print one at a time for each printer, host or file, while different destinations print in parallel.
+             * Lists every connection's destinations, so it requires the same approval as <code>qz.printers.find</code>.
+             *
+             * @returns {Promise<Array<Object>|Error>} Each destination with jobs: its <code>destination</code> key,
+             *  number of jobs <code>queued</code>, and if a job is <code>printing</code>.
+             *
+             * @memberof qz.jobs
+             */
+            queues: function() {
+                return _qz.websocket.dataPromise('print.queues');
+            },
+
+            /**
+             * Converted print data is kept for reuse when the same data is printed again with the same options.
+             *
+             * @returns {Promise<Object|Error>} Counts of cache <code>hits</code>, <code>diskHits</code>, <code>misses</code>
+             *  and <code>evictions</code>, with the number of <code>entries</code> and bytes of <code>memoryUsed</code>,
+             *  <code>memoryLimit</code>, <code>diskUsed</code> and <code>diskLimit</code>.
+             *
+             * @memberof qz.jobs
+             */
+            cache: function() {
+                return _qz.websocket.dataPromise('print.cache');
+            },
+
+            /**
+             * Decodes, renders and converts a print ahead of time, so it only needs sending once committed.
+             * Prepared prints expire if not committed soon enough, 60 seconds unless configured otherwise.
+             *
+             * @param {Object<Config>} config Previously created config object.
+             * @param {Array<Object|string>} data Array of data being sent to the printer, see <code>qz.print</code>.
+             * @param {string} [signature] Pre-signed signature of the JSON string containing <code>call</code>, <code>params</code>, and <code>timestamp</code>.
+             * @param {number} [signingTimestamp] Required with <code>signature</code>. Timestamp of the pre-signed content.
+             *
+             * @returns {Promise<Object|Error>} The prepared print: its <code>handle</code>, <code>state</code>, <code>destination</code>,
+             *  and <code>created</code> and <code>expires</code> times.  States are <code>[PREPARING | READY | FAILED]</code>.
+             *
+             * @see qz.jobs.commit
+             *
+             * @memberof qz.jobs
+             */
+            prepare: function(config, data, signature, signingTimestamp) {
+                _qz.tools.relative(data);
+                _qz.compatible.data(data);
+
+                var params = {
+                    printer: config.getPrinter(),
+                    options: config.getOptions(),
+                    data: data
+                };
+
+                return _qz.tools.uploadBinary(data).then(function() {
+                    return _qz.websocket.dataPromise('print.prepare', params, signature, signingTimestamp);
+                });
+            },
+
+            /**
+             * Prints a print prepared by <code>qz.jobs.prepare</code>, whether or not it has finished preparing.
+             *
+             * @param {string} handle Handle of the prepared print.
+             *
+             * @returns {Promise<null|Object|Error>} Details of the job, such as its <code>jobId</code>, when prepared with <code>options.job.async</code>.
+             *
+             * @memberof qz.jobs
+             */
+            commit: function(handle) {
+                return _qz.websocket.dataPromise('print.commit', { handle: handle });
+            },
+
+            /**
+             * Drops a print prepared by <code>qz.jobs.prepare</code> without printing it.
+             *
+             * @param {string} handle Handle of the prepared print.
+             *
+             * @returns {Promise<null|Error>}
+             *
+             * @memberof qz.jobs
+             */
+            discard: function(handle) {
+                return _qz.websocket.dataPromise('print.discard', { handle: handle });
+            },
+
+            /**
+             * Lists raw print jobs which were interrupted, such as by QZ Tray restarting, before all their pages were sent.
+             * Only jobs sent using the same certificate are listed, and jobs sent without a trusted certificate aren't journaled.
+             * Journaling is off unless <code>print.journal</code> is enabled in QZ Tray's preferences, and jobs not resumed
+             * within <code>print.journal.expire</code> hours (24 by default) are dropped.
+             *
+             * @returns {Promise<Array<Object>|Error>} Each job's <code>journalId</code>, <code>printer</code>, <code>created</code> time,
+             *          <code>pages</code>, <code>copies</code>, how many pages have been <code>sent</code>, and whether it's <code>printing</code>.
+             *
+             * @memberof qz.jobs
+             */
+            journal: function() {
+                return _qz.websocket.dataPromise('print.journal');
+            },
+
+            /**
+             * Sends the pages of an interrupted print job which weren't sent before it was interrupted.
+             *
+             * @param {string} journalId Id of the job, from <code>qz.jobs.journal</code>.
+             *
+             * @returns {Promise<null|Object|Error>} Details of the job, such as its <code>jobId</code>, when originally sent with <code>options.job.async</code>.
+             *
+             * @memberof qz.jobs
+             */
+            resume: function(journalId) {
+                return _qz.websocket.dataPromise('print.resume', { journalId: journalId });
+            },
+
+            /**
+             * Drops an interrupted print job without sending the rest of it.
+             *
+             * @param {string} journalId Id of the job, from <code>qz.jobs.journal</code>.
+             *
+             * @returns {Promise<null|Error>}
+             *
+             * @memberof qz.jobs
+             */
+            abandon: function(journalId) {
+                return _qz.websocket.dataPromise('print.abandon', { journalId: journalId });
+            },
+
+            /**
+             * Cancels a print job. Queued jobs are removed straight away, jobs already printing stop at their next page.
+             *
+             * @param {string} jobId Job to cancel.
+             *
+             * @returns {Promise<null|Error>}
+             *
+             * @memberof qz.jobs
+             */
+            cancel: function(jobId) {
+                return _qz.websocket.dataPromise('print.cancel', { jobId: jobId });
+            },
+
+            /**
+             * List of functions called for print job progress, see <code>options.job</code> in <code>qz.configs.setDefaults</code>.
+             * Event data will contain <code>{string} jobId</code> and <code>{string} state</code> for all types.
+             *  For RENDERING states, <code>{number} page</code> and <code>{number} pages</code>.
+             *  For SPOOLED states, <code>{Array<number>} printerJobIds</code>.
+             *  For ERROR types, <code>{string} exception</code>.
+             *
+             * @param {Function|Array<Function>} calls Single or array of <code>Function({Object} eventData)</code> calls.
+             *
+             * @memberof qz.jobs
+             */
+            setJobCallbacks: function(calls) {
+                _qz.jobs.jobCallbacks = calls;
+            }
+        },
+
+
+        /**
+         * Calls related to raw templates, merged with rows of values by the <code>[template]</code> format of <code>qz.print</code>.
+         * @namespace qz.templates
+         * @since 2.2.5
+         */
+        templates: {
+            /**
+             * Registers a raw command template for this connection. Placeholders such as <code>{{name}}</code> are
+             * replaced by each row's values, encoded using the print's <code>encoding</code>.
+             *
+             * @param {string} data Template content.
+             * @param {Object} [options]
+             *  @param {string} [options.name] Replaces any template previously registered under the same name.
+             *  @param {string} [options.flavor='plain'] Flavor of the template, one of <code>[plain | base64 | hex | upload]</code>. Non-plain templates keep their bytes as-is.
+             *  @param {string} [options.open='{{'] Opening delimiter of placeholders.
+             *  @param {string} [options.close='}}'] Closing delimiter of placeholders.
+             *
+             * @returns {Promise<Object|Error>} The template's <code>template</code> token, its <code>fields</code> in the order
+             *  used by array rows, and its <code>name</code>.
+             *
+             * @memberof qz.templates
+             */
+            register: function(data, options) {
+                var params = _qz.tools.extend({ data: data }, options);
+                return _qz.websocket.dataPromise('print.template', params);
+            }
+        },
+
+
         /**
          * Calls related to interaction with serial ports.
          * @namespace qz.serial
@@ -2483,7 +2885,7 @@ var qz = (function() {
              *
              * @param {string} path Relative or absolute file path. Must reside in qz data directory or a white-listed location.
              * @param {Object} params Object containing file access parameters
-             *  @param {string} params.data File data to be written
+             *  @param {string|Uint8Array|ArrayBuffer|Blob} params.data File data to be written.  Binary data is sent as binary frames without encoding.
              *  @param {boolean} [params.sandbox=true] If relative location from root is only available to the certificate's connection, otherwise all connections
              *  @param {boolean} [params.shared=true] If relative location from root is accessible to all users on the system, otherwise just the current user
              *  @param {boolean} [params.append=false] Appends to the end of the file if set, otherwise overwrites existing contents
@@ -2494,7 +2896,9 @@ var qz = (function() {
              */
             write: function(path, params) {
                 var param = _qz.tools.extend({ path: path }, params);
-                return _qz.websocket.dataPromise('file.write', param);
+                return _qz.tools.uploadBinary([param]).then(function() {
+                    return _qz.websocket.dataPromise('file.write', param);
+                });
             },
 
             /**
@@ -2724,6 +3128,38 @@ var qz = (function() {
              */
             getSignatureAlgorithm: function() {
                 return _qz.security.signAlgorithm;
+            },
+
+            /**
+             * Starts a signing session. This call is signed normally, after which calls on this connection are signed with a
+             * session key (HMAC) instead of calling the signature promise, until the session expires or the connection closes.
+             * Requires QZ Tray 2.2.5+ and a browser supporting <code>crypto.subtle</code>, otherwise calls keep using the signature promise.
+             *
+             * @param {Object} [options]
+             *  @param {number} [options.ttl] Requested session lifetime in seconds, limited by QZ Tray's <code>security.session.ttl</code> setting.
+             * @returns {Promise<number|Error>} Time the session expires, in milliseconds since epoch.
+             * @since 2.2.5
+             *
+             * @memberof qz.security
+             */
+            startSession: function(options) {
+                return _qz.websocket.dataPromise('security.startSession', { ttl: options && options.ttl }).then(function(result) {
+                    _qz.security.session = { key: result.key, expires: result.expires };
+                    return result.expires;
+                });
+            },
+
+            /**
+             * Ends the signing session, later calls go back to using the signature promise.
+             *
+             * @returns {Promise<null|Error>}
+             * @since 2.2.5
+             *
+             * @memberof qz.security
+             */
+            endSession: function() {
+                _qz.security.session = null;
+                return _qz.websocket.dataPromise('security.endSession');
             }
         },
 
@@ -2754,6 +3190,68 @@ var qz = (function() {
                 return _qz.websocket.dataPromise('getVersion');
             },
 
+            /**
+             * Sends many calls to QZ Tray in a single message, which is signed and approved once.
+             * Requires QZ Tray 2.2.5+
+             *
+             * @param {Array<Object>} calls Calls to make, each as <code>{ call: 'serial.sendData', params: { ... } }</code>,
+             *  using the same call names and parameters sent by the rest of this API.
+             * @param {Object} [options]
+             *  @param {boolean} [options.parallel=false] Run the calls in parallel instead of one after another.
+             *  @param {boolean} [options.stopOnError=false] Skip any remaining calls once one fails.
+             *  @param {Function} [options.onResult] Called as <code>onResult(index, error, result)</code> as each call finishes.
+             *   When provided, results are streamed back individually rather than collected into the returned promise.
+             * @returns {Promise<Array<Object>|Object|Error>} When not streaming, an array of <code>{ uid, result }</code> or <code>{ uid, error }</code> in call order.
+             *  When streaming, a summary as <code>{ count, failed }</code>.
+             *
+             * @memberof qz.api
+             */
+            batch: function(calls, options) {
+                options = options || {};
+                var stream = typeof options.onResult === 'function';
+                var batchId = _qz.websocket.setup.newUID();
+
+                var items = [];
+                var uploads = _qz.tools.promise(function(r) { r(); });
+                for(var i = 0; i < calls.length; i++) {
+                    (function(i_) {
+                        var item = { call: calls[i_].call, params: calls[i_].params, uid: batchId + '-' + i_ };
+                        items.push(item);
+
+                        if (item.params && Array.isArray(item.params.data)) {
+                            uploads = uploads.then(function() { return _qz.tools.uploadBinary(item.params.data); });
+                        }
+                        if (stream) {
+                            _qz.websocket.pendingCalls[item.uid] = {
+                                resolve: function(result) { options.onResult(i_, null, result); },
+                                reject: function(err) { options.onResult(i_, err); }
+                            };
+                        }
+                    })(i);
+                }
+
+                var cleanup = function() {
+                    for(var i = 0; i < items.length; i++) {
+                        delete _qz.websocket.pendingCalls[items[i].uid];
+                    }
+                };
+
+                return uploads.then(function() {
+                    return _qz.websocket.dataPromise('batch', {
+                        calls: items,
+                        parallel: !!options.parallel,
+                        stopOnError: !!options.stopOnError,
+                        reply: stream ? 'stream' : 'multiplex'
+                    });
+                }).then(function(result) {
+                    cleanup();
+                    return result;
+                }, function(err) {
+                    cleanup();
+                    throw err;
+                });
+            },
+
             /**
              * Checks for the specified version of connected QZ Tray application.
              *
@@ -18,6 +18,7 @@ import qz.installer.certificate.ExpiryTask;
 import qz.installer.certificate.KeyPairWrapper;
 import qz.installer.certificate.NativeCertificateInstaller;
 import qz.installer.provision.ProvisionInstaller;
+import qz.printer.PrintJournal;
 import qz.utils.*;
 import qz.ws.PrintSocketServer;
 import qz.ws.SingleInstanceChecker;
@@ -82,6 +83,8 @@ public class App {
 
         try {
             log.info("Starting {} {}", Constants.ABOUT_TITLE, Constants.VERSION);
+            // Pick up any print jobs interrupted by the last shutdown, so they can be resumed
+            PrintJournal.getInstance();
             // Start the WebSocket
             PrintSocketServer.runServer(certManager, parser.isHeadless());
         }
@@ -3,16 +3,34 @@ package qz.auth;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import qz.App;
+import qz.utils.ArgValue;
 import qz.utils.ConnectionUtilities;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import qz.utils.FileUtilities;
+import qz.utils.PrefsSearch;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wrapper class for the Certificate Revocation List
  * Created by Steven on 2/4/2015. Package: qz.auth Project: qz-print
+ * <p>
+ * Revoked fingerprints are held in a hash set.  The last downloaded list is cached on disk and read at startup so
+ * revocation is known straight away, then the list is refreshed in the background on a schedule using a conditional
+ * request ({@code If-None-Match} / {@code If-Modified-Since}), so an unchanged list isn't downloaded again.
  */
 public class CRL {
 
@@ -21,40 +39,39 @@ public class CRL {
     /** The URL to the QZ CRL. Should not be changed except for dev tests */
     public static final String CRL_URL = "https://crl.qz.io";
 
+    private static final String CACHE_FILE = "crl.cache";
+    private static final String ETAG_HEADER = "# etag: ";
+    private static final String MODIFIED_HEADER = "# last-modified: ";
+
     private static CRL instance = null;
 
-    private ArrayList<String> revokedHashes = new ArrayList<String>();
-    private boolean loaded = false;
+    public enum Refresh {
+        UPDATED, UNCHANGED, FAILED
+    }
+
+    private final String url;
+    private final Path cacheFile;
+
+    private volatile Set<String> revokedHashes = Collections.emptySet();
+    private volatile boolean loaded = false;
+    private String etag;
+    private String lastModified;
 
+    private ScheduledExecutorService scheduler;
 
-    private CRL() {}
 
-    public static CRL getInstance() {
+    CRL(String url, Path cacheFile) {
+        this.url = url;
+        this.cacheFile = cacheFile;
+    }
+
+    public static synchronized CRL getInstance() {
         if (instance == null) {
-            instance = new CRL();
-
-            new Thread() {
-                @Override
-                public void run() {
-                    log.info("Loading CRL from {}", CRL_URL);
-
-                    try(BufferedReader br = new BufferedReader(new InputStreamReader(ConnectionUtilities.getInputStream(CRL_URL, false)))) {
-                        String line;
-                        while((line = br.readLine()) != null) {
-                            //Ignore empty and commented lines
-                            if (!line.isEmpty() && line.charAt(0) != '#') {
-                                instance.revokedHashes.add(line);
-                            }
-                        }
-
-                        instance.loaded = true;
-                        log.info("Successfully loaded {} CRL entries from {}", instance.revokedHashes.size(), CRL_URL);
-                    }
-                    catch(IOException e) {
-                        log.warn("Unable to access CRL from {}, {}", CRL_URL, e.toString());
-                    }
-                }
-            }.start();
+            instance = new CRL(CRL_URL, FileUtilities.USER_DIR.resolve(CACHE_FILE));
+            instance.loadCache();
+
+            long minutes = Math.max(1, PrefsSearch.getInt(ArgValue.SECURITY_CRL_REFRESH, App.getTrayProperties()));
+            instance.schedule(minutes, TimeUnit.MINUTES);
         }
 
         return instance;
@@ -67,4 +84,127 @@ public class CRL {
     public boolean isLoaded() {
         return loaded;
     }
+
+    public int size() {
+        return revokedHashes.size();
+    }
+
+    /**
+     * Refreshes the list now and then every {@code period}, on a background thread
+     */
+    synchronized void schedule(long period, TimeUnit unit) {
+        if (scheduler != null) { return; }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "qz-crl-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, period, unit);
+    }
+
+    synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Reads the list saved by the last successful download, if any
+     */
+    synchronized boolean loadCache() {
+        if (cacheFile == null || !Files.exists(cacheFile)) { return false; }
+
+        try(BufferedReader br = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            Set<String> cached = new HashSet<>();
+            String line;
+            while((line = br.readLine()) != null) {
+                if (line.startsWith(ETAG_HEADER)) {
+                    etag = line.substring(ETAG_HEADER.length());
+                } else if (line.startsWith(MODIFIED_HEADER)) {
+                    lastModified = line.substring(MODIFIED_HEADER.length());
+                } else if (!line.isEmpty() && line.charAt(0) != '#') {
+                    cached.add(line);
+                }
+            }
+
+            revokedHashes = cached;
+            loaded = true;
+            log.info("Loaded {} cached CRL entries from {}", cached.size(), cacheFile);
+            return true;
+        }
+        catch(IOException e) {
+            log.warn("Unable to read cached CRL from {}, {}", cacheFile, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Downloads the list if it has changed since the last download
+     */
+    synchronized Refresh refresh() {
+        log.info("Loading CRL from {}", url);
+
+        HttpURLConnection http = null;
+        try {
+            URLConnection conn = ConnectionUtilities.openConnection(new URL(url));
+            if (conn instanceof HttpURLConnection) {
+                http = (HttpURLConnection)conn;
+                if (loaded && etag != null) { http.setRequestProperty("If-None-Match", etag); }
+                if (loaded && lastModified != null) { http.setRequestProperty("If-Modified-Since", lastModified); }
+
+                if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    log.info("CRL from {} is unchanged, keeping {} entries", url, revokedHashes.size());
+                    return Refresh.UNCHANGED;
+                }
+            }
+
+            Set<String> downloaded = new HashSet<>();
+            try(BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while((line = br.readLine()) != null) {
+                    //Ignore empty and commented lines
+                    if (!line.isEmpty() && line.charAt(0) != '#') {
+                        downloaded.add(line);
+                    }
+                }
+            }
+
+            revokedHashes = downloaded;
+            loaded = true;
+            etag = conn.getHeaderField("ETag");
+            lastModified = conn.getHeaderField("Last-Modified");
+            log.info("Successfully loaded {} CRL entries from {}", downloaded.size(), url);
+
+            saveCache(downloaded);
+            return Refresh.UPDATED;
+        }
+        catch(IOException e) {
+            log.warn("Unable to access CRL from {}, {}", url, e.toString());
+            return Refresh.FAILED;
+        }
+        finally {
+            if (http != null) { http.disconnect(); }
+        }
+    }
+
+    private void saveCache(Set<String> hashes) {
+        if (cacheFile == null) { return; }
+
+        try {
+            Path temp = Files.createTempFile(cacheFile.getParent(), CACHE_FILE, null);
+            try(BufferedWriter bw = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                if (etag != null) { bw.write(ETAG_HEADER + etag + "\n"); }
+                if (lastModified != null) { bw.write(MODIFIED_HEADER + lastModified + "\n"); }
+                for(String hash : hashes) {
+                    bw.write(hash + "\n");
+                }
+            }
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e) {
+            log.warn("Unable to cache CRL to {}, {}", cacheFile, e.toString());
+        }
+    }
 }
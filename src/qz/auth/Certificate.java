@@ -1,6 +1,5 @@
 package qz.auth;
 
-import org.apache.commons.codec.binary.StringUtils;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.Charsets;
 import org.apache.commons.ssl.Base64;
@@ -346,21 +345,11 @@ public class Certificate {
      * @return true if signature valid, false if not
      */
     public boolean isSignatureValid(Algorithm algorithm, String signature, String data) {
-        if (!signature.isEmpty()) {
-            //On errors, assume failure.
-            try {
-                Signature verifier = Signature.getInstance(algorithm.name);
-                verifier.initVerify(theCertificate.getPublicKey());
-                verifier.update(StringUtils.getBytesUtf8(DigestUtils.sha256Hex(data)));
-
-                return verifier.verify(Base64.decodeBase64(signature));
-            }
-            catch(GeneralSecurityException e) {
-                log.error("Unable to verify signature", e);
-            }
-        }
+        return SignatureVerifier.verify(this, algorithm, signature, DigestUtils.sha256Hex(data));
+    }
 
-        return false;
+    PublicKey getPublicKey() {
+        return theCertificate.getPublicKey();
     }
 
     /** Checks if the certificate has been added to the specified allow file */
@@ -385,19 +374,8 @@ public class Certificate {
         for(File file : files) {
             if (file == null) { continue; }
 
-            try(BufferedReader br = new BufferedReader(new FileReader(file))) {
-                String line;
-                while((line = br.readLine()) != null) {
-                    if (line.contains("\t")) {
-                        String print = line.substring(0, line.indexOf("\t"));
-                        if (print.equals(fingerprint)) {
-                            return true;
-                        }
-                    }
-                }
-            }
-            catch(IOException e) {
-                e.printStackTrace();
+            if (FingerprintIndex.contains(file, fingerprint)) {
+                return true;
             }
         }
 
@@ -0,0 +1,149 @@
+package qz.auth;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the fingerprints listed in allow and block files, so checking a certificate doesn't read each file.
+ * <p>
+ * Each file is read once, then re-read only when its modified time or size changes on disk.  Lines written or removed
+ * through {@code FileUtilities} update the index in place, unless the file had already changed on disk before they
+ * were written, in which case it's read again.
+ */
+public class FingerprintIndex {
+
+    private static final Logger log = LogManager.getLogger(FingerprintIndex.class);
+
+    private static final ConcurrentHashMap<File,Entry> entries = new ConcurrentHashMap<>();
+
+
+    private FingerprintIndex() {}
+
+    /**
+     * @return If any line of {@code file} is for {@code fingerprint}
+     */
+    public static boolean contains(File file, String fingerprint) {
+        return entries.computeIfAbsent(file, Entry::new).contains(fingerprint);
+    }
+
+    /**
+     * @return The state of {@code file} on disk, to pass along with the change about to be written to it
+     */
+    public static Stat stat(File file) {
+        return new Stat(file);
+    }
+
+    /**
+     * Records a line appended to {@code file}
+     *
+     * @param before State of the file just before the line was written, see {@link #stat(File)}
+     */
+    public static void lineAdded(File file, String line, Stat before) {
+        Entry entry = entries.get(file);
+        if (entry != null) { entry.update(line, 1, before); }
+    }
+
+    /**
+     * Records {@code count} copies of a line removed from {@code file}
+     *
+     * @param before State of the file just before the line was removed, see {@link #stat(File)}
+     */
+    public static void lineRemoved(File file, String line, int count, Stat before) {
+        Entry entry = entries.get(file);
+        if (entry != null && count > 0) { entry.update(line, -count, before); }
+    }
+
+    /**
+     * @return The fingerprint a line is for, or {@code null} if it isn't a certificate line
+     */
+    private static String parseFingerprint(String line) {
+        int tab = line.indexOf('\t');
+        return tab < 0? null:line.substring(0, tab);
+    }
+
+    private static class Entry {
+        private final File file;
+
+        // fingerprint -> number of lines listing it
+        private HashMap<String,Integer> fingerprints = new HashMap<>();
+        private long lastModified = -1;
+        private long length = -1;
+
+        Entry(File file) {
+            this.file = file;
+        }
+
+        synchronized boolean contains(String fingerprint) {
+            if (file.lastModified() != lastModified || file.length() != length) {
+                reload();
+            }
+            return fingerprints.containsKey(fingerprint);
+        }
+
+        synchronized void update(String line, int delta, Stat before) {
+            if (lastModified < 0) { return; } // not loaded yet, the next lookup reads the file anyway
+            if (before.lastModified != lastModified || before.length != length) {
+                // changed elsewhere since it was read, so the index can't just be patched
+                lastModified = -1;
+                return;
+            }
+
+            String fingerprint = parseFingerprint(line);
+            if (fingerprint != null) {
+                int count = fingerprints.getOrDefault(fingerprint, 0) + delta;
+                if (count > 0) {
+                    fingerprints.put(fingerprint, count);
+                } else {
+                    fingerprints.remove(fingerprint);
+                }
+            }
+            markCurrent();
+        }
+
+        private void reload() {
+            HashMap<String,Integer> loaded = new HashMap<>();
+            markCurrent();
+
+            try(BufferedReader br = new BufferedReader(new FileReader(file))) {
+                String line;
+                while((line = br.readLine()) != null) {
+                    String fingerprint = parseFingerprint(line);
+                    if (fingerprint != null) {
+                        loaded.merge(fingerprint, 1, Integer::sum);
+                    }
+                }
+                log.trace("Indexed {} fingerprints from {}", loaded.size(), file);
+            }
+            catch(IOException e) {
+                log.warn("Unable to read {}", file, e);
+            }
+
+            fingerprints = loaded;
+        }
+
+        private void markCurrent() {
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+    }
+
+    /**
+     * Modified time and size of a file at some point
+     */
+    public static class Stat {
+        private final long lastModified;
+        private final long length;
+
+        private Stat(File file) {
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+    }
+}
@@ -30,6 +30,7 @@ public class RequestState {
 
     Certificate certUsed;
     JSONObject requestData;
+    String signAlgorithm;
 
     boolean initialConnect;
     Validity status;
@@ -37,6 +38,8 @@ public class RequestState {
     public RequestState(Certificate cert, JSONObject data) {
         certUsed = cert;
         requestData = data;
+        // kept from the message as received, the calls of a batch are run with the batch's request state
+        signAlgorithm = data.optString("signAlgorithm", null);
         status = Validity.UNKNOWN;
     }
 
@@ -48,6 +51,13 @@ public class RequestState {
         return requestData;
     }
 
+    /**
+     * @return Algorithm the received message was signed with, or {@code null} if it didn't say
+     */
+    public String getSignAlgorithm() {
+        return signAlgorithm;
+    }
+
     public boolean isInitialConnect() {
         return initialConnect;
     }
@@ -0,0 +1,249 @@
+package qz.auth;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.binary.StringUtils;
+import org.apache.commons.ssl.Base64;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.codehaus.jettison.json.JSONString;
+import qz.common.Constants;
+import qz.common.SpooledData;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Verifies signed websocket calls.
+ * <p>
+ * The signed content is the {@code call}, {@code params} and {@code timestamp} of a message, serialized as jettison would
+ * but without escaping forward slashes, matching what the JS client hashes.  Rather than building that string, it's
+ * written straight into the SHA-256 digest in a single pass, streaming any {@link SpooledData} values from disk.
+ * <p>
+ * {@code Signature} instances are kept per thread for each key and algorithm, since a verify resets them to their
+ * initialized state, and recent verdicts are cached so a retried call isn't verified twice.
+ */
+public class SignatureVerifier {
+
+    private static final Logger log = LogManager.getLogger(SignatureVerifier.class);
+
+    private static final String[] SIGNED_KEYS = {"call", "params", "timestamp"};
+
+    private static final int VERDICT_CACHE_SIZE = 256;
+    private static final int VERIFIERS_PER_THREAD = 16;
+
+    // key id + algorithm -> initialized verifier
+    private static final ThreadLocal<HashMap<String,Signature>> verifiers = ThreadLocal.withInitial(HashMap::new);
+
+    // key id + algorithm + hash + signature -> verdict
+    private static final Map<String,Boolean> verdicts = Collections.synchronizedMap(new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return size() > VERDICT_CACHE_SIZE;
+        }
+    });
+
+
+    private SignatureVerifier() {}
+
+    /**
+     * @return Hex encoded SHA-256 of the signed content of {@code message}
+     */
+    public static String digest(JSONObject message) throws JSONException {
+        MessageDigest digest = DigestOutputStream.sha256();
+        try(Writer writer = new BufferedWriter(new OutputStreamWriter(new DigestOutputStream(digest), StandardCharsets.UTF_8), Constants.BYTE_BUFFER_SIZE)) {
+            writer.write('{');
+            boolean first = true;
+            for(String key : SIGNED_KEYS) {
+                Object value = message.opt(key);
+                if (value == null) { continue; }
+
+                if (!first) { writer.write(','); }
+                first = false;
+
+                writeString(writer, key);
+                writer.write(':');
+                writeValue(writer, value);
+            }
+            writer.write('}');
+        }
+        catch(IOException e) {
+            throw new JSONException(e);
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Checks {@code signature} against the hex encoded SHA-256 {@code hash} of the signed content
+     */
+    public static boolean verify(Certificate certificate, Certificate.Algorithm algorithm, String signature, String hash) {
+        return verify(certificate.getFingerprint(), certificate.getPublicKey(), algorithm, signature, hash);
+    }
+
+    static boolean verify(String keyId, PublicKey key, Certificate.Algorithm algorithm, String signature, String hash) {
+        if (signature == null || signature.isEmpty()) { return false; }
+
+        String verdictKey = keyId + "|" + algorithm + "|" + hash + "|" + signature;
+        Boolean cached = verdicts.get(verdictKey);
+        if (cached != null) { return cached; }
+
+        String verifierKey = keyId + "|" + algorithm;
+        HashMap<String,Signature> threadVerifiers = verifiers.get();
+        try {
+            Signature verifier = threadVerifiers.get(verifierKey);
+            if (verifier == null) {
+                if (threadVerifiers.size() >= VERIFIERS_PER_THREAD) { threadVerifiers.clear(); }
+
+                verifier = Signature.getInstance(algorithm.name);
+                verifier.initVerify(key);
+                threadVerifiers.put(verifierKey, verifier);
+            }
+
+            verifier.update(StringUtils.getBytesUtf8(hash));
+            boolean valid = verifier.verify(Base64.decodeBase64(signature));
+
+            verdicts.put(verdictKey, valid);
+            return valid;
+        }
+        catch(GeneralSecurityException e) {
+            // the verifier's state is unknown after a failure, start fresh next time
+            threadVerifiers.remove(verifierKey);
+            log.error("Unable to verify signature", e);
+        }
+
+        return false;
+    }
+
+    private static void writeValue(Writer writer, Object value) throws IOException, JSONException {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            writer.write("null");
+        } else if (value instanceof SpooledData) {
+            try(Reader reader = ((SpooledData)value).getReader()) {
+                writeString(writer, reader);
+            }
+        } else if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject)value;
+            writer.write('{');
+            Iterator<?> keys = obj.keys();
+            boolean first = true;
+            while(keys.hasNext()) {
+                String key = keys.next().toString();
+                if (!first) { writer.write(','); }
+                first = false;
+
+                writeString(writer, key);
+                writer.write(':');
+                writeValue(writer, obj.opt(key));
+            }
+            writer.write('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            writer.write('[');
+            for(int i = 0; i < array.length(); i++) {
+                if (i > 0) { writer.write(','); }
+                writeValue(writer, array.opt(i));
+            }
+            writer.write(']');
+        } else if (value instanceof JSONString) {
+            writer.write(((JSONString)value).toJSONString().replace("\\/", "/"));
+        } else if (value instanceof Number) {
+            writer.write(JSONObject.numberToString((Number)value));
+        } else if (value instanceof Boolean) {
+            writer.write(value.toString());
+        } else {
+            writeString(writer, value.toString());
+        }
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        int start = 0;
+        for(int i = 0; i < value.length(); i++) {
+            String escape = escape(value.charAt(i));
+            if (escape != null) {
+                writer.write(value, start, i - start);
+                writer.write(escape);
+                start = i + 1;
+            }
+        }
+        writer.write(value, start, value.length() - start);
+        writer.write('"');
+    }
+
+    private static void writeString(Writer writer, Reader reader) throws IOException {
+        char[] buffer = new char[Constants.BYTE_BUFFER_SIZE];
+        writer.write('"');
+        int read;
+        while((read = reader.read(buffer)) != -1) {
+            int start = 0;
+            for(int i = 0; i < read; i++) {
+                String escape = escape(buffer[i]);
+                if (escape != null) {
+                    writer.write(buffer, start, i - start);
+                    writer.write(escape);
+                    start = i + 1;
+                }
+            }
+            writer.write(buffer, start, read - start);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Escapes as {@code JSONObject.quote} does, except forward slashes which are left as-is
+     *
+     * @return The escape sequence for {@code c}, or {@code null} if it's written unchanged
+     */
+    private static String escape(char c) {
+        switch(c) {
+            case '"': return "\\\"";
+            case '\\': return "\\\\";
+            case '\b': return "\\b";
+            case '\t': return "\\t";
+            case '\n': return "\\n";
+            case '\f': return "\\f";
+            case '\r': return "\\r";
+            default:
+                return c < ' '? String.format("\\u%04x", (int)c):null;
+        }
+    }
+
+    /**
+     * Feeds written bytes into a digest, discarding them
+     */
+    private static class DigestOutputStream extends OutputStream {
+        private final MessageDigest digest;
+
+        DigestOutputStream(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+    }
+}
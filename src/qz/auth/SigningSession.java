@@ -0,0 +1,94 @@
+package qz.auth;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * A shared secret handed out by one fully signed call, letting later calls on the same connection be signed with a
+ * cheap HMAC instead of an RSA signature.
+ * <p>
+ * The session is bound to the certificate that started it and expires after its time to live.  Calls are signed by
+ * computing {@code HmacSHA256(key, sha256Hex(message))}, where the message is the same {@code call}/{@code params}/{@code timestamp}
+ * content an RSA signature covers, and sent with {@code "signAlgorithm": "HMAC"}.
+ */
+public class SigningSession {
+
+    private static final Logger log = LogManager.getLogger(SigningSession.class);
+
+    public static final String ALGORITHM = "HMAC";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_SIZE = 32;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Certificate certificate;
+    private final SecretKeySpec key;
+    private final long expires;
+
+
+    public SigningSession(Certificate certificate, long ttl) {
+        byte[] secret = new byte[KEY_SIZE];
+        random.nextBytes(secret);
+
+        this.certificate = certificate;
+        this.key = new SecretKeySpec(secret, MAC_ALGORITHM);
+        this.expires = System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * @return The session key, base64 encoded, to hand to the client
+     */
+    public String getKey() {
+        return Base64.encodeBase64String(key.getEncoded());
+    }
+
+    /**
+     * @return Time the session expires, in milliseconds since epoch
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    public boolean isExpired() {
+        return expires < System.currentTimeMillis();
+    }
+
+    /**
+     * Checks a call's HMAC signature
+     *
+     * @param current   Certificate currently in use by the connection, which must still be the one that started the session
+     * @param signature Base64 encoded HMAC sent with the call
+     * @param hash      Hex encoded SHA-256 of the signed content
+     */
+    public boolean isSignatureValid(Certificate current, String signature, String hash) {
+        if (isExpired()) {
+            log.warn("Signing session expired");
+            return false;
+        }
+        if (current != certificate) {
+            log.warn("Signing session belongs to a different certificate");
+            return false;
+        }
+
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            byte[] expected = mac.doFinal(hash.getBytes(StandardCharsets.UTF_8));
+
+            return MessageDigest.isEqual(expected, Base64.decodeBase64(signature));
+        }
+        catch(GeneralSecurityException e) {
+            log.error("Unable to verify session signature", e);
+        }
+
+        return false;
+    }
+}
@@ -12,24 +12,58 @@
 
 package qz.common;
 
-import org.apache.commons.lang3.ArrayUtils;
+import qz.utils.ByteMatcher;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Provides a simple and efficient way for concatenating byte arrays, similar
  * in purpose to <code>StringBuilder</code>. Objects of this class are not
  * thread safe and include no synchronization
+ * <p>
+ * Bytes are kept in a list of primitive chunks which grow as data is added, so
+ * appending never copies what's already stored. Slices, and builders appended to
+ * other builders, share chunks rather than copying them. Bytes once written to a
+ * chunk are never changed, so shared chunks stay valid however either side is
+ * modified afterwards.
  *
  * @author Antoni Ten Monro's
  */
 @SuppressWarnings("UnusedDeclaration") //Library class
 public final class ByteArrayBuilder {
 
-    private List<Byte> buffer;
+    private static final int MIN_CHUNK = 256;
+    private static final int MAX_CHUNK = 1024 * 1024;
+
+    /**
+     * A view of part of a byte array
+     */
+    private static final class Chunk {
+        private final byte[] array;
+        private final int offset;
+        private int length;
+
+        private Chunk(byte[] array, int offset, int length) {
+            this.array = array;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ArrayList<Chunk> chunks = new ArrayList<>();
+    private final int initialCapacity;
+    private int length;
+
+    // array this builder allocated last, which it may keep filling past tailUsed
+    private byte[] tail;
+    private int tailUsed;
 
 
     /**
@@ -67,7 +101,7 @@ public final class ByteArrayBuilder {
      * @param initialCapacity the initial capacity of the <code>ByteArrayBuilder</code>
      */
     public ByteArrayBuilder(byte[] initialContents, int initialCapacity) {
-        buffer = new ArrayList<>(initialCapacity);
+        this.initialCapacity = Math.max(1, initialCapacity);
         if (initialContents != null) {
             append(initialContents);
         }
@@ -77,7 +111,9 @@ public final class ByteArrayBuilder {
      * Empties the <code>ByteArrayBuilder</code>
      */
     public void clear() {
-        buffer.clear();
+        chunks.clear();
+        length = 0;
+        tail = null;
     }
 
     /**
@@ -87,7 +123,29 @@ public final class ByteArrayBuilder {
      * @param endIndex   Ending index, exclusive
      */
     public final void clearRange(int startIndex, int endIndex) {
-        buffer.subList(startIndex, endIndex).clear();
+        checkRange(startIndex, endIndex);
+        if (startIndex == endIndex) { return; }
+
+        ArrayList<Chunk> kept = new ArrayList<>(chunks.size() + 1);
+        int pos = 0;
+        for(Chunk chunk : chunks) {
+            int end = pos + chunk.length;
+            if (end <= startIndex || pos >= endIndex) {
+                kept.add(chunk);
+            } else {
+                if (pos < startIndex) {
+                    kept.add(new Chunk(chunk.array, chunk.offset, startIndex - pos));
+                }
+                if (end > endIndex) {
+                    kept.add(new Chunk(chunk.array, chunk.offset + (endIndex - pos), end - endIndex));
+                }
+            }
+            pos = end;
+        }
+
+        chunks.clear();
+        chunks.addAll(kept);
+        length -= endIndex - startIndex;
     }
 
     /**
@@ -96,7 +154,7 @@ public final class ByteArrayBuilder {
      * @return the number of bytes in the <code>ByteArrayBuilder</code>
      */
     public int getLength() {
-        return buffer.size();
+        return length;
     }
 
     /**
@@ -107,19 +165,79 @@ public final class ByteArrayBuilder {
      * @return this <code>ByteArrayBuilder</code>
      */
     public final ByteArrayBuilder append(byte[] bytes) {
-        for(byte b : bytes) {
-            buffer.add(b);
+        return append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends part of a byte array to this <code>ByteArrayBuilder</code>
+     *
+     * @param bytes  the byte array to append from
+     * @param offset index of the first byte to append
+     * @param count  number of bytes to append
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(byte[] bytes, int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count > bytes.length) {
+            throw new IndexOutOfBoundsException(String.format("Range [%s, %s) is outside of array length %s", offset, offset + count, bytes.length));
+        }
+
+        int copied = fillTail(bytes, offset, count);
+        if (copied < count) {
+            int remaining = count - copied;
+            int size = Math.max(remaining, chunks.isEmpty()? initialCapacity:Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, length)));
+
+            tail = new byte[size];
+            System.arraycopy(bytes, offset + copied, tail, 0, remaining);
+            tailUsed = remaining;
+            chunks.add(new Chunk(tail, 0, remaining));
+            length += remaining;
         }
+
         return this;
     }
 
+    /**
+     * Appends a single byte to this <code>ByteArrayBuilder</code>
+     *
+     * @param b the byte to append
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(byte b) {
+        if (isTailWritable() && tailUsed < tail.length) {
+            tail[tailUsed++] = b;
+            chunks.get(chunks.size() - 1).length++;
+            length++;
+            return this;
+        }
+
+        return append(new byte[] {b}, 0, 1);
+    }
+
     public final ByteArrayBuilder append(List<Byte> bytes) {
         for(byte b : bytes) {
-            buffer.add(b);
+            append(b);
         }
         return this;
     }
 
+    /**
+     * Appends the contents of another <code>ByteArrayBuilder</code>, sharing its
+     * chunks rather than copying them
+     *
+     * @param other the <code>ByteArrayBuilder</code> to append
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(ByteArrayBuilder other) {
+        if (other == this) {
+            other = slice(0, length);
+        }
+        for(Chunk chunk : other.chunks) {
+            chunks.add(new Chunk(chunk.array, chunk.offset, chunk.length));
+        }
+        length += other.length;
+        return this;
+    }
+
     /**
      * Convenience method for append(byte[]) combined with a StringBuffer of specified
      * charset
@@ -144,6 +262,165 @@ public final class ByteArrayBuilder {
         return append(stringBuilder.toString(), charset);
     }
 
+    /**
+     * Inserts a byte array at <code>index</code>, moving everything after it along
+     *
+     * @param index position to insert at
+     * @param bytes the byte array to insert
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder insert(int index, byte[] bytes) {
+        checkRange(index, index);
+        if (index == length) {
+            return append(bytes);
+        }
+        if (bytes.length == 0) { return this; }
+
+        int at = split(index);
+        chunks.add(at, new Chunk(bytes.clone(), 0, bytes.length));
+        length += bytes.length;
+        return this;
+    }
+
+    /**
+     * @param index position of the byte
+     * @return the byte at <code>index</code>
+     */
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.format("Index %s is outside of length %s", index, length));
+        }
+
+        int pos = 0;
+        for(Chunk chunk : chunks) {
+            if (index < pos + chunk.length) {
+                return chunk.array[chunk.offset + index - pos];
+            }
+            pos += chunk.length;
+        }
+        throw new IllegalStateException("Chunks don't add up to length");
+    }
+
+    /**
+     * Finds the first occurrence of <code>pattern</code> at or after <code>fromIndex</code>
+     *
+     * @param pattern   bytes to search for
+     * @param fromIndex position to start searching from, inclusive
+     * @return the index of the first match, or <code>-1</code> if there isn't one
+     */
+    public int indexOf(byte[] pattern, int fromIndex) {
+        fromIndex = Math.max(0, fromIndex);
+        if (pattern.length == 0) { return fromIndex <= length? fromIndex:-1; }
+
+        ByteMatcher.Match match = find(new ByteMatcher(pattern), fromIndex);
+        return match == null? -1:(int)match.getStart();
+    }
+
+    /**
+     * Finds the first match of any of <code>matcher</code>'s patterns at or after
+     * <code>fromIndex</code>, searching chunk by chunk without copying
+     *
+     * @param matcher   patterns to search for
+     * @param fromIndex position to start searching from, inclusive
+     * @return the first match, positioned within this builder, or <code>null</code> if there isn't one
+     */
+    public ByteMatcher.Match find(ByteMatcher matcher, int fromIndex) {
+        Iterator<ByteMatcher.Match> matches = findAll(matcher, fromIndex);
+        return matches.hasNext()? matches.next():null;
+    }
+
+    /**
+     * Finds each match of any of <code>matcher</code>'s patterns at or after
+     * <code>fromIndex</code>, searching only as far as needed for the next one.
+     * The builder mustn't be changed while the matches are being read
+     *
+     * @param matcher   patterns to search for
+     * @param fromIndex position to start searching from, inclusive
+     * @return the matches in order, positioned within this builder
+     */
+    public Iterator<ByteMatcher.Match> findAll(ByteMatcher matcher, int fromIndex) {
+        int start = Math.max(0, fromIndex);
+        ByteMatcher.Search search = matcher.search(start);
+
+        int first = 0, pos = 0;
+        while(first < chunks.size() && pos + chunks.get(first).length <= start) {
+            pos += chunks.get(first++).length;
+        }
+        final int skip = start - pos;
+        final int firstChunk = first;
+
+        return new Iterator<ByteMatcher.Match>() {
+            private int chunk = firstChunk;
+            private int offset = skip;
+            private ByteMatcher.Match next;
+
+            @Override
+            public boolean hasNext() {
+                while(next == null && chunk < chunks.size()) {
+                    Chunk current = chunks.get(chunk);
+                    long before = search.getPosition();
+                    next = search.next(current.array, current.offset + offset, current.length - offset);
+
+                    offset += (int)(search.getPosition() - before);
+                    if (offset >= current.length) {
+                        chunk++;
+                        offset = 0;
+                    }
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public ByteMatcher.Match next() {
+                if (!hasNext()) { throw new NoSuchElementException(); }
+
+                ByteMatcher.Match match = next;
+                next = null;
+                return match;
+            }
+        };
+    }
+
+    /**
+     * Returns a portion of this <code>ByteArrayBuilder</code>, sharing its chunks
+     * rather than copying them
+     *
+     * @param startIndex Starting index, inclusive
+     * @param endIndex   Ending index, exclusive
+     * @return a new <code>ByteArrayBuilder</code> holding the range
+     */
+    public ByteArrayBuilder slice(int startIndex, int endIndex) {
+        checkRange(startIndex, endIndex);
+
+        ByteArrayBuilder slice = new ByteArrayBuilder(initialCapacity);
+        int pos = 0;
+        for(Chunk chunk : chunks) {
+            int end = pos + chunk.length;
+            int from = Math.max(pos, startIndex), to = Math.min(end, endIndex);
+            if (from < to) {
+                slice.chunks.add(new Chunk(chunk.array, chunk.offset + (from - pos), to - from));
+            }
+            if (end >= endIndex) { break; }
+            pos = end;
+        }
+        slice.length = endIndex - startIndex;
+
+        return slice;
+    }
+
+    /**
+     * Writes the full contents of this <code>ByteArrayBuilder</code> to
+     * <code>out</code>, chunk by chunk, without first copying it into a single array
+     *
+     * @param out the stream to write to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for(Chunk chunk : chunks) {
+            out.write(chunk.array, chunk.offset, chunk.length);
+        }
+    }
+
     /**
      * Returns the full contents of this <code>ByteArrayBuilder</code> as
      * a single <code>byte</code> array.
@@ -151,6 +428,84 @@ public final class ByteArrayBuilder {
      * @return The contents of this <code>ByteArrayBuilder</code> as a single <code>byte</code> array
      */
     public byte[] getByteArray() {
-        return ArrayUtils.toPrimitive(buffer.toArray(new Byte[buffer.size()]));
+        return getByteArray(0, length);
+    }
+
+    /**
+     * Returns a portion of this <code>ByteArrayBuilder</code> as a single <code>byte</code> array
+     *
+     * @param startIndex Starting index, inclusive
+     * @param endIndex   Ending index, exclusive
+     * @return The bytes in the range
+     */
+    public byte[] getByteArray(int startIndex, int endIndex) {
+        checkRange(startIndex, endIndex);
+
+        byte[] bytes = new byte[endIndex - startIndex];
+        int pos = 0;
+        for(Chunk chunk : chunks) {
+            int end = pos + chunk.length;
+            int from = Math.max(pos, startIndex), to = Math.min(end, endIndex);
+            if (from < to) {
+                System.arraycopy(chunk.array, chunk.offset + (from - pos), bytes, from - startIndex, to - from);
+            }
+            if (end >= endIndex) { break; }
+            pos = end;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return if the last chunk ends where this builder stopped filling its own array, so it can keep filling it
+     */
+    private boolean isTailWritable() {
+        if (tail == null || chunks.isEmpty()) { return false; }
+
+        Chunk last = chunks.get(chunks.size() - 1);
+        return last.array == tail && last.offset + last.length == tailUsed;
+    }
+
+    /**
+     * Copies as much as fits into the space left in the array this builder is filling
+     *
+     * @return the number of bytes copied
+     */
+    private int fillTail(byte[] bytes, int offset, int count) {
+        if (count == 0 || !isTailWritable()) { return 0; }
+
+        int copied = Math.min(count, tail.length - tailUsed);
+        System.arraycopy(bytes, offset, tail, tailUsed, copied);
+        tailUsed += copied;
+        chunks.get(chunks.size() - 1).length += copied;
+        length += copied;
+        return copied;
+    }
+
+    /**
+     * Splits the chunk holding <code>index</code> so a chunk starts there
+     *
+     * @return the position in the chunk list of the chunk starting at <code>index</code>
+     */
+    private int split(int index) {
+        int pos = 0;
+        for(int c = 0; c < chunks.size(); c++) {
+            Chunk chunk = chunks.get(c);
+            if (index == pos) { return c; }
+            if (index < pos + chunk.length) {
+                int before = index - pos;
+                chunks.set(c, new Chunk(chunk.array, chunk.offset, before));
+                chunks.add(c + 1, new Chunk(chunk.array, chunk.offset + before, chunk.length - before));
+                return c + 1;
+            }
+            pos += chunk.length;
+        }
+        return chunks.size();
+    }
+
+    private void checkRange(int startIndex, int endIndex) {
+        if (startIndex < 0 || endIndex > length || startIndex > endIndex) {
+            throw new IndexOutOfBoundsException(String.format("Range [%s, %s) is outside of length %s", startIndex, endIndex, length));
+        }
     }
 }
@@ -90,8 +90,6 @@ public class Constants {
 
     public static boolean MASK_TRAY_SUPPORTED = true;
 
-    public static final long MEMORY_PER_PRINT = 512; //MB
-
     public static final String RAW_PRINT = ABOUT_TITLE + " Raw Print";
     public static final String IMAGE_PRINT = ABOUT_TITLE + " Pixel Print";
     public static final String PDF_PRINT = ABOUT_TITLE + " PDF Print";
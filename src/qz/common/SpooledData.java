@@ -0,0 +1,122 @@
+package qz.common;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONObject;
+import org.codehaus.jettison.json.JSONString;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A large JSON string value held in a temp file rather than on the heap.
+ * <p>
+ * Used in place of a {@code String} inside a parsed message so print processors can stream the value instead of
+ * holding it in memory.  {@link #toString()} still returns the full value for code that needs it as a string.
+ * <p>
+ * The file is deleted once every holder has closed it, see {@link #retain()}.
+ */
+public class SpooledData implements JSONString, Closeable {
+
+    private static final Logger log = LogManager.getLogger(SpooledData.class);
+
+    private final File file;
+    private final OutputStream out;
+    private final Writer writer;
+    private long length;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+
+    public SpooledData() throws IOException {
+        file = File.createTempFile("qz_spool_", null);
+        file.deleteOnExit();
+        out = new FileOutputStream(file);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), Constants.BYTE_BUFFER_SIZE);
+    }
+
+    public void append(char c) throws IOException {
+        writer.write(c);
+        length++;
+    }
+
+    public void append(CharSequence chars) throws IOException {
+        writer.append(chars);
+        length += chars.length();
+    }
+
+    /**
+     * Appends raw bytes, for binary values which are read back through {@link #getInputStream()} rather than as text.
+     * Not to be mixed with {@code append}, whose characters are buffered separately.
+     */
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        out.write(bytes, offset, count);
+        length += count;
+    }
+
+    /**
+     * Called once the full value has been written
+     */
+    public void finish() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * @return Number of characters in the value, or bytes for a binary value
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return The value, encoded as UTF-8, or the bytes of a binary value
+     */
+    public InputStream getInputStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file), Constants.BYTE_BUFFER_SIZE);
+    }
+
+    public Reader getReader() throws IOException {
+        return new InputStreamReader(getInputStream(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toJSONString() {
+        return JSONObject.quote(toString());
+    }
+
+    /**
+     * Reads the whole value back into memory, avoid where possible
+     */
+    @Override
+    public String toString() {
+        try(Reader reader = getReader()) {
+            return IOUtils.toString(reader);
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Keeps the value on disk until a matching {@link #close()}, for holders which outlive the message it arrived in
+     */
+    public SpooledData retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (references.decrementAndGet() > 0) { return; }
+
+        try { writer.close(); } catch(IOException ignore) {}
+        try {
+            Files.deleteIfExists(file.toPath());
+        }
+        catch(IOException e) {
+            log.warn("Unable to delete spooled data {}", file, e);
+        }
+    }
+}
@@ -16,7 +16,7 @@ import java.nio.file.StandardOpenOption;
  */
 public class FileParams {
     private Path path;
-    private String data;
+    private Object data;
     private Flavor flavor;
 
     private boolean shared;
@@ -27,7 +27,7 @@ public class FileParams {
 
     public FileParams(JSONObject params) throws JSONException {
         path = Paths.get(params.getString("path"));
-        data = params.optString("data", "");
+        data = params.has("data")? params.opt("data"):"";
         flavor = Flavor.parse(params, Flavor.PLAIN);
 
         shared = params.optBoolean("shared", true);
@@ -45,7 +45,7 @@ public class FileParams {
     }
 
     public byte[] getData() throws IOException {
-        return flavor.read(data);
+        return flavor.read(data, null);
     }
 
     public Flavor getFlavor() {
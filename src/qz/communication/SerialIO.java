@@ -84,20 +84,19 @@ public class SerialIO {
                     //process as line delimited
 
                     // check for CR AND NL
-                    Integer endIdx = ByteUtilities.firstMatchingIndex(data.getByteArray(), new byte[] {'\r', '\n'});
+                    Integer endIdx = indexOf(new byte[] {'\r', '\n'}, 0);
                     int delimSize = 2;
 
                     // check for CR OR NL
                     if(endIdx == null) {
                         endIdx = min(
-                                ByteUtilities.firstMatchingIndex(data.getByteArray(), new byte[] {'\r'}),
-                                ByteUtilities.firstMatchingIndex(data.getByteArray(), new byte[] {'\n'}));
+                                indexOf(new byte[] {'\r'}, 0),
+                                indexOf(new byte[] {'\n'}, 0));
                         delimSize = 1;
                     }
                     if (endIdx != null) {
                         log.trace("Reading newline-delimited response");
-                        byte[] output = new byte[endIdx];
-                        System.arraycopy(data.getByteArray(), 0, output, 0, endIdx);
+                        byte[] output = data.getByteArray(0, endIdx);
                         String buffer = new String(output, format.getEncoding());
 
                         if (!buffer.isEmpty()) {
@@ -109,7 +108,7 @@ public class SerialIO {
                     }
                 } else if (format.getBoundStart() != null && format.getBoundStart().length > 0) {
                     //process as formatted response
-                    Integer startIdx = ByteUtilities.firstMatchingIndex(data.getByteArray(), format.getBoundStart());
+                    Integer startIdx = indexOf(format.getBoundStart(), 0);
 
                     if (startIdx != null) {
                         int startOffset = startIdx + format.getBoundStart().length;
@@ -119,7 +118,7 @@ public class SerialIO {
 
                         if (format.getBoundEnd() != null && format.getBoundEnd().length > 0) {
                             //process as bounded response
-                            Integer boundEnd = ByteUtilities.firstMatchingIndex(data.getByteArray(), format.getBoundEnd(), startIdx);
+                            Integer boundEnd = indexOf(format.getBoundEnd(), startIdx);
 
                             if (boundEnd != null) {
                                 log.trace("Reading bounded response");
@@ -144,7 +143,8 @@ public class SerialIO {
                             if (data.getLength() > startOffset + lengthParam.getIndex() + lengthParam.getLength()) { //ensure there's length bytes to read
                                 log.trace("Reading dynamic formatted response");
 
-                                int expectedLength = ByteUtilities.parseBytes(data.getByteArray(), startOffset + lengthParam.getIndex(), lengthParam.getLength(), lengthParam.getEndian());
+                                int lengthStart = startOffset + lengthParam.getIndex();
+                                int expectedLength = ByteUtilities.parseBytes(data.getByteArray(lengthStart, lengthStart + lengthParam.getLength()), 0, lengthParam.getLength(), lengthParam.getEndian());
                                 log.trace("Found length byte, expecting {} bytes", expectedLength);
 
                                 startOffset += lengthParam.getIndex() + lengthParam.getLength(); // don't include the length byte(s) in the response
@@ -180,8 +180,7 @@ public class SerialIO {
                                 startOffset = startIdx;
                             }
 
-                            byte[] responseData = new byte[copyLength];
-                            System.arraycopy(data.getByteArray(), startOffset, responseData, 0, copyLength);
+                            byte[] responseData = data.getByteArray(startOffset, startOffset + copyLength);
 
                             response = new String(responseData, format.getEncoding());
                             data.clearRange(startIdx, endIdx);
@@ -192,8 +191,7 @@ public class SerialIO {
                         //process as fixed width response
                         log.trace("Reading fixed length response");
 
-                        byte[] output = new byte[format.getFixedWidth()];
-                        System.arraycopy(data.getByteArray(), 0, output, 0, format.getFixedWidth());
+                        byte[] output = data.getByteArray(0, format.getFixedWidth());
 
                         response = StringUtils.newStringUtf8(output);
                         data.clearRange(0, format.getFixedWidth());
@@ -219,6 +217,14 @@ public class SerialIO {
         return null;
     }
 
+    /**
+     * @return Index of the first match of {@code pattern} in the received data at or after {@code fromIndex}, or {@code null} if there is none
+     */
+    private Integer indexOf(byte[] pattern, int fromIndex) {
+        int index = data.indexOf(pattern, fromIndex);
+        return index < 0? null:index;
+    }
+
     /**
      * Sets and caches the properties as to not set them every data call
      *
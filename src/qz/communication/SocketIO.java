@@ -1,10 +1,10 @@
 package qz.communication;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import qz.common.ByteArrayBuilder;
 import qz.utils.DeviceUtilities;
 import qz.utils.NetworkUtilities;
 
@@ -13,7 +13,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 
 public class SocketIO {
 
@@ -54,16 +53,16 @@ public class SocketIO {
 
     public String processSocketResponse() throws IOException {
         byte[] response = new byte[1024];
-        ArrayList<Byte> fullResponse = new ArrayList<>();
+        ByteArrayBuilder fullResponse = new ByteArrayBuilder(response.length);
         do {
             int size = dataIn.read(response);
-            for(int i = 0; i < size; i++) {
-                fullResponse.add(response[i]);
+            if (size > 0) {
+                fullResponse.append(response, 0, size);
             }
         }
         while(dataIn.available() > 0);
-        if(fullResponse.size() > 0) {
-            return new String(ArrayUtils.toPrimitive(fullResponse.toArray(new Byte[0])), encoding);
+        if(fullResponse.getLength() > 0) {
+            return new String(fullResponse.getByteArray(), encoding);
         }
         return null;
     }
@@ -0,0 +1,262 @@
+package qz.printer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import qz.printer.action.PrintProcessor;
+import qz.printer.action.raw.RawTemplate;
+import qz.utils.PrintingUtilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A {@code print} call whose data has been decoded, rendered and converted, ready to be sent to the printer.
+ * <p>
+ * Every job is prepared just before it prints.  Calls to {@code print.prepare} are prepared ahead of time instead, and
+ * held by {@link PrintPreparer} until they are committed or expire.  The processor holding the parsed data is only
+ * returned to its pool once the print is closed, and not before its preparation has finished.
+ * <p>
+ * Prints held ahead of time are {@linkplain #reserve() charged} to {@link PrintAdmission} until released, as the jobs
+ * committing them don't pay for the memory they hold.
+ * <p>
+ * Calls printing to several destinations are prepared once and {@linkplain #share() shared} by a job per destination,
+ * with the print only closed once every one of them has closed it.
+ */
+public class PreparedPrint {
+
+    private static final Logger log = LogManager.getLogger(PreparedPrint.class);
+
+    private final String id;
+    private final Object owner;
+    private final JSONObject params;
+    private final PrintOutput output;
+    private final List<Closeable> retained;
+
+    private final long created = System.currentTimeMillis();
+    private final CountDownLatch prepared = new CountDownLatch(1);
+
+    private volatile long expires;
+
+    private PrintProcessor processor;
+    private PrintingUtilities.Type type;
+    private PrintingUtilities.Format format;
+    private PrintOptions options;
+    private Exception error;
+    private long reserved;
+    private int shares = 1;
+    private boolean shared;
+    private boolean done;
+    private boolean closed;
+
+
+    /**
+     * @param owner  Connection making the call
+     * @param output Where the call prints to, resolved from the call's {@code printer} if {@code null}
+     * @throws IllegalArgumentException If the printer can't be resolved
+     */
+    public PreparedPrint(Object owner, JSONObject params, PrintOutput output) throws JSONException {
+        this(null, owner, params, output);
+    }
+
+    PreparedPrint(String id, Object owner, JSONObject params, PrintOutput output) throws JSONException {
+        this.id = id;
+        this.owner = owner;
+        this.params = params;
+        this.output = output != null? output:new PrintOutput(params.optJSONObject("printer"));
+        List<Closeable> kept;
+        try {
+            kept = PrintJob.retainData(params.optJSONArray("data"));
+        }
+        catch(IOException e) {
+            // left to fail parsing the same data once prepared
+            log.debug("Unable to retain data for prepared print, it will fail when prepared: {}", e.getMessage());
+            kept = new ArrayList<>();
+        }
+        retained = kept;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Object getOwner() {
+        return owner;
+    }
+
+    public JSONObject getParams() {
+        return params;
+    }
+
+    public PrintOutput getOutput() {
+        return output;
+    }
+
+    void setExpires(long expires) {
+        this.expires = expires;
+    }
+
+    /**
+     * Picks a processor for the call and parses its data into it
+     */
+    public void prepare() {
+        PrintProcessor borrowed = null;
+        PrintingUtilities.Type type = null;
+        PrintingUtilities.Format format = null;
+        PrintOptions parsedOptions = null;
+        Exception failure = null;
+
+        try {
+            JSONArray printData = params.getJSONArray("data");
+            PrintingUtilities.convertVersion(printData);
+            RawTemplate.claim(printData, owner);
+
+            // grab first data object to determine type for entire set
+            JSONObject firstData = printData.optJSONObject(0);
+            type = PrintingUtilities.getPrintType(firstData);
+            format = PrintingUtilities.getPrintFormat(type, firstData);
+
+            borrowed = PrintingUtilities.getPrintProcessor(format);
+            log.debug("Using {} to print", borrowed.getClass().getName());
+
+            parsedOptions = new PrintOptions(params.optJSONObject("options"), output, format);
+            checkOutput(type, output);
+
+            borrowed.parseData(printData, parsedOptions);
+        }
+        catch(Exception e) {
+            failure = e;
+        }
+        catch(Error e) {
+            // still finish up, so anyone waiting isn't left hanging
+            failure = new Exception(e.toString(), e);
+        }
+
+        synchronized(this) {
+            processor = borrowed;
+            this.type = type;
+            this.format = format;
+            options = parsedOptions;
+            error = failure;
+            done = true;
+            if (closed) { release(); }
+        }
+        prepared.countDown();
+    }
+
+    /**
+     * Waits for the print's preparation to finish
+     *
+     * @return Processor holding the parsed data
+     * @throws Exception The reason preparation failed
+     */
+    public PrintProcessor await() throws Exception {
+        prepared.await();
+
+        synchronized(this) {
+            if (error != null) { throw error; }
+            if (closed) { throw new IllegalStateException("Prepared print has already been closed"); }
+            return processor;
+        }
+    }
+
+    public synchronized PrintOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return Options for printing to {@code target}, which may be another destination than the one it was prepared for
+     * @throws Exception If the print's type can't be printed to {@code target}
+     */
+    public PrintOptions getOptions(PrintOutput target) throws Exception {
+        PrintingUtilities.Type type;
+        PrintingUtilities.Format format;
+        synchronized(this) {
+            if (target == output) { return options; }
+            type = this.type;
+            format = this.format;
+        }
+
+        checkOutput(type, target);
+        return new PrintOptions(params.optJSONObject("options"), target, format);
+    }
+
+    private static void checkOutput(PrintingUtilities.Type type, PrintOutput target) throws Exception {
+        if (type != PrintingUtilities.Type.RAW && !target.isSetService()) {
+            throw new Exception(String.format("%s cannot print to a raw %s", type, target.isSetFile()? "file":"host"));
+        }
+    }
+
+    /**
+     * Charges the print's estimated cost to {@link PrintAdmission} until it's released
+     */
+    synchronized void reserve() {
+        if (reserved > 0 || closed) { return; }
+
+        reserved = PrintAdmission.estimate(params);
+        PrintAdmission.getInstance().reserve(reserved);
+    }
+
+    /**
+     * Adds another job printing this, which must also close it before it's released
+     */
+    public synchronized PreparedPrint share() {
+        if (closed) { throw new IllegalStateException("Prepared print has already been closed"); }
+
+        shares++;
+        shared = true;
+        return this;
+    }
+
+    /**
+     * @return If more than one job prints this, so they may be printing it at the same time
+     */
+    public synchronized boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Releases the processor and any spooled data, or flags them to be released once preparation finishes.  Shared
+     * prints are only released once closed by every job sharing them.
+     */
+    public synchronized void close() {
+        if (closed || --shares > 0) { return; }
+
+        closed = true;
+        if (done) { release(); }
+    }
+
+    private void release() {
+        if (processor != null) {
+            PrintingUtilities.releasePrintProcessor(processor);
+            processor = null;
+        }
+        PrintJob.release(retained);
+        if (reserved > 0) {
+            PrintAdmission.getInstance().unreserve(reserved);
+            reserved = 0;
+        }
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject()
+                .put("handle", id)
+                .put("state", !done? "PREPARING":(error == null? "READY":"FAILED"))
+                .put("destination", output.getDestination())
+                .put("created", created)
+                .put("expires", expires);
+
+        if (error != null) {
+            String message = error.getMessage();
+            json.put("error", message == null || message.isEmpty()? error.getClass().getSimpleName():message);
+        }
+
+        return json;
+    }
+
+}
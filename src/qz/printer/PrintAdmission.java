@@ -0,0 +1,275 @@
+package qz.printer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import qz.App;
+import qz.common.SpooledData;
+import qz.utils.ArgValue;
+import qz.utils.PrefsSearch;
+import qz.utils.PrintingUtilities;
+import qz.ws.UploadManager;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Limits how many print jobs run at once by their estimated memory use, rather than a fixed amount per job.
+ * <p>
+ * Each job's cost is estimated from its payload size, format, page count and target density, see {@link #estimate(JSONObject)}.
+ * Jobs are admitted while the total cost of running jobs fits within a share of the maximum heap, and while the heap
+ * hasn't crossed its usage threshold after a collection.  One job is always allowed to run, so a job larger than the
+ * whole budget still prints, just on its own.  Admission never waits, so jobs held back don't tie up a print thread,
+ * see {@link PrintQueue}.
+ */
+public class PrintAdmission {
+
+    private static final Logger log = LogManager.getLogger(PrintAdmission.class);
+
+    private static final long MB = 1024 * 1024;
+    private static final long BASE_COST = 4 * MB; // processor, buffers and bookkeeping of any job
+    private static final long HTML_BASE_COST = 64 * MB; // WebView and its snapshot buffers
+    private static final long UNKNOWN_PAYLOAD = 2 * MB; // files and urls, which aren't read until the job runs
+    private static final long PDF_BYTES_PER_PAGE = 64 * 1024;
+    private static final double DEFAULT_PAGE_AREA = 8.5 * 11; // square inches
+    private static final double DEFAULT_PIXEL_DPI = 72;
+    private static final double DEFAULT_RASTER_DPI = 300;
+    static final long PRESSURE_WAIT = 250; // millis between heap checks while over the threshold
+
+    private static PrintAdmission instance;
+
+    private final long budget;
+    private final BooleanSupplier underPressure;
+
+    private long inUse;
+    private int running;
+    private boolean blocked;
+
+
+    PrintAdmission(long budget, BooleanSupplier underPressure) {
+        this.budget = budget;
+        this.underPressure = underPressure;
+    }
+
+    public static synchronized PrintAdmission getInstance() {
+        if (instance == null) {
+            long maxHeap = Runtime.getRuntime().maxMemory();
+            int budgetPercent = clampPercent(PrefsSearch.getInt(ArgValue.PRINT_MEMORY_BUDGET, App.getTrayProperties()));
+            int thresholdPercent = clampPercent(PrefsSearch.getInt(ArgValue.PRINT_MEMORY_THRESHOLD, App.getTrayProperties()));
+
+            List<MemoryPoolMXBean> pools = new ArrayList<>();
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                // collection usage is what's still live after a gc, ignoring garbage not yet collected
+                if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+                    long max = pool.getUsage().getMax() > 0? pool.getUsage().getMax():maxHeap;
+                    pool.setCollectionUsageThreshold(max * thresholdPercent / 100);
+                    pools.add(pool);
+                }
+            }
+
+            long budget = maxHeap * budgetPercent / 100;
+            log.debug("Print jobs limited to {} MB of estimated memory, throttled above {}% heap use", budget / MB, thresholdPercent);
+
+            instance = new PrintAdmission(budget, () -> {
+                for(MemoryPoolMXBean pool : pools) {
+                    if (pool.isCollectionUsageThresholdExceeded()) { return true; }
+                }
+                return false;
+            });
+        }
+
+        return instance;
+    }
+
+    private static int clampPercent(int percent) {
+        return Math.max(1, Math.min(100, percent));
+    }
+
+    /**
+     * Admits a job costing {@code cost} bytes if it fits now, without waiting.  Jobs which don't fit are left for the
+     * caller to try again once another job is released, or after {@link #PRESSURE_WAIT} while the heap is under pressure.
+     *
+     * @return {@code true} if the job was admitted and must be released once done
+     */
+    public synchronized boolean tryAcquire(long cost) {
+        // jobs costing nothing, such as prints prepared and paid for ahead of time, are never held back
+        if (running > 0 && cost > 0 && (inUse + cost > budget || underPressure.getAsBoolean())) {
+            if (!blocked) {
+                log.debug("Holding back {} MB job, {}/{} MB in use by {} jobs", cost / MB, inUse / MB, budget / MB, running);
+                blocked = true;
+            }
+            return false;
+        }
+
+        blocked = false;
+        inUse += cost;
+        running++;
+        return true;
+    }
+
+    /**
+     * Charges {@code cost} bytes held outside of any running job, such as a print prepared ahead of time, so running
+     * jobs leave room for it.  Never waits or fails, and doesn't count as a running job.
+     */
+    public synchronized void reserve(long cost) {
+        inUse += cost;
+    }
+
+    public synchronized void unreserve(long cost) {
+        inUse = Math.max(0, inUse - cost);
+    }
+
+    public synchronized void release(long cost) {
+        inUse = Math.max(0, inUse - cost);
+        running = Math.max(0, running - 1);
+    }
+
+    public synchronized long getInUse() {
+        return inUse;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Estimates the memory a {@code print} call needs, in bytes.
+     * <p>
+     * Raw commands cost about twice their decoded size.  Pixel formats also need a raster of the page at the target
+     * density; PDFs keep the whole document loaded and images are decoded to full size.
+     */
+    public static long estimate(JSONObject params) {
+        JSONArray data = params.optJSONArray("data");
+        JSONObject options = params.optJSONObject("options");
+        if (options == null) { options = new JSONObject(); }
+
+        JSONObject first = data == null? null:data.optJSONObject(0);
+        PrintingUtilities.Type type;
+        PrintingUtilities.Format format;
+        try {
+            type = PrintingUtilities.getPrintType(first);
+            format = PrintingUtilities.getPrintFormat(type, first);
+        }
+        catch(IllegalArgumentException e) {
+            return BASE_COST; // fails on parsing anyway
+        }
+
+        long decoded = 0;
+        int items = data == null? 0:data.length();
+        for(int i = 0; i < items; i++) {
+            decoded += decodedSize(data.opt(i));
+        }
+
+        double density = getDensity(options);
+        double pageArea = getPageArea(options);
+
+        switch(format) {
+            case PDF: {
+                int pages = (int)Math.max(items, decoded / PDF_BYTES_PER_PAGE);
+                boolean rasterize = options.optBoolean("rasterize", false) || density > 0;
+                // pages are rendered one at a time, but the driver may hold a few while spooling
+                long raster = raster(pageArea, rasterize? density:DEFAULT_PIXEL_DPI);
+                return BASE_COST + decoded * 3 + raster * Math.min(pages, 4);
+            }
+            case IMAGE:
+                // compressed images typically expand around ten times once decoded
+                return BASE_COST + decoded * 10 + raster(pageArea, density > 0? density:DEFAULT_PIXEL_DPI);
+            case HTML:
+                return HTML_BASE_COST + decoded * 4 + raster(pageArea, density > 0? density:DEFAULT_PIXEL_DPI) * 2 * Math.max(1, items);
+            case DIRECT:
+            case COMMAND:
+            default:
+                long cost = BASE_COST + decoded * 2;
+                // raw images, pdfs and html are rasterized into printer commands first
+                for(int i = 0; i < items; i++) {
+                    JSONObject item = data.optJSONObject(i);
+                    String itemFormat = item == null? "":item.optString("format", "").toLowerCase(Locale.ENGLISH);
+                    if (itemFormat.equals("image") || itemFormat.equals("pdf") || itemFormat.equals("html")) {
+                        cost += raster(pageArea, density > 0? density:DEFAULT_RASTER_DPI);
+                    }
+                }
+                return cost;
+        }
+    }
+
+    private static long decodedSize(Object item) {
+        String flavor = "plain";
+        if (item instanceof JSONObject) {
+            flavor = ((JSONObject)item).optString("flavor", "plain").toLowerCase(Locale.ENGLISH);
+            item = ((JSONObject)item).opt("data");
+        }
+
+        long length;
+        if (item instanceof UploadManager.Upload) {
+            return ((UploadManager.Upload)item).getSize();
+        } else if (flavor.equals("upload")) {
+            length = item instanceof String? UploadManager.getSize((String)item):-1;
+            return length < 0? UNKNOWN_PAYLOAD:length;
+        } else if (item instanceof SpooledData) {
+            length = ((SpooledData)item).length();
+        } else if (item instanceof String) {
+            length = ((String)item).length();
+        } else {
+            return UNKNOWN_PAYLOAD;
+        }
+
+        switch(flavor) {
+            case "base64":
+                return length * 3 / 4;
+            case "hex":
+                return length / 2;
+            case "file":
+            case "xml":
+                return UNKNOWN_PAYLOAD;
+            default:
+                return length;
+        }
+    }
+
+    /**
+     * @return Bytes of a 32-bit raster covering {@code area} square inches at {@code dpi}
+     */
+    private static long raster(double area, double dpi) {
+        return (long)(area * dpi * dpi * 4);
+    }
+
+    /**
+     * @return Target density in dots per inch, or {@code 0} if not set
+     */
+    private static double getDensity(JSONObject options) {
+        double density = options.optDouble("density", 0);
+        if (Double.isNaN(density) || density <= 0) {
+            JSONObject asymmetric = options.optJSONObject("density");
+            density = asymmetric == null? 0:Math.max(asymmetric.optDouble("feed", 0), asymmetric.optDouble("cross", 0));
+        }
+        if (Double.isNaN(density) || density <= 0) { return 0; }
+
+        return density / toInches(options.optString("units", "in"));
+    }
+
+    private static double getPageArea(JSONObject options) {
+        JSONObject size = options.optJSONObject("size");
+        if (size != null) {
+            double inches = toInches(options.optString("units", "in"));
+            double width = size.optDouble("width", 0) * inches;
+            double height = size.optDouble("height", 0) * inches;
+            if (width > 0 && height > 0) { return width * height; }
+        }
+        return DEFAULT_PAGE_AREA;
+    }
+
+    private static double toInches(String units) {
+        switch(units.toLowerCase(Locale.ENGLISH)) {
+            case "mm": return 1 / 25.4;
+            case "cm": return 1 / 2.54;
+            default: return 1;
+        }
+    }
+
+}
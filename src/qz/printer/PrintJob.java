@@ -0,0 +1,417 @@
+package qz.printer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.eclipse.jetty.websocket.api.Session;
+import qz.common.SpooledData;
+import qz.ws.PrintSocketClient;
+import qz.ws.StreamEvent;
+import qz.ws.UploadManager;
+
+import java.awt.print.PrinterAbortException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * A single {@code print} call, tracked from the moment it's queued until it has been handed to the printer.
+ * <p>
+ * Jobs are run by {@link PrintQueue}.  When the client asks for progress, each change of state is streamed back as a
+ * {@code JOB} stream event.  Any print data spooled to disk is kept until the job finishes, even if the call that
+ * created it has already replied.
+ */
+public class PrintJob implements Comparable<PrintJob> {
+
+    private static final Logger log = LogManager.getLogger(PrintJob.class);
+
+    // job being run by the current thread, so processors can report pages without knowing about jobs
+    private static final ThreadLocal<PrintJob> current = new ThreadLocal<>();
+
+    public enum State {
+        QUEUED, PARSING, RENDERING, SPOOLED, COMPLETE, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == COMPLETE || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private final String id;
+    private final long sequence;
+    private final int priority;
+    private final boolean async;
+    private final boolean progress;
+
+    private final Session session;
+    private final Object owner;
+    private final JSONObject params;
+    private final PrintOutput output;
+    private final String destination;
+    private final PreparedPrint prepared;
+    private final long cost;
+    private final List<Closeable> retained;
+
+    private final long created = System.currentTimeMillis();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final List<Consumer<PrintJob>> finishListeners = new ArrayList<>();
+
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelled;
+    private volatile int page;
+    private volatile int pages;
+    private volatile List<Integer> printerJobIds = new ArrayList<>();
+    private volatile String error;
+    private volatile long started;
+    private volatile long ended;
+    private volatile PrintJournal.Entry journalEntry;
+
+
+    /**
+     * @param prepared Print already prepared ahead of time by {@link PrintPreparer}, or {@code null} to prepare it when run
+     */
+    PrintJob(String id, long sequence, Session session, Object owner, JSONObject params, PreparedPrint prepared) {
+        this(id, sequence, session, owner, params, prepared, null);
+    }
+
+    /**
+     * @param target Where the job prints to, if not where {@code prepared} was prepared for
+     */
+    PrintJob(String id, long sequence, Session session, Object owner, JSONObject params, PreparedPrint prepared, PrintOutput target) {
+        this.id = id;
+        this.sequence = sequence;
+        this.session = session;
+        this.owner = owner;
+        this.params = params;
+        this.prepared = prepared;
+
+        PrintOutput resolved = target != null? target:(prepared == null? null:prepared.getOutput());
+        if (resolved == null) {
+            try {
+                resolved = new PrintOutput(params.optJSONObject("printer"));
+            }
+            catch(JSONException | IllegalArgumentException e) {
+                log.debug("Unable to resolve printer for job {}, it will fail when run: {}", id, e.getMessage());
+            }
+        }
+        output = resolved;
+        // jobs without a usable output get a lane of their own, and report the error once they run
+        destination = output == null? "job:" + id:output.getDestination();
+
+        JSONObject jobOpts = params.optJSONObject("options") == null? null:params.optJSONObject("options").optJSONObject("job");
+        if (jobOpts == null) { jobOpts = new JSONObject(); }
+        priority = jobOpts.optInt("priority", 0);
+        async = jobOpts.optBoolean("async", false);
+        progress = jobOpts.optBoolean("progress", async);
+
+        List<Closeable> kept;
+        try {
+            kept = retainData(params.optJSONArray("data"));
+        }
+        catch(IOException e) {
+            // left to fail reading the same data once run, like an unresolved printer
+            log.debug("Unable to retain data for job {}, it will fail when run: {}", id, e.getMessage());
+            kept = new ArrayList<>();
+        }
+        retained = kept;
+        // prepared prints have already been parsed, outside of the print queue
+        cost = prepared == null? PrintAdmission.estimate(params):0;
+    }
+
+    /**
+     * Reports that {@code page} of {@code pages} is being rendered by the job running on this thread, if any
+     *
+     * @throws PrinterAbortException If the job has been cancelled
+     */
+    public static void pageRendered(int page, int pages) throws PrinterAbortException {
+        PrintJob job = current.get();
+        if (job == null) { return; }
+
+        job.checkCancelled();
+        if (page > job.page || pages != job.pages) {
+            job.page = page;
+            job.pages = pages;
+            job.update(State.RENDERING);
+        }
+    }
+
+    /**
+     * @return The job being run by the current thread, or {@code null} if there isn't one
+     */
+    public static PrintJob getCurrent() {
+        return current.get();
+    }
+
+    static void setCurrent(PrintJob job) {
+        if (job == null) {
+            current.remove();
+        } else {
+            current.set(job);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return Estimated memory needed to print the job, in bytes
+     */
+    public long getCost() {
+        return cost;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return If the call replied as soon as the job was queued, rather than waiting for it to finish
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @return If the job's progress is tracked and streamed to the client
+     */
+    public boolean isProgress() {
+        return progress;
+    }
+
+    public Object getOwner() {
+        return owner;
+    }
+
+    public JSONObject getParams() {
+        return params;
+    }
+
+    /**
+     * @return Where the job prints to, or {@code null} if the printer couldn't be resolved when the job was queued
+     */
+    public PrintOutput getOutput() {
+        return output;
+    }
+
+    /**
+     * @return Key of the device or file the job prints to, see {@link PrintOutput#getDestination()}
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return The print prepared ahead of time for this job, or {@code null} if it's prepared when run
+     */
+    public PreparedPrint getPrepared() {
+        return prepared;
+    }
+
+    /**
+     * @return Where the job's progress is journaled, or {@code null} if it isn't
+     */
+    public PrintJournal.Entry getJournalEntry() {
+        return journalEntry;
+    }
+
+    void setJournalEntry(PrintJournal.Entry journalEntry) {
+        this.journalEntry = journalEntry;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkCancelled() throws PrinterAbortException {
+        if (cancelled) { throw new PrinterAbortException("Printing cancelled"); }
+    }
+
+    /**
+     * Waits for the job to finish, successfully or not
+     */
+    public void await() throws InterruptedException {
+        finished.await();
+    }
+
+    /**
+     * Calls {@code listener} once the job finishes, successfully or not, from the thread finishing it.  If the job has
+     * already finished, {@code listener} is called straight away.
+     */
+    public void whenFinished(Consumer<PrintJob> listener) {
+        synchronized(this) {
+            if (!state.isFinished()) {
+                finishListeners.add(listener);
+                return;
+            }
+        }
+
+        notifyFinished(listener);
+    }
+
+    public synchronized void update(State newState) {
+        if (state.isFinished()) { return; }
+
+        if (state == State.QUEUED && newState != State.QUEUED && !newState.isFinished()) { started = System.currentTimeMillis(); }
+        state = newState;
+        log.trace("Print job {} is {}", id, newState);
+
+        if (progress) {
+            StreamEvent event = new StreamEvent(StreamEvent.Stream.JOB, newState == State.FAILED? StreamEvent.Type.ERROR:StreamEvent.Type.ACTION)
+                    .withData("jobId", id)
+                    .withData("state", newState.name());
+            if (newState == State.RENDERING) {
+                event.withData("page", page).withData("pages", pages);
+            }
+            if (newState == State.SPOOLED) {
+                event.withData("printerJobIds", new JSONArray(printerJobIds));
+            }
+            if (error != null) {
+                event.withData("exception", error);
+            }
+            PrintSocketClient.sendStream(session, event);
+        }
+
+        if (newState.isFinished()) {
+            for(Consumer<PrintJob> listener : finishListeners) {
+                notifyFinished(listener);
+            }
+            finishListeners.clear();
+        }
+    }
+
+    private void notifyFinished(Consumer<PrintJob> listener) {
+        try {
+            listener.accept(this);
+        }
+        catch(RuntimeException e) {
+            log.error("Print job {} finish listener failed", id, e);
+        }
+    }
+
+    public void setPrinterJobIds(List<Integer> ids) {
+        printerJobIds = ids;
+    }
+
+    /**
+     * Marks the job as finished and releases anything held for it
+     */
+    synchronized void finish(State endState, String errorMessage) {
+        if (state.isFinished()) { return; }
+
+        error = errorMessage;
+        ended = System.currentTimeMillis();
+        update(endState);
+
+        release(retained);
+        if (prepared != null) { prepared.close(); }
+        if (journalEntry != null) {
+            // cancelling drops the rest of a journaled job, other failures leave it to be resumed
+            if (endState == State.CANCELLED) {
+                journalEntry.finish();
+            } else {
+                journalEntry.release();
+            }
+        }
+        finished.countDown();
+    }
+
+    /**
+     * Flags the job to stop, a running job stops at the next page or before it's sent to the printer
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject()
+                .put("jobId", id)
+                .put("state", state.name())
+                .put("priority", priority)
+                .put("destination", destination)
+                .put("estimatedMemory", cost)
+                .put("created", created);
+
+        if (started > 0) { json.put("started", started); }
+        if (ended > 0) { json.put("ended", ended); }
+        if (pages > 0) { json.put("page", page).put("pages", pages); }
+        if (!printerJobIds.isEmpty()) { json.put("printerJobIds", new JSONArray(printerJobIds)); }
+        if (error != null) { json.put("error", error); }
+
+        return json;
+    }
+
+    /**
+     * Keeps any data spooled to disk for a call, so it outlives the call's reply, and claims any uploads it references.
+     * Claimed uploads take the place of their token in {@code data}, so the same upload is shared rather than claimed
+     * again by other jobs printing the same data.
+     *
+     * @return Spooled data and uploads to close once done with
+     * @throws IOException If an upload is missing or was already used by another call
+     */
+    static List<Closeable> retainData(JSONArray data) throws IOException {
+        List<Closeable> retained = new ArrayList<>();
+        if (data == null) { return retained; }
+
+        try {
+            for(int i = 0; i < data.length(); i++) {
+                Object item = data.opt(i);
+                Object value = item instanceof JSONObject? ((JSONObject)item).opt("data"):item;
+                if (value instanceof SpooledData) {
+                    retained.add(((SpooledData)value).retain());
+                } else if (value instanceof UploadManager.Upload) {
+                    retained.add(((UploadManager.Upload)value).retain());
+                } else if (value instanceof String && item instanceof JSONObject
+                        && "upload".equalsIgnoreCase(((JSONObject)item).optString("flavor"))) {
+                    UploadManager.Upload upload = UploadManager.claim((String)value);
+                    retained.add(upload);
+                    ((JSONObject)item).put("data", upload);
+                }
+            }
+        }
+        catch(IOException | JSONException e) {
+            release(retained);
+            throw e instanceof IOException? (IOException)e:new IOException(e);
+        }
+        return retained;
+    }
+
+    /**
+     * Closes data kept by {@link #retainData(JSONArray)}
+     */
+    static void release(List<Closeable> retained) {
+        for(Closeable data : retained) {
+            try {
+                data.close();
+            }
+            catch(IOException e) {
+                log.warn("Unable to release print data", e);
+            }
+        }
+        retained.clear();
+    }
+
+    /**
+     * Higher priority jobs run first, then jobs of equal priority in the order they were queued
+     */
+    @Override
+    public int compareTo(PrintJob other) {
+        if (priority != other.priority) {
+            return Integer.compare(other.priority, priority);
+        }
+        return Long.compare(sequence, other.sequence);
+    }
+
+}
@@ -0,0 +1,643 @@
+package qz.printer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import qz.App;
+import qz.auth.Certificate;
+import qz.common.ByteArrayBuilder;
+import qz.utils.ArgValue;
+import qz.utils.FileUtilities;
+import qz.utils.PrefsSearch;
+import qz.ws.SocketConnection;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Records raw print jobs on disk as they're sent, so a job interrupted by a restart or crash can be resumed where it
+ * left off rather than sent again from the start.
+ * <p>
+ * Once a job's data is converted, its pages are written to a file of their own in the background while the job prints,
+ * and the job is recorded as accepted in an append-only log once they're all on disk.  Each page of each copy is logged
+ * as it's sent, and the job is logged as done once all have been.  Records are forced to disk in groups by a background
+ * thread rather than one at a time, so printing never waits on the disk, and a crash may resend the last few pages.
+ * Jobs left unfinished are loaded on startup, and can be listed and resumed by clients using the same certificate as
+ * the one that sent them.  Jobs sent without a trusted certificate aren't journaled, as anonymous sites all share one
+ * identity and could otherwise see and abandon each other's jobs.  Jobs not resumed within {@code print.journal.expire}
+ * hours are dropped along with their pages, as they'd otherwise hold their space on disk indefinitely.
+ * <p>
+ * The log is compacted in the background once finished jobs make up most of it, keeping only records of unfinished
+ * jobs.  Each log line is {@code <crc32 hex> <json>}, so a line torn by a crash is detected and dropped on load.
+ */
+public class PrintJournal {
+
+    private static final Logger log = LogManager.getLogger(PrintJournal.class);
+
+    private static final String LOG_FILE = "journal.log";
+    private static final String PAGES_SUFFIX = ".pages";
+    private static final int COMPACT_MIN_RECORDS = 1000;
+    private static final int COMPACT_RATIO = 4; // compact once the log holds this many records per live record
+
+    private static PrintJournal instance;
+
+    private final Path dir;
+    private final long expiry; // millis an unfinished job is kept, or 0 to keep it until resumed or abandoned
+    private final LinkedHashMap<String,Entry> unfinished = new LinkedHashMap<>();
+    private final Set<String> accepting = new HashSet<>(); // jobs whose pages are still being written
+    private final ScheduledExecutorService background; // forces, compacts and expires the log
+    private final ExecutorService pageWriters;
+
+    private FileChannel channel;
+    private long records;
+    private boolean compacting;
+    private boolean flushing;
+
+
+    /**
+     * Opens the journal in {@code dir}, loading any jobs left unfinished within the last {@code expiry} millis
+     */
+    PrintJournal(Path dir, long expiry) throws IOException {
+        this.dir = dir;
+        this.expiry = Math.max(0, expiry);
+        Files.createDirectories(dir);
+        load();
+
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "qz-print-journal");
+            t.setDaemon(true);
+            return t;
+        });
+        pageWriters = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "qz-print-journal-pages");
+            t.setDaemon(true);
+            return t;
+        });
+        background.execute(this::compact);
+        if (this.expiry > 0) {
+            long period = Math.min(this.expiry, TimeUnit.HOURS.toMillis(1));
+            background.scheduleAtFixedRate(this::expire, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The journal, or {@code null} if journaling is disabled or the journal can't be opened
+     */
+    public static synchronized PrintJournal getInstance() {
+        if (instance == null && PrefsSearch.getBoolean(ArgValue.PRINT_JOURNAL, App.getTrayProperties())) {
+            try {
+                long expiry = TimeUnit.HOURS.toMillis(Math.max(0, PrefsSearch.getInt(ArgValue.PRINT_JOURNAL_EXPIRE, App.getTrayProperties())));
+                instance = new PrintJournal(FileUtilities.USER_DIR.resolve("print-journal"), expiry);
+            }
+            catch(IOException e) {
+                log.error("Unable to open the print journal, interrupted jobs won't be resumable", e);
+            }
+        }
+
+        return instance;
+    }
+
+    /**
+     * @return Certificate fingerprint of the connection owning a job, used to decide who may resume it, or {@code null}
+     * if the connection has no trusted certificate to tell it apart from other sites
+     */
+    private static String clientOf(Object owner) {
+        if (owner instanceof SocketConnection) {
+            Certificate certificate = ((SocketConnection)owner).getCertificate();
+            return certificate == null || !certificate.isTrusted()? null:certificate.getFingerprint();
+        }
+        return owner == null? null:String.valueOf(owner);
+    }
+
+    /**
+     * Starts journaling a job whose pages are about to be sent, claimed by that job until it finishes.  Pages are
+     * written in the background as they're read from {@code pages}, so they're never all held at once and printing
+     * needn't wait for them, see {@link Entry#awaitPages()}.
+     *
+     * @return The job's entry, or {@code null} if it was sent without a trusted certificate and isn't journaled
+     */
+    public Entry accept(PrintJob job, Iterable<ByteArrayBuilder> pages, int copies) {
+        String client = clientOf(job.getOwner());
+        if (client == null) { return null; }
+
+        JSONObject params = job.getParams();
+        Entry entry = new Entry(UUID.randomUUID().toString(), params.optJSONObject("printer"), params.optJSONObject("options"),
+                                client, System.currentTimeMillis(), -1, copies);
+        entry.claimed = true;
+        entry.written = new CountDownLatch(1);
+
+        synchronized(this) { accepting.add(entry.id); }
+        job.setJournalEntry(entry);
+        pageWriters.execute(() -> writePages(entry, pages, job.getId()));
+
+        return entry;
+    }
+
+    private void writePages(Entry entry, Iterable<ByteArrayBuilder> pages, String jobId) {
+        int count = 0;
+        Path file = entry.getPagesFile();
+        try {
+            try(FileOutputStream fos = new FileOutputStream(file.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                out.writeInt(0); // filled in once the pages are counted
+                for(ByteArrayBuilder page : pages) {
+                    if (entry.finished) { break; } // printed before its pages were all written, so never needed
+                    out.writeInt(page.getLength());
+                    page.writeTo(out);
+                    count++;
+                }
+                out.flush();
+
+                ByteBuffer header = ByteBuffer.allocate(4).putInt(0, count);
+                while(header.hasRemaining()) {
+                    fos.getChannel().write(header, header.position());
+                }
+                if (!entry.finished) { fos.getFD().sync(); }
+            }
+
+            // only accepted once its pages are all on disk, so an accepted job always has them
+            synchronized(this) {
+                accepting.remove(entry.id);
+                if (!entry.finished) {
+                    entry.pages = count;
+                    append(entry.toRecord());
+                    for(int copy = 0; copy < entry.copies; copy++) {
+                        for(int page = entry.sent[copy].nextSetBit(0); page >= 0; page = entry.sent[copy].nextSetBit(page + 1)) {
+                            append(entry.sentRecord(copy, page));
+                        }
+                    }
+                    unfinished.put(entry.id, entry);
+                    log.debug("Journaled print job {} as {}, {} pages", jobId, entry.id, count);
+                }
+            }
+            if (entry.finished) { Files.deleteIfExists(file); }
+        }
+        catch(IOException | RuntimeException e) {
+            log.warn("Unable to journal print job {}, it won't be resumable if interrupted", jobId, e);
+            synchronized(this) { accepting.remove(entry.id); }
+            try { Files.deleteIfExists(file); } catch(IOException ignore) {}
+        }
+        finally {
+            entry.written.countDown();
+        }
+    }
+
+    /**
+     * @return Unfinished jobs sent by the same client as {@code owner}
+     */
+    public synchronized JSONArray toJSON(Object owner) throws JSONException {
+        String client = clientOf(owner);
+        JSONArray list = new JSONArray();
+        for(Entry entry : unfinished.values()) {
+            if (entry.client.equals(client)) {
+                list.put(entry.toJSON());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Claims an unfinished job so it can be resumed
+     *
+     * @return The job, or {@code null} if it doesn't exist, is already printing, or was sent by another client
+     */
+    public synchronized Entry claim(String id, Object owner) {
+        Entry entry = id == null? null:unfinished.get(id);
+        if (entry == null || entry.claimed || !entry.client.equals(clientOf(owner))) { return null; }
+
+        entry.claimed = true;
+        return entry;
+    }
+
+    /**
+     * Drops an unfinished job without sending the rest of it
+     *
+     * @return {@code false} if it doesn't exist, is printing, or was sent by another client
+     */
+    public boolean abandon(String id, Object owner) {
+        Entry entry = claim(id, owner);
+        if (entry == null) { return false; }
+
+        log.info("Abandoning interrupted print job {}", id);
+        entry.finish();
+        return true;
+    }
+
+    private synchronized void append(JSONObject record) throws IOException {
+        byte[] json = record.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(json);
+
+        byte[] prefix = String.format("%08x ", crc.getValue()).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer line = ByteBuffer.allocate(prefix.length + json.length + 1);
+        line.put(prefix).put(json).put((byte)'\n');
+        line.flip();
+        while(line.hasRemaining()) {
+            channel.write(line);
+        }
+        records++;
+
+        // records appended while a force is running are all forced by the next one
+        if (!flushing) {
+            flushing = true;
+            background.execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        FileChannel forcing;
+        synchronized(this) {
+            flushing = false;
+            forcing = channel;
+        }
+
+        try {
+            forcing.force(false);
+        }
+        catch(ClosedChannelException e) {
+            // replaced by compaction, which forced it before it was closed
+        }
+        catch(IOException e) {
+            log.warn("Unable to force the print journal to disk", e);
+        }
+    }
+
+    private void load() throws IOException {
+        Path file = dir.resolve(LOG_FILE);
+        long valid = 0;
+
+        if (Files.exists(file)) {
+            try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    JSONObject record = parse(line);
+                    if (record == null) {
+                        log.warn("Print journal is damaged after {} records, ignoring the rest", records);
+                        break;
+                    }
+                    apply(record);
+                    valid += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    records++;
+                }
+            }
+        }
+
+        // jobs missing their pages can't be resumed, and expired ones shouldn't be; compaction drops their records and pages
+        unfinished.values().removeIf(entry -> isExpired(entry) || !Files.exists(entry.getPagesFile()));
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(valid); // drop anything torn, so new records aren't appended after it
+        channel.position(valid);
+
+        if (!unfinished.isEmpty()) {
+            log.info("Found {} interrupted print jobs which can be resumed", unfinished.size());
+        }
+    }
+
+    private static JSONObject parse(String line) {
+        int space = line.indexOf(' ');
+        if (space != 8) { return null; }
+
+        byte[] json = line.substring(space + 1).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        try {
+            if (Long.parseLong(line.substring(0, space), 16) != crc.getValue()) { return null; }
+            return new JSONObject(new String(json, StandardCharsets.UTF_8));
+        }
+        catch(NumberFormatException | JSONException e) {
+            return null;
+        }
+    }
+
+    private void apply(JSONObject record) {
+        String id = record.optString("id");
+        switch(record.optString("op")) {
+            case "accept":
+                unfinished.put(id, new Entry(id, record.optJSONObject("printer"), record.optJSONObject("options"), record.optString("client"),
+                                             record.optLong("created"), record.optInt("pages"), record.optInt("copies", 1)));
+                break;
+            case "sent":
+                Entry entry = unfinished.get(id);
+                int copy = record.optInt("copy");
+                if (entry != null && copy >= 0 && copy < entry.copies) {
+                    entry.sent[copy].set(record.optInt("page"));
+                }
+                break;
+            case "done":
+                unfinished.remove(id);
+                break;
+            default:
+                log.warn("Unknown print journal record {}", record);
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return expiry > 0 && entry.created < System.currentTimeMillis() - expiry;
+    }
+
+    /**
+     * Drops unfinished jobs not resumed in time, along with their pages, leaving any being printed
+     */
+    void expire() {
+        List<Entry> expired = new ArrayList<>();
+        synchronized(this) {
+            for(Entry entry : unfinished.values()) {
+                if (!entry.claimed && isExpired(entry)) {
+                    entry.claimed = true; // so it can't be resumed while it's dropped
+                    expired.add(entry);
+                }
+            }
+        }
+
+        for(Entry entry : expired) {
+            log.info("Dropping interrupted print job {}, it wasn't resumed in time", entry.id);
+            entry.finish();
+        }
+    }
+
+    private synchronized void scheduleCompact() {
+        if (compacting || records < COMPACT_MIN_RECORDS || records < liveRecords() * COMPACT_RATIO) { return; }
+
+        compacting = true;
+        background.execute(this::compact);
+        if (this.expiry > 0) {
+            long period = Math.min(this.expiry, TimeUnit.HOURS.toMillis(1));
+            background.scheduleAtFixedRate(this::expire, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private long liveRecords() {
+        long live = 0;
+        for(Entry entry : unfinished.values()) {
+            live += 1 + entry.sentCount();
+        }
+        return live;
+    }
+
+    /**
+     * Rewrites the log with only the records of unfinished jobs, and deletes pages no longer needed
+     */
+    synchronized void compact() {
+        Path file = dir.resolve(LOG_FILE);
+        Path temp = dir.resolve(LOG_FILE + ".tmp");
+        FileChannel current = channel;
+        long before = records;
+        boolean replaced = false;
+
+        try {
+            channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            records = 0;
+            try {
+                for(Entry entry : unfinished.values()) {
+                    append(entry.toRecord());
+                    for(int copy = 0; copy < entry.copies; copy++) {
+                        for(int page = entry.sent[copy].nextSetBit(0); page >= 0; page = entry.sent[copy].nextSetBit(page + 1)) {
+                            append(entry.sentRecord(copy, page));
+                        }
+                    }
+                }
+                channel.force(false);
+            }
+            finally {
+                channel.close();
+            }
+
+            current.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            replaced = true;
+            current = FileChannel.open(file, StandardOpenOption.WRITE);
+            current.position(current.size());
+
+            File[] orphans = dir.toFile().listFiles((d, name) -> name.endsWith(PAGES_SUFFIX)
+                    && !unfinished.containsKey(name.substring(0, name.length() - PAGES_SUFFIX.length()))
+                    && !accepting.contains(name.substring(0, name.length() - PAGES_SUFFIX.length())));
+            if (orphans != null) {
+                for(File orphan : orphans) {
+                    if (!orphan.delete()) { log.warn("Unable to delete {}", orphan); }
+                }
+            }
+
+            log.debug("Compacted print journal from {} to {} records", before, records);
+        }
+        catch(IOException e) {
+            log.error("Unable to compact the print journal", e);
+            if (!replaced) { records = before; }
+            try {
+                if (!current.isOpen()) {
+                    current = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    current.position(current.size());
+                }
+            }
+            catch(IOException reopen) {
+                log.error("Unable to reopen the print journal", reopen);
+            }
+        }
+        finally {
+            // always back to appending to the log, never the temp file
+            channel = current;
+            compacting = false;
+        }
+    }
+
+    /**
+     * A single journaled job
+     */
+    public class Entry {
+        private final String id;
+        private final JSONObject printer;
+        private final JSONObject options;
+        private final String client;
+        private final long created;
+        private final int copies;
+        private final BitSet[] sent; // pages sent, by copy
+
+        private int pages;
+        private boolean claimed;
+        private volatile boolean finished;
+        private CountDownLatch written = new CountDownLatch(0);
+
+        private Entry(String id, JSONObject printer, JSONObject options, String client, long created, int pages, int copies) {
+            this.id = id;
+            this.printer = printer == null? new JSONObject():printer;
+            this.options = options == null? new JSONObject():options;
+            this.client = client;
+            this.created = created;
+            this.pages = pages;
+            this.copies = Math.max(1, copies);
+            sent = new BitSet[this.copies];
+            for(int i = 0; i < sent.length; i++) {
+                sent[i] = new BitSet();
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getCopies() {
+            return copies;
+        }
+
+        /**
+         * @return Params of a {@code print} call which sends the rest of the job to the same printer with the same options
+         */
+        public JSONObject getParams() throws JSONException {
+            return new JSONObject()
+                    .put("printer", new JSONObject(printer.toString()))
+                    .put("options", new JSONObject(options.toString()))
+                    .put("data", new JSONArray());
+        }
+
+        private Path getPagesFile() {
+            return dir.resolve(id + PAGES_SUFFIX);
+        }
+
+        private int sentCount() {
+            int count = 0;
+            for(BitSet copy : sent) {
+                count += copy.cardinality();
+            }
+            return count;
+        }
+
+        /**
+         * Waits for a newly accepted job's pages to be written, or to be abandoned if the job already finished.  Jobs
+         * call this before returning, as the pages are read from their data.
+         */
+        public void awaitPages() throws InterruptedException {
+            written.await();
+        }
+
+        /**
+         * Reads back the job's converted pages
+         */
+        public List<ByteArrayBuilder> readPages() throws IOException {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getPagesFile().toFile())))) {
+                int count = in.readInt();
+                List<ByteArrayBuilder> list = new ArrayList<>(count);
+                for(int i = 0; i < count; i++) {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    list.add(new ByteArrayBuilder(bytes));
+                }
+                return list;
+            }
+        }
+
+        public boolean isSent(int copy, int page) {
+            synchronized(PrintJournal.this) {
+                return copy < copies && sent[copy].get(page);
+            }
+        }
+
+        /**
+         * Records that a page of a copy has been sent to the printer
+         */
+        public void sent(int copy, int page) {
+            synchronized(PrintJournal.this) {
+                if (finished || copy >= copies) { return; }
+                sent[copy].set(page);
+                // pages sent before the job is accepted are recorded along with it
+                if (pages < 0) { return; }
+                try {
+                    append(sentRecord(copy, page));
+                }
+                catch(IOException e) {
+                    log.warn("Unable to journal page {} of print job {}, it may be sent again if resumed", page + 1, id, e);
+                }
+            }
+        }
+
+        /**
+         * Records that the job needs nothing more sent, whether it completed or was abandoned
+         */
+        public void finish() {
+            synchronized(PrintJournal.this) {
+                if (finished) { return; }
+                finished = true;
+                // not yet accepted, so there's nothing to record and its pages are dropped once written
+                if (pages < 0) { return; }
+                unfinished.remove(id);
+                try {
+                    append(new JSONObject().put("op", "done").put("id", id));
+                }
+                catch(IOException | JSONException e) {
+                    log.warn("Unable to record print job {} as done, it will be offered for resuming", id, e);
+                    return;
+                }
+            }
+
+            try {
+                Files.deleteIfExists(getPagesFile());
+            }
+            catch(IOException e) {
+                log.warn("Unable to delete pages of print job {}, they'll be removed on compaction", id, e);
+            }
+            scheduleCompact();
+        }
+
+        /**
+         * Lets the job be resumed again, after the job printing it stopped without finishing
+         */
+        public void release() {
+            synchronized(PrintJournal.this) {
+                claimed = false;
+            }
+        }
+
+        private JSONObject toRecord() {
+            try {
+                return new JSONObject()
+                        .put("op", "accept")
+                        .put("id", id)
+                        .put("printer", printer)
+                        .put("options", options)
+                        .put("client", client)
+                        .put("created", created)
+                        .put("pages", pages)
+                        .put("copies", copies);
+            }
+            catch(JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private JSONObject sentRecord(int copy, int page) {
+            try {
+                return new JSONObject().put("op", "sent").put("id", id).put("copy", copy).put("page", page);
+            }
+            catch(JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            return new JSONObject()
+                    .put("journalId", id)
+                    .put("printer", printer)
+                    .put("created", created)
+                    .put("pages", pages)
+                    .put("copies", copies)
+                    .put("sent", sentCount())
+                    .put("printing", claimed);
+        }
+    }
+
+}
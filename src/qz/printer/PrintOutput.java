@@ -9,6 +9,7 @@ import javax.print.PrintService;
 import javax.print.attribute.standard.Media;
 import java.io.File;
 import java.nio.file.Paths;
+import java.util.Locale;
 
 public class PrintOutput {
 
@@ -85,6 +86,19 @@ public class PrintOutput {
         return port;
     }
 
+    /**
+     * @return Key for the device or file this output prints to, in the same order of precedence used when printing
+     */
+    public String getDestination() {
+        if (isSetHost()) {
+            return "host:" + host.toLowerCase(Locale.ENGLISH) + ":" + port;
+        } else if (isSetFile()) {
+            return "file:" + file.getAbsolutePath();
+        } else {
+            return "printer:" + printer.getPrinterId();
+        }
+    }
+
     public Media[] getSupportedMedia() {
         return (Media[])getPrintService().getSupportedAttributeValues(Media.class, null, null);
     }
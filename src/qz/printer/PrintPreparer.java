@@ -0,0 +1,137 @@
+package qz.printer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import qz.App;
+import qz.utils.ArgValue;
+import qz.utils.PrefsSearch;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prepares {@code print} calls ahead of time, so they only need sending once committed.
+ * <p>
+ * Preparation runs in the background on a couple of threads of its own, leaving the print queue free for jobs already
+ * committed.  Prepared prints are held under a random handle until they're committed, discarded, their connection
+ * closes, or they expire.  Each is only visible to the connection that prepared it, and each connection may only hold
+ * so many at once.  Their memory is charged to {@link PrintAdmission} while held, so committed jobs can't crowd it out.
+ */
+public class PrintPreparer {
+
+    private static final Logger log = LogManager.getLogger(PrintPreparer.class);
+
+    private static final int THREADS = 2;
+
+    // handle -> print being prepared or ready to commit
+    private static final ConcurrentHashMap<String,PreparedPrint> prepared = new ConcurrentHashMap<>();
+
+    private static ScheduledThreadPoolExecutor executor;
+
+
+    private PrintPreparer() {}
+
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = new ScheduledThreadPoolExecutor(THREADS, r -> {
+                Thread t = new Thread(r, "qz-print-prepare-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+
+        return executor;
+    }
+
+    /**
+     * Starts preparing a {@code print} call in the background
+     *
+     * @param owner Connection the print belongs to, only it can commit or discard it
+     * @throws IllegalArgumentException If the printer can't be resolved
+     * @throws IllegalStateException    If {@code owner} already holds as many prepared prints as it may
+     */
+    public static PreparedPrint prepare(Object owner, JSONObject params) throws JSONException {
+        long ttl = Math.max(1, PrefsSearch.getInt(ArgValue.PRINT_PREPARE_TTL, App.getTrayProperties()));
+        int limit = PrefsSearch.getInt(ArgValue.PRINT_PREPARE_LIMIT, App.getTrayProperties());
+
+        PreparedPrint print;
+        synchronized(prepared) {
+            int held = 0;
+            for(PreparedPrint other : prepared.values()) {
+                if (other.getOwner() == owner) { held++; }
+            }
+            if (limit > 0 && held >= limit) {
+                throw new IllegalStateException(String.format("Too many prints prepared and not yet committed, the limit is %d", limit));
+            }
+
+            print = new PreparedPrint(UUID.randomUUID().toString(), owner, params, null);
+            print.setExpires(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl));
+            prepared.put(print.getId(), print);
+        }
+        print.reserve();
+
+        log.debug("Preparing print {} for {}", print.getId(), print.getOutput().getDestination());
+        start(print);
+        getExecutor().schedule(() -> expire(print), ttl, TimeUnit.SECONDS);
+
+        return print;
+    }
+
+    /**
+     * Starts preparing a print in the background, without holding onto it
+     */
+    static void start(PreparedPrint print) {
+        getExecutor().execute(print::prepare);
+    }
+
+    /**
+     * Removes a prepared print so it can be committed.  Preparation may still be running.
+     *
+     * @return The print, or {@code null} if it doesn't exist, has expired, or belongs to another connection
+     */
+    public static PreparedPrint take(String handle, Object owner) {
+        PreparedPrint print = handle == null? null:prepared.get(handle);
+        if (print == null || print.getOwner() != owner || !prepared.remove(handle, print)) { return null; }
+        return print;
+    }
+
+    /**
+     * Drops a prepared print without printing it
+     *
+     * @return {@code false} if it doesn't exist or has already been committed or expired
+     */
+    public static boolean discard(String handle, Object owner) {
+        PreparedPrint print = take(handle, owner);
+        if (print == null) { return false; }
+
+        log.debug("Discarding prepared print {}", handle);
+        print.close();
+        return true;
+    }
+
+    /**
+     * Drops every print prepared by {@code owner}
+     */
+    public static void release(Object owner) {
+        for(PreparedPrint print : prepared.values()) {
+            if (print.getOwner() == owner) {
+                discard(print.getId(), owner);
+            }
+        }
+    }
+
+    private static void expire(PreparedPrint print) {
+        if (prepared.remove(print.getId(), print)) {
+            log.info("Prepared print {} expired before it was committed", print.getId());
+            print.close();
+        }
+    }
+
+}
@@ -0,0 +1,417 @@
+package qz.printer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.eclipse.jetty.websocket.api.Session;
+import qz.App;
+import qz.utils.ArgValue;
+import qz.utils.PrefsSearch;
+import qz.utils.PrintingUtilities;
+
+import java.awt.print.PrinterAbortException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs print jobs on a pool of worker threads.
+ * <p>
+ * Jobs are queued into a lane for the device or file they print to, see {@link PrintOutput#getDestination()}.  Each
+ * lane prints one job at a time, highest priority first and otherwise in the order queued, so jobs for the same printer
+ * never interleave.  Different lanes print in parallel, up to the number of worker threads.  Calls listing several
+ * printers are prepared once and queued as a job per printer, so they print to each in parallel.
+ * <p>
+ * A lane's next job is admitted by {@link PrintAdmission} before it's handed to a worker thread.  Lanes whose next job
+ * doesn't fit are parked, without a thread, until a running job finishes or the heap's pressure eases, so large jobs
+ * waiting their turn can't starve smaller ones of threads.
+ * <p>
+ * Callers get a {@link PrintJob} back as soon as it's queued and can either wait on it or return straight away,
+ * leaving the client to follow along through the job's stream events.  Finished jobs are kept for a while so their
+ * status can still be looked up.  Jobs are only visible to the connection that created them.
+ */
+public class PrintQueue {
+
+    private static final Logger log = LogManager.getLogger(PrintQueue.class);
+
+    private static final int RETAINED_JOBS = 100;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    // job id -> queued, running or recently finished job
+    private static final ConcurrentHashMap<String,PrintJob> jobs = new ConcurrentHashMap<>();
+    private static final ArrayDeque<String> finished = new ArrayDeque<>();
+
+    // destination -> jobs waiting for that device, guarded by its own lock
+    private static final HashMap<String,Lane> lanes = new HashMap<>();
+    // lanes whose next job is waiting to be admitted, guarded by lanes
+    private static final List<Lane> parked = new ArrayList<>();
+    private static boolean retrying;
+
+    private static ThreadPoolExecutor executor;
+    private static ScheduledThreadPoolExecutor retryTimer;
+
+
+    private PrintQueue() {}
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = PrefsSearch.getInt(ArgValue.PRINT_JOB_THREADS, App.getTrayProperties());
+            if (threads <= 0) {
+                threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            }
+            log.debug("Running print jobs on {} threads", threads);
+
+            AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "qz-print-job-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        return executor;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getRetryTimer() {
+        if (retryTimer == null) {
+            retryTimer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "qz-print-admission");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        return retryTimer;
+    }
+
+    /**
+     * Queues a {@code print} call
+     *
+     * @param owner Connection the job belongs to, only it can see or cancel the job
+     */
+    public static PrintJob submit(Session session, Object owner, JSONObject params) {
+        return submit(session, owner, params, null);
+    }
+
+    /**
+     * Queues a print prepared ahead of time by {@link PrintPreparer}
+     */
+    public static PrintJob submit(Session session, Object owner, PreparedPrint prepared) {
+        return submit(session, owner, prepared.getParams(), prepared);
+    }
+
+    /**
+     * Queues a {@code print} call listing several printers, as a job per printer sharing a single preparation of the
+     * call's data.  Each job prints in its printer's lane, so destinations are printed to in parallel.
+     *
+     * @return A job per printer, in the order listed.  Printers which can't be resolved get a job which fails when run.
+     */
+    public static List<PrintJob> submitAll(Session session, Object owner, JSONObject params) throws JSONException {
+        JSONArray printers = params.getJSONArray("printer");
+        if (printers.length() == 0) {
+            throw new IllegalArgumentException("No printers given to print to");
+        }
+
+        PreparedPrint prepared = null;
+        List<PrintJob> queued = new ArrayList<>();
+        for(int i = 0; i < printers.length(); i++) {
+            JSONObject single = new JSONObject();
+            for(Iterator<?> keys = params.keys(); keys.hasNext(); ) {
+                String key = (String)keys.next();
+                single.put(key, params.get(key));
+            }
+            single.put("printer", printers.optJSONObject(i));
+
+            PrintOutput output = null;
+            try {
+                output = new PrintOutput(single.optJSONObject("printer"));
+            }
+            catch(JSONException | IllegalArgumentException e) {
+                // left to be resolved when run, so it fails on its own
+            }
+
+            long seq = sequence.incrementAndGet();
+            if (output == null) {
+                queued.add(new PrintJob(String.valueOf(seq), seq, session, owner, single, null));
+            } else {
+                prepared = prepared == null? new PreparedPrint(owner, single, output):prepared.share();
+                queued.add(new PrintJob(String.valueOf(seq), seq, session, owner, single, prepared, output));
+            }
+        }
+
+        // every job holds its share before any can finish and close it, and none pays for the shared data, so it's
+        // charged to admission once until the last of them closes it
+        if (prepared != null) {
+            prepared.reserve();
+            PrintPreparer.start(prepared);
+        }
+        for(PrintJob job : queued) {
+            submit(job);
+        }
+
+        return queued;
+    }
+
+    /**
+     * Queues the rest of a job interrupted before it was fully sent, see {@link PrintJournal}
+     *
+     * @param entry Journaled job, already claimed by {@code owner}
+     */
+    public static PrintJob resume(Session session, Object owner, PrintJournal.Entry entry) throws JSONException {
+        long seq = sequence.incrementAndGet();
+        PrintJob job = new PrintJob(String.valueOf(seq), seq, session, owner, entry.getParams(), null);
+        job.setJournalEntry(entry);
+        return submit(job);
+    }
+
+    private static PrintJob submit(Session session, Object owner, JSONObject params, PreparedPrint prepared) {
+        long seq = sequence.incrementAndGet();
+        return submit(new PrintJob(String.valueOf(seq), seq, session, owner, params, prepared));
+    }
+
+    private static PrintJob submit(PrintJob job) {
+        jobs.put(job.getId(), job);
+
+        log.debug("Queued print job {} for {} with priority {}", job.getId(), job.getDestination(), job.getPriority());
+        job.update(PrintJob.State.QUEUED);
+
+        synchronized(lanes) {
+            Lane lane = lanes.computeIfAbsent(job.getDestination(), Lane::new);
+            lane.pending.add(job);
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                dispatch(lane);
+            }
+        }
+
+        return job;
+    }
+
+    /**
+     * @return The job with {@code id}, or {@code null} if it doesn't exist or belongs to another connection
+     */
+    public static PrintJob get(String id, Object owner) {
+        PrintJob job = id == null? null:jobs.get(id);
+        if (job == null || job.getOwner() != owner) { return null; }
+        return job;
+    }
+
+    /**
+     * @return Status of every job known for {@code owner}
+     */
+    public static JSONArray toJSON(Object owner) throws JSONException {
+        JSONArray list = new JSONArray();
+        for(PrintJob job : jobs.values()) {
+            if (job.getOwner() == owner) {
+                list.put(job.toJSON());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return Number of jobs waiting for, and printing to, each destination with any jobs
+     */
+    public static JSONArray queuesJSON() throws JSONException {
+        JSONArray list = new JSONArray();
+        synchronized(lanes) {
+            for(Lane lane : lanes.values()) {
+                list.put(new JSONObject()
+                                 .put("destination", lane.destination)
+                                 .put("queued", lane.pending.size())
+                                 .put("printing", lane.running != null));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Cancels a job.  Queued jobs are removed straight away, running jobs stop at their next checkpoint.
+     *
+     * @return {@code false} if the job doesn't exist or has already finished
+     */
+    public static boolean cancel(String id, Object owner) {
+        PrintJob job = get(id, owner);
+        if (job == null || job.getState().isFinished()) { return false; }
+
+        log.info("Cancelling print job {}", id);
+        job.cancel();
+
+        boolean removed;
+        synchronized(lanes) {
+            Lane lane = lanes.get(job.getDestination());
+            removed = lane != null && lane.pending.remove(job);
+            // a parked lane may have lost the job it was waiting to admit
+            if (removed && parked.contains(lane)) { dispatch(lane); }
+        }
+        if (removed) {
+            job.finish(PrintJob.State.CANCELLED, "Printing cancelled");
+            retire(job);
+        }
+
+        return true;
+    }
+
+    /**
+     * Cancels any jobs for {@code owner} which haven't started yet, leaving running jobs to finish
+     */
+    public static void release(Object owner) {
+        for(PrintJob job : jobs.values()) {
+            if (job.getOwner() == owner && job.getState() == PrintJob.State.QUEUED) {
+                cancel(job.getId(), owner);
+            }
+        }
+    }
+
+    /**
+     * Hands the lane's next job to a worker if it's admitted, otherwise parks the lane until it can be.  Lanes with no
+     * jobs left go idle.  Callers hold the {@code lanes} lock.
+     */
+    private static void dispatch(Lane lane) {
+        PrintJob next = lane.pending.peek();
+        if (next == null) {
+            idle(lane);
+            return;
+        }
+
+        if (!PrintAdmission.getInstance().tryAcquire(next.getCost())) {
+            if (!parked.contains(lane)) { parked.add(lane); }
+            if (!retrying) {
+                // releases retry parked lanes, but heap pressure can only ease after a gc so check back periodically
+                retrying = true;
+                getRetryTimer().schedule(PrintQueue::retry, PrintAdmission.PRESSURE_WAIT, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        parked.remove(lane);
+        lane.pending.poll();
+        lane.running = next;
+        getExecutor().execute(new Task(lane, next));
+    }
+
+    /**
+     * Tries to admit the next job of each parked lane, highest priority first
+     */
+    private static void dispatchParked() {
+        synchronized(lanes) {
+            List<Lane> waiting = new ArrayList<>(parked);
+            waiting.sort((a, b) -> {
+                PrintJob headA = a.pending.peek(), headB = b.pending.peek();
+                if (headA == null || headB == null) { return headA == null? (headB == null? 0:-1):1; }
+                return headA.compareTo(headB);
+            });
+            for(Lane lane : waiting) {
+                dispatch(lane);
+            }
+        }
+    }
+
+    private static void retry() {
+        synchronized(lanes) {
+            retrying = false;
+            dispatchParked();
+        }
+    }
+
+    private static void idle(Lane lane) {
+        lane.scheduled = false;
+        lanes.remove(lane.destination);
+        parked.remove(lane);
+    }
+
+    private static void run(PrintJob job) {
+        PrintJob.setCurrent(job);
+        try {
+            job.checkCancelled();
+
+            PrintingUtilities.print(job);
+            job.finish(PrintJob.State.COMPLETE, null);
+            log.info("Printing complete");
+        }
+        catch(PrinterAbortException e) {
+            log.warn("Printing cancelled");
+            job.finish(PrintJob.State.CANCELLED, "Printing cancelled");
+        }
+        catch(Exception e) {
+            log.error("Failed to print", e);
+            String message = e.getMessage();
+            job.finish(PrintJob.State.FAILED, message == null || message.isEmpty()? e.getClass().getSimpleName():message);
+        }
+        finally {
+            PrintAdmission.getInstance().release(job.getCost());
+            PrintJob.setCurrent(null);
+            retire(job);
+        }
+    }
+
+    private static void retire(PrintJob job) {
+        synchronized(finished) {
+            finished.add(job.getId());
+            while(finished.size() > RETAINED_JOBS) {
+                jobs.remove(finished.poll());
+            }
+        }
+    }
+
+    /**
+     * Jobs for a single destination, at most one of which is printing
+     */
+    private static class Lane {
+        final String destination;
+        final PriorityQueue<PrintJob> pending = new PriorityQueue<>();
+        PrintJob running;
+        boolean scheduled;
+
+        Lane(String destination) {
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * Prints a lane's admitted job, then dispatches the lane again if it has more
+     */
+    private static class Task implements Runnable, Comparable<Task> {
+        final Lane lane;
+        final PrintJob job;
+
+        Task(Lane lane, PrintJob job) {
+            this.lane = lane;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            PrintQueue.run(job);
+
+            synchronized(lanes) {
+                lane.running = null;
+                // dispatch rather than loop, so a busy printer can't hold a thread while other lanes wait
+                if (!lane.pending.isEmpty() && !parked.contains(lane)) { parked.add(lane); }
+                if (lane.pending.isEmpty()) { idle(lane); }
+                // the finished job's share of the budget may now admit this or another lane's next job
+                dispatchParked();
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return job.compareTo(other.job);
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+package qz.printer.action;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import qz.App;
+import qz.common.ByteArrayBuilder;
+import qz.utils.ArgValue;
+import qz.utils.PrefsSearch;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps connections to raw network printers open between jobs, so each label doesn't pay for a new connection.
+ * <p>
+ * Connections are only kept when configured to, as many printers only accept one connection at a time, and some only
+ * print once the connection closes.  Kept connections are per host and port, and closed once left idle for the
+ * configured time.  A kept connection is checked before it's reused, and one the printer turns
+ * out to have dropped is replaced and the data written again.
+ * <p>
+ * Socket timeouts only apply to reads, so writes are watched instead, and a connection the printer stops reading from
+ * for the configured timeout is closed, failing the write rather than leaving the job stuck.
+ */
+class HostConnections {
+
+    private static final Logger log = LogManager.getLogger(HostConnections.class);
+
+    // largest single write to the socket, so a slow printer still shows progress well within the timeout
+    private static final int WRITE_SLICE = 16 * 1024;
+
+    private static HostConnections instance;
+
+    private final HashMap<String,ArrayDeque<Connection>> idle = new HashMap<>();
+    private ScheduledThreadPoolExecutor evictor;
+
+
+    static synchronized HostConnections getInstance() {
+        if (instance == null) {
+            instance = new HostConnections();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Writes {@code data} to the printer at {@code host}:{@code port}, over a kept connection if there is one
+     *
+     * @throws SocketTimeoutException If the printer stopped accepting the data for the configured timeout
+     */
+    void write(String host, int port, ByteArrayBuilder data) throws IOException {
+        String key = host + ":" + port;
+        int timeout = PrefsSearch.getInt(ArgValue.PRINT_HOST_TIMEOUT, App.getTrayProperties()) * 1000;
+
+        Connection connection = borrow(key);
+        if (connection != null) {
+            try {
+                connection.write(data, getEvictor());
+            }
+            catch(SocketTimeoutException e) {
+                // the printer stopped reading, a new connection would only wait as long again
+                connection.close();
+                throw e;
+            }
+            catch(IOException e) {
+                // the printer dropped the connection after it was checked, anything written went nowhere
+                log.warn("Connection to {} was dropped, reconnecting", key, e);
+                connection.close();
+                connection = null;
+            }
+        }
+        if (connection == null) {
+            connection = new Connection(key, host, port, timeout);
+            try {
+                connection.write(data, getEvictor());
+            }
+            catch(IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        release(connection);
+    }
+
+    /**
+     * @return A kept connection to {@code key} which is still open, or {@code null} if there isn't one
+     */
+    private Connection borrow(String key) {
+        while(true) {
+            Connection connection;
+            synchronized(this) {
+                ArrayDeque<Connection> kept = idle.get(key);
+                connection = kept == null? null:kept.pollLast();
+                if (connection == null) { return null; }
+                if (kept.isEmpty()) { idle.remove(key); }
+                if (connection.eviction != null) { connection.eviction.cancel(false); }
+            }
+
+            if (connection.isOpen()) {
+                log.trace("Reusing connection to {}", key);
+                return connection;
+            }
+            log.debug("Connection to {} was closed by the printer", key);
+            connection.close();
+        }
+    }
+
+    private void release(Connection connection) {
+        int keepSeconds = PrefsSearch.getInt(ArgValue.PRINT_HOST_IDLE, App.getTrayProperties());
+        if (keepSeconds <= 0) {
+            connection.close();
+            return;
+        }
+
+        synchronized(this) {
+            idle.computeIfAbsent(connection.key, k -> new ArrayDeque<>()).addLast(connection);
+            connection.eviction = getEvictor().schedule(() -> evict(connection), keepSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void evict(Connection connection) {
+        synchronized(this) {
+            ArrayDeque<Connection> kept = idle.get(connection.key);
+            if (kept == null || !kept.remove(connection)) { return; } // reused since
+            if (kept.isEmpty()) { idle.remove(connection.key); }
+        }
+
+        log.debug("Closing idle connection to {}", connection.key);
+        connection.close();
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getEvictor() {
+        if (evictor == null) {
+            AtomicInteger count = new AtomicInteger();
+            evictor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "qz-print-host-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            evictor.setRemoveOnCancelPolicy(true);
+        }
+
+        return evictor;
+    }
+
+    /**
+     * @return Number of connections currently kept open and idle, for all printers
+     */
+    synchronized int getIdleCount() {
+        int count = 0;
+        for(ArrayDeque<Connection> kept : idle.values()) {
+            count += kept.size();
+        }
+        return count;
+    }
+
+
+    private static class Connection {
+        private final String key;
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final int timeout;
+        private ScheduledFuture<?> eviction;
+
+        private volatile long progressed; // when the printer last took some of the data being written
+        private volatile boolean stalled;
+
+        Connection(String key, String host, int port, int timeout) throws IOException {
+            this.key = key;
+            this.timeout = timeout;
+            log.debug("Connecting to {}", key);
+
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setKeepAlive(true);
+                socket.setTcpNoDelay(true);
+                OutputStream raw = socket.getOutputStream();
+                out = new BufferedOutputStream(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        raw.write(b);
+                        progressed = System.currentTimeMillis();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        for(int end = off + len; off < end; off += WRITE_SLICE) {
+                            raw.write(b, off, Math.min(WRITE_SLICE, end - off));
+                            progressed = System.currentTimeMillis();
+                        }
+                    }
+                });
+                in = socket.getInputStream();
+            }
+            catch(IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @param watchdog Checks the printer keeps taking the data, closing the connection if it stops for the timeout
+         * @throws SocketTimeoutException If the printer stopped taking the data
+         */
+        void write(ByteArrayBuilder data, ScheduledThreadPoolExecutor watchdog) throws IOException {
+            ScheduledFuture<?> deadline = null;
+            if (timeout > 0) {
+                progressed = System.currentTimeMillis();
+                long period = Math.max(100, timeout / 4);
+                deadline = watchdog.scheduleWithFixedDelay(this::checkStalled, period, period, TimeUnit.MILLISECONDS);
+            }
+
+            try {
+                data.writeTo(out);
+                out.flush();
+            }
+            catch(IOException e) {
+                if (stalled) {
+                    SocketTimeoutException timedOut = new SocketTimeoutException(String.format("Printer at %s stopped accepting data for %d seconds", key, timeout / 1000));
+                    timedOut.initCause(e);
+                    throw timedOut;
+                }
+                throw e;
+            }
+            finally {
+                if (deadline != null) { deadline.cancel(false); }
+            }
+        }
+
+        private void checkStalled() {
+            if (System.currentTimeMillis() - progressed >= timeout) {
+                log.warn("Printer at {} stopped accepting data, closing the connection", key);
+                stalled = true;
+                close();
+            }
+        }
+
+        /**
+         * @return If the printer hasn't closed its end, reading away anything it sent back unasked
+         */
+        boolean isOpen() {
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) { return false; }
+
+            int timeout = 0;
+            try {
+                timeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
+                byte[] buffer = new byte[512];
+                while(true) {
+                    if (in.read(buffer) < 0) { return false; }
+                }
+            }
+            catch(SocketTimeoutException e) {
+                return true; // nothing more to read, but still open
+            }
+            catch(IOException e) {
+                return false;
+            }
+            finally {
+                try { socket.setSoTimeout(timeout); } catch(IOException ignore) {}
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            }
+            catch(IOException e) {
+                log.warn("Unable to close connection to {}", key, e);
+            }
+        }
+    }
+
+}
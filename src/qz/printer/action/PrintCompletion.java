@@ -0,0 +1,162 @@
+package qz.printer.action;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import qz.App;
+import qz.utils.ArgValue;
+import qz.utils.PrefsSearch;
+
+import javax.print.Doc;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
+import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.event.PrintJobEvent;
+import javax.print.event.PrintJobListener;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks jobs handed to a print service until the service reports them done.
+ * <p>
+ * Each job's completion is a future, finished by the service's {@link PrintJobListener} events rather than polled for.
+ * Jobs the service reports as failed or cancelled fail their print, and jobs it never reports on fail once the
+ * configured timeout passes after they've been sent.  A print sending several jobs leaves a few in flight at once, only waiting on the oldest
+ * once the limit is reached, and on the rest once everything has been sent.
+ */
+class PrintCompletion {
+
+    private static final Logger log = LogManager.getLogger(PrintCompletion.class);
+
+    private static ScheduledThreadPoolExecutor timeouts;
+
+    private final int limit;
+    private final ArrayDeque<CompletableFuture<?>> inFlight = new ArrayDeque<>();
+
+
+    PrintCompletion() {
+        limit = Math.max(1, PrefsSearch.getInt(ArgValue.PRINT_SPOOL_INFLIGHT, App.getTrayProperties()));
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimeouts() {
+        if (timeouts == null) {
+            AtomicInteger count = new AtomicInteger();
+            timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "qz-print-spool-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            timeouts.setRemoveOnCancelPolicy(true);
+        }
+
+        return timeouts;
+    }
+
+    /**
+     * Sends a job to its print service
+     *
+     * @return Completes once the service reports the job done, or fails if it reports the job failed, cancelled, or
+     * doesn't report back in time once sent
+     */
+    static CompletableFuture<PrintJobEvent> submit(DocPrintJob printJob, Doc doc, PrintRequestAttributeSet attributes) throws PrintException {
+        CompletableFuture<PrintJobEvent> completion = new CompletableFuture<>();
+        printJob.addPrintJobListener(new PrintJobListener() {
+            @Override
+            public void printDataTransferCompleted(PrintJobEvent printJobEvent) {
+                log.debug("{}", printJobEvent);
+                completion.complete(printJobEvent);
+            }
+
+            @Override
+            public void printJobCompleted(PrintJobEvent printJobEvent) {
+                log.debug("{}", printJobEvent);
+                completion.complete(printJobEvent);
+            }
+
+            @Override
+            public void printJobFailed(PrintJobEvent printJobEvent) {
+                log.error("{}", printJobEvent);
+                completion.completeExceptionally(new PrintException("Printer reported the print job as failed"));
+            }
+
+            @Override
+            public void printJobCanceled(PrintJobEvent printJobEvent) {
+                log.warn("{}", printJobEvent);
+                completion.completeExceptionally(new PrintException("Print job was cancelled by the printer"));
+            }
+
+            @Override
+            public void printJobNoMoreEvents(PrintJobEvent printJobEvent) {
+                log.debug("{}", printJobEvent);
+                completion.complete(printJobEvent);
+            }
+
+            @Override
+            public void printJobRequiresAttention(PrintJobEvent printJobEvent) {
+                log.info("{}", printJobEvent);
+            }
+        });
+
+        log.trace("Sending print job to printer");
+        try {
+            printJob.print(doc, attributes);
+        }
+        catch(PrintException | RuntimeException e) {
+            completion.completeExceptionally(e);
+            throw e;
+        }
+
+        // some services only return once the whole job has been sent, so only time the wait for them to report back
+        int timeout = PrefsSearch.getInt(ArgValue.PRINT_SPOOL_TIMEOUT, App.getTrayProperties());
+        if (timeout > 0 && !completion.isDone()) {
+            ScheduledFuture<?> expiry = getTimeouts().schedule(() -> {
+                if (completion.completeExceptionally(new PrintException(String.format("Printer didn't report the print job done within %s seconds", timeout)))) {
+                    log.warn("Gave up waiting on print job after {} seconds", timeout);
+                }
+            }, timeout, TimeUnit.SECONDS);
+            completion.whenComplete((event, error) -> expiry.cancel(false));
+        }
+
+        return completion;
+    }
+
+    /**
+     * Waits for a job sent by {@link #submit} to finish
+     */
+    static void await(CompletableFuture<?> completion) throws PrintException {
+        try {
+            completion.get();
+            log.trace("Print job received by printer");
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PrintException(e);
+        }
+        catch(ExecutionException e) {
+            if (e.getCause() instanceof PrintException) {
+                throw (PrintException)e.getCause();
+            }
+            throw new PrintException(e.getCause() instanceof Exception? (Exception)e.getCause():e);
+        }
+    }
+
+    /**
+     * Leaves a job in flight, first waiting on the oldest one if already at the limit
+     */
+    void add(CompletableFuture<?> completion) throws PrintException {
+        while(inFlight.size() >= limit) {
+            await(inFlight.poll());
+        }
+        inFlight.add(completion);
+    }
+
+    /**
+     * Waits for every job still in flight, in the order they were sent
+     */
+    void awaitAll() throws PrintException {
+        while(!inFlight.isEmpty()) {
+            await(inFlight.poll());
+        }
+    }
+
+}
@@ -1,6 +1,5 @@
 package qz.printer.action;
 
-import org.apache.commons.codec.binary.Base64InputStream;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -18,6 +17,7 @@ import javax.print.SimpleDoc;
 import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.PrintRequestAttributeSet;
 import javax.print.attribute.standard.JobName;
+import javax.print.event.PrintJobEvent;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
@@ -25,12 +25,13 @@ import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 
 public class PrintDirect extends PrintRaw {
 
     private static final Logger log = LogManager.getLogger(PrintDirect.class);
 
-    private ArrayList<String> prints = new ArrayList<>();
+    private ArrayList<Object> prints = new ArrayList<>();
     private ArrayList<PrintingUtilities.Flavor> flavors = new ArrayList<>();
 
 
@@ -45,7 +46,7 @@ public class PrintDirect extends PrintRaw {
             JSONObject data = printData.optJSONObject(i);
             if (data == null) { continue; }
 
-            prints.add(data.getString("data"));
+            prints.add(data.get("data"));
             flavors.add(PrintingUtilities.Flavor.parse(data, PrintingUtilities.Flavor.PLAIN));
         }
     }
@@ -55,6 +56,7 @@ public class PrintDirect extends PrintRaw {
         PrintRequestAttributeSet attributes = new HashPrintRequestAttributeSet();
         attributes.add(new JobName(options.getRawOptions().getJobName(Constants.RAW_PRINT), Locale.getDefault()));
 
+        PrintCompletion spooled = new PrintCompletion();
         for(int i = 0; i < prints.size(); i++) {
             DocPrintJob printJob = output.getPrintService().createPrintJob();
             InputStream stream = null;
@@ -62,30 +64,40 @@ public class PrintDirect extends PrintRaw {
             try {
                 switch(flavors.get(i)) {
                     case BASE64:
-                        stream = new Base64InputStream(new ByteArrayInputStream(prints.get(i).getBytes("UTF-8")));
+                    case UPLOAD:
+                    case PLAIN:
+                        stream = flavors.get(i).stream(prints.get(i), null);
                         break;
                     case FILE:
-                        stream = new DataInputStream(new URL(prints.get(i)).openStream());
+                        stream = new DataInputStream(new URL(prints.get(i).toString()).openStream());
                         break;
-                    case PLAIN:
                     default:
-                        stream = new ByteArrayInputStream(prints.get(i).getBytes("UTF-8"));
+                        stream = new ByteArrayInputStream(prints.get(i).toString().getBytes("UTF-8"));
                         break;
                 }
 
                 SimpleDoc doc = new SimpleDoc(stream, DocFlavor.INPUT_STREAM.AUTOSENSE, null);
 
-                waitForPrint(printJob, doc, attributes);
+                // the stream stays open until the printer reports the job done
+                CompletableFuture<PrintJobEvent> completion = PrintCompletion.submit(printJob, doc, attributes);
+                InputStream sent = stream;
+                stream = null;
+                spooled.add(completion.whenComplete((event, error) -> close(sent)));
             }
             catch(IOException e) {
                 throw new PrintException(e);
             }
             finally {
-                if (stream != null) {
-                    try { stream.close(); } catch(Exception ignore) {}
-                }
+                close(stream);
             }
         }
+        spooled.awaitAll();
+    }
+
+    private static void close(InputStream stream) {
+        if (stream != null) {
+            try { stream.close(); } catch(Exception ignore) {}
+        }
     }
 
     @Override
@@ -84,7 +84,7 @@ public class PrintHTML extends PrintImage implements PrintProcessor {
                         source = data.getString("data");
                         break;
                     default:
-                        source = new String(flavor.read(data.getString("data")), StandardCharsets.UTF_8);
+                        source = new String(flavor.read(data.opt("data"), null), StandardCharsets.UTF_8);
                 }
 
                 double pageZoom = (pxlOpts.getDensity() * pxlOpts.getUnits().as1Inch()) / 72.0;
@@ -10,6 +10,7 @@
  */
 package qz.printer.action;
 
+import org.apache.commons.io.IOUtils;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -17,6 +18,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import qz.common.Constants;
 import qz.common.TrayManager;
+import qz.printer.PrintJob;
 import qz.printer.PrintOptions;
 import qz.printer.PrintOutput;
 import qz.utils.ConnectionUtilities;
@@ -37,6 +39,7 @@ import java.awt.print.PrinterJob;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -78,14 +81,23 @@ public class PrintImage extends PrintPixel implements PrintProcessor, Printable
 
             try {
                 BufferedImage bi;
-                switch(flavor) {
-                    case PLAIN:
-                        // There's really no such thing as a 'PLAIN' image, assume it's a URL
-                    case FILE:
-                        bi = ImageIO.read(ConnectionUtilities.getInputStream(data.getString("data"), true));
-                        break;
-                    default:
-                        bi = ImageIO.read(new ByteArrayInputStream(flavor.read(data.getString("data"))));
+                RenderCache cache = RenderCache.getInstance();
+                if (cache.isEnabled()) {
+                    byte[] source;
+                    try(InputStream in = openImage(data, flavor)) {
+                        source = IOUtils.toByteArray(in);
+                    }
+
+                    String key = new RenderCache.Key("image").add(source).build();
+                    bi = cache.getImage(key);
+                    if (bi == null) {
+                        bi = ImageIO.read(new ByteArrayInputStream(source));
+                        cache.putImage(key, bi);
+                    }
+                } else {
+                    try(InputStream in = openImage(data, flavor)) {
+                        bi = ImageIO.read(in);
+                    }
                 }
 
                 images.add(bi);
@@ -94,17 +106,28 @@ public class PrintImage extends PrintPixel implements PrintProcessor, Printable
                 if (e.getCause() != null && e.getCause() instanceof FileNotFoundException) {
                     throw new UnsupportedOperationException("Image file specified could not be found.", e);
                 } else {
-                    throw new UnsupportedOperationException(String.format("Cannot parse (%s)%s as an image", flavor, data.getString("data")), e);
+                    throw new UnsupportedOperationException(String.format("Cannot parse (%s)%s as an image", flavor, PrintingUtilities.describeData(data.opt("data"))), e);
                 }
             }
             catch(IOException e) {
-                throw new UnsupportedOperationException(String.format("Cannot parse (%s)%s as an image: %s", flavor, data.getString("data"), e.getLocalizedMessage()), e);
+                throw new UnsupportedOperationException(String.format("Cannot parse (%s)%s as an image: %s", flavor, PrintingUtilities.describeData(data.opt("data")), e.getLocalizedMessage()), e);
             }
         }
 
         log.debug("Parsed {} images for printing", images.size());
     }
 
+    private InputStream openImage(JSONObject data, PrintingUtilities.Flavor flavor) throws IOException, JSONException {
+        switch(flavor) {
+            case PLAIN:
+                // There's really no such thing as a 'PLAIN' image, assume it's a URL
+            case FILE:
+                return ConnectionUtilities.getInputStream(data.getString("data"), true);
+            default:
+                return flavor.stream(data.opt("data"), null);
+        }
+    }
+
     private List<BufferedImage> breakupOverPages(BufferedImage img, PageFormat page) {
         List<BufferedImage> splits = new ArrayList<>();
 
@@ -183,6 +206,7 @@ public class PrintImage extends PrintPixel implements PrintProcessor, Printable
             //java uses class only to query if a page needs printed - save memory/time by short circuiting
             return PAGE_EXISTS;
         }
+        PrintJob.pageRendered(pageIndex + 1, images.size());
 
 
         //allows pages view to rotate in different orientations
@@ -121,7 +121,7 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
                         doc = PDDocument.load(ConnectionUtilities.getInputStream(data.getString("data"), true));
                         break;
                     default:
-                        doc = PDDocument.load(new ByteArrayInputStream(flavor.read(data.getString("data"))));
+                        doc = PDDocument.load(flavor.stream(data.opt("data"), null));
                 }
 
                 if (pxlOpts.getBounds() != null) {
@@ -156,7 +156,7 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
                 throw new UnsupportedOperationException("PDF file specified could not be found.", e);
             }
             catch(IOException e) {
-                throw new UnsupportedOperationException(String.format("Cannot parse (%s)%s as a PDF file: %s", flavor, data.getString("data"), e.getLocalizedMessage()), e);
+                throw new UnsupportedOperationException(String.format("Cannot parse (%s)%s as a PDF file: %s", flavor, PrintingUtilities.describeData(data.opt("data")), e.getLocalizedMessage()), e);
             }
         }
 
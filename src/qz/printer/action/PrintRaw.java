@@ -10,6 +10,7 @@
 package qz.printer.action;
 
 import com.ibm.icu.text.ArabicShapingException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
@@ -20,16 +21,22 @@ import org.codehaus.jettison.json.JSONObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import qz.common.ByteArrayBuilder;
+import qz.App;
 import qz.common.Constants;
+import qz.exception.InvalidRawImageException;
 import qz.exception.NullCommandException;
 import qz.exception.NullPrintServiceException;
 import qz.printer.action.raw.ImageWrapper;
 import qz.printer.action.raw.LanguageType;
+import qz.printer.action.raw.RawTemplate;
+import qz.printer.PrintJob;
+import qz.printer.PrintJournal;
 import qz.printer.PrintOptions;
 import qz.printer.PrintOutput;
 import qz.printer.action.html.WebApp;
 import qz.printer.action.html.WebAppModel;
 import qz.printer.info.NativePrinter;
+import qz.printer.status.CupsRawJob;
 import qz.printer.status.CupsUtils;
 import qz.utils.*;
 
@@ -39,17 +46,22 @@ import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.PrintRequestAttributeSet;
 import javax.print.attribute.standard.JobName;
 import javax.print.event.PrintJobEvent;
-import javax.print.event.PrintJobListener;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.Socket;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 /**
  * Sends raw data to the printer, overriding your operating system's print
@@ -65,6 +77,8 @@ public class PrintRaw implements PrintProcessor {
 
     private String destEncoding = null;
 
+    private static ForkJoinPool converters;
+
     private enum Backend {
         CUPS_RSS,
         CUPS_LPR,
@@ -96,51 +110,148 @@ public class PrintRaw implements PrintProcessor {
 
     @Override
     public void parseData(JSONArray printData, PrintOptions options) throws JSONException, UnsupportedOperationException {
+        PrintOptions.Raw rawOpts = options.getRawOptions();
+        PrintOptions.Pixel pxlOpts = options.getPixelOptions();
+
+        destEncoding = rawOpts.getDestEncoding();
+        if (destEncoding == null || destEncoding.isEmpty()) { destEncoding = Charset.defaultCharset().name(); }
+
+        List<Element> elements = new ArrayList<>();
         for(int i = 0; i < printData.length(); i++) {
             JSONObject data = printData.optJSONObject(i);
             if (data == null) {
                 data = new JSONObject();
-                data.put("data", printData.getString(i));
+                data.put("data", printData.get(i));
             }
+            elements.add(new Element(data));
+        }
 
-            String cmd = data.getString("data");
-            JSONObject opt = data.optJSONObject("options");
-            if (opt == null) { opt = new JSONObject(); }
-
-            PrintingUtilities.Format format = PrintingUtilities.Format.valueOf(data.optString("format", "COMMAND").toUpperCase(Locale.ENGLISH));
-            PrintingUtilities.Flavor flavor = PrintingUtilities.Flavor.parse(data, PrintingUtilities.Flavor.PLAIN);
-            PrintOptions.Raw rawOpts = options.getRawOptions();
-            PrintOptions.Pixel pxlOpts = options.getPixelOptions();
-
-            destEncoding = rawOpts.getDestEncoding();
-            if (destEncoding == null || destEncoding.isEmpty()) { destEncoding = Charset.defaultCharset().name(); }
-
-            try {
-                switch(format) {
-                    case HTML:
-                        commands.append(getHtmlWrapper(cmd, opt, flavor, rawOpts, pxlOpts).getImageCommand(opt));
-                        break;
-                    case IMAGE:
-                        commands.append(getImageWrapper(cmd, opt, flavor, rawOpts, pxlOpts).getImageCommand(opt));
-                        break;
-                    case PDF:
-                        commands.append(getPdfWrapper(cmd, opt, flavor, rawOpts, pxlOpts).getImageCommand(opt));
-                        break;
-                    case COMMAND:
-                    default:
-                        switch(flavor) {
-                            case PLAIN:
-                                commands.append(getBytes(cmd, destEncoding));
-                                break;
-                            default:
-                                commands.append(seekConversion(flavor.read(cmd, opt.optString("xmlTag", null)), rawOpts));
-                        }
-                        break;
+        List<ForkJoinTask<byte[]>> converting = convertImages(elements, rawOpts, pxlOpts);
+        try {
+            for(int i = 0; i < elements.size(); i++) {
+                Element element = elements.get(i);
+                Object cmd = element.cmd;
+                JSONObject opt = element.opt;
+                PrintingUtilities.Flavor flavor = element.flavor;
+
+                try {
+                    switch(element.format) {
+                        case HTML:
+                        case IMAGE:
+                        case PDF:
+                            ForkJoinTask<byte[]> task = converting.get(i);
+                            commands.append(task == null? getImageCommand(element.format, cmd, opt, flavor, rawOpts, pxlOpts):getConverted(task));
+                            break;
+                        case TEMPLATE:
+                            if (!(cmd instanceof JSONArray)) {
+                                throw new JSONException("Template data must be an array of rows");
+                            }
+                            String encoding = destEncoding;
+                            // claimed for the printing connection when prepared, see RawTemplate.claim
+                            Object template = opt.opt("template");
+                            if (!(template instanceof RawTemplate)) {
+                                throw new IOException("Template not found");
+                            }
+                            ((RawTemplate)template).merge((JSONArray)cmd, text -> getBytes(text, encoding), commands);
+                            break;
+                        case COMMAND:
+                        default:
+                            switch(flavor) {
+                                case PLAIN:
+                                    commands.append(getBytes(cmd.toString(), destEncoding));
+                                    break;
+                                default:
+                                    commands.append(seekConversion(flavor.read(cmd, opt.optString("xmlTag", null)), rawOpts));
+                            }
+                            break;
+                    }
                 }
+                catch(Exception e) {
+                    throw new UnsupportedOperationException(String.format("Cannot parse (%s)%s into a raw %s command: %s", flavor, PrintingUtilities.describeData(element.data.opt("data")), element.format, e.getLocalizedMessage()), e);
+                }
+            }
+        }
+        finally {
+            // stops any conversions left behind by a failure
+            for(ForkJoinTask<byte[]> task : converting) {
+                if (task != null) { task.cancel(false); }
+            }
+        }
+    }
+
+    /**
+     * Starts converting image and PDF elements on the conversion pool, so they convert in parallel while the rest are
+     * appended in order.  HTML is left to be converted in turn, as JavaFX only renders one page at a time anyway.
+     *
+     * @return A conversion for each element, or {@code null} for those converted in turn
+     */
+    private List<ForkJoinTask<byte[]>> convertImages(List<Element> elements, PrintOptions.Raw rawOpts, PrintOptions.Pixel pxlOpts) {
+        List<ForkJoinTask<byte[]>> converting = new ArrayList<>(Collections.nCopies(elements.size(), null));
+
+        int images = 0;
+        for(Element element : elements) {
+            if (element.format == PrintingUtilities.Format.IMAGE || element.format == PrintingUtilities.Format.PDF) { images++; }
+        }
+        ForkJoinPool pool = images > 1? getConverters():null;
+        if (pool == null) { return converting; }
+
+        for(int i = 0; i < elements.size(); i++) {
+            Element element = elements.get(i);
+            if (element.format == PrintingUtilities.Format.IMAGE || element.format == PrintingUtilities.Format.PDF) {
+                converting.set(i, pool.submit(() -> getImageCommand(element.format, element.cmd, element.opt, element.flavor, rawOpts, pxlOpts)));
             }
-            catch(Exception e) {
-                throw new UnsupportedOperationException(String.format("Cannot parse (%s)%s into a raw %s command: %s", flavor, data.getString("data"), format, e.getLocalizedMessage()), e);
+        }
+        log.debug("Converting {} images on {} threads", images, pool.getParallelism());
+
+        return converting;
+    }
+
+    /**
+     * @return The shared pool raw images are converted on, or {@code null} if they're to be converted one at a time
+     */
+    private static synchronized ForkJoinPool getConverters() {
+        if (converters == null) {
+            int threads = PrefsSearch.getInt(ArgValue.PRINT_CONVERT_THREADS, App.getTrayProperties());
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
             }
+            if (threads == 1) { return null; }
+
+            converters = new ForkJoinPool(threads, pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("qz-print-convert-" + t.getPoolIndex());
+                return t;
+            }, null, false);
+        }
+
+        return converters;
+    }
+
+    private static byte[] getConverted(ForkJoinTask<byte[]> task) throws Exception {
+        try {
+            return task.get();
+        }
+        catch(ExecutionException e) {
+            throw e.getCause() instanceof Exception? (Exception)e.getCause():e;
+        }
+    }
+
+    /**
+     * A single element of the print data
+     */
+    private static class Element {
+        private final JSONObject data;
+        private final Object cmd;
+        private final JSONObject opt;
+        private final PrintingUtilities.Format format;
+        private final PrintingUtilities.Flavor flavor;
+
+        Element(JSONObject data) throws JSONException {
+            this.data = data;
+            cmd = data.get("data");
+            opt = data.optJSONObject("options") == null? new JSONObject():data.optJSONObject("options");
+            format = PrintingUtilities.Format.valueOf(data.optString("format", "COMMAND").toUpperCase(Locale.ENGLISH));
+            flavor = PrintingUtilities.Flavor.parse(data, PrintingUtilities.Flavor.PLAIN);
         }
     }
 
@@ -161,65 +272,134 @@ public class PrintRaw implements PrintProcessor {
         return rawBytes;
     }
 
-    private ImageWrapper getImageWrapper(String data, JSONObject opt, PrintingUtilities.Flavor flavor, PrintOptions.Raw rawOpts, PrintOptions.Pixel pxlOpts) throws IOException {
-        BufferedImage bi;
-        // 2.0 compat
-        if (data.startsWith("data:image/") && data.contains(";base64,")) {
-            String[] parts = data.split(";base64,");
-            data = parts[parts.length - 1];
-            flavor = PrintingUtilities.Flavor.BASE64;
+    /**
+     * Opens non-file data for reading, streaming it straight from disk if it was spooled and needs no conversion
+     */
+    private InputStream openData(Object data, PrintingUtilities.Flavor flavor, PrintOptions.Raw rawOpts) throws IOException {
+        if (rawOpts.getSrcEncoding() == null) {
+            return flavor.stream(data, null);
         }
+        return new ByteArrayInputStream(seekConversion(flavor.read(data, null), rawOpts));
+    }
 
-        switch(flavor) {
-            case PLAIN:
-                // There's really no such thing as a 'PLAIN' image, assume it's a URL
-            case FILE:
-                bi = ImageIO.read(ConnectionUtilities.getInputStream(data, true));
+    /**
+     * Converts an image, PDF or HTML into raw commands, reusing an earlier conversion of the same image or PDF data and options if cached
+     */
+    private byte[] getImageCommand(PrintingUtilities.Format format, Object data, JSONObject opt, PrintingUtilities.Flavor flavor, PrintOptions.Raw rawOpts, PrintOptions.Pixel pxlOpts) throws IOException, InvalidRawImageException {
+        RenderCache cache = RenderCache.getInstance();
+
+        byte[] source = null;
+        String key = null;
+        // any html can pull in remote images, styles or scripts, so its content alone can't address it
+        if (cache.isEnabled() && format != PrintingUtilities.Format.HTML) {
+            try(InputStream in = openSource(data, flavor, rawOpts)) {
+                source = IOUtils.toByteArray(in);
+            }
+
+            key = new RenderCache.Key("raw-" + format)
+                    .add(source)
+                    .add(opt)
+                    .add(destEncoding)
+                    .add(pxlOpts.getOrientation())
+                    .add(pxlOpts.getRotation())
+                    .add(pxlOpts.getDithering())
+                    .add(pxlOpts.getInterpolation())
+                    .add(pxlOpts.getDensity())
+                    .add(pxlOpts.getUnits())
+                    .build();
+
+            byte[] cached = cache.getCommand(key);
+            if (cached != null) {
+                log.debug("Using cached {} conversion", format);
+                return cached;
+            }
+        }
+
+        ImageWrapper wrapper;
+        switch(format) {
+            case HTML:
+                wrapper = getHtmlWrapper(readHtml(data, flavor, rawOpts), flavor != PrintingUtilities.Flavor.FILE, opt, pxlOpts);
                 break;
+            case PDF:
+                wrapper = getPdfWrapper(source == null? openSource(data, flavor, rawOpts):new ByteArrayInputStream(source), opt, pxlOpts);
+                break;
+            case IMAGE:
             default:
-                bi = ImageIO.read(new ByteArrayInputStream(seekConversion(flavor.read(data), rawOpts)));
+                wrapper = getImageWrapper(source == null? openSource(data, flavor, rawOpts):new ByteArrayInputStream(source), opt, pxlOpts);
         }
 
-        return getWrapper(bi, opt, pxlOpts);
+        byte[] command = wrapper.getImageCommand(opt);
+        if (key != null) {
+            cache.putCommand(key, command);
+        }
+        return command;
     }
 
-    private ImageWrapper getPdfWrapper(String data, JSONObject opt, PrintingUtilities.Flavor flavor, PrintOptions.Raw rawOpts, PrintOptions.Pixel pxlOpts) throws IOException {
-        PDDocument doc;
+    /**
+     * Opens image or PDF data for reading, whether it's a url, a file or given directly
+     */
+    private InputStream openSource(Object data, PrintingUtilities.Flavor flavor, PrintOptions.Raw rawOpts) throws IOException {
+        // 2.0 compat
+        if (data instanceof String && ((String)data).startsWith("data:image/") && ((String)data).contains(";base64,")) {
+            String[] parts = ((String)data).split(";base64,");
+            data = parts[parts.length - 1];
+            flavor = PrintingUtilities.Flavor.BASE64;
+        }
 
         switch(flavor) {
             case PLAIN:
-                // There's really no such thing as a 'PLAIN' PDF, assume it's a URL
+                // There's really no such thing as a 'PLAIN' image or PDF, assume it's a URL
             case FILE:
-                doc = PDDocument.load(ConnectionUtilities.getInputStream(data, true));
-                break;
+                return ConnectionUtilities.getInputStream(data.toString(), true);
             default:
-                doc = PDDocument.load(new ByteArrayInputStream(seekConversion(flavor.read(data), rawOpts)));
+                return openData(data, flavor, rawOpts);
         }
+    }
 
-        double scale;
-        PDRectangle rect = doc.getPage(0).getBBox();
-        double pw = opt.optDouble("pageWidth", 0), ph = opt.optDouble("pageHeight", 0);
-        if (ph <= 0 || (pw > 0 && (rect.getWidth() / rect.getHeight()) >= (pw / ph))) {
-            scale = pw / rect.getWidth();
-        } else {
-            scale = ph / rect.getHeight();
+    private ImageWrapper getImageWrapper(InputStream in, JSONObject opt, PrintOptions.Pixel pxlOpts) throws IOException {
+        BufferedImage bi;
+        try(InputStream data = in) {
+            bi = ImageIO.read(data);
         }
-        if (scale <= 0) { scale = 1.0; }
 
-        BufferedImage bi = new PDFRenderer(doc).renderImage(0, (float)scale);
         return getWrapper(bi, opt, pxlOpts);
     }
 
-    private ImageWrapper getHtmlWrapper(String data, JSONObject opt, PrintingUtilities.Flavor flavor, PrintOptions.Raw rawOpts, PrintOptions.Pixel pxlOpts) throws IOException {
+    private ImageWrapper getPdfWrapper(InputStream in, JSONObject opt, PrintOptions.Pixel pxlOpts) throws IOException {
+        try(InputStream data = in; PDDocument doc = PDDocument.load(data)) {
+            double scale;
+            PDRectangle rect = doc.getPage(0).getBBox();
+            double pw = opt.optDouble("pageWidth", 0), ph = opt.optDouble("pageHeight", 0);
+            if (ph <= 0 || (pw > 0 && (rect.getWidth() / rect.getHeight()) >= (pw / ph))) {
+                scale = pw / rect.getWidth();
+            } else {
+                scale = ph / rect.getHeight();
+            }
+            if (scale <= 0) { scale = 1.0; }
+
+            BufferedImage bi = new PDFRenderer(doc).renderImage(0, (float)scale);
+            return getWrapper(bi, opt, pxlOpts);
+        }
+    }
+
+    /**
+     * @return The html markup, or its url for {@code FILE} flavored data
+     */
+    private String readHtml(Object source, PrintingUtilities.Flavor flavor, PrintOptions.Raw rawOpts) throws IOException {
         switch(flavor) {
             case FILE:
             case PLAIN:
                 // We'll toggle between 'plain' and 'file' when we construct WebAppModel
-                break;
+                return source.toString();
             default:
-                data = new String(seekConversion(flavor.read(data), rawOpts), destEncoding);
+                return new String(seekConversion(flavor.read(source, null), rawOpts), destEncoding);
         }
+    }
 
+    /**
+     * @param plain If {@code data} is markup, rather than a url to load it from
+     */
+    private ImageWrapper getHtmlWrapper(String data, boolean plain, JSONObject opt, PrintOptions.Pixel pxlOpts) throws IOException {
         double density = (pxlOpts.getDensity() * pxlOpts.getUnits().as1Inch());
         if (density <= 1) {
             density = LanguageType.getType(opt.optString("language")).getDefaultDensity();
@@ -230,7 +410,7 @@ public class PrintRaw implements PrintProcessor {
         double pageHeight = opt.optInt("pageHeight") / density * 72;
 
         BufferedImage bi;
-        WebAppModel model = new WebAppModel(data, (flavor != PrintingUtilities.Flavor.FILE), pageWidth, pageHeight, false, pageZoom);
+        WebAppModel model = new WebAppModel(data, plain, pageWidth, pageHeight, false, pageZoom);
 
         try {
             WebApp.initialize(); //starts if not already started
@@ -310,60 +490,106 @@ public class PrintRaw implements PrintProcessor {
     public void print(PrintOutput output, PrintOptions options) throws PrintException {
         PrintOptions.Raw rawOpts = options.getRawOptions();
 
-        List<ByteArrayBuilder> pages;
-        if (rawOpts.getSpoolSize() > 0 && rawOpts.getSpoolEnd() != null && !rawOpts.getSpoolEnd().isEmpty()) {
-            try {
-                pages = ByteUtilities.splitByteArray(commands.getByteArray(), rawOpts.getSpoolEnd().getBytes(destEncoding), rawOpts.getSpoolSize());
-            }
-            catch(UnsupportedEncodingException e) {
-                throw new PrintException(e);
+        PrintJob job = PrintJob.getCurrent();
+        PrintJournal.Entry journal = job == null? null:job.getJournalEntry();
+
+        Iterable<ByteArrayBuilder> pages;
+        try {
+            if (journal != null) {
+                // resuming an interrupted job, which was already converted and split before it was journaled
+                pages = journal.readPages();
+            } else {
+                if (rawOpts.getSpoolSize() > 0 && rawOpts.getSpoolEnd() != null && !rawOpts.getSpoolEnd().isEmpty()) {
+                    // split as pages are sent, rather than all up front
+                    ByteMatcher spoolEnd = new ByteMatcher(rawOpts.getSpoolEnd().getBytes(destEncoding));
+                    pages = () -> ByteUtilities.iterateSplits(commands, spoolEnd, rawOpts.getSpoolSize());
+                } else {
+                    pages = Collections.singletonList(commands);
+                }
+
+                PrintJournal journaling = job == null? null:PrintJournal.getInstance();
+                if (journaling != null) {
+                    journal = journaling.accept(job, pages, rawOpts.getCopies());
+                }
             }
-        } else {
-            pages = new ArrayList<>();
-            pages.add(commands);
+        }
+        catch(IOException e) {
+            throw new PrintException(e);
         }
 
-        List<File> tempFiles = null;
-        for(int i = 0; i < rawOpts.getCopies(); i++) {
-            for(int j = 0; j < pages.size(); j++) {
-                ByteArrayBuilder bab = pages.get(j);
-                try {
-                    if (output.isSetHost()) {
-                        printToHost(output.getHost(), output.getPort(), bab.getByteArray());
-                    } else if (output.isSetFile()) {
-                        printToFile(output.getFile(), bab.getByteArray(), true);
-                    } else {
-                        if (rawOpts.isForceRaw()) {
-                            if(tempFiles == null) {
-                                tempFiles = new ArrayList<>(pages.size());
-                            }
-                            File tempFile;
-                            if(tempFiles.size() <= j) {
-                                tempFile = File.createTempFile("qz_raw_", null);
-                                tempFiles.add(j, tempFile);
-                                printToFile(tempFile, bab.getByteArray(), false);
-                            } else {
-                                tempFile = tempFiles.get(j);
-                            }
-                            if(SystemUtilities.isWindows()) {
-                                // Placeholder only; not yet supported
-                                printToBackend(output.getNativePrinter(), tempFile, Backend.WIN32_WMI);
-                            } else {
-                                // Try CUPS backend first, fallback to LPR
-                                printToBackend(output.getNativePrinter(), tempFile, Backend.CUPS_RSS, Backend.CUPS_LPR);
-                            }
+        int copies = journal == null? rawOpts.getCopies():journal.getCopies();
+        final PrintJournal.Entry entry = journal;
+        RawSpooler.Skip skip = journal == null? null:journal::isSent;
+
+        try {
+            if (output.isSetHost() || output.isSetFile()) {
+                try(RawSpooler<ByteArrayBuilder> spooler = new RawSpooler<>(pages, copies, skip, (page, data) -> data)) {
+                    RawSpooler.Page<ByteArrayBuilder> next;
+                    while((next = spooler.next()) != null) {
+                        if (output.isSetHost()) {
+                            printToHost(output.getHost(), output.getPort(), next.data);
                         } else {
-                            printToPrinter(output.getPrintService(), bab.getByteArray(), rawOpts);
+                            printToFile(output.getFile(), next.data, true);
                         }
+                        if (entry != null) { entry.sent(next.copy, next.page); }
                     }
                 }
-                catch(IOException e) {
-                    cleanupTempFiles(rawOpts.isRetainTemp(), tempFiles);
-                    throw new PrintException(e);
+            } else if (rawOpts.isForceRaw() && streamToCups(output, rawOpts, pages, copies, skip, entry)) {
+                log.debug("Streamed raw job to CUPS");
+            } else if (rawOpts.isForceRaw()) {
+                // each page is written out once, and sent again from the same file for every copy
+                Map<Integer,File> tempFiles = new ConcurrentHashMap<>();
+                try(RawSpooler<File> spooler = new RawSpooler<>(pages, copies, skip, (page, data) -> {
+                    File tempFile = tempFiles.get(page);
+                    if (tempFile == null) {
+                        tempFile = File.createTempFile("qz_raw_", null);
+                        tempFiles.put(page, tempFile);
+                        printToFile(tempFile, data, false);
+                    }
+                    return tempFile;
+                })) {
+                    RawSpooler.Page<File> next;
+                    while((next = spooler.next()) != null) {
+                        if (SystemUtilities.isWindows()) {
+                            // Placeholder only; not yet supported
+                            printToBackend(output.getNativePrinter(), next.data, Backend.WIN32_WMI);
+                        } else {
+                            // Try CUPS backend first, fallback to LPR
+                            printToBackend(output.getNativePrinter(), next.data, Backend.CUPS_RSS, Backend.CUPS_LPR);
+                        }
+                        if (entry != null) { entry.sent(next.copy, next.page); }
+                    }
+                }
+                finally {
+                    cleanupTempFiles(rawOpts.isRetainTemp(), new ArrayList<>(tempFiles.values()));
                 }
+            } else {
+                PrintCompletion spooled = new PrintCompletion();
+                try(RawSpooler<byte[]> spooler = new RawSpooler<>(pages, copies, skip, (page, data) -> data.getByteArray())) {
+                    RawSpooler.Page<byte[]> next;
+                    while((next = spooler.next()) != null) {
+                        // left in flight while the next pages are sent, only journaled once the printer has them
+                        final int copy = next.copy, page = next.page;
+                        CompletableFuture<?> completion = printToPrinter(output.getPrintService(), next.data, rawOpts);
+                        if (entry != null) { completion = completion.thenRun(() -> entry.sent(copy, page)); }
+                        spooled.add(completion);
+                    }
+                }
+                spooled.awaitAll();
+            }
+
+            if (journal != null) { journal.finish(); }
+        }
+        catch(IOException e) {
+            throw new PrintException(e);
+        }
+        finally {
+            if (journal != null) {
+                // pages are journaled from our commands, which mustn't be released while they're still being read
+                try { journal.awaitPages(); }
+                catch(InterruptedException e) { Thread.currentThread().interrupt(); }
             }
         }
-        cleanupTempFiles(rawOpts.isRetainTemp(), tempFiles);
     }
 
     private void cleanupTempFiles(boolean retainTemp, List<File> tempFiles) {
@@ -387,15 +613,13 @@ public class PrintRaw implements PrintProcessor {
      * <p/>
      * Please note that this will completely bypass the Print Spooler,
      * so the Operating System will have absolutely no printer information.
-     * This is printing "blind".
+     * This is printing "blind".  Connections are kept open for the next job,
+     * see {@link HostConnections}.
      */
-    private void printToHost(String host, int port, byte[] cmds) throws IOException {
+    private void printToHost(String host, int port, ByteArrayBuilder cmds) throws IOException {
         log.debug("Printing to host {}:{}", host, port);
 
-        //throws any exception and auto-closes socket and stream
-        try(Socket socket = new Socket(host, port); DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-            out.write(cmds);
-        }
+        HostConnections.getInstance().write(host, port, cmds);
     }
 
     /**
@@ -403,7 +627,7 @@ public class PrintRaw implements PrintProcessor {
      *
      * @param file File to be written
      */
-    private void printToFile(File file, byte[] cmds, boolean locationRestricted) throws IOException {
+    private void printToFile(File file, ByteArrayBuilder cmds, boolean locationRestricted) throws IOException {
         if(file == null) throw new IOException("No file specified");
 
         if(locationRestricted && !PrefsSearch.getBoolean(ArgValue.SECURITY_PRINT_TOFILE)) {
@@ -415,15 +639,15 @@ public class PrintRaw implements PrintProcessor {
         log.debug("Printing to file: {}", file.getName());
 
         //throws any exception and auto-closes stream
-        try(OutputStream out = new FileOutputStream(file)) {
-            out.write(cmds);
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            cmds.writeTo(out);
         }
     }
 
     /**
      * Constructs a {@code SimpleDoc} with the {@code commands} byte array.
      */
-    private void printToPrinter(PrintService service, byte[] cmds, PrintOptions.Raw rawOpts) throws PrintException {
+    private CompletableFuture<PrintJobEvent> printToPrinter(PrintService service, byte[] cmds, PrintOptions.Raw rawOpts) throws PrintException {
         if (service == null) { throw new NullPrintServiceException("Service cannot be null"); }
         if (cmds == null || cmds.length == 0) { throw new NullCommandException("No commands found to send to the printer"); }
 
@@ -434,56 +658,58 @@ public class PrintRaw implements PrintProcessor {
 
         DocPrintJob printJob = service.createPrintJob();
 
-        waitForPrint(printJob, doc, attributes);
+        return PrintCompletion.submit(printJob, doc, attributes);
     }
 
+    /**
+     * Sends a job to the printer, waiting until the printer reports it done
+     */
     protected void waitForPrint(DocPrintJob printJob, Doc doc, PrintRequestAttributeSet attributes) throws PrintException {
-        final AtomicBoolean finished = new AtomicBoolean(false);
-        printJob.addPrintJobListener(new PrintJobListener() {
-            @Override
-            public void printDataTransferCompleted(PrintJobEvent printJobEvent) {
-                log.debug("{}", printJobEvent);
-                finished.set(true);
-            }
-
-            @Override
-            public void printJobCompleted(PrintJobEvent printJobEvent) {
-                log.debug("{}", printJobEvent);
-                finished.set(true);
-            }
-
-            @Override
-            public void printJobFailed(PrintJobEvent printJobEvent) {
-                log.error("{}", printJobEvent);
-                finished.set(true);
-            }
+        PrintCompletion.await(PrintCompletion.submit(printJob, doc, attributes));
+    }
 
-            @Override
-            public void printJobCanceled(PrintJobEvent printJobEvent) {
-                log.warn("{}", printJobEvent);
-                finished.set(true);
-            }
+    /**
+     * Streams the job to CUPS if enabled, see {@link #printToCups}
+     *
+     * @return {@code false} if streaming is disabled or unavailable, or CUPS wouldn't start the job, so nothing was sent
+     * and the job should be sent through temp files instead
+     */
+    private boolean streamToCups(PrintOutput output, PrintOptions.Raw rawOpts, Iterable<ByteArrayBuilder> pages, int copies,
+                                 RawSpooler.Skip skip, PrintJournal.Entry entry) throws IOException, PrintException {
+        if (SystemUtilities.isWindows() || !PrefsSearch.getBoolean(ArgValue.PRINT_RAW_STREAM, App.getTrayProperties()) || !CupsRawJob.isAvailable()) {
+            return false;
+        }
 
-            @Override
-            public void printJobNoMoreEvents(PrintJobEvent printJobEvent) {
-                log.debug("{}", printJobEvent);
-                finished.set(true);
-            }
+        try(RawSpooler<ByteArrayBuilder> spooler = new RawSpooler<>(pages, copies, skip, (page, data) -> data)) {
+            printToCups(output.getNativePrinter(), rawOpts.getJobName(Constants.RAW_PRINT), spooler, entry);
+            return true;
+        }
+        catch(CupsRawJob.NotStartedException e) {
+            log.warn("Unable to stream raw job to CUPS, sending it through temp files instead: {}", e.getMessage());
+            return false;
+        }
+    }
 
-            @Override
-            public void printJobRequiresAttention(PrintJobEvent printJobEvent) {
-                log.info("{}", printJobEvent);
+    /**
+     * Streams every spooled page to a CUPS queue as one job, a document per page, without temp files.
+     * The job only prints once its last page is sent, so pages are only journaled as sent after that.
+     */
+    private void printToCups(NativePrinter printer, String title, RawSpooler<ByteArrayBuilder> spooler, PrintJournal.Entry entry) throws IOException, PrintException {
+        List<int[]> sent = new ArrayList<>();
+        try(CupsRawJob job = new CupsRawJob(printer, title)) {
+            // held back a page, so the last can be sent as such
+            RawSpooler.Page<ByteArrayBuilder> held = spooler.next();
+            while(held != null) {
+                RawSpooler.Page<ByteArrayBuilder> next = spooler.next();
+                job.send(held.data, next == null);
+                sent.add(new int[] {held.copy, held.page});
+                held = next;
             }
-        });
-
-        log.trace("Sending print job to printer");
-        printJob.print(doc, attributes);
-
-        while(!finished.get()) {
-            try { Thread.sleep(100); } catch(Exception ignore) {}
         }
 
-        log.trace("Print job received by printer");
+        if (entry != null) {
+            for(int[] page : sent) { entry.sent(page[0], page[1]); }
+        }
     }
 
     /**
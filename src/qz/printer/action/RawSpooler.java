@@ -0,0 +1,188 @@
+package qz.printer.action;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import qz.App;
+import qz.common.ByteArrayBuilder;
+import qz.utils.ArgValue;
+import qz.utils.PrefsSearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Readies a raw print's pages for the printer on a thread of its own, a few pages ahead of the one being sent.
+ * <p>
+ * Pages are split from the print's commands and built, such as into the single array a print service needs or a temp
+ * file for a print backend, only as they're about to be needed, so a long run of small pages never has more than the
+ * configured number waiting at once.  Every copy is read through the pages again, skipping any already sent.
+ */
+class RawSpooler<T> implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(RawSpooler.class);
+
+    private static ExecutorService executor;
+
+    /**
+     * Readies a page for the printer
+     */
+    interface Builder<T> {
+        T build(int page, ByteArrayBuilder data) throws IOException;
+    }
+
+    /**
+     * Whether a page was already sent, such as before a resumed print was interrupted
+     */
+    interface Skip {
+        boolean test(int copy, int page);
+    }
+
+    /**
+     * A page ready to send
+     */
+    static final class Page<T> {
+        final int copy;
+        final int page;
+        final T data;
+
+        private final IOException failure;
+
+        private Page(int copy, int page, T data, IOException failure) {
+            this.copy = copy;
+            this.page = page;
+            this.data = data;
+            this.failure = failure;
+        }
+    }
+
+    private final BlockingQueue<Page<T>> ready;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private Thread producer;
+    private boolean closed;
+    private boolean finished;
+
+
+    /**
+     * Starts readying pages
+     *
+     * @param pages   Pages of one copy, read through again for each copy
+     * @param copies  Number of copies to send
+     * @param skip    Pages which mustn't be sent, or {@code null} to send them all
+     * @param builder Readies each page
+     */
+    RawSpooler(Iterable<ByteArrayBuilder> pages, int copies, Skip skip, Builder<T> builder) {
+        ready = new ArrayBlockingQueue<>(Math.max(1, PrefsSearch.getInt(ArgValue.PRINT_SPOOL_AHEAD, App.getTrayProperties())));
+        getExecutor().execute(() -> {
+            synchronized(this) {
+                if (closed) {
+                    stopped.countDown();
+                    return;
+                }
+                producer = Thread.currentThread();
+            }
+
+            try {
+                for(int copy = 0; copy < copies; copy++) {
+                    int page = 0;
+                    for(ByteArrayBuilder data : pages) {
+                        if (skip == null || !skip.test(copy, page)) {
+                            ready.put(new Page<>(copy, page, builder.build(page, data), null));
+                        }
+                        page++;
+                    }
+                }
+                ready.put(new Page<>(-1, -1, null, null));
+            }
+            catch(InterruptedException ignore) {
+                // closed before every page was sent
+            }
+            catch(Throwable e) {
+                // errors too, anything short of the failure page leaves the sender waiting on a page that never comes
+                try {
+                    ready.put(new Page<>(-1, -1, null, e instanceof IOException? (IOException)e:new IOException(e.toString(), e)));
+                }
+                catch(InterruptedException ignore) {
+                    // closed, nobody is waiting to hear about it
+                }
+            }
+            finally {
+                synchronized(this) { producer = null; }
+                stopped.countDown();
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "qz-print-spooler-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        return executor;
+    }
+
+    /**
+     * Waits for the next page to be readied
+     *
+     * @return The next page, or {@code null} once every page of every copy has been returned
+     * @throws IOException If a page couldn't be split or built
+     */
+    Page<T> next() throws IOException {
+        if (finished) { return null; }
+
+        Page<T> page;
+        try {
+            // checks back in case the producer died without even a failure page, such as when out of memory
+            while((page = ready.poll(1, TimeUnit.SECONDS)) == null) {
+                if (stopped.getCount() == 0 && (page = ready.poll()) == null) {
+                    finished = true;
+                    throw new IOException("Print spooler stopped before readying every page");
+                }
+                if (page != null) { break; }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the next page", e);
+        }
+
+        if (page.failure != null) {
+            finished = true;
+            throw page.failure;
+        }
+        if (page.copy < 0) {
+            finished = true;
+            return null;
+        }
+
+        return page;
+    }
+
+    /**
+     * Stops readying pages, returning once nothing more will be built
+     */
+    @Override
+    public void close() {
+        finished = true;
+        synchronized(this) {
+            closed = true;
+            if (producer != null) { producer.interrupt(); }
+        }
+
+        try {
+            stopped.await();
+        }
+        catch(InterruptedException e) {
+            log.warn("Interrupted while stopping the print spooler");
+            Thread.currentThread().interrupt();
+        }
+        ready.clear();
+    }
+
+}
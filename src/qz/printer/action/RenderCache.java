@@ -0,0 +1,329 @@
+package qz.printer.action;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import qz.App;
+import qz.utils.ArgValue;
+import qz.utils.ByteUtilities;
+import qz.utils.FileUtilities;
+import qz.utils.PrefsSearch;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Keeps converted print data for reuse when the same data is printed again with the same options.
+ * <p>
+ * Entries are addressed by a hash of the source data and every option that affects the conversion, see {@link Key}, so
+ * a changed file or option is simply a different entry.  Raw commands rasterized from images and PDFs are kept, as are
+ * decoded images for pixel prints.  HTML is never kept, as the resources it loads may change without it changing.  The least recently used entries are dropped once the memory limit is reached.
+ * Raw commands can also be written to disk, where they survive restarts and are bounded by a separate limit.
+ */
+public class RenderCache {
+
+    private static final Logger log = LogManager.getLogger(RenderCache.class);
+
+    private static final long MB = 1024 * 1024;
+    private static final String DISK_SUFFIX = ".bin";
+
+    private static RenderCache instance;
+
+    private final long memoryLimit;
+    private final Path diskDir;
+    private final long diskLimit;
+
+    // key -> byte[] command or BufferedImage, in access order
+    private final LinkedHashMap<String,Object> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsed;
+    private long diskUsed;
+
+    private long hits;
+    private long diskHits;
+    private long misses;
+    private long evictions;
+
+
+    /**
+     * @param diskDir Directory to keep raw commands in, or {@code null} to only keep them in memory
+     */
+    RenderCache(long memoryLimit, Path diskDir, long diskLimit) {
+        this.memoryLimit = Math.max(0, memoryLimit);
+        this.diskDir = diskLimit > 0? diskDir:null;
+        this.diskLimit = diskLimit;
+
+        if (this.diskDir != null) {
+            try {
+                Files.createDirectories(this.diskDir);
+                for(File file : listDisk()) {
+                    diskUsed += file.length();
+                }
+                trimDisk();
+            }
+            catch(IOException e) {
+                log.warn("Unable to use {} for the render cache, keeping it in memory only", diskDir, e);
+            }
+        }
+    }
+
+    public static synchronized RenderCache getInstance() {
+        if (instance == null) {
+            long memoryLimit = PrefsSearch.getInt(ArgValue.PRINT_CACHE_MEMORY, App.getTrayProperties()) * MB;
+            long diskLimit = PrefsSearch.getInt(ArgValue.PRINT_CACHE_DISK, App.getTrayProperties()) * MB;
+            log.debug("Caching converted print data in {} MB of memory and {} MB of disk", memoryLimit / MB, diskLimit / MB);
+
+            instance = new RenderCache(memoryLimit, FileUtilities.USER_DIR.resolve("render-cache"), diskLimit);
+        }
+
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return memoryLimit > 0 || diskDir != null;
+    }
+
+    /**
+     * @return Raw commands previously stored under {@code key}, or {@code null} if there are none
+     */
+    public byte[] getCommand(String key) {
+        if (!isEnabled()) { return null; }
+
+        synchronized(this) {
+            Object cached = memory.get(key);
+            if (cached instanceof byte[]) {
+                hits++;
+                return (byte[])cached;
+            }
+        }
+
+        byte[] command = readDisk(key);
+        synchronized(this) {
+            if (command == null) {
+                misses++;
+            } else {
+                diskHits++;
+                keep(key, command, command.length);
+            }
+        }
+
+        return command;
+    }
+
+    public void putCommand(String key, byte[] command) {
+        if (!isEnabled() || command == null) { return; }
+
+        synchronized(this) {
+            keep(key, command, command.length);
+        }
+        writeDisk(key, command);
+    }
+
+    /**
+     * @return Image previously stored under {@code key}, or {@code null} if there is none.  The image is shared and must not be drawn on.
+     */
+    public synchronized BufferedImage getImage(String key) {
+        if (memoryLimit <= 0) { return null; }
+
+        Object cached = memory.get(key);
+        if (cached instanceof BufferedImage) {
+            hits++;
+            return (BufferedImage)cached;
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void putImage(String key, BufferedImage image) {
+        if (memoryLimit <= 0 || image == null) { return; }
+        keep(key, image, sizeOf(image));
+    }
+
+    private void keep(String key, Object value, long size) {
+        if (size > memoryLimit) { return; } // would push out everything else, and still not fit
+
+        Object previous = memory.put(key, value);
+        if (previous != null) { memoryUsed -= sizeOf(previous); }
+        memoryUsed += size;
+
+        Iterator<Map.Entry<String,Object>> eldest = memory.entrySet().iterator();
+        while(memoryUsed > memoryLimit && eldest.hasNext()) {
+            memoryUsed -= sizeOf(eldest.next().getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long sizeOf(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[])value).length;
+        }
+
+        BufferedImage image = (BufferedImage)value;
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private byte[] readDisk(String key) {
+        if (diskDir == null) { return null; }
+
+        File file = diskDir.resolve(key + DISK_SUFFIX).toFile();
+        if (!file.isFile()) { return null; }
+
+        try {
+            byte[] command = Files.readAllBytes(file.toPath());
+            // modified time doubles as last use, for trimming
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                log.trace("Unable to mark {} as used", file);
+            }
+            return command;
+        }
+        catch(IOException e) {
+            log.warn("Unable to read cached print data {}", file, e);
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, byte[] command) {
+        if (diskDir == null || command.length > diskLimit) { return; }
+
+        Path target = diskDir.resolve(key + DISK_SUFFIX);
+        if (Files.exists(target)) { return; }
+
+        try {
+            Path temp = Files.createTempFile(diskDir, key, ".tmp");
+            Files.write(temp, command);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized(this) {
+                diskUsed += command.length;
+                trimDisk();
+            }
+        }
+        catch(IOException e) {
+            log.warn("Unable to cache print data to {}", target, e);
+        }
+    }
+
+    private void trimDisk() {
+        if (diskUsed <= diskLimit) { return; }
+
+        List<File> files = listDisk();
+        files.sort(Comparator.comparingLong(File::lastModified));
+        for(File file : files) {
+            if (diskUsed <= diskLimit) { break; }
+
+            long length = file.length();
+            if (file.delete()) {
+                diskUsed -= length;
+                evictions++;
+            }
+        }
+    }
+
+    private List<File> listDisk() {
+        File[] files = diskDir.toFile().listFiles((dir, name) -> name.endsWith(DISK_SUFFIX));
+        return files == null? new ArrayList<>():new ArrayList<>(Arrays.asList(files));
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        return new JSONObject()
+                .put("hits", hits)
+                .put("diskHits", diskHits)
+                .put("misses", misses)
+                .put("evictions", evictions)
+                .put("entries", memory.size())
+                .put("memoryUsed", memoryUsed)
+                .put("memoryLimit", memoryLimit)
+                .put("diskUsed", diskUsed)
+                .put("diskLimit", diskDir == null? 0:diskLimit);
+    }
+
+    /**
+     * Builds a cache key from the source data and each option that affects its conversion.
+     * <p>
+     * Values are hashed in the order given, so callers must always add the same values in the same order.
+     */
+    public static class Key {
+
+        private final MessageDigest digest;
+
+        /**
+         * @param kind What's being cached, so different conversions of the same data never share a key
+         */
+        public Key(String kind) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            add(kind);
+        }
+
+        public Key add(Object value) {
+            if (value instanceof JSONObject) {
+                return add(canonical(value));
+            }
+            return add(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        }
+
+        public Key add(byte[] data) {
+            // length prefixed, so neighbouring values can't run into each other
+            digest.update(String.valueOf(data.length).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)':');
+            digest.update(data);
+            return this;
+        }
+
+        public String build() {
+            return ByteUtilities.bytesToHex(digest.digest(), false);
+        }
+
+        /**
+         * @return JSON with object keys sorted, so equal options always hash the same
+         */
+        private static String canonical(Object value) {
+            if (value instanceof JSONObject) {
+                JSONObject json = (JSONObject)value;
+                List<String> keys = new ArrayList<>();
+                Iterator<?> it = json.keys();
+                while(it.hasNext()) {
+                    keys.add(String.valueOf(it.next()));
+                }
+                Collections.sort(keys);
+
+                StringBuilder out = new StringBuilder("{");
+                for(String key : keys) {
+                    if (out.length() > 1) { out.append(','); }
+                    out.append(JSONObject.quote(key)).append(':').append(canonical(json.opt(key)));
+                }
+                return out.append('}').toString();
+            }
+            if (value instanceof JSONArray) {
+                JSONArray json = (JSONArray)value;
+                StringBuilder out = new StringBuilder("[");
+                for(int i = 0; i < json.length(); i++) {
+                    if (i > 0) { out.append(','); }
+                    out.append(canonical(json.opt(i)));
+                }
+                return out.append(']').toString();
+            }
+            if (value instanceof String) {
+                return JSONObject.quote((String)value);
+            }
+            return String.valueOf(value);
+        }
+    }
+
+}
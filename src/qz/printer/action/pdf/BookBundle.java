@@ -2,6 +2,7 @@ package qz.printer.action.pdf;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import qz.printer.PrintJob;
 
 import java.awt.*;
 import java.awt.print.Book;
@@ -64,6 +65,10 @@ public class BookBundle extends Book {
             log.trace("Requested page {} for printing", pageIndex);
 
             if (pageIndex < getNumberOfPages()) {
+                if (!"sun.print.PeekGraphics".equals(g.getClass().getCanonicalName())) {
+                    PrintJob.pageRendered(pageIndex + 1, getNumberOfPages());
+                }
+
                 Printable printable = getPrintable(pageIndex);
                 if (printable != lastPrint) {
                     lastPrint = printable;
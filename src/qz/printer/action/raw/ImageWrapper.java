@@ -624,7 +624,7 @@ public class ImageWrapper {
                         }
                     }
 
-                    builder.append(new byte[] {slice});
+                    builder.append(slice);
                 }
             }
 
@@ -727,8 +727,8 @@ public class ImageWrapper {
         getByteBuffer().append(new byte[] {0x0D});
     }
 
-    private ArrayList<Byte> compactBits(int precision, float[] colorData) {
-        ArrayList<Byte> bytes = new ArrayList<>();
+    private ByteArrayBuilder compactBits(int precision, float[] colorData) {
+        ByteArrayBuilder bytes = new ByteArrayBuilder(colorData.length);
 
         int bits = precisionBits(precision);
         int empty = 8 - bits;
@@ -755,7 +755,7 @@ public class ImageWrapper {
                 if (empty > 8) { empty -= 8; } //wrap around so we never shift over a byte length
             }
 
-            bytes.add(b);
+            bytes.append(b);
         }
 
         return bytes;
@@ -0,0 +1,266 @@
+package qz.printer.action.raw;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.codehaus.jettison.json.JSONString;
+import qz.common.ByteArrayBuilder;
+import qz.utils.ByteUtilities;
+import qz.utils.PrintingUtilities;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A raw command template with named placeholders, such as {@code ^FD{{name}}^FS}, merged with rows of field values.
+ * <p>
+ * Templates are registered once per connection with {@code print.template}, which returns a token and the template's
+ * field names.  Print data then references the token with {@code "format": "template"}, sending only rows of values:
+ * either arrays in field order, or objects keyed by field name.  Missing and {@code null} values merge as empty.
+ * <p>
+ * Templates sent as text are encoded to the print's {@code destEncoding} when merged.  Templates sent as binary
+ * ({@code base64}, {@code hex} or {@code upload}) keep their bytes as-is, with only values encoded.  Templates can't be
+ * fetched from a {@code file} or {@code xml} location: registering doesn't ask for approval, and the reply's field names
+ * would hand the fetched content back to the page.
+ * Templates are discarded when their connection closes, or when replaced by another of the same name, and can only be
+ * printed by the connection which registered them.
+ */
+public class RawTemplate implements JSONString {
+
+    private static final Logger log = LogManager.getLogger(RawTemplate.class);
+
+    public static final String DEFAULT_OPEN = "{{";
+    public static final String DEFAULT_CLOSE = "}}";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // token -> template
+    private static final ConcurrentHashMap<String,RawTemplate> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Encodes field values, and text literals, into the print's {@code destEncoding}
+     */
+    public interface Encoder {
+        byte[] encode(String text) throws Exception;
+    }
+
+    private final String token;
+    private final String name;
+    private final Object owner;
+    private final boolean binary;
+
+    // literal text before each field, plus one trailing literal, alternating with field indexes
+    private final List<String> literals = new ArrayList<>();
+    private final List<Integer> slots = new ArrayList<>();
+    private final List<String> fields = new ArrayList<>();
+
+
+    private RawTemplate(String token, String name, Object owner, String source, boolean binary, String open, String close) {
+        this.token = token;
+        this.name = name;
+        this.owner = owner;
+        this.binary = binary;
+        compile(source, open, close);
+    }
+
+    /**
+     * Registers a template sent by a {@code print.template} call
+     *
+     * @param owner Connection the template belongs to
+     * @throws IllegalArgumentException If a placeholder is left unclosed, or the template's flavor would fetch it from elsewhere
+     */
+    public static RawTemplate register(Object owner, JSONObject params) throws JSONException, IOException {
+        PrintingUtilities.Flavor flavor = PrintingUtilities.Flavor.parse(params, PrintingUtilities.Flavor.PLAIN);
+        if (flavor == PrintingUtilities.Flavor.FILE || flavor == PrintingUtilities.Flavor.XML) {
+            throw new IllegalArgumentException(String.format("Templates cannot be read from a %s location, send the template's content instead", flavor));
+        }
+        boolean binary = flavor != PrintingUtilities.Flavor.PLAIN;
+        String source;
+        if (binary) {
+            // one char per byte, so placeholders can be found without mangling the bytes around them
+            source = new String(flavor.read(params.opt("data"), params.optString("xmlTag", null)), StandardCharsets.ISO_8859_1);
+        } else {
+            source = params.getString("data");
+        }
+
+        String name = params.optString("name", null);
+        RawTemplate template = new RawTemplate(newToken(), name, owner, source, binary,
+                                               params.optString("open", DEFAULT_OPEN), params.optString("close", DEFAULT_CLOSE));
+
+        if (name != null) {
+            templates.values().removeIf(t -> t.owner == owner && name.equals(t.name));
+        }
+        templates.put(template.token, template);
+        log.debug("Registered raw template [{}] with fields {}", name == null? template.token:name, template.fields);
+
+        return template;
+    }
+
+    /**
+     * @return The template registered under {@code token} by {@code owner}
+     * @throws IOException If there isn't one
+     */
+    public static RawTemplate get(String token, Object owner) throws IOException {
+        RawTemplate template = token == null? null:templates.get(token);
+        if (template == null || template.owner != owner) {
+            throw new IOException("Template not found");
+        }
+        return template;
+    }
+
+    /**
+     * Swaps the template token of each {@code template} element in {@code data} for the template itself, while the
+     * connection printing it is known.  Claimed templates take the place of their token, as claimed uploads do.
+     *
+     * @param owner Connection printing the data
+     * @throws IOException If a token doesn't name one of {@code owner}'s templates
+     */
+    public static void claim(JSONArray data, Object owner) throws JSONException, IOException {
+        if (data == null) { return; }
+
+        for(int i = 0; i < data.length(); i++) {
+            JSONObject item = data.optJSONObject(i);
+            if (item == null || !"template".equalsIgnoreCase(item.optString("format"))) { continue; }
+
+            JSONObject options = item.optJSONObject("options");
+            Object token = options == null? null:options.opt("template");
+            if (token instanceof RawTemplate) {
+                // already claimed for another destination of the same call
+                if (((RawTemplate)token).owner != owner) { throw new IOException("Template not found"); }
+                continue;
+            }
+
+            RawTemplate template = get(token == null? null:token.toString(), owner);
+            options.put("template", template);
+        }
+    }
+
+    /**
+     * Discards all templates belonging to {@code owner}
+     */
+    public static void release(Object owner) {
+        templates.values().removeIf(template -> template.owner == owner);
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return ByteUtilities.bytesToHex(bytes, false);
+    }
+
+    private void compile(String source, String open, String close) {
+        if (open.isEmpty() || close.isEmpty()) {
+            throw new IllegalArgumentException("Template placeholders need both an opening and closing delimiter");
+        }
+
+        Map<String,Integer> indexes = new HashMap<>();
+        int pos = 0;
+        while(true) {
+            int start = source.indexOf(open, pos);
+            if (start < 0) { break; }
+
+            int end = source.indexOf(close, start + open.length());
+            if (end < 0) {
+                throw new IllegalArgumentException(String.format("Template placeholder at %s is not closed", start));
+            }
+
+            String field = source.substring(start + open.length(), end).trim();
+            Integer index = indexes.get(field);
+            if (index == null) {
+                index = fields.size();
+                indexes.put(field, index);
+                fields.add(field);
+            }
+
+            literals.add(source.substring(pos, start));
+            slots.add(index);
+            pos = end + close.length();
+        }
+        literals.add(source.substring(pos));
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    public String toJSONString() {
+        return JSONObject.quote(token);
+    }
+
+    @Override
+    public String toString() {
+        return token;
+    }
+
+    /**
+     * @return Field names in the order they first appear, which is the order of values in array rows
+     */
+    public List<String> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * Merges each row into the template, appending the results one after another
+     */
+    public void merge(JSONArray rows, Encoder encoder, ByteArrayBuilder out) throws Exception {
+        // literals are the same for every row, so only encode them once
+        byte[][] encoded = new byte[literals.size()][];
+        for(int i = 0; i < encoded.length; i++) {
+            encoded[i] = binary? literals.get(i).getBytes(StandardCharsets.ISO_8859_1):encoder.encode(literals.get(i));
+        }
+
+        String[] values = new String[fields.size()];
+        for(int r = 0; r < rows.length(); r++) {
+            readRow(rows.get(r), values);
+
+            for(int i = 0; i < slots.size(); i++) {
+                out.append(encoded[i]);
+                String value = values[slots.get(i)];
+                if (!value.isEmpty()) {
+                    out.append(encoder.encode(value));
+                }
+            }
+            out.append(encoded[encoded.length - 1]);
+        }
+    }
+
+    private void readRow(Object row, String[] values) throws JSONException {
+        if (row instanceof JSONArray) {
+            JSONArray array = (JSONArray)row;
+            for(int i = 0; i < values.length; i++) {
+                values[i] = valueOf(array.opt(i));
+            }
+        } else if (row instanceof JSONObject) {
+            JSONObject object = (JSONObject)row;
+            for(int i = 0; i < values.length; i++) {
+                values[i] = valueOf(object.opt(fields.get(i)));
+            }
+        } else {
+            throw new JSONException("Template rows must be arrays or objects of field values");
+        }
+    }
+
+    private static String valueOf(Object value) {
+        return value == null || value == JSONObject.NULL? "":value.toString();
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject()
+                .put("template", token)
+                .put("fields", new JSONArray(fields));
+        if (name != null) { json.put("name", name); }
+
+        return json;
+    }
+
+}
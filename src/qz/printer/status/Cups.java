@@ -2,6 +2,8 @@ package qz.printer.status;
 
 import com.sun.jna.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by kyle on 3/14/17.
  */
@@ -36,6 +38,8 @@ public interface Cups extends Library {
         public static int CANCEL_JOB = INSTANCE.ippOpValue("Cancel-Job");
 
         public static final int OP_PRINT_JOB = 0x02;
+        public static final int STATUS_MAX_OK = 0xFF;
+        public static final int HTTP_CONTINUE = 100;
         public static final int INT_ERROR = 0;
         public static final int INT_UNDEFINED = -1;
 
@@ -73,6 +77,13 @@ public interface Cups extends Library {
     int ippGetValueTag(Pointer ipp);
     int ippGetInteger(Pointer attr, int element);
 
+    int cupsCreateJob(Pointer http, String name, String title, int num_options, Pointer options);
+    int cupsStartDocument(Pointer http, String name, int job_id, String docname, String format, int last_document);
+    int cupsWriteRequestData(Pointer http, ByteBuffer buffer, NativeLong length);
+    int cupsFinishDocument(Pointer http, String name);
+    int cupsCancelJob2(Pointer http, String name, int job_id, int purge);
+    String cupsLastErrorString();
+
     void ippDelete(Pointer ipp);
     void httpClose(Pointer http);
 }
@@ -0,0 +1,142 @@
+package qz.printer.status;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import qz.common.ByteArrayBuilder;
+import qz.printer.info.NativePrinter;
+import qz.printer.status.Cups.IPP;
+
+import javax.print.PrintException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A raw job streamed straight to a CUPS queue, one document per call to {@link #send}.
+ * <p>
+ * Each document is written from memory as it's sent, rather than first to a temp file for CUPS to read back.  The job
+ * only prints once its last document is sent; a job closed before then is cancelled.  A job CUPS won't create or start
+ * fails with a {@link NotStartedException}, as nothing was sent and it can still be sent some other way.
+ */
+public class CupsRawJob implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(CupsRawJob.class);
+
+    private final Cups cups;
+    private final String printer;
+    private final String title;
+    private Pointer http;
+    private int jobId;
+    private int documents;
+    private boolean started;
+    private boolean finished;
+
+
+    /**
+     * @param printer Printer to send the job to, which must be a CUPS queue
+     * @param title   Name of the job, as shown in the queue
+     */
+    public CupsRawJob(NativePrinter printer, String title) {
+        this.printer = printer == null? null:printer.getPrinterId();
+        if (this.printer == null || this.printer.trim().isEmpty()) {
+            throw new UnsupportedOperationException("Printer name is blank or invalid");
+        }
+        this.title = title;
+        cups = Cups.INSTANCE;
+    }
+
+    /**
+     * The job couldn't be created or its first document started, so nothing was sent
+     */
+    public static class NotStartedException extends PrintException {
+        public NotStartedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @return If the CUPS library can be loaded on this system
+     */
+    public static boolean isAvailable() {
+        try {
+            return Cups.INSTANCE != null;
+        }
+        catch(UnsatisfiedLinkError | NoClassDefFoundError e) {
+            log.warn("CUPS library is unavailable, raw jobs will be sent through temp files", e);
+            return false;
+        }
+    }
+
+    /**
+     * Streams {@code data} to the printer as the job's next document, creating the job first if needed
+     *
+     * @param last If this is the job's last document, after which the job prints
+     * @throws NotStartedException If CUPS wouldn't create the job or start its first document
+     */
+    public void send(ByteArrayBuilder data, boolean last) throws PrintException {
+        if (finished) { throw new IllegalStateException("Job was already finished"); }
+
+        if (http == null) {
+            http = cups.httpConnectEncrypt(cups.cupsServer(), IPP.PORT, cups.cupsEncryption());
+            if (http == null) { throw new NotStartedException("Unable to connect to CUPS: " + cups.cupsLastErrorString()); }
+
+            jobId = cups.cupsCreateJob(http, printer, title, 0, Pointer.NULL);
+            if (jobId <= 0) { throw new NotStartedException("Unable to create CUPS job: " + cups.cupsLastErrorString()); }
+            log.debug("Created CUPS job {} on {}", jobId, printer);
+        }
+
+        String name = title + " (" + (++documents) + ")";
+        if (cups.cupsStartDocument(http, printer, jobId, name, IPP.CUPS_FORMAT_TEXT, last? 1:0) != IPP.HTTP_CONTINUE) {
+            String message = "Unable to start CUPS document: " + cups.cupsLastErrorString();
+            throw started? new PrintException(message):new NotStartedException(message);
+        }
+        started = true;
+
+        try {
+            data.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte)b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (cups.cupsWriteRequestData(http, ByteBuffer.wrap(b, off, len), new NativeLong(len)) != IPP.HTTP_CONTINUE) {
+                        throw new IOException(cups.cupsLastErrorString());
+                    }
+                }
+            });
+        }
+        catch(IOException e) {
+            throw new PrintException("Unable to write CUPS document: " + e.getMessage());
+        }
+
+        if (cups.cupsFinishDocument(http, printer) > IPP.STATUS_MAX_OK) {
+            throw new PrintException("CUPS rejected document: " + cups.cupsLastErrorString());
+        }
+        finished = last;
+    }
+
+    public int getJobId() {
+        return jobId;
+    }
+
+    /**
+     * Disconnects from CUPS, cancelling the job if its last document wasn't sent
+     */
+    @Override
+    public void close() {
+        if (http == null) { return; }
+
+        if (!finished && jobId > 0) {
+            log.warn("Cancelling unfinished CUPS job {} on {}", jobId, printer);
+            cups.cupsCancelJob2(http, printer, jobId, 1);
+        }
+        cups.httpClose(http);
+        http = null;
+    }
+
+}
@@ -83,6 +83,10 @@ public enum ArgValue {
         "security.data.protocols"),
     SECURITY_PRINT_TOFILE(PREFERENCES, "Enable/disable printing directly to file paths", null, false,
         "security.print.tofile"),
+    SECURITY_SESSION_TTL(PREFERENCES, "Maximum lifetime (in seconds) of a signing session, which lets calls be signed with a session key instead of the certificate (0 = disabled)", null, 3600,
+                           "security.session.ttl"),
+    SECURITY_CRL_REFRESH(PREFERENCES, "Minutes between checks for an updated certificate revocation list", null, 360,
+                           "security.crl.refresh"),
     SECURITY_WSS_SNISTRICT(PREFERENCES, "Enables strict http/websocket SNI checks", null, false,
                            "security.wss.snistrict"),
     SECURITY_WSS_HTTPSONLY(PREFERENCES, "Disables insecure http/websocket ports (e.g. '8182')", null, false,
@@ -93,6 +97,52 @@ public enum ArgValue {
                            "websocket.secure.ports"),
     WEBSOCKET_INSECURE_PORTS(PREFERENCES, "Comma separated list of insecure websocket (ws://) ports to use", null, StringUtils.join(Constants.DEFAULT_WS_PORTS, ","),
                            "websocket.insecure.ports"),
+    WEBSOCKET_DISPATCH_THREADS(PREFERENCES, "Maximum number of threads used to process websocket calls (0 = automatic, ignored when virtual threads are available)", null, 0,
+                           "websocket.dispatch.threads"),
+    WEBSOCKET_DISPATCH_QUEUE(PREFERENCES, "Maximum number of pending calls per connection before new calls are rejected", null, 256,
+                           "websocket.dispatch.queue"),
+    WEBSOCKET_STREAM_OVERFLOW(PREFERENCES, "Comma separated stream=policy pairs controlling what happens when a client falls behind on a stream (block, drop-oldest, keep-latest), unlisted streams block", null, "printer=drop-oldest",
+                           "websocket.stream.overflow"),
+    WEBSOCKET_STREAM_LIMIT(PREFERENCES, "Maximum number of unsent events queued per stream for each connection before the overflow policy applies", null, 1024,
+                           "websocket.stream.limit"),
+    WEBSOCKET_SPOOL_THRESHOLD(PREFERENCES, "Size (in characters) above which incoming print and file data is spooled to a temp file instead of held in memory (0 = never spool)", null, 1048576,
+                           "websocket.spool.threshold"),
+    WEBSOCKET_UPLOAD_LIMIT(PREFERENCES, "Maximum size (in bytes) of a single binary upload (0 = no limit)", null, 268435456,
+                           "websocket.upload.limit"),
+    WEBSOCKET_UPLOAD_CONNECTION_LIMIT(PREFERENCES, "Maximum size (in bytes) of all binary uploads held for one connection but not yet used by a call (0 = no limit)", null, 536870912,
+                           "websocket.upload.connection.limit"),
+    PRINT_JOB_THREADS(PREFERENCES, "Maximum number of printers, hosts or files printed to at the same time, jobs for the same one always print in order (0 = automatic)", null, 0,
+                           "print.job.threads"),
+    PRINT_CONVERT_THREADS(PREFERENCES, "Maximum number of images or PDFs in a raw print converted to raw commands at the same time (0 = automatic, 1 = one at a time)", null, 0,
+                           "print.convert.threads"),
+    PRINT_MEMORY_BUDGET(PREFERENCES, "Percent of the maximum heap that running print jobs may use, by their estimated cost", null, 60,
+                           "print.memory.budget"),
+    PRINT_MEMORY_THRESHOLD(PREFERENCES, "Percent of the heap still in use after garbage collection above which new print jobs wait for running ones to finish", null, 85,
+                           "print.memory.threshold"),
+    PRINT_CACHE_MEMORY(PREFERENCES, "Megabytes of memory used to keep converted print data for reprinting the same data (0 = disabled)", null, 32,
+                           "print.cache.memory"),
+    PRINT_CACHE_DISK(PREFERENCES, "Megabytes of disk used to keep converted raw commands between restarts (0 = disabled)", null, 0,
+                           "print.cache.disk"),
+    PRINT_PREPARE_TTL(PREFERENCES, "Seconds a print prepared ahead of time is kept waiting to be committed", null, 60,
+                           "print.prepare.ttl"),
+    PRINT_PREPARE_LIMIT(PREFERENCES, "Maximum number of prints a connection may have prepared ahead of time and not yet committed", null, 16,
+                           "print.prepare.limit"),
+    PRINT_SPOOL_TIMEOUT(PREFERENCES, "Seconds to wait for a printer to report a job done once sent before failing it (0 = wait indefinitely)", null, 120,
+                           "print.spool.timeout"),
+    PRINT_SPOOL_INFLIGHT(PREFERENCES, "Number of jobs a print may have sent to the printer but not yet reported done at once", null, 4,
+                           "print.spool.inflight"),
+    PRINT_SPOOL_AHEAD(PREFERENCES, "Number of raw pages split and readied for the printer ahead of the one being sent", null, 2,
+                           "print.spool.ahead"),
+    PRINT_HOST_IDLE(PREFERENCES, "Seconds a connection to a raw network printer is kept open between jobs, only for printers which print as data arrives and accept other connections meanwhile (0 = close after each job)", null, 0,
+                           "print.host.idle"),
+    PRINT_HOST_TIMEOUT(PREFERENCES, "Seconds to wait connecting or writing to a raw network printer before failing the job", null, 10,
+                           "print.host.timeout"),
+    PRINT_RAW_STREAM(PREFERENCES, "Stream forced raw prints straight to CUPS as one job, rather than through temp files (experimental)", null, false,
+                           "print.raw.stream"),
+    PRINT_JOURNAL(PREFERENCES, "Journal raw print jobs to disk as they're sent, so ones interrupted by a restart can be resumed", null, false,
+                           "print.journal"),
+    PRINT_JOURNAL_EXPIRE(PREFERENCES, "Hours an interrupted print job is kept for resuming before it's dropped along with its pages (0 = keep until resumed or abandoned)", null, 24,
+                           "print.journal.expire"),
     LOG_DISABLE(PREFERENCES, "Disable/enable logging features", null, false,
         "log.disable"),
     LOG_ROTATE(PREFERENCES, "Number of log files to retain when the size fills up", null, 5,
@@ -0,0 +1,330 @@
+package qz.utils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Finds any of several byte patterns in arrays, chunked buffers and streams.
+ * <p>
+ * A single pattern is searched for with Boyer-Moore-Horspool, skipping ahead by up to the pattern's length on each
+ * mismatch.  Several patterns are searched for at once with an Aho-Corasick automaton, which reads each byte once
+ * however many patterns there are.  A {@link Search} is fed data piece by piece, such as the chunks of a
+ * {@link qz.common.ByteArrayBuilder} or each read from a stream, and finds matches spanning pieces too.
+ * <p>
+ * Matches are found in the order they end, the longest first where several end on the same byte, and never overlap.
+ * A matcher can be shared between threads, a search can't.
+ */
+public class ByteMatcher {
+
+    // patterns up to this long are searched for byte by byte, Horspool can't skip far enough to make up for its extra work
+    private static final int SHORT_PATTERN = 4;
+
+    private final byte[][] patterns;
+    private final int longest;
+
+    // single pattern: how far to skip for each byte value found under the pattern's last byte
+    private final int[] shift;
+
+    // several patterns: next state for each state and byte value, and the longest pattern ending at each state
+    private final int[] transitions;
+    private final int[] output;
+
+
+    /**
+     * @param patterns Byte sequences to search for, none of them empty
+     */
+    public ByteMatcher(byte[]... patterns) {
+        if (patterns == null || patterns.length == 0) {
+            throw new IllegalArgumentException("At least one pattern is required");
+        }
+
+        this.patterns = new byte[patterns.length][];
+        int longest = 0;
+        for(int i = 0; i < patterns.length; i++) {
+            if (patterns[i] == null || patterns[i].length == 0) {
+                throw new IllegalArgumentException("Patterns cannot be empty");
+            }
+            this.patterns[i] = patterns[i].clone();
+            longest = Math.max(longest, patterns[i].length);
+        }
+        this.longest = longest;
+
+        if (patterns.length == 1) {
+            shift = buildShift(this.patterns[0]);
+            transitions = null;
+            output = null;
+        } else {
+            shift = null;
+
+            int maxStates = 1;
+            for(byte[] pattern : this.patterns) { maxStates += pattern.length; }
+
+            int[] trie = new int[maxStates << 8]; // 0 doubles as "no transition", since nothing leads back to the root in a trie
+            int[] found = new int[maxStates];
+            Arrays.fill(found, -1);
+
+            int states = 1;
+            for(int i = 0; i < this.patterns.length; i++) {
+                int state = 0;
+                for(byte b : this.patterns[i]) {
+                    int index = (state << 8) | (b & 0xFF);
+                    if (trie[index] == 0) { trie[index] = states++; }
+                    state = trie[index];
+                }
+                if (found[state] < 0) { found[state] = i; }
+            }
+
+            // breadth first, so each state's fallback is complete before it's needed
+            int[] fallback = new int[states];
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for(int b = 0; b < 256; b++) {
+                if (trie[b] != 0) { queue.add(trie[b]); }
+            }
+            while(!queue.isEmpty()) {
+                int state = queue.poll();
+                if (found[state] < 0) { found[state] = found[fallback[state]]; }
+
+                for(int b = 0; b < 256; b++) {
+                    int index = (state << 8) | b;
+                    int next = trie[index];
+                    if (next != 0) {
+                        fallback[next] = trie[(fallback[state] << 8) | b];
+                        queue.add(next);
+                    } else {
+                        trie[index] = trie[(fallback[state] << 8) | b];
+                    }
+                }
+            }
+
+            transitions = Arrays.copyOf(trie, states << 8);
+            output = Arrays.copyOf(found, states);
+        }
+    }
+
+    private static int[] buildShift(byte[] pattern) {
+        int[] shift = new int[256];
+        Arrays.fill(shift, pattern.length);
+        for(int i = 0; i < pattern.length - 1; i++) {
+            shift[pattern[i] & 0xFF] = pattern.length - 1 - i;
+        }
+        return shift;
+    }
+
+    /**
+     * @return A copy of the pattern at {@code index}, as passed to the constructor
+     */
+    public byte[] getPattern(int index) {
+        return patterns[index].clone();
+    }
+
+    public int getPatternCount() {
+        return patterns.length;
+    }
+
+    /**
+     * Finds the first match lying entirely within {@code target} between {@code fromIndex} and {@code toIndex}
+     *
+     * @param target    Bytes to search
+     * @param fromIndex Start of the range searched, inclusive
+     * @param toIndex   End of the range searched, exclusive
+     * @return The first match, positioned within {@code target}, or {@code null} if there isn't one
+     */
+    public Match find(byte[] target, int fromIndex, int toIndex) {
+        return shift != null? findOne(target, fromIndex, toIndex):findAny(target, fromIndex, toIndex);
+    }
+
+    private Match findOne(byte[] target, int fromIndex, int toIndex) {
+        byte[] pattern = patterns[0];
+        int last = pattern.length - 1;
+        int stop = toIndex - pattern.length;
+
+        if (pattern.length <= SHORT_PATTERN) {
+            // too short to skip far, so look for the first byte and check the rest where it turns up
+            byte first = pattern[0];
+            for(int i = fromIndex; i <= stop; i++) {
+                if (target[i] == first) {
+                    int j = 1;
+                    while(j <= last && target[i + j] == pattern[j]) { j++; }
+                    if (j > last) { return new Match(0, i, i + pattern.length); }
+                }
+            }
+
+            return null;
+        }
+
+        int[] shift = this.shift;
+        byte lastByte = pattern[last];
+
+        int i = fromIndex;
+        while(i <= stop) {
+            byte b = target[i + last];
+            if (b == lastByte) {
+                int j = last - 1;
+                while(j >= 0 && target[i + j] == pattern[j]) { j--; }
+                if (j < 0) { return new Match(0, i, i + pattern.length); }
+            }
+            i += shift[b & 0xFF];
+        }
+
+        return null;
+    }
+
+    private Match findAny(byte[] target, int fromIndex, int toIndex) {
+        int[] transitions = this.transitions;
+        int[] output = this.output;
+
+        int state = 0;
+        for(int i = fromIndex; i < toIndex; i++) {
+            state = transitions[(state << 8) | (target[i] & 0xFF)];
+            if (output[state] >= 0) {
+                return new Match(output[state], i + 1 - patterns[output[state]].length, i + 1);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return A new search over data starting at stream position 0
+     */
+    public Search search() {
+        return search(0);
+    }
+
+    /**
+     * @param position Stream position of the first byte the search will be given, which matches are positioned from
+     * @return A new search over data starting at {@code position}
+     */
+    public Search search(long position) {
+        return new Search(position);
+    }
+
+
+    /**
+     * Searches data given a piece at a time, carrying what it needs between pieces to find matches spanning them.
+     * <p>
+     * Once a match is found the search continues from the byte after it, so the rest of the piece it was found in
+     * must be given again, starting from there.
+     */
+    public final class Search {
+
+        private long position;
+
+        // several patterns: automaton state reached so far
+        private int state;
+
+        // single pattern: the last few bytes given, which a match could still start in, and room for as many again
+        private final byte[] kept;
+        private int keptLength;
+
+
+        private Search(long position) {
+            this.position = position;
+            kept = shift == null? null:new byte[2 * (longest - 1)];
+        }
+
+        /**
+         * @return Stream position of the next byte this search expects
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Continues the search through {@code length} bytes of {@code buffer} starting at {@code offset}
+         *
+         * @return The first match ending within these bytes, positioned in the stream, or {@code null} if there isn't
+         * one and every byte was read
+         */
+        public Match next(byte[] buffer, int offset, int length) {
+            if (shift == null) {
+                for(int i = 0; i < length; i++) {
+                    state = transitions[(state << 8) | (buffer[offset + i] & 0xFF)];
+                    if (output[state] >= 0) {
+                        int found = output[state];
+                        state = 0;
+                        position += i + 1;
+                        return new Match(found, position - patterns[found].length, position);
+                    }
+                }
+
+                position += length;
+                return null;
+            }
+
+            int carry = Math.min(length, longest - 1);
+            if (keptLength > 0) {
+                // matches starting in kept bytes can't reach further into this piece than the pattern's length
+                System.arraycopy(buffer, offset, kept, keptLength, carry);
+                Match match = find(kept, 0, keptLength + carry);
+                if (match != null) { return advance(match, position - keptLength); }
+            }
+
+            Match match = find(buffer, offset, offset + length);
+            if (match != null) { return advance(match, position - offset); }
+
+            if (length >= longest - 1) {
+                System.arraycopy(buffer, offset + length - carry, kept, 0, carry);
+                keptLength = carry;
+            } else {
+                System.arraycopy(buffer, offset, kept, keptLength, length);
+                int total = keptLength + length;
+                keptLength = Math.min(total, longest - 1);
+                System.arraycopy(kept, total - keptLength, kept, 0, keptLength);
+            }
+            position += length;
+
+            return null;
+        }
+
+        private Match advance(Match local, long base) {
+            keptLength = 0;
+            position = base + local.end;
+            return new Match(local.pattern, base + local.start, base + local.end);
+        }
+    }
+
+
+    /**
+     * Where one of the patterns was found
+     */
+    public static final class Match {
+
+        private final int pattern;
+        private final long start;
+        private final long end;
+
+        private Match(int pattern, long start, long end) {
+            this.pattern = pattern;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return Index of the pattern found, in the order given to the matcher
+         */
+        public int getPattern() {
+            return pattern;
+        }
+
+        /**
+         * @return Position of the first byte matched, inclusive
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return Position after the last byte matched, exclusive
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Match{pattern=%s, start=%s, end=%s}", pattern, start, end);
+        }
+    }
+
+}
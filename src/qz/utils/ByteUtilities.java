@@ -109,7 +109,7 @@ public class ByteUtilities {
     /**
      * Iterates through byte array finding matches of {@code match} inside {@code target}.
      * <p/>
-     * TODO: Make this natively Iterable.
+     * Use {@link ByteMatcher} directly to find matches one at a time, or several patterns at once.
      *
      * @param target Byte array to search.
      * @param match  Sub-array to match inside {@code target}.
@@ -121,18 +121,14 @@ public class ByteUtilities {
             return new Integer[0];
         }
 
-        LinkedList<Integer> indexes = new LinkedList<>();
+        ArrayList<Integer> indexes = new ArrayList<>();
 
-        // Find instances of byte list
-        outer:
-        for(int i = 0; i < target.length - match.length + 1; i++) {
-            for(int j = 0; j < match.length; j++) {
-                if (target[i + j] != match[j]) {
-                    continue outer;
-                }
-            }
-
-            indexes.add(i);
+        ByteMatcher matcher = new ByteMatcher(match);
+        ByteMatcher.Match found;
+        int from = 0;
+        while((found = matcher.find(target, from, target.length)) != null) {
+            indexes.add((int)found.getStart());
+            from = (int)found.getStart() + 1; // matches may overlap
         }
 
         return indexes.toArray(new Integer[indexes.size()]);
@@ -158,14 +154,12 @@ public class ByteUtilities {
      * @return First matching index after {@code fromIndex} from {@code target} array or {@code null} if no matches
      */
     public static Integer firstMatchingIndex(byte[] target, byte[] match, int fromIndex) {
-        Integer[] indices = indicesOfMatches(target, match);
-        for(Integer idx : indices) {
-            if (idx >= fromIndex) {
-                return idx;
-            }
+        if (target == null || match == null || match.length == 0) {
+            return null;
         }
 
-        return null;
+        ByteMatcher.Match found = new ByteMatcher(match).find(target, Math.max(0, fromIndex), target.length);
+        return found == null? null:(int)found.getStart();
     }
 
     /**
@@ -173,51 +167,82 @@ public class ByteUtilities {
      * <p/>
      * This is useful for large print batches that need to be split up,
      * (for example) after the P1 or ^XO command has been issued.
-     * <p/>
-     * TODO:
-     * A rewrite of this would be a proper {@code Iteratable} interface
-     * paired with an {@code Iterator} that does this automatically
-     * and would eliminate the need for a {@code indicesOfMatches()} function.
      *
      * @param src     Array to split.
      * @param pattern Pattern to determine where split should occur.
      * @param count   Number of matches between splits.
      */
     public static List<ByteArrayBuilder> splitByteArray(byte[] src, byte[] pattern, int count) throws NullPointerException, IndexOutOfBoundsException, ArrayStoreException {
+        return splitByteArray(new ByteArrayBuilder(src), pattern, count);
+    }
+
+    /**
+     * Splits {@code src} after every {@code count}-th instance of the supplied {@code pattern}, as
+     * {@link #splitByteArray(byte[], byte[], int)} does.  Each split shares {@code src}'s storage rather than copying it.
+     *
+     * @param src     Bytes to split.
+     * @param pattern Pattern to determine where split should occur.
+     * @param count   Number of matches between splits.
+     */
+    public static List<ByteArrayBuilder> splitByteArray(ByteArrayBuilder src, byte[] pattern, int count) {
         if (count < 1) { throw new IllegalArgumentException("Count cannot be less than 1"); }
+        if (pattern.length == 0) { return new ArrayList<>(); }
 
+        return splitByteArray(src, new ByteMatcher(pattern), count);
+    }
+
+    /**
+     * Splits {@code src} after every {@code count}-th match of any of {@code delimiters}' patterns, sharing
+     * {@code src}'s storage rather than copying it.  Anything after the last match is left out.
+     *
+     * @param src        Bytes to split.
+     * @param delimiters Patterns to determine where splits should occur.
+     * @param count      Number of matches between splits.
+     */
+    public static List<ByteArrayBuilder> splitByteArray(ByteArrayBuilder src, ByteMatcher delimiters, int count) {
         List<ByteArrayBuilder> byteArrayList = new ArrayList<>();
-        ByteArrayBuilder builder = new ByteArrayBuilder();
+        for(Iterator<ByteArrayBuilder> splits = iterateSplits(src, delimiters, count); splits.hasNext(); ) {
+            byteArrayList.add(splits.next());
+        }
 
-        Integer[] split = indicesOfMatches(src, pattern);
+        return byteArrayList;
+    }
 
-        int counted = 1;
-        int prev = 0;
+    /**
+     * Splits {@code src} as {@link #splitByteArray(ByteArrayBuilder, ByteMatcher, int)} does, but only searches as far
+     * as the next split each time one is asked for, so splitting can start before {@code src} has been searched through.
+     * {@code src} mustn't be changed while splits are being read.
+     *
+     * @param src        Bytes to split.
+     * @param delimiters Patterns to determine where splits should occur.
+     * @param count      Number of matches between splits.
+     */
+    public static Iterator<ByteArrayBuilder> iterateSplits(ByteArrayBuilder src, ByteMatcher delimiters, int count) {
+        if (count < 1) { throw new IllegalArgumentException("Count cannot be less than 1"); }
 
-        for(int i : split) {
-            //copy everything from the last pattern (or the start) to the end of this pattern
-            byte[] temp = new byte[i - prev + pattern.length];
-            System.arraycopy(src, prev, temp, 0, temp.length);
-            builder.append(temp);
+        Iterator<ByteMatcher.Match> matches = src.findAll(delimiters, 0);
+        return new Iterator<ByteArrayBuilder>() {
+            private int start = 0;
 
-            //if we have 'count' matches, add it to list and start a new builder
-            if (counted < count) {
-                counted++;
-            } else {
-                byteArrayList.add(builder);
-                builder = new ByteArrayBuilder();
-                counted = 1;
+            @Override
+            public boolean hasNext() {
+                return matches.hasNext();
             }
 
-            prev = i + pattern.length;
-        }
+            @Override
+            public ByteArrayBuilder next() {
+                int end = (int)matches.next().getEnd();
 
-        //include any builder matches below 'count'
-        if (!byteArrayList.contains(builder) && builder.getLength() > 0) {
-            byteArrayList.add(builder);
-        }
+                //take up to 'count' matches since the last split, including any below 'count' at the end
+                for(int counted = 1; counted < count && matches.hasNext(); counted++) {
+                    end = (int)matches.next().getEnd();
+                }
 
-        return byteArrayList;
+                ByteArrayBuilder split = src.slice(start, end);
+                start = end;
+                return split;
+            }
+        };
     }
 
     /**
@@ -52,11 +52,7 @@ public final class ConnectionUtilities {
                     throw new IOException(String.format("URL '%s' is not a valid [%s] location", url, allowed));
                 }
             }
-            URLConnection urlConn = url.openConnection();
-            for( String key : getRequestProperties().keySet()) {
-                urlConn.setRequestProperty(key, requestProps.get(key));
-            }
-            return urlConn.getInputStream();
+            return openConnection(url).getInputStream();
         } catch(IOException e) {
             if(e instanceof SSLHandshakeException) {
                 logSslInformation(urlString);
@@ -65,6 +61,17 @@ public final class ConnectionUtilities {
         }
     }
 
+    /**
+     * Opens a connection to the URL with our User-Agent and other request properties set, without connecting yet
+     */
+    public static URLConnection openConnection(URL url) throws IOException {
+        URLConnection urlConn = url.openConnection();
+        for( String key : getRequestProperties().keySet()) {
+            urlConn.setRequestProperty(key, requestProps.get(key));
+        }
+        return urlConn;
+    }
+
     private static boolean isAllowed(String allowed, URL url) {
         if(url == null) return false;
         String urlProtocol = url.getProtocol();
@@ -24,6 +24,7 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import qz.App;
 import qz.auth.Certificate;
+import qz.auth.FingerprintIndex;
 import qz.auth.RequestState;
 import qz.common.ByteArrayBuilder;
 import qz.common.Constants;
@@ -602,9 +603,7 @@ public class FileUtilities {
 
         int len;
         while((len = in.read(buffer)) > -1) {
-            byte[] temp = new byte[len];
-            System.arraycopy(buffer, 0, temp, 0, len);
-            cmds.append(temp);
+            cmds.append(buffer, 0, len);
         }
         in.close();
 
@@ -646,17 +645,18 @@ public class FileUtilities {
         File file = getFile(fileName, local);
         if (file == null) { return false; }
 
+        FingerprintIndex.Stat before = FingerprintIndex.stat(file);
         try(FileWriter fw = new FileWriter(file, true)) {
-            message += "\r\n";
-            fw.write(message);
+            fw.write(message + "\r\n");
             fw.flush();
-            return true;
         }
         catch(IOException e) {
             log.error("Cannot write to file {}", fileName, e);
+            return false;
         }
 
-        return false;
+        FingerprintIndex.lineAdded(file, message, before);
+        return true;
     }
 
     public static boolean printLineToFile(String fileName, String message) {
@@ -724,11 +724,15 @@ public class FileUtilities {
         File file = getFile(fileName, local);
         File temp = getFile(Constants.TEMP_FILE, local);
 
+        FingerprintIndex.Stat before = FingerprintIndex.stat(file);
         try(BufferedReader br = new BufferedReader(new FileReader(file)); BufferedWriter bw = new BufferedWriter(new FileWriter(temp))) {
             String line;
+            int removed = 0;
             while((line = br.readLine()) != null) {
                 if (!line.equals(deleteLine)) {
                     bw.write(line + "\r\n");
+                } else {
+                    removed++;
                 }
             }
 
@@ -737,7 +741,11 @@ public class FileUtilities {
             br.close();
 
             deleteFile(fileName);
-            return temp.renameTo(file);
+            if (temp.renameTo(file)) {
+                FingerprintIndex.lineRemoved(file, deleteLine, removed, before);
+                return true;
+            }
+            return false;
         }
         catch(IOException e) {
             log.error("Unable to delete line from file", e);
@@ -1,6 +1,8 @@
 package qz.utils;
 
 import com.sun.jna.platform.win32.*;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
 import org.apache.commons.ssl.Base64;
 import org.codehaus.jettison.json.JSONArray;
@@ -9,30 +11,43 @@ import org.codehaus.jettison.json.JSONObject;
 import org.eclipse.jetty.websocket.api.Session;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import qz.common.Constants;
+import qz.common.SpooledData;
 import qz.communication.WinspoolEx;
+import qz.printer.PrintJob;
+import qz.printer.PrintJournal;
 import qz.printer.PrintOptions;
 import qz.printer.PrintOutput;
+import qz.printer.PreparedPrint;
+import qz.printer.PrintPreparer;
+import qz.printer.PrintQueue;
 import qz.printer.PrintServiceMatcher;
 import qz.printer.action.PrintProcessor;
+import qz.printer.action.PrintRaw;
 import qz.printer.action.ProcessorFactory;
 import qz.printer.info.NativePrinter;
 import qz.printer.status.CupsUtils;
 import qz.printer.status.job.WmiJobStatusMap;
 import qz.ws.PrintSocketClient;
+import qz.ws.UploadManager;
 
 import javax.print.PrintException;
-import java.awt.print.PrinterAbortException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PrintingUtilities {
 
     private static final Logger log = LogManager.getLogger(PrintingUtilities.class);
 
+    // longest data value repeated back in error messages
+    private static final int DESCRIBED_DATA_LENGTH = 64;
+
     private static GenericKeyedObjectPool<Format,PrintProcessor> processorPool;
 
 
@@ -43,14 +58,14 @@ public class PrintingUtilities {
     }
 
     public enum Format {
-        COMMAND, DIRECT, HTML, IMAGE, PDF
+        COMMAND, DIRECT, HTML, IMAGE, PDF, TEMPLATE
     }
 
     /**
      * TODO: Move this to a dedicated class
      */
     public enum Flavor {
-        BASE64, FILE, HEX, PLAIN, XML;
+        BASE64, FILE, HEX, PLAIN, UPLOAD, XML;
 
         // TODO: Refactor DeviceUtilities to use optString("flavor") instead of optString("type")
         @Deprecated
@@ -82,6 +97,9 @@ public class PrintingUtilities {
                         return FileUtilities.readRawFile(data);
                     case HEX:
                         return ByteUtilities.hexStringToByteArray(data.trim());
+                    case UPLOAD:
+                        // Data was sent separately as binary websocket frames, this is its token and the upload is used up reading it
+                        return UploadManager.read(data.trim());
                     case XML:
                             // Assume base64 encoded string inside the specified XML tag
                             return Base64.decodeBase64(FileUtilities.readXMLFile(data, xmlTag).getBytes(StandardCharsets.UTF_8));
@@ -95,6 +113,42 @@ public class PrintingUtilities {
                 throw new IOException("Error parsing data from " + this.name());
             }
         }
+
+        /**
+         * Reads data which may have been spooled to disk by the websocket, see {@link SpooledData}
+         */
+        public byte[] read(Object data, String xmlTag) throws IOException {
+            if (data instanceof UploadManager.Upload) {
+                // already claimed by the call, see PrintJob
+                return ((UploadManager.Upload)data).getBytes();
+            }
+            if (data instanceof SpooledData && (this == BASE64 || this == PLAIN)) {
+                try(InputStream in = stream(data, xmlTag)) {
+                    return IOUtils.toByteArray(in);
+                }
+            }
+            return read(data == null? null:data.toString(), xmlTag);
+        }
+
+        /**
+         * Opens the decoded data as a stream, decoding spooled base64 and plain data from disk as it's read
+         */
+        public InputStream stream(Object data, String xmlTag) throws IOException {
+            if (data instanceof UploadManager.Upload) {
+                return ((UploadManager.Upload)data).getInputStream();
+            }
+            if (data instanceof SpooledData) {
+                switch(this) {
+                    case BASE64:
+                        return new Base64InputStream(((SpooledData)data).getInputStream());
+                    case PLAIN:
+                        return ((SpooledData)data).getInputStream();
+                    default:
+                        // file paths, hex and upload tokens are only spooled if unusually large, read them normally
+                }
+            }
+            return new ByteArrayInputStream(read(data, xmlTag));
+        }
     }
 
     public static Type getPrintType(JSONObject data) {
@@ -114,21 +168,37 @@ public class PrintingUtilities {
         }
     }
 
+    /**
+     * Describes print data for error messages without reading it back into memory, short values are shown as they are
+     *
+     * @param data Value of a print data element's {@code data} field
+     */
+    public static String describeData(Object data) {
+        if (data instanceof SpooledData) {
+            return String.format("[%s characters spooled to disk]", ((SpooledData)data).length());
+        }
+        if (data instanceof UploadManager.Upload) {
+            return String.format("[upload of %s bytes]", ((UploadManager.Upload)data).getSize());
+        }
+        if (data instanceof JSONArray) {
+            return String.format("[%s rows]", ((JSONArray)data).length());
+        }
+
+        String value = String.valueOf(data);
+        if (value.length() > DESCRIBED_DATA_LENGTH) {
+            return String.format("%s... [%s characters]", value.substring(0, DESCRIBED_DATA_LENGTH), value.length());
+        }
+        return value;
+    }
+
     public synchronized static PrintProcessor getPrintProcessor(Format format) {
         try {
             if (processorPool == null) {
                 processorPool = new GenericKeyedObjectPool<>(new ProcessorFactory());
 
-                long memory = Runtime.getRuntime().maxMemory() / 1000000;
-                if (memory < Constants.MEMORY_PER_PRINT) {
-                    log.warn("Memory available is less than minimum required ({}/{} MB)", memory, Constants.MEMORY_PER_PRINT);
-                }
-                if (memory < Long.MAX_VALUE) {
-                    int maxInst = Math.max(1, (int)(memory / Constants.MEMORY_PER_PRINT));
-                    log.debug("Allowing {} simultaneous processors based on memory available ({} MB)", maxInst, memory);
-                    processorPool.setMaxTotal(maxInst);
-                    processorPool.setMaxTotalPerKey(maxInst);
-                }
+                // concurrency is limited by each job's estimated cost instead, see PrintAdmission
+                processorPool.setMaxTotal(-1);
+                processorPool.setMaxTotalPerKey(-1);
             }
 
             log.trace("Waiting for processor, {}/{} already in use", processorPool.getNumActive(), processorPool.getMaxTotal());
@@ -148,7 +218,7 @@ public class PrintingUtilities {
      *
      * @param dataArr JSONArray of printData, will update any data values by reference
      */
-    private static void convertVersion(JSONArray dataArr) throws JSONException {
+    public static void convertVersion(JSONArray dataArr) throws JSONException {
         for(int i = 0; i < dataArr.length(); i++) {
             JSONObject data = dataArr.optJSONObject(i);
             if (data == null) { data = new JSONObject(); }
@@ -182,48 +252,163 @@ public class PrintingUtilities {
     }
 
     /**
-     * Determine print variables and send data to printer
+     * Queues a print job, replying once it finishes or straight away for {@code async} jobs, see {@link PrintQueue}
      *
      * @param session WebSocket session
      * @param UID     ID of call from web API
+     * @param owner   Connection making the call
      * @param params  Params of call from web API
      */
-    public static void processPrintRequest(Session session, String UID, JSONObject params) throws JSONException {
-        JSONArray printData = params.getJSONArray("data");
-        convertVersion(printData);
+    public static void processPrintRequest(Session session, String UID, Object owner, JSONObject params) throws JSONException {
+        if (params.opt("printer") instanceof JSONArray) {
+            replyWhenAllDone(session, UID, PrintQueue.submitAll(session, owner, params));
+        } else {
+            replyWhenDone(session, UID, PrintQueue.submit(session, owner, params));
+        }
+    }
 
-        // grab first data object to determine type for entire set
-        JSONObject firstData = printData.optJSONObject(0);
-        Type type = getPrintType(firstData);
-        Format format = getPrintFormat(type, firstData);
+    /**
+     * Starts preparing a print job ahead of time, replying with its handle straight away, see {@link PrintPreparer}
+     */
+    public static void processPrepareRequest(Session session, String UID, Object owner, JSONObject params) throws JSONException {
+        PreparedPrint prepared = PrintPreparer.prepare(owner, params);
+        PrintSocketClient.sendResult(session, UID, prepared.toJSON());
+    }
 
-        PrintProcessor processor = PrintingUtilities.getPrintProcessor(format);
-        log.debug("Using {} to print", processor.getClass().getName());
+    /**
+     * Queues a print job prepared by {@link #processPrepareRequest}, replying as {@link #processPrintRequest} does
+     */
+    public static void processCommitRequest(Session session, String UID, Object owner, JSONObject params) throws JSONException {
+        PreparedPrint prepared = PrintPreparer.take(params.optString("handle", null), owner);
+        if (prepared == null) {
+            PrintSocketClient.sendError(session, UID, String.format("Prepared print [%s] not found or expired", params.optString("handle")));
+            return;
+        }
 
-        try {
-            PrintOutput output = new PrintOutput(params.optJSONObject("printer"));
-            PrintOptions options = new PrintOptions(params.optJSONObject("options"), output, format);
+        replyWhenDone(session, UID, PrintQueue.submit(session, owner, prepared));
+    }
 
-            if(type != Type.RAW && !output.isSetService()) {
-                throw new Exception(String.format("%s cannot print to a raw %s", type, output.isSetFile() ? "file" : "host"));
+    /**
+     * Queues the rest of a print job interrupted before it was fully sent, replying as {@link #processPrintRequest} does
+     */
+    public static void processResumeRequest(Session session, String UID, Object owner, JSONObject params) throws JSONException {
+        PrintJournal journal = PrintJournal.getInstance();
+        PrintJournal.Entry entry = journal == null? null:journal.claim(params.optString("journalId", null), owner);
+        if (entry == null) {
+            PrintSocketClient.sendError(session, UID, String.format("Interrupted print job [%s] not found or already printing", params.optString("journalId")));
+            return;
+        }
+
+        replyWhenDone(session, UID, PrintQueue.resume(session, owner, entry));
+    }
+
+    private static void replyWhenDone(Session session, String UID, PrintJob job) throws JSONException {
+        if (job.isAsync()) {
+            PrintSocketClient.sendResult(session, UID, job.toJSON());
+            return;
+        }
+
+        // reply from the job's own thread once it's done, so the connection's later calls aren't held up by printing
+        job.whenFinished(done -> {
+            if (done.getState() == PrintJob.State.COMPLETE) {
+                PrintSocketClient.sendResult(session, UID, null);
+            } else {
+                PrintSocketClient.sendError(session, UID, done.getError());
             }
+        });
+    }
+
+    /**
+     * Replies with the status of each job of a call printing to several printers, once they've all finished or
+     * straight away for {@code async} calls
+     */
+    private static void replyWhenAllDone(Session session, String UID, List<PrintJob> jobs) {
+        // starts at one for this thread, so jobs finishing while the rest are still being listened to can't reply early
+        AtomicInteger remaining = new AtomicInteger(1);
+        Runnable reply = () -> {
+            if (remaining.decrementAndGet() > 0) { return; }
 
-            processor.parseData(params.getJSONArray("data"), options);
-            processor.print(output, options);
-            log.info("Printing complete");
+            try {
+                JSONArray results = new JSONArray();
+                for(PrintJob job : jobs) {
+                    results.put(job.toJSON());
+                }
+                PrintSocketClient.sendResult(session, UID, results);
+            }
+            catch(JSONException e) {
+                PrintSocketClient.sendError(session, UID, e);
+            }
+        };
 
-            PrintSocketClient.sendResult(session, UID, null);
+        for(PrintJob job : jobs) {
+            if (!job.isAsync()) {
+                remaining.incrementAndGet();
+                job.whenFinished(done -> reply.run());
+            }
         }
-        catch(PrinterAbortException e) {
-            log.warn("Printing cancelled");
-            PrintSocketClient.sendError(session, UID, "Printing cancelled");
+        reply.run();
+    }
+
+    /**
+     * Determine print variables and send data to printer
+     *
+     * @param job Job being run, its progress is updated as it goes
+     */
+    public static void print(PrintJob job) throws Exception {
+        PreparedPrint prepared = job.getPrepared();
+        if (prepared == null) {
+            job.update(PrintJob.State.PARSING);
+            prepared = new PreparedPrint(job.getOwner(), job.getParams(), job.getOutput());
+            prepared.prepare();
         }
-        catch(Exception e) {
-            log.error("Failed to print", e);
-            PrintSocketClient.sendError(session, UID, e);
+
+        try {
+            // prepared ahead of time, but may still be finishing up
+            PrintProcessor processor = prepared.await();
+            PrintOutput output = job.getOutput();
+            PrintOptions options = prepared.getOptions(output);
+            job.checkCancelled();
+
+            // only look up the spooler's job ids when someone is following along
+            List<Integer> before = job.isProgress()? findActiveJobIds(output):null;
+
+            job.update(PrintJob.State.RENDERING);
+            if (prepared.isShared() && !(processor instanceof PrintRaw)) {
+                // raw commands are only read while printing, other processors keep per-print state
+                synchronized(processor) {
+                    processor.print(output, options);
+                }
+            } else {
+                processor.print(output, options);
+            }
+
+            if (before != null) {
+                List<Integer> after = findActiveJobIds(output);
+                if (after != null) {
+                    after.removeAll(before);
+                    job.setPrinterJobIds(after);
+                }
+            }
+            job.update(PrintJob.State.SPOOLED);
         }
         finally {
-            PrintingUtilities.releasePrintProcessor(processor);
+            // prints prepared ahead of time are closed with their job, as they may be shared with other jobs
+            if (prepared != job.getPrepared()) { prepared.close(); }
+        }
+    }
+
+    /**
+     * @return Ids of jobs in the spooler for {@code output}'s printer, or {@code null} if they can't be listed
+     */
+    private static List<Integer> findActiveJobIds(PrintOutput output) {
+        if (!output.isSetService()) { return null; }
+
+        try {
+            return getActiveJobIds(output.getNativePrinter());
+        }
+        catch(Exception | UnsatisfiedLinkError e) {
+            log.debug("Unable to list jobs for {}: {}", output.getNativePrinter().getName(), e.toString());
+            return null;
         }
     }
 
@@ -0,0 +1,288 @@
+package qz.ws;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code batch} call, carrying many API calls in a single message which is signed and approved once.
+ * <pre>
+ *   params: {
+ *     calls: [ { call: "serial.sendData", params: {...}, uid: "optional" }, ... ],
+ *     parallel: false,       // run the calls in parallel rather than in order
+ *     stopOnError: false,    // skip remaining calls after one fails
+ *     reply: "multiplex"     // "multiplex" returns every result in the batch's reply,
+ *                            // "stream" replies to each call as it finishes, using its uid
+ *   }
+ * </pre>
+ * Each call is given an internal uid while it runs so its reply can be captured on the way out, see {@link #capture(Session, JSONObject)}.
+ * A call is only done once its reply is captured, even if that's sent after the call returns.
+ */
+public class BatchCall {
+
+    private static final Logger log = LogManager.getLogger(BatchCall.class);
+
+    public static final int MAX_CALLS = 1000;
+    private static final int MAX_PARALLEL = 8;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    // calls which may finish without sending a reply of their own
+    private static final EnumSet<SocketMethod> UNANSWERED = EnumSet.of(SocketMethod.WEBSOCKET_STOP);
+
+    // internal uid -> call awaiting its reply
+    private static final ConcurrentHashMap<String,Item> awaiting = new ConcurrentHashMap<>();
+
+    public enum Reply {
+        MULTIPLEX, STREAM;
+
+        public static Reply parse(String value, Reply fallback) {
+            try {
+                return Reply.valueOf(value.toUpperCase(Locale.ENGLISH));
+            }
+            catch(IllegalArgumentException | NullPointerException e) {
+                return fallback;
+            }
+        }
+    }
+
+    public interface Processor {
+        /**
+         * Runs a single call of the batch, replying through {@code PrintSocketClient} as any other call would
+         */
+        void process(JSONObject message);
+    }
+
+    public interface PromptFormatter {
+        /**
+         * @return The dialog prompt for a single call, or {@code null} if it can't be described
+         */
+        String format(SocketMethod method, JSONObject params);
+    }
+
+    private final Session session;
+    private final Item[] items;
+    private final boolean parallel;
+    private final boolean stopOnError;
+    private final Reply reply;
+
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+
+    public BatchCall(Session session, String uid, JSONObject params) throws JSONException {
+        this.session = session;
+
+        JSONArray calls = params.optJSONArray("calls");
+        if (calls == null || calls.length() == 0) {
+            throw new JSONException("A batch must contain at least one call");
+        }
+        if (calls.length() > MAX_CALLS) {
+            throw new JSONException(String.format("A batch cannot contain more than %s calls", MAX_CALLS));
+        }
+
+        parallel = params.optBoolean("parallel", false);
+        stopOnError = params.optBoolean("stopOnError", false);
+        reply = Reply.parse(params.optString("reply", null), Reply.MULTIPLEX);
+
+        String prefix = "batch-" + sequence.incrementAndGet() + "-";
+        items = new Item[calls.length()];
+        for(int i = 0; i < items.length; i++) {
+            JSONObject call = calls.getJSONObject(i);
+            items[i] = new Item(prefix + i, call.optString("uid", uid + "-" + i), call);
+        }
+    }
+
+    /**
+     * @return A short description of everything the batch will do, for the approval dialog
+     */
+    public String describe(PromptFormatter formatter) {
+        StringBuilder prompts = new StringBuilder();
+        for(Item item : items) {
+            SocketMethod method = SocketMethod.findFromCall(item.call.optString("call"));
+            if (!method.isDialogShown() || method == SocketMethod.BATCH) { continue; }
+
+            String prompt = formatter.format(method, item.call.optJSONObject("params"));
+            if (prompt != null && prompts.indexOf(prompt) < 0) {
+                if (prompts.length() > 0) { prompts.append(", "); }
+                prompts.append(prompt);
+            }
+        }
+
+        return String.format("%s calls%s", items.length, prompts.length() > 0? " to " + prompts:"");
+    }
+
+    /**
+     * Runs every call in the batch, returning once all have replied
+     *
+     * @return Each call's reply when using {@link Reply#MULTIPLEX}, otherwise a summary of how many calls failed
+     */
+    public Object run(RequestDispatcher dispatcher, Processor processor) throws JSONException, InterruptedException {
+        for(Item item : items) {
+            awaiting.put(item.internalUid, item);
+        }
+
+        try {
+            if (parallel && items.length > 1) {
+                AtomicInteger next = new AtomicInteger();
+                CountDownLatch done = new CountDownLatch(items.length);
+                Runnable worker = () -> {
+                    int i;
+                    while((i = next.getAndIncrement()) < items.length) {
+                        try { runItem(items[i], processor); }
+                        finally { done.countDown(); }
+                    }
+                };
+
+                // helpers that start after the work runs out simply exit, so this thread never waits on a busy executor
+                for(int i = 1; i < Math.min(MAX_PARALLEL, items.length); i++) {
+                    dispatcher.execute(worker);
+                }
+                worker.run();
+                done.await();
+            } else {
+                for(Item item : items) {
+                    runItem(item, processor);
+                }
+            }
+        }
+        finally {
+            for(Item item : items) {
+                awaiting.remove(item.internalUid);
+            }
+        }
+
+        if (reply == Reply.STREAM) {
+            int failures = 0;
+            for(Item item : items) {
+                if (item.isError()) { failures++; }
+            }
+            return new JSONObject().put("count", items.length).put("failed", failures);
+        }
+
+        JSONArray results = new JSONArray();
+        for(Item item : items) {
+            JSONObject result = new JSONObject().put("uid", item.clientUid);
+            if (item.isError()) {
+                result.put("error", item.reply.opt("error"));
+            } else {
+                result.put("result", item.reply.opt("result"));
+            }
+            results.put(result);
+        }
+        return results;
+    }
+
+    private void runItem(Item item, Processor processor) {
+        SocketMethod method = SocketMethod.findFromCall(item.call.optString("call"));
+        if (stopOnError && failed.get()) {
+            PrintSocketClient.sendError(session, item.internalUid, "Skipped after an earlier call in the batch failed");
+        } else if (method == SocketMethod.BATCH) {
+            PrintSocketClient.sendError(session, item.internalUid, "Batch calls cannot be nested");
+        } else {
+            try {
+                JSONObject message = new JSONObject(item.call, new String[] {"call", "params"});
+                message.put("uid", item.internalUid);
+                processor.process(message);
+            }
+            catch(JSONException e) {
+                PrintSocketClient.sendError(session, item.internalUid, e);
+            }
+        }
+
+        if (UNANSWERED.contains(method)) {
+            // still account for calls which never send a reply of their own
+            if (item.reply == null) { PrintSocketClient.sendResult(session, item.internalUid, null); }
+        } else {
+            awaitReply(item);
+        }
+        if (item.isError()) {
+            failed.set(true);
+        }
+    }
+
+    /**
+     * Waits for a call's own reply, which some calls send from another thread after {@code process} returns
+     */
+    private void awaitReply(Item item) {
+        try {
+            while(!item.replied.await(1, TimeUnit.SECONDS)) {
+                if (!session.isOpen()) {
+                    log.debug("Connection closed before batched call {} replied", item.clientUid);
+                    return;
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            PrintSocketClient.sendError(session, item.internalUid, "Interrupted while waiting for the call to finish");
+        }
+    }
+
+    /**
+     * Intercepts replies to calls that belong to a running batch
+     *
+     * @return {@code true} if the reply was consumed and should not be sent
+     */
+    public static boolean capture(Session session, JSONObject reply) {
+        if (awaiting.isEmpty()) { return false; }
+
+        String uid = reply.optString("uid", null);
+        Item item = uid == null? null:awaiting.get(uid);
+        if (item == null || item.batch().session != session) { return false; }
+
+        synchronized(item) {
+            if (item.reply != null) {
+                log.trace("Ignoring additional reply for batched call {}", item.clientUid);
+                return true;
+            }
+            item.reply = reply;
+        }
+        item.replied.countDown();
+
+        if (item.batch().reply == Reply.MULTIPLEX) {
+            return true;
+        }
+
+        try {
+            reply.put("uid", item.clientUid);
+        }
+        catch(JSONException e) {
+            log.warn("Unable to update uid of batched reply", e);
+        }
+        return false;
+    }
+
+    private class Item {
+        final String internalUid;
+        final String clientUid;
+        final JSONObject call;
+        volatile JSONObject reply;
+        final CountDownLatch replied = new CountDownLatch(1);
+
+        Item(String internalUid, String clientUid, JSONObject call) {
+            this.internalUid = internalUid;
+            this.clientUid = clientUid;
+            this.call = call;
+        }
+
+        boolean isError() {
+            return reply != null && reply.has("error");
+        }
+
+        BatchCall batch() {
+            return BatchCall.this;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package qz.ws;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.eclipse.jetty.websocket.api.Session;
+import qz.auth.Certificate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All open websocket connections, keyed by their Jetty {@code Session}.
+ * <p>
+ * Sessions are unique per connection, unlike the remote port which two clients on different hosts may share.  The map is
+ * safe to read and update from Jetty's threads and the dispatcher's threads at the same time.
+ */
+public class ConnectionRegistry {
+
+    private final ConcurrentHashMap<Session,SocketConnection> connections = new ConcurrentHashMap<>();
+
+
+    /**
+     * Registers a newly opened session, which is unknown until it sends a certificate
+     */
+    public SocketConnection open(Session session) {
+        SocketConnection connection = new SocketConnection(Certificate.UNKNOWN, session.getRemoteAddress());
+        connections.put(session, connection);
+        return connection;
+    }
+
+    /**
+     * @return The connection for {@code session}, or {@code null} if it was never opened or has since closed
+     */
+    public SocketConnection get(Session session) {
+        return connections.get(session);
+    }
+
+    /**
+     * @return The connection that was registered for {@code session}, or {@code null} if there wasn't one
+     */
+    public SocketConnection close(Session session) {
+        return connections.remove(session);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public List<SocketConnection> getConnections() {
+        return new ArrayList<>(connections.values());
+    }
+
+    /**
+     * @return Resource usage of every open connection, see {@link SocketConnection#toJSON()}
+     */
+    public JSONArray toJSON() throws JSONException {
+        JSONArray list = new JSONArray();
+        for(SocketConnection connection : connections.values()) {
+            list.put(connection.toJSON());
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,387 @@
+package qz.ws;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import qz.common.SpooledData;
+import qz.utils.ByteUtilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+
+/**
+ * Reads a websocket message from the stream without first buffering the whole message as a string.
+ * <p>
+ * Print and file data values ({@code params.data}, {@code params.data[n]} and {@code params.data[n].data}) larger than
+ * the spool threshold are decoded straight into a {@link SpooledData} temp file.  The rest of the message is kept as a
+ * small JSON skeleton with a placeholder where each spooled value was, and the placeholders are swapped for the
+ * {@code SpooledData} objects once the skeleton is parsed.  Messages that are not JSON objects (e.g. keep-alive pings)
+ * are read as-is.
+ * <p>
+ * Spooled values are deleted by {@link #close()}, which must only be called once the message has been fully processed.
+ */
+public class MessageReader implements Closeable {
+
+    private static final int MAX_DEPTH = 512;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Reader reader;
+    private final int threshold;
+    private final char[] buffer = new char[8192];
+    private int position, limit;
+    private long length;
+
+    private final StringBuilder skeleton = new StringBuilder();
+    private final ArrayList<Object> path = new ArrayList<>();
+    private final ArrayList<SpooledData> spooled = new ArrayList<>();
+    private String marker;
+
+
+    /**
+     * @param threshold Largest data value, in characters, kept in memory. {@code 0} or less disables spooling.
+     */
+    public MessageReader(Reader reader, int threshold) throws IOException {
+        this.reader = reader;
+        this.threshold = threshold;
+
+        try {
+            skipWhitespace();
+            if (peek() == '{') {
+                readValue();
+            }
+            // pings, probes and anything trailing are passed through untouched
+            int c;
+            while((c = next()) != -1) {
+                skeleton.append((char)c);
+            }
+        }
+        catch(IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The message text, with placeholders in place of any spooled values
+     */
+    public String getMessage() {
+        return skeleton.toString();
+    }
+
+    /**
+     * @return Total characters read from the message, including any spooled values
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public boolean hasSpooled() {
+        return !spooled.isEmpty();
+    }
+
+    /**
+     * Parses the message, replacing any placeholders with their {@code SpooledData}
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject(skeleton.toString());
+        if (spooled.isEmpty()) { return json; }
+
+        JSONObject params = json.optJSONObject("params");
+        if (params == null) { return json; }
+
+        Object data = params.opt("data");
+        if (data instanceof JSONArray) {
+            JSONArray array = (JSONArray)data;
+            for(int i = 0; i < array.length(); i++) {
+                Object item = array.opt(i);
+                if (item instanceof JSONObject) {
+                    JSONObject obj = (JSONObject)item;
+                    SpooledData value = lookup(obj.opt("data"));
+                    if (value != null) { obj.put("data", value); }
+                } else {
+                    SpooledData value = lookup(item);
+                    if (value != null) { array.put(i, value); }
+                }
+            }
+        } else {
+            SpooledData value = lookup(data);
+            if (value != null) { params.put("data", value); }
+        }
+
+        return json;
+    }
+
+    private SpooledData lookup(Object value) {
+        if (value instanceof String && marker != null && ((String)value).startsWith(marker)) {
+            try {
+                return spooled.get(Integer.parseInt(((String)value).substring(marker.length())));
+            }
+            catch(NumberFormatException | IndexOutOfBoundsException ignore) {}
+        }
+        return null;
+    }
+
+    /**
+     * Deletes any spooled values
+     */
+    @Override
+    public void close() {
+        for(SpooledData data : spooled) {
+            data.close();
+        }
+    }
+
+
+    private void readValue() throws IOException {
+        skipWhitespace();
+        switch(peek()) {
+            case '{':
+                readObject();
+                break;
+            case '[':
+                readArray();
+                break;
+            case '"':
+                readString(isDataPath());
+                break;
+            case -1:
+                throw new IOException("Unexpected end of message");
+            default:
+                readLiteral();
+        }
+    }
+
+    private void readObject() throws IOException {
+        if (path.size() >= MAX_DEPTH) { throw new IOException("Message is nested too deeply"); }
+        skeleton.append((char)next());
+
+        skipWhitespace();
+        if (peek() == '}') {
+            skeleton.append((char)next());
+            return;
+        }
+
+        while(true) {
+            skipWhitespace();
+            if (peek() != '"') { throw new IOException("Expected a property name in message"); }
+            int start = skeleton.length() + 1;
+            readString(false);
+            String key = skeleton.substring(start, skeleton.length() - 1);
+
+            skipWhitespace();
+            expect(':');
+
+            path.add(key);
+            readValue();
+            path.remove(path.size() - 1);
+
+            skipWhitespace();
+            int c = next();
+            if (c == '}') {
+                skeleton.append('}');
+                return;
+            }
+            if (c != ',') { throw new IOException("Expected ',' or '}' in message"); }
+            skeleton.append(',');
+        }
+    }
+
+    private void readArray() throws IOException {
+        if (path.size() >= MAX_DEPTH) { throw new IOException("Message is nested too deeply"); }
+        skeleton.append((char)next());
+
+        skipWhitespace();
+        if (peek() == ']') {
+            skeleton.append((char)next());
+            return;
+        }
+
+        for(int index = 0; ; index++) {
+            path.add(index);
+            readValue();
+            path.remove(path.size() - 1);
+
+            skipWhitespace();
+            int c = next();
+            if (c == ']') {
+                skeleton.append(']');
+                return;
+            }
+            if (c != ',') { throw new IOException("Expected ',' or ']' in message"); }
+            skeleton.append(',');
+        }
+    }
+
+    private void readLiteral() throws IOException {
+        int c;
+        while((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            skeleton.append((char)next());
+        }
+    }
+
+    /**
+     * Copies a string value, escapes intact, into the skeleton, unless it's a data value that outgrows the threshold
+     */
+    private void readString(boolean spoolable) throws IOException {
+        next(); // opening quote
+        int start = skeleton.length();
+        skeleton.append('"');
+
+        boolean escaped = false;
+        int c;
+        while((c = next()) != -1) {
+            if (!escaped && c == '"') {
+                skeleton.append('"');
+                return;
+            }
+            escaped = !escaped && c == '\\';
+            skeleton.append((char)c);
+
+            if (spoolable && threshold > 0 && skeleton.length() - start > threshold) {
+                spool(start, escaped);
+                return;
+            }
+        }
+
+        throw new IOException("Unterminated string in message");
+    }
+
+    /**
+     * Moves the string started at {@code start} out of the skeleton and into a new {@code SpooledData}, then reads the rest of it there
+     */
+    private void spool(int start, boolean escaped) throws IOException {
+        SpooledData data = new SpooledData();
+        spooled.add(data);
+
+        Unescaper unescaper = new Unescaper(data);
+        for(int i = start + 1; i < skeleton.length(); i++) {
+            unescaper.write(skeleton.charAt(i));
+        }
+        skeleton.setLength(start);
+
+        int c;
+        while((c = next()) != -1) {
+            if (!escaped && c == '"') {
+                unescaper.finish();
+                data.finish();
+
+                if (marker == null) {
+                    byte[] bytes = new byte[8];
+                    random.nextBytes(bytes);
+                    marker = "qz-spool:" + ByteUtilities.bytesToHex(bytes, false) + ":";
+                }
+                skeleton.append('"').append(marker).append(spooled.size() - 1).append('"');
+                return;
+            }
+            escaped = !escaped && c == '\\';
+            unescaper.write((char)c);
+        }
+
+        throw new IOException("Unterminated string in message");
+    }
+
+    /**
+     * @return If the value at the current path is print or file data
+     */
+    private boolean isDataPath() {
+        if (path.size() < 2 || !"params".equals(path.get(0)) || !"data".equals(path.get(1))) { return false; }
+
+        switch(path.size()) {
+            case 2: return true; // params.data
+            case 3: return path.get(2) instanceof Integer; // params.data[n]
+            case 4: return path.get(2) instanceof Integer && "data".equals(path.get(3)); // params.data[n].data
+            default: return false;
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = next();
+        if (c != expected) { throw new IOException(String.format("Expected '%s' in message", expected)); }
+        skeleton.append(expected);
+    }
+
+    private void skipWhitespace() throws IOException {
+        int c;
+        while((c = peek()) != -1 && Character.isWhitespace(c)) {
+            skeleton.append((char)next());
+        }
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) { return -1; }
+        return buffer[position];
+    }
+
+    private int next() throws IOException {
+        if (position == limit && !fill()) { return -1; }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(buffer, 0, buffer.length);
+        } while(read == 0);
+        if (read < 0) { return false; }
+
+        position = 0;
+        limit = read;
+        length += read;
+        return true;
+    }
+
+    /**
+     * Decodes JSON string escapes one character at a time, so escapes split across reads are handled
+     */
+    private static class Unescaper {
+        private final SpooledData out;
+        private int state; // 0 = plain, 1 = after '\', 2-5 = reading unicode hex digits
+        private int code;
+
+        Unescaper(SpooledData out) {
+            this.out = out;
+        }
+
+        void write(char c) throws IOException {
+            switch(state) {
+                case 0:
+                    if (c == '\\') {
+                        state = 1;
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+                case 1:
+                    state = 0;
+                    switch(c) {
+                        case 'b': out.append('\b'); break;
+                        case 'f': out.append('\f'); break;
+                        case 'n': out.append('\n'); break;
+                        case 'r': out.append('\r'); break;
+                        case 't': out.append('\t'); break;
+                        case 'u':
+                            state = 2;
+                            code = 0;
+                            break;
+                        default: out.append(c); // '"', '\', '/'
+                    }
+                    break;
+                default:
+                    int digit = Character.digit(c, 16);
+                    if (digit < 0) { throw new IOException("Invalid unicode escape in message"); }
+                    code = (code << 4) | digit;
+                    if (++state == 6) {
+                        out.append((char)code);
+                        state = 0;
+                    }
+            }
+        }
+
+        void finish() throws IOException {
+            if (state != 0) { throw new IOException("Incomplete escape in message"); }
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package qz.ws;
 
 import jssc.SerialPortException;
-import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.codehaus.jettison.json.JSONArray;
@@ -11,14 +10,22 @@ import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
 import org.eclipse.jetty.websocket.api.exceptions.CloseException;
-import org.eclipse.jetty.websocket.api.exceptions.WebSocketException;
 import org.usb4java.LoaderException;
+import qz.App;
 import qz.auth.Certificate;
 import qz.auth.RequestState;
+import qz.auth.SignatureVerifier;
+import qz.auth.SigningSession;
 import qz.common.Constants;
 import qz.common.TrayManager;
 import qz.communication.*;
+import qz.printer.PrintJob;
+import qz.printer.PrintJournal;
+import qz.printer.PrintPreparer;
+import qz.printer.PrintQueue;
 import qz.printer.PrintServiceMatcher;
+import qz.printer.action.RenderCache;
+import qz.printer.action.raw.RawTemplate;
 import qz.printer.status.StatusMonitor;
 import qz.utils.*;
 import qz.ws.substitutions.Substitutions;
@@ -33,8 +40,9 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.file.*;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeoutException;
 
@@ -48,8 +56,16 @@ public class PrintSocketClient {
 
     private static final Semaphore dialogAvailable = new Semaphore(1, true);
 
-    //websocket port -> Connection
-    private static final HashMap<Integer,SocketConnection> openConnections = new HashMap<>();
+    private static final RequestDispatcher dispatcher = new RequestDispatcher(PrefsSearch.getInt(ArgValue.WEBSOCKET_DISPATCH_THREADS, App.getTrayProperties()),
+                                                                              PrefsSearch.getInt(ArgValue.WEBSOCKET_DISPATCH_QUEUE, App.getTrayProperties()));
+
+    private static final int spoolThreshold = PrefsSearch.getInt(ArgValue.WEBSOCKET_SPOOL_THRESHOLD, App.getTrayProperties());
+
+    // websocket session -> Connection
+    private static final ConnectionRegistry connections = new ConnectionRegistry();
+
+    // websocket session -> outbound message queue
+    private static final ConcurrentHashMap<Session,SessionSender> senders = new ConcurrentHashMap<>();
 
     private Server server;
 
@@ -57,13 +73,21 @@ public class PrintSocketClient {
         this.server = server;
     }
 
+    /**
+     * @return Registry of all open connections and their resource usage
+     */
+    public static ConnectionRegistry getConnections() {
+        return connections;
+    }
+
     @OnWebSocketConnect
     public void onConnect(Session session) {
         log.info("Connection opened from {} on socket port {}", session.getRemoteAddress(), ((InetSocketAddress)session.getLocalAddress()).getPort());
         trayManager.displayInfoMessage("Client connected");
 
         //new connections are unknown until they send a proper certificate
-        openConnections.put(((InetSocketAddress)session.getRemoteAddress()).getPort(), new SocketConnection(Certificate.UNKNOWN));
+        connections.open(session);
+        senders.put(session, new SessionSender(session));
     }
 
     @OnWebSocketClose
@@ -71,9 +95,17 @@ public class PrintSocketClient {
         log.info("Connection closed: {} - {}", closeCode, reason);
         trayManager.displayInfoMessage("Client disconnected");
 
-        Integer port = ((InetSocketAddress)session.getRemoteAddress()).getPort();
-        SocketConnection closed = openConnections.remove(port);
+        SessionSender sender = senders.remove(session);
+        if (sender != null) {
+            sender.close();
+        }
+
+        SocketConnection closed = connections.close(session);
         if (closed != null) {
+            dispatcher.remove(closed);
+            PrintQueue.release(closed);
+            PrintPreparer.release(closed);
+            RawTemplate.release(closed);
             try {
                 closed.disconnect();
             }
@@ -98,7 +130,17 @@ public class PrintSocketClient {
 
     @OnWebSocketMessage
     public void onMessage(Session session, Reader reader) throws IOException {
-        String message = IOUtils.toString(reader);
+        //large print data is spooled to disk as it arrives, rather than reading the whole message into memory
+        MessageReader messageReader;
+        try {
+            messageReader = new MessageReader(reader, spoolThreshold);
+        }
+        catch(IOException e) {
+            log.error("Bad JSON: {}", e.getMessage());
+            sendError(session, null, e);
+            return;
+        }
+        String message = messageReader.getMessage();
 
         if (message == null || message.isEmpty()) {
             sendError(session, null, "Message is empty");
@@ -112,13 +154,22 @@ public class PrintSocketClient {
         if ("ping".equals(message)) { return; } //keep-alive call / no need to process
 
         String UID = null;
+        boolean dispatched = false;
         try {
-            JSONObject json = cleanupMessage(new JSONObject(message));
-            log.debug("Message: {}", json);
+            JSONObject json = cleanupMessage(messageReader.toJSON());
+            if (messageReader.hasSpooled()) {
+                log.debug("Message: {}", message);
+            } else {
+                log.debug("Message: {}", json);
+            }
             UID = json.optString("uid");
 
-            Integer connectionPort = ((InetSocketAddress)session.getRemoteAddress()).getPort();
-            SocketConnection connection = openConnections.get(connectionPort);
+            SocketConnection connection = connections.get(session);
+            if (connection == null) {
+                log.warn("Dropping message from closed connection {}", session.getRemoteAddress());
+                return;
+            }
+            connection.received(messageReader.getLength());
             RequestState request = new RequestState(connection.getCertificate(), json);
 
             //if sent a certificate use that instead for this connection
@@ -129,7 +180,7 @@ public class PrintSocketClient {
 
                     request.markNewConnection(certificate);
 
-                    log.debug("Received new certificate from connection through {}", connectionPort);
+                    log.debug("Received new certificate from connection {}", session.getRemoteAddress());
                 }
                 catch(CertificateException ignore) {
                     request.markNewConnection(Certificate.UNKNOWN);
@@ -154,7 +205,7 @@ public class PrintSocketClient {
                     //bad timestamps use the expired certificate
                     log.warn("Expired signature on request");
                     request.setStatus(RequestState.Validity.EXPIRED);
-                } else if (json.isNull("signature") || !validSignature(request.getCertUsed(), json)) {
+                } else if (json.isNull("signature") || !validSignature(connection, request.getCertUsed(), json)) {
                     //bad signatures use the unsigned certificate
                     log.warn("Bad signature on request");
                     request.setStatus(RequestState.Validity.UNSIGNED);
@@ -164,29 +215,24 @@ public class PrintSocketClient {
                 }
             }
 
-            //spawn thread to prevent long processes from blocking
-            final String tUID = UID;
-            new Thread(() -> {
+            //queue on the dispatcher to prevent long processes from blocking, calls from this connection run in order
+            connection.callStarted();
+            boolean accepted = dispatcher.submit(connection, () -> {
                 try {
-                    processMessage(session, json, connection, request);
-                }
-                catch(UnsatisfiedLinkError | LoaderException e) {
-                    log.error("A component is missing or broken, preventing this feature from working", e);
-                    sendError(session, tUID, "Sorry, this feature is unavailable at this time");
-                }
-                catch(JSONException e) {
-                    log.error("Bad JSON: {}", e.getMessage());
-                    sendError(session, tUID, e);
+                    processCall(session, json, connection, request, false);
                 }
-                catch(InvalidPathException | FileSystemException e) {
-                    log.error("FileIO exception occurred", e);
-                    sendError(session, tUID, String.format("FileIO exception occurred: %s: %s", e.getClass().getSimpleName(), e.getMessage()));
+                finally {
+                    connection.callFinished();
+                    messageReader.close();
                 }
-                catch(Exception e) {
-                    log.error("Problem processing message", e);
-                    sendError(session, tUID, e);
-                }
-            }).start();
+            });
+
+            if (accepted) {
+                dispatched = true;
+            } else {
+                connection.callFinished();
+                sendError(session, UID, "Too many pending requests, try again later");
+            }
         }
         catch(JSONException e) {
             log.error("Bad JSON: {}", e.getMessage());
@@ -196,6 +242,63 @@ public class PrintSocketClient {
             log.error("Problem processing message", e);
             sendError(session, UID, e);
         }
+        finally {
+            if (!dispatched) {
+                messageReader.close();
+            }
+        }
+    }
+
+    /**
+     * Receives a chunk of binary data for a later call to reference, see {@link UploadManager} for the frame layout
+     */
+    @OnWebSocketMessage
+    public void onMessage(Session session, byte[] buf, int offset, int length) {
+        String UID = null;
+        try {
+            UploadManager.Chunk chunk = UploadManager.Chunk.parse(buf, offset, length);
+            UID = chunk.getUid();
+
+            SocketConnection connection = connections.get(session);
+            if (connection == null) { return; }
+            connection.received(length);
+            UploadManager.Upload upload = UploadManager.receive(connection, chunk);
+            if (upload != null && UID != null) {
+                sendResult(session, UID, UploadManager.toJSON(upload));
+            }
+        }
+        catch(Exception e) {
+            log.error("Problem receiving binary data", e);
+            sendError(session, UID, e);
+        }
+    }
+
+    /**
+     * Processes a call, replying with an error if it fails
+     *
+     * @param approved If the call is part of a batch which has already been approved
+     */
+    private void processCall(Session session, JSONObject json, SocketConnection connection, RequestState request, boolean approved) {
+        String UID = json.optString("uid");
+        try {
+            processMessage(session, json, connection, request, approved);
+        }
+        catch(UnsatisfiedLinkError | LoaderException e) {
+            log.error("A component is missing or broken, preventing this feature from working", e);
+            sendError(session, UID, "Sorry, this feature is unavailable at this time");
+        }
+        catch(JSONException e) {
+            log.error("Bad JSON: {}", e.getMessage());
+            sendError(session, UID, e);
+        }
+        catch(InvalidPathException | FileSystemException e) {
+            log.error("FileIO exception occurred", e);
+            sendError(session, UID, String.format("FileIO exception occurred: %s: %s", e.getClass().getSimpleName(), e.getMessage()));
+        }
+        catch(Exception e) {
+            log.error("Problem processing message", e);
+            sendError(session, UID, e);
+        }
     }
 
     private JSONObject cleanupMessage(JSONObject msg) {
@@ -211,12 +314,17 @@ public class PrintSocketClient {
         return msg;
     }
 
-    private boolean validSignature(Certificate certificate, JSONObject message) throws JSONException {
-        JSONObject copy = new JSONObject(message, new String[] {"call", "params", "timestamp"});
+    private boolean validSignature(SocketConnection connection, Certificate certificate, JSONObject message) throws JSONException {
         String signature = message.optString("signature");
         String algorithm = message.optString("signAlgorithm", "SHA1").toUpperCase(Locale.ENGLISH);
+        String hash = SignatureVerifier.digest(message);
 
-        return certificate.isSignatureValid(Certificate.Algorithm.valueOf(algorithm), signature, copy.toString().replaceAll("\\\\/", "/"));
+        if (SigningSession.ALGORITHM.equals(algorithm)) {
+            SigningSession signing = connection.getSigningSession();
+            return signing != null && signing.isSignatureValid(certificate, signature, hash);
+        }
+
+        return SignatureVerifier.verify(certificate, Certificate.Algorithm.valueOf(algorithm), signature, hash);
     }
 
     /**
@@ -225,7 +333,7 @@ public class PrintSocketClient {
      * @param session WebSocket session
      * @param json    JSON received from web API
      */
-    private void processMessage(Session session, JSONObject json, SocketConnection connection, RequestState request) throws JSONException, SerialPortException, DeviceException, IOException {
+    private void processMessage(Session session, JSONObject json, SocketConnection connection, RequestState request, boolean approved) throws JSONException, SerialPortException, DeviceException, IOException, InterruptedException {
         // perform client-side substitutions
         if(Substitutions.areActive()) {
             Substitutions substitutions = Substitutions.getInstance();
@@ -245,19 +353,19 @@ public class PrintSocketClient {
             return;
         }
 
-        String prompt = call.getDialogPrompt();
-        if (call == SocketMethod.PRINT) {
-            //special formatting for print dialogs
-            JSONObject pr = params.optJSONObject("printer");
-            if (pr != null) {
-                prompt = String.format(prompt, pr.optString("name", pr.optString("file", pr.optString("host", "an undefined location"))));
-            } else {
-                sendError(session, UID, "A printer must be specified before printing");
-                return;
-            }
+        String prompt = formatPrompt(call, params);
+        if (prompt == null) {
+            sendError(session, UID, "A printer must be specified before printing");
+            return;
         }
 
-        if (call.isDialogShown()
+        BatchCall batch = null;
+        if (call == SocketMethod.BATCH) {
+            batch = new BatchCall(session, UID, params);
+            prompt = String.format(prompt, batch.describe(this::formatPrompt));
+        }
+
+        if (call.isDialogShown() && !approved
                 && !allowedFromDialog(request, prompt, findDialogPosition(session, json.optJSONObject("position")))) {
             sendError(session, UID, "Request blocked");
             return;
@@ -322,7 +430,63 @@ public class PrintSocketClient {
                 sendResult(session, UID, null);
                 break;
             case PRINT:
-                PrintingUtilities.processPrintRequest(session, UID, params);
+                PrintingUtilities.processPrintRequest(session, UID, connection, params);
+                break;
+            case PRINT_PREPARE:
+                PrintingUtilities.processPrepareRequest(session, UID, connection, params);
+                break;
+            case PRINT_COMMIT:
+                PrintingUtilities.processCommitRequest(session, UID, connection, params);
+                break;
+            case PRINT_DISCARD:
+                if (PrintPreparer.discard(params.optString("handle", null), connection)) {
+                    sendResult(session, UID, null);
+                } else {
+                    sendError(session, UID, String.format("Prepared print [%s] not found or expired", params.optString("handle")));
+                }
+                break;
+            case PRINT_STATUS:
+                if (params.has("jobId")) {
+                    PrintJob job = PrintQueue.get(params.optString("jobId"), connection);
+                    if (job != null) {
+                        sendResult(session, UID, job.toJSON());
+                    } else {
+                        sendError(session, UID, String.format("Print job [%s] not found", params.optString("jobId")));
+                    }
+                } else {
+                    sendResult(session, UID, PrintQueue.toJSON(connection));
+                }
+                break;
+            case PRINT_QUEUES:
+                sendResult(session, UID, PrintQueue.queuesJSON());
+                break;
+            case PRINT_CACHE:
+                sendResult(session, UID, RenderCache.getInstance().toJSON());
+                break;
+            case PRINT_TEMPLATE:
+                sendResult(session, UID, RawTemplate.register(connection, params).toJSON());
+                break;
+            case PRINT_JOURNAL:
+                PrintJournal journal = PrintJournal.getInstance();
+                sendResult(session, UID, journal == null? new JSONArray():journal.toJSON(connection));
+                break;
+            case PRINT_RESUME:
+                PrintingUtilities.processResumeRequest(session, UID, connection, params);
+                break;
+            case PRINT_ABANDON:
+                PrintJournal abandoning = PrintJournal.getInstance();
+                if (abandoning != null && abandoning.abandon(params.optString("journalId", null), connection)) {
+                    sendResult(session, UID, null);
+                } else {
+                    sendError(session, UID, String.format("Interrupted print job [%s] not found or already printing", params.optString("journalId")));
+                }
+                break;
+            case PRINT_CANCEL:
+                if (PrintQueue.cancel(params.optString("jobId"), connection)) {
+                    sendResult(session, UID, null);
+                } else {
+                    sendError(session, UID, String.format("Print job [%s] not found or already finished", params.optString("jobId")));
+                }
                 break;
 
             case SERIAL_FIND_PORTS:
@@ -660,6 +824,44 @@ public class PrintSocketClient {
             case GET_VERSION:
                 sendResult(session, UID, Constants.VERSION);
                 break;
+            case BATCH:
+                // the batch was approved as a whole, so its calls skip their own dialogs
+                sendResult(session, UID, batch.run(dispatcher, message -> processCall(session, message, connection, request, true)));
+                break;
+            case SECURITY_START_SESSION: {
+                long ttl = PrefsSearch.getInt(ArgValue.SECURITY_SESSION_TTL, App.getTrayProperties()) * 1000L;
+                if (ttl <= 0) {
+                    sendError(session, UID, "Signing sessions are disabled");
+                    break;
+                }
+                // a session key can't be used to mint another session key, including from inside a batch it signed
+                if (!request.isVerified() || SigningSession.ALGORITHM.equalsIgnoreCase(request.getSignAlgorithm())) {
+                    sendError(session, UID, "A signing session must be started by a request signed with a trusted certificate");
+                    break;
+                }
+                if (params.optLong("ttl") > 0) {
+                    ttl = Math.min(ttl, params.optLong("ttl") * 1000L);
+                }
+
+                SigningSession signing = new SigningSession(request.getCertUsed(), ttl);
+                connection.setSigningSession(signing);
+                log.info("Started signing session for {}, expires in {} seconds", request.getCertName(), ttl / 1000);
+
+                sendResult(session, UID, new JSONObject()
+                        .put("key", signing.getKey())
+                        .put("expires", signing.getExpires()));
+                break;
+            }
+            case SECURITY_END_SESSION:
+                connection.setSigningSession(null);
+                sendResult(session, UID, null);
+                break;
+            case WEBSOCKET_GET_CONNECTIONS:
+                sendResult(session, UID, connections.toJSON());
+                break;
+            case WEBSOCKET_GET_DISPATCHER:
+                sendResult(session, UID, dispatcher.toJSON());
+                break;
             case WEBSOCKET_STOP:
                 log.info("Another instance of {} is asking this to close", Constants.ABOUT_TITLE);
                 String challenge = json.optString("challenge", "");
@@ -682,6 +884,32 @@ public class PrintSocketClient {
         }
     }
 
+    /**
+     * @return The dialog prompt for {@code call}, or {@code null} if a print call is missing its printer
+     */
+    private String formatPrompt(SocketMethod call, JSONObject params) {
+        String prompt = call.getDialogPrompt();
+        if (call == SocketMethod.PRINT || call == SocketMethod.PRINT_PREPARE) {
+            //special formatting for print dialogs
+            JSONArray printers = params == null? null:params.optJSONArray("printer");
+            if (printers == null) {
+                JSONObject pr = params == null? null:params.optJSONObject("printer");
+                if (pr == null) { return null; }
+                printers = new JSONArray().put(pr);
+            }
+
+            List<String> names = new ArrayList<>();
+            for(int i = 0; i < printers.length(); i++) {
+                JSONObject pr = printers.optJSONObject(i);
+                if (pr == null) { return null; }
+                names.add(pr.optString("name", pr.optString("file", pr.optString("host", "an undefined location"))));
+            }
+            prompt = String.format(prompt, String.join(", ", names));
+        }
+
+        return prompt;
+    }
+
     private boolean allowedFromDialog(RequestState request, String prompt, Point position) {
         //If cert can be resolved before the lock, do so and return
         if (request.hasBlockedCert()) {
@@ -785,7 +1013,7 @@ public class PrintSocketClient {
             JSONObject stream = new JSONObject();
             stream.put("type", event.getStreamType());
             stream.put("event", event.toJSON());
-            send(session, stream);
+            send(session, stream, event.getStream());
         }
         catch(JSONException e) {
             log.error("Send stream failed", e);
@@ -798,13 +1026,40 @@ public class PrintSocketClient {
      * @param session WebSocket session
      * @param reply   JSON Object of reply to web API
      */
-    private static synchronized void send(Session session, JSONObject reply) throws WebSocketException {
-        try {
-            session.getRemote().sendString(reply.toString());
+    private static void send(Session session, JSONObject reply) {
+        send(session, reply, null);
+    }
+
+    /**
+     * Queues a reply on the session's outbound queue, returning without waiting for it to be written
+     *
+     * @param session WebSocket session
+     * @param reply   JSON Object of reply to web API
+     * @param stream  Stream the reply belongs to, or {@code null} for call replies
+     */
+    private static void send(Session session, JSONObject reply, StreamEvent.Stream stream) {
+        SessionSender sender = senders.get(session);
+        if (sender == null) {
+            if (!session.isOpen()) {
+                log.warn("Could not send message, connection is already closed");
+                return;
+            }
+            sender = senders.computeIfAbsent(session, SessionSender::new);
         }
-        catch(IOException e) {
-            log.error("Could not send message", e);
+
+        if (stream == null && BatchCall.capture(session, reply)) { return; } //collected into the batch's own reply
+
+        String message = reply.toString();
+        SocketConnection connection = connections.get(session);
+        if (connection != null) {
+            connection.sent(message.length());
+        }
+
+        if (stream == null) {
+            sender.send(message);
+        } else {
+            sender.send(message, stream);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -93,6 +93,7 @@ public class PrintSocketServer {
                 JettyWebSocketServletContainerInitializer.configure(context, (ctx, container) -> {
                     container.addMapping("/", (req, resp) -> new PrintSocketClient(server));
                     container.setMaxTextMessageSize(MAX_MESSAGE_SIZE);
+                    container.setMaxBinaryMessageSize(UploadManager.MAX_CHUNK_SIZE);
                     container.setIdleTimeout(Duration.ofMinutes(5));
                 });
 
@@ -0,0 +1,206 @@
+package qz.ws;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs websocket calls on a bounded executor.
+ * <p>
+ * Calls from the same {@code SocketConnection} are queued into a FIFO lane and run one at a time, in the order they arrived,
+ * while calls from different connections run in parallel.  Virtual threads are used when the JVM provides them, otherwise
+ * a fixed size pool is used.
+ */
+public class RequestDispatcher {
+
+    private static final Logger log = LogManager.getLogger(RequestDispatcher.class);
+
+    private final ExecutorService executor;
+    private final int queueDepth;
+
+    private final ConcurrentHashMap<Object,Lane> lanes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    /**
+     * @param threads    Maximum threads to use when virtual threads are unavailable, {@code 0} or less to size automatically
+     * @param queueDepth Maximum pending calls per connection before calls are rejected
+     */
+    public RequestDispatcher(int threads, int queueDepth) {
+        this.queueDepth = Math.max(1, queueDepth);
+
+        ExecutorService virtual = createVirtualExecutor();
+        if (virtual != null) {
+            log.debug("Dispatching websocket calls using virtual threads");
+            executor = virtual;
+        } else {
+            if (threads <= 0) {
+                threads = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+            }
+            log.debug("Dispatching websocket calls using up to {} threads", threads);
+
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "qz-dispatch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+    }
+
+    /**
+     * Queues {@code task} behind any other pending calls for {@code connection}
+     *
+     * @return {@code false} if the connection's queue is full and the task was rejected
+     */
+    public boolean submit(Object connection, Runnable task) {
+        Lane lane = lanes.computeIfAbsent(connection, c -> new Lane());
+
+        synchronized(lane) {
+            if (lane.pending.size() >= queueDepth) {
+                rejected.incrementAndGet();
+                log.warn("Rejecting call, {} calls are already pending for this connection", lane.pending.size());
+                return false;
+            }
+
+            lane.pending.add(task);
+            queued.incrementAndGet();
+
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                executor.execute(lane);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs {@code task} on the executor immediately, outside of any connection's lane
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Drops any calls still waiting to run for {@code connection}; calls already running are left to finish
+     */
+    public void remove(Object connection) {
+        Lane lane = lanes.remove(connection);
+        if (lane != null) {
+            synchronized(lane) {
+                queued.addAndGet(-lane.pending.size());
+                lane.pending.clear();
+            }
+        }
+    }
+
+    /**
+     * @return Number of calls waiting to run across all connections
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return Number of calls currently running
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return Number of calls rejected since startup because a connection's queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return Call counts and limits, as returned by {@code websocket.getDispatcher}
+     */
+    public JSONObject toJSON() throws JSONException {
+        return new JSONObject()
+                .put("queued", getQueued())
+                .put("active", getActive())
+                .put("rejected", getRejected())
+                .put("queueDepth", getQueueDepth());
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        lanes.clear();
+    }
+
+    /**
+     * Uses {@code Executors.newVirtualThreadPerTaskExecutor()} when running on Java 21+
+     */
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(ReflectiveOperationException | LinkageError ignore) {}
+        return null;
+    }
+
+    /**
+     * FIFO queue of calls for a single connection, scheduled on the executor one call at a time
+     */
+    private class Lane implements Runnable {
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+        private boolean scheduled;
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized(this) {
+                task = pending.poll();
+                if (task == null) {
+                    scheduled = false;
+                    return;
+                }
+                queued.decrementAndGet();
+            }
+
+            active.incrementAndGet();
+            try {
+                task.run();
+            }
+            catch(Throwable t) {
+                log.error("Uncaught error processing call", t);
+            }
+            finally {
+                active.decrementAndGet();
+            }
+
+            // reschedule rather than loop so a busy connection can't starve the others
+            synchronized(this) {
+                if (pending.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    executor.execute(this);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RequestDispatcher{queued=%s, active=%s, rejected=%s}", getQueued(), getActive(), getRejected());
+    }
+}
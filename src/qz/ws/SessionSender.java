@@ -0,0 +1,258 @@
+package qz.ws;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import qz.App;
+import qz.utils.ArgValue;
+import qz.utils.PrefsSearch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outbound message queue for a single websocket session.
+ * <p>
+ * Messages are written with Jetty's non-blocking send API so a slow client only ever holds up its own queue.  Small
+ * messages queued behind an in-flight write are batched together and flushed as a group.  Stream events are bounded
+ * per {@code StreamEvent.Stream}, applying that stream's {@code StreamEvent.Overflow} policy once the limit is reached.
+ * Call replies are never dropped.
+ */
+public class SessionSender {
+
+    private static final Logger log = LogManager.getLogger(SessionSender.class);
+
+    // maximum characters gathered into a single batched write
+    private static final int COALESCE_LIMIT = 64 * 1024;
+    private static final long BLOCK_CHECK_INTERVAL = 1000; //millis
+
+    private static EnumMap<StreamEvent.Stream,StreamEvent.Overflow> policies;
+    private static int streamLimit;
+
+    private final Session session;
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    private final int[] streamCounts = new int[StreamEvent.Stream.values().length];
+
+    private boolean sending;
+    private boolean closed;
+    private long dropped;
+
+
+    public SessionSender(Session session) {
+        this.session = session;
+        loadPreferences();
+    }
+
+    private static synchronized void loadPreferences() {
+        if (policies != null) { return; }
+
+        streamLimit = Math.max(1, PrefsSearch.getInt(ArgValue.WEBSOCKET_STREAM_LIMIT, App.getTrayProperties()));
+        policies = new EnumMap<>(StreamEvent.Stream.class);
+        for(StreamEvent.Stream stream : StreamEvent.Stream.values()) {
+            policies.put(stream, StreamEvent.Overflow.BLOCK);
+        }
+
+        String pairs = PrefsSearch.getString(ArgValue.WEBSOCKET_STREAM_OVERFLOW, App.getTrayProperties());
+        if (pairs != null) {
+            for(String pair : pairs.split(",")) {
+                String[] parts = pair.split("=", 2);
+                if (parts.length != 2) { continue; }
+                try {
+                    StreamEvent.Stream stream = StreamEvent.Stream.valueOf(parts[0].trim().toUpperCase(Locale.ENGLISH));
+                    policies.put(stream, StreamEvent.Overflow.parse(parts[1], StreamEvent.Overflow.BLOCK));
+                }
+                catch(IllegalArgumentException e) {
+                    log.warn("Unknown stream type '{}' in {}", parts[0], ArgValue.WEBSOCKET_STREAM_OVERFLOW.getMatch());
+                }
+            }
+        }
+    }
+
+    public static StreamEvent.Overflow getPolicy(StreamEvent.Stream stream) {
+        loadPreferences();
+        return policies.get(stream);
+    }
+
+    /**
+     * Queues a call reply, these are never dropped
+     */
+    public void send(String message) {
+        enqueue(new Frame(message, null));
+    }
+
+    /**
+     * Queues an event for {@code stream}, subject to that stream's overflow policy
+     */
+    public void send(String message, StreamEvent.Stream stream) {
+        enqueue(new Frame(message, stream));
+    }
+
+    private void enqueue(Frame frame) {
+        synchronized(this) {
+            if (closed) { return; }
+
+            if (frame.stream != null && streamCounts[frame.stream.ordinal()] >= streamLimit) {
+                switch(policies.get(frame.stream)) {
+                    case DROP_OLDEST:
+                        removeQueued(frame.stream, true);
+                        break;
+                    case KEEP_LATEST:
+                        removeQueued(frame.stream, false);
+                        break;
+                    case BLOCK:
+                    default:
+                        while(!closed && streamCounts[frame.stream.ordinal()] >= streamLimit) {
+                            if (!session.isOpen()) {
+                                close();
+                                return;
+                            }
+                            try { wait(BLOCK_CHECK_INTERVAL); }
+                            catch(InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                        }
+                        if (closed) { return; }
+                }
+            }
+
+            queue.add(frame);
+            if (frame.stream != null) { streamCounts[frame.stream.ordinal()]++; }
+
+            if (sending) { return; }
+            sending = true;
+        }
+
+        drain();
+    }
+
+    private void removeQueued(StreamEvent.Stream stream, boolean firstOnly) {
+        Iterator<Frame> it = queue.iterator();
+        while(it.hasNext()) {
+            if (it.next().stream == stream) {
+                it.remove();
+                streamCounts[stream.ordinal()]--;
+                dropped++;
+                if (firstOnly) { break; }
+            }
+        }
+        log.trace("Client is not keeping up with {} stream, {} events dropped so far", stream, dropped);
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or a write is left pending, in which case the write's callback resumes draining
+     */
+    private void drain() {
+        while(true) {
+            ArrayList<Frame> batch = new ArrayList<>();
+            synchronized(this) {
+                int size = 0;
+                Frame next;
+                while((next = queue.peek()) != null && (batch.isEmpty() || size + next.message.length() <= COALESCE_LIMIT)) {
+                    queue.poll();
+                    if (next.stream != null) { streamCounts[next.stream.ordinal()]--; }
+                    batch.add(next);
+                    size += next.message.length();
+                }
+
+                if (batch.isEmpty() || closed) {
+                    sending = false;
+                    return;
+                }
+                notifyAll();
+            }
+
+            Completion completion = new Completion(batch.size());
+            try {
+                RemoteEndpoint remote = session.getRemote();
+                for(int i = 0; i < batch.size(); i++) {
+                    // hold everything but the last frame in jetty's batch buffer, the last frame flushes them all together
+                    remote.setBatchMode(i < batch.size() - 1? BatchMode.ON:BatchMode.OFF);
+                    remote.sendString(batch.get(i).message, completion);
+                }
+            }
+            catch(Exception e) {
+                log.error("Could not send message", e);
+                close();
+                return;
+            }
+
+            if (!completion.submitted()) {
+                return;
+            }
+            // every write already completed inline, keep going on this thread
+        }
+    }
+
+    /**
+     * Stops accepting messages and discards anything not yet written
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        for(int i = 0; i < streamCounts.length; i++) {
+            streamCounts[i] = 0;
+        }
+        notifyAll();
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    private static class Frame {
+        final String message;
+        final StreamEvent.Stream stream;
+
+        Frame(String message, StreamEvent.Stream stream) {
+            this.message = message;
+            this.stream = stream;
+        }
+    }
+
+    /**
+     * Counts down the writes of one batch, plus one extra count released by the sending thread once every write has been handed off
+     */
+    private class Completion implements WriteCallback {
+        private final AtomicInteger remaining;
+
+        Completion(int writes) {
+            remaining = new AtomicInteger(writes + 1);
+        }
+
+        @Override
+        public void writeSuccess() {
+            countDown();
+        }
+
+        @Override
+        public void writeFailed(Throwable t) {
+            log.error("Could not send message", t);
+            countDown();
+        }
+
+        private void countDown() {
+            if (remaining.decrementAndGet() == 0) {
+                drain();
+            }
+        }
+
+        /**
+         * @return {@code true} if all writes have already completed and the caller should continue draining
+         */
+        boolean submitted() {
+            return remaining.decrementAndGet() == 0;
+        }
+    }
+}
@@ -3,38 +3,67 @@ package qz.ws;
 import jssc.SerialPortException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
 import qz.auth.Certificate;
+import qz.auth.SigningSession;
 import qz.communication.*;
 import qz.printer.status.StatusMonitor;
 import qz.utils.FileWatcher;
 
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SocketConnection {
 
     private static final Logger log = LogManager.getLogger(SocketConnection.class);
 
 
-    private Certificate certificate;
+    private final SocketAddress remoteAddress;
+    private final long connectedAt = System.currentTimeMillis();
+
+    private volatile Certificate certificate;
+    // started and ended on the dispatcher, read when checking signatures on jetty's threads
+    private volatile SigningSession signingSession;
 
     private DeviceListener deviceListener;
 
     // serial port -> open SerialIO
-    private final HashMap<String,SerialIO> openSerialPorts = new HashMap<>();
+    private final ConcurrentHashMap<String,SerialIO> openSerialPorts = new ConcurrentHashMap<>();
     // socket 'host:port' -> open ProtocolIO
-    private final HashMap<String,SocketIO> openNetworkSockets = new HashMap<>();
+    private final ConcurrentHashMap<String,SocketIO> openNetworkSockets = new ConcurrentHashMap<>();
 
     // absolute path -> open file listener
-    private final HashMap<Path,FileIO> openFiles = new HashMap<>();
+    private final ConcurrentHashMap<Path,FileIO> openFiles = new ConcurrentHashMap<>();
 
     // DeviceOptions -> open DeviceIO
-    private final HashMap<DeviceOptions,DeviceIO> openDevices = new HashMap<>();
+    private final ConcurrentHashMap<DeviceOptions,DeviceIO> openDevices = new ConcurrentHashMap<>();
+
+    // upload id -> binary upload still receiving chunks
+    private final HashMap<String,UploadManager.Upload> openUploads = new HashMap<>();
+
 
+    // usage accounting, read by other threads through toJSON()
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private volatile long lastActivity = connectedAt;
 
-    public SocketConnection(Certificate cert) {
+
+    public SocketConnection(Certificate cert, SocketAddress remoteAddress) {
         certificate = cert;
+        this.remoteAddress = remoteAddress;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
     }
 
     public Certificate getCertificate() {
@@ -43,6 +72,15 @@ public class SocketConnection {
 
     public void setCertificate(Certificate newCert) {
         certificate = newCert;
+        signingSession = null; // sessions are bound to the certificate that started them
+    }
+
+    public SigningSession getSigningSession() {
+        return signingSession;
+    }
+
+    public void setSigningSession(SigningSession session) {
+        signingSession = session;
     }
 
 
@@ -121,6 +159,18 @@ public class SocketConnection {
         openDevices.remove(dOpts);
     }
 
+    public synchronized void addUpload(String uploadId, UploadManager.Upload upload) {
+        openUploads.put(uploadId, upload);
+    }
+
+    public synchronized UploadManager.Upload getUpload(String uploadId) {
+        return openUploads.get(uploadId);
+    }
+
+    public synchronized void removeUpload(UploadManager.Upload upload) {
+        openUploads.remove(upload.getId(), upload);
+    }
+
     public synchronized void openDevice(DeviceIO device, DeviceOptions dOpts) throws DeviceException {
         device.open();
         if (device.isOpen()) {
@@ -128,6 +178,75 @@ public class SocketConnection {
         }
     }
 
+    /**
+     * Marks a call as queued or running, until {@link #callFinished()}
+     */
+    public void callStarted() {
+        inFlight.incrementAndGet();
+        callCount.incrementAndGet();
+    }
+
+    public void callFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Records an incoming message, counted in characters for text messages and bytes for binary ones
+     */
+    public void received(long length) {
+        bytesIn.addAndGet(length);
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Records an outgoing message, counted in characters
+     */
+    public void sent(long length) {
+        bytesOut.addAndGet(length);
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * @return Snapshot of who this connection is and what it currently holds open
+     */
+    public JSONObject toJSON() throws JSONException {
+        Certificate cert = certificate;
+
+        JSONObject json = new JSONObject()
+                .put("remoteAddress", String.valueOf(remoteAddress))
+                .put("commonName", cert.getCommonName())
+                .put("fingerprint", cert.getFingerprint())
+                .put("trusted", cert.isTrusted())
+                .put("connected", connectedAt)
+                .put("lastActivity", lastActivity)
+                .put("calls", callCount.get())
+                .put("inFlight", inFlight.get())
+                .put("bytesIn", bytesIn.get())
+                .put("bytesOut", bytesOut.get())
+                .put("serialPorts", new JSONArray(openSerialPorts.keySet()))
+                .put("sockets", new JSONArray(openNetworkSockets.keySet()))
+                .put("devices", openDevices.size())
+                .put("fileListeners", openFiles.size())
+                .put("deviceListening", isDeviceListening());
+
+        synchronized(this) {
+            json.put("uploads", openUploads.size());
+        }
+
+        return json;
+    }
+
     /**
      * Explicitly closes all open serial and usb connections setup through this object
      */
@@ -147,6 +266,10 @@ public class SocketConnection {
             dio.close();
         }
 
+        openUploads.clear();
+        UploadManager.release(this);
+        signingSession = null;
+
         removeAllFileListeners();
         stopDeviceListening();
         StatusMonitor.stopListening(this);
@@ -9,6 +9,17 @@ public enum SocketMethod {
     PRINTERS_GET_STATUS("printers.getStatus", false),
     PRINTERS_STOP_LISTENING("printers.stopListening", false),
     PRINT("print", true, "print to %s"),
+    PRINT_PREPARE("print.prepare", true, "print to %s"),
+    PRINT_COMMIT("print.commit", false),
+    PRINT_DISCARD("print.discard", false),
+    PRINT_STATUS("print.status", false),
+    PRINT_CANCEL("print.cancel", false),
+    PRINT_QUEUES("print.queues", true, "access connected printers"),
+    PRINT_CACHE("print.cache", false),
+    PRINT_TEMPLATE("print.template", false),
+    PRINT_JOURNAL("print.journal", false),
+    PRINT_RESUME("print.resume", true, "resume an interrupted print job"),
+    PRINT_ABANDON("print.abandon", false),
 
     SERIAL_FIND_PORTS("serial.findPorts", true, "access serial ports"),
     SERIAL_OPEN_PORT("serial.openPort", true, "open a serial port"),
@@ -56,8 +67,15 @@ public enum SocketMethod {
     NETWORKING_DEVICE_LEGACY("websocket.getNetworkInfo", true),
     GET_VERSION("getVersion", false),
 
+    SECURITY_START_SESSION("security.startSession", true, "sign requests using a session key"),
+    SECURITY_END_SESSION("security.endSession", false),
+
+    WEBSOCKET_GET_CONNECTIONS("websocket.getConnections", true, "view all connected clients"),
+    WEBSOCKET_GET_DISPATCHER("websocket.getDispatcher", false),
     WEBSOCKET_STOP("websocket.stop", false),
 
+    BATCH("batch", true, "make %s"),
+
     INVALID("", false);
 
 
@@ -5,16 +5,39 @@ import org.codehaus.jettison.json.JSONObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Locale;
+
 public class StreamEvent {
 
     public enum Stream {
-        SERIAL, USB, HID, PRINTER, FILE, SOCKET
+        SERIAL, USB, HID, PRINTER, FILE, SOCKET, JOB
     }
 
     public enum Type {
         RECEIVE, ERROR, ACTION
     }
 
+    /**
+     * What to do with new events when a client isn't reading its stream fast enough
+     */
+    public enum Overflow {
+        BLOCK, // wait for the client to catch up
+        DROP_OLDEST, // discard the oldest queued event of the same stream
+        KEEP_LATEST; // discard all queued events of the same stream, keeping only the newest
+
+        public static Overflow parse(String value, Overflow fallback) {
+            if (value != null && !value.trim().isEmpty()) {
+                try {
+                    return Overflow.valueOf(value.trim().toUpperCase(Locale.ENGLISH).replace('-', '_'));
+                }
+                catch(IllegalArgumentException e) {
+                    log.warn("Unknown stream overflow policy '{}', using {}", value, fallback);
+                }
+            }
+            return fallback;
+        }
+    }
+
     private static final Logger log = LogManager.getLogger(StreamEvent.class);
 
     private Stream streamType;
@@ -49,6 +72,10 @@ public class StreamEvent {
     }
 
 
+    public Stream getStream() {
+        return streamType;
+    }
+
     public String getStreamType() {
         return streamType.name();
     }
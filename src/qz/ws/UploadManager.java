@@ -0,0 +1,413 @@
+package qz.ws;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.codehaus.jettison.json.JSONString;
+import qz.App;
+import qz.common.ByteArrayBuilder;
+import qz.common.SpooledData;
+import qz.utils.ArgValue;
+import qz.utils.ByteUtilities;
+import qz.utils.PrefsSearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Reassembles binary websocket uploads so print and file data can be sent without base64 encoding.
+ * <p>
+ * Each binary frame is a chunk of an upload, laid out as:
+ * <pre>
+ *   [4 byte big-endian header length][UTF-8 JSON header][payload bytes]
+ *   header: { "upload": "client id", "sequence": 0, "final": false, "uid": "call id" }
+ * </pre>
+ * Chunks must arrive in sequence.  Once the final chunk is received the upload is assigned a random token which is
+ * returned to the client, and later calls reference it using {@code "flavor": "upload", "data": token}.
+ * <p>
+ * Uploads larger than the spool threshold are written to a temp file rather than held in memory, and each upload and
+ * each connection's unused uploads are capped in size.  The first call to reference an upload claims it, and it's
+ * discarded once that call is done with it.  Unclaimed uploads are discarded when their connection closes, and
+ * uploads left unclaimed or unfinished for {@link #UPLOAD_LIFESPAN} are discarded by a timer.
+ */
+public class UploadManager {
+
+    private static final Logger log = LogManager.getLogger(UploadManager.class);
+
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final long UPLOAD_LIFESPAN = 10 * 60 * 1000; //millis
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // token -> completed upload, not yet claimed by a call
+    private static final ConcurrentHashMap<String,Upload> completed = new ConcurrentHashMap<>();
+    // uploads still receiving chunks, for the expiry timer
+    private static final Set<Upload> receiving = ConcurrentHashMap.newKeySet();
+
+    private static ScheduledThreadPoolExecutor expiry;
+
+
+    private UploadManager() {}
+
+    /**
+     * Header of a single binary chunk
+     */
+    public static class Chunk {
+        private final String uploadId;
+        private final int sequence;
+        private final boolean last;
+        private final String uid;
+        private final ByteBuffer payload;
+
+        private Chunk(JSONObject header, ByteBuffer payload) throws JSONException {
+            uploadId = header.getString("upload");
+            sequence = header.optInt("sequence", 0);
+            last = header.optBoolean("final", false);
+            uid = header.optString("uid", null);
+            this.payload = payload;
+        }
+
+        public static Chunk parse(byte[] buf, int offset, int length) throws IOException {
+            if (length < 4) { throw new IOException("Binary frame is missing its header"); }
+
+            ByteBuffer frame = ByteBuffer.wrap(buf, offset, length);
+            int headerLength = frame.getInt();
+            if (headerLength <= 0 || headerLength > frame.remaining()) {
+                throw new IOException("Binary frame header length is invalid");
+            }
+
+            try {
+                JSONObject header = new JSONObject(new String(buf, frame.position(), headerLength, StandardCharsets.UTF_8));
+                frame.position(frame.position() + headerLength);
+                return new Chunk(header, frame.slice());
+            }
+            catch(JSONException e) {
+                throw new IOException("Binary frame header is not valid JSON", e);
+            }
+        }
+
+        public String getUploadId() {
+            return uploadId;
+        }
+
+        public String getUid() {
+            return uid;
+        }
+    }
+
+    /**
+     * A single upload, either still receiving chunks or completed and referenced by its token.
+     * <p>
+     * Held in place of its token in a call's data once claimed, see {@link #claim(String)}.  The content is kept until
+     * every holder has closed it, see {@link #retain()}.
+     */
+    public static class Upload implements JSONString, Closeable {
+        private final String id;
+        private final SocketConnection owner;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private volatile boolean discarded;
+        private volatile long touched = System.currentTimeMillis();
+
+        // held in memory until it outgrows the spool threshold, then in a temp file
+        private ByteArrayBuilder memory = new ByteArrayBuilder();
+        private byte[] bytes;
+        private SpooledData spooled;
+        private long size;
+
+        private int nextSequence = 0;
+        private String token;
+
+        private Upload(String id, SocketConnection owner) {
+            this.id = id;
+            this.owner = owner;
+        }
+
+        private synchronized void append(Chunk chunk) throws IOException {
+            checkOpen();
+            if (chunk.sequence != nextSequence) {
+                throw new IOException(String.format("Upload [%s] expected chunk %s but received %s", id, nextSequence, chunk.sequence));
+            }
+            nextSequence++;
+            touched = System.currentTimeMillis();
+
+            ByteBuffer payload = chunk.payload;
+            int threshold = PrefsSearch.getInt(ArgValue.WEBSOCKET_SPOOL_THRESHOLD, App.getTrayProperties());
+            if (spooled == null && threshold > 0 && size + payload.remaining() > threshold) {
+                spooled = new SpooledData();
+                memory.writeTo(new SpoolStream(spooled));
+                memory = null;
+            }
+            if (spooled != null) {
+                spooled.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            } else {
+                memory.append(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            }
+            size += payload.remaining();
+        }
+
+        private synchronized void complete() throws IOException {
+            if (spooled != null) {
+                spooled.finish();
+            } else {
+                bytes = memory.getByteArray();
+                memory = null;
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public synchronized long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The whole upload.  Held in memory uploads are returned as is rather than copied, and mustn't be modified.
+         */
+        public synchronized byte[] getBytes() throws IOException {
+            checkOpen();
+            if (spooled == null) { return bytes; }
+
+            try(InputStream in = spooled.getInputStream()) {
+                return IOUtils.toByteArray(in);
+            }
+        }
+
+        /**
+         * @return The upload, streamed from disk if it was spooled
+         */
+        public synchronized InputStream getInputStream() throws IOException {
+            checkOpen();
+            if (spooled == null) { return new ByteArrayInputStream(bytes); }
+            return spooled.getInputStream();
+        }
+
+        private void checkOpen() throws IOException {
+            if (discarded) { throw new IOException(String.format("Upload [%s] was already discarded", id)); }
+        }
+
+        /**
+         * Keeps the upload until a matching {@link #close()}, for holders which share a claimed upload
+         */
+        public Upload retain() {
+            references.incrementAndGet();
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (references.decrementAndGet() != 0) { return; }
+
+            discarded = true;
+            receiving.remove(this);
+            synchronized(this) {
+                memory = null;
+                bytes = null;
+                if (spooled != null) { spooled.close(); }
+            }
+        }
+
+        private boolean isExpired() {
+            return touched + UPLOAD_LIFESPAN < System.currentTimeMillis();
+        }
+
+        @Override
+        public String toJSONString() {
+            return JSONObject.quote(toString());
+        }
+
+        @Override
+        public String toString() {
+            return token == null? id:token;
+        }
+    }
+
+    /**
+     * Adds a chunk to its upload, creating the upload on its first chunk
+     *
+     * @return The completed upload if this was the final chunk, otherwise {@code null}
+     */
+    public static Upload receive(SocketConnection connection, Chunk chunk) throws IOException {
+        Upload upload = connection.getUpload(chunk.uploadId);
+        if (upload == null) {
+            if (chunk.sequence != 0) {
+                throw new IOException(String.format("Upload [%s] has not been started", chunk.uploadId));
+            }
+            startExpiry();
+            upload = new Upload(chunk.uploadId, connection);
+            connection.addUpload(chunk.uploadId, upload);
+            receiving.add(upload);
+        }
+
+        try {
+            checkLimits(connection, upload, chunk.payload.remaining());
+            upload.append(chunk);
+            if (chunk.last) { upload.complete(); }
+        }
+        catch(IOException e) {
+            connection.removeUpload(upload);
+            upload.close();
+            throw e;
+        }
+
+        if (!chunk.last) {
+            return null;
+        }
+
+        connection.removeUpload(upload);
+        receiving.remove(upload);
+        upload.token = newToken();
+        completed.put(upload.token, upload);
+        log.debug("Received upload [{}] of {} bytes in {} chunks", upload.id, upload.getSize(), upload.nextSequence);
+
+        return upload;
+    }
+
+    /**
+     * Fails the chunk if it would make its upload, or its connection's unclaimed uploads, larger than allowed
+     */
+    private static void checkLimits(SocketConnection connection, Upload upload, int adding) throws IOException {
+        long uploadLimit = PrefsSearch.getInt(ArgValue.WEBSOCKET_UPLOAD_LIMIT, App.getTrayProperties());
+        if (uploadLimit > 0 && upload.getSize() + adding > uploadLimit) {
+            throw new IOException(String.format("Upload [%s] is larger than the %s byte limit", upload.id, uploadLimit));
+        }
+
+        long connectionLimit = PrefsSearch.getInt(ArgValue.WEBSOCKET_UPLOAD_CONNECTION_LIMIT, App.getTrayProperties());
+        if (connectionLimit > 0) {
+            long held = adding;
+            for(Upload other : receiving) {
+                if (other.owner == connection) { held += other.getSize(); }
+            }
+            for(Upload other : completed.values()) {
+                if (other.owner == connection) { held += other.getSize(); }
+            }
+            if (held > connectionLimit) {
+                throw new IOException(String.format("Uploads for this connection are larger than the %s byte limit", connectionLimit));
+            }
+        }
+    }
+
+    /**
+     * Takes a completed upload for the call referencing it, which must close it once done.  Each upload can only be claimed once.
+     */
+    public static Upload claim(String token) throws IOException {
+        Upload upload = token == null? null:completed.remove(token.trim());
+        if (upload == null || upload.isExpired()) {
+            if (upload != null) { upload.close(); }
+            throw new IOException("Upload not found or expired");
+        }
+
+        return upload;
+    }
+
+    /**
+     * @return Size of the completed upload with {@code token}, without claiming it, or {@code -1} if there isn't one
+     */
+    public static long getSize(String token) {
+        Upload upload = token == null? null:completed.get(token.trim());
+        return upload == null? -1:upload.getSize();
+    }
+
+    /**
+     * Claims an upload and reads its content, discarding it once read
+     */
+    public static byte[] read(String token) throws IOException {
+        try(Upload upload = claim(token)) {
+            return upload.getBytes();
+        }
+    }
+
+    /**
+     * Discards all unclaimed uploads belonging to {@code connection}
+     */
+    public static void release(SocketConnection connection) {
+        discard(completed.values(), upload -> upload.owner == connection);
+        discard(receiving, upload -> upload.owner == connection);
+    }
+
+    private static void purgeExpired() {
+        discard(completed.values(), Upload::isExpired);
+        for(Upload upload : receiving) {
+            if (upload.isExpired()) {
+                log.warn("Discarding upload [{}], no chunks were received for {} seconds", upload.id, UPLOAD_LIFESPAN / 1000);
+                upload.owner.removeUpload(upload);
+                if (receiving.remove(upload)) { upload.close(); }
+            }
+        }
+    }
+
+    private static void discard(Iterable<Upload> uploads, Predicate<Upload> which) {
+        for(Iterator<Upload> it = uploads.iterator(); it.hasNext(); ) {
+            Upload upload = it.next();
+            if (which.test(upload)) {
+                it.remove();
+                upload.close();
+            }
+        }
+    }
+
+    private static synchronized void startExpiry() {
+        if (expiry == null) {
+            expiry = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "qz-upload-expiry");
+                t.setDaemon(true);
+                return t;
+            });
+            expiry.scheduleWithFixedDelay(UploadManager::purgeExpired, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return ByteUtilities.bytesToHex(bytes, false);
+    }
+
+    public static JSONObject toJSON(Upload upload) throws JSONException {
+        return new JSONObject()
+                .put("upload", upload.getId())
+                .put("token", upload.getToken())
+                .put("size", upload.getSize());
+    }
+
+    /**
+     * Writes bytes held in memory out to a spool file as an upload outgrows the threshold
+     */
+    private static class SpoolStream extends OutputStream {
+        private final SpooledData spooled;
+
+        SpoolStream(SpooledData spooled) {
+            this.spooled = spooled;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            spooled.write(b, off, len);
+        }
+    }
+}
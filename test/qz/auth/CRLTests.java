@@ -0,0 +1,82 @@
+package qz.auth;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Checks CRL refreshes against a local HTTP stand-in: the first download is cached, an unchanged list answers
+ * {@code 304} without a body, a changed list replaces the set, and a new instance starts from the cache.
+ */
+public class CRLTests {
+
+    private static final String ETAG = "\"v1\"";
+
+    private static volatile String body = "# comment\n\nAAAA\nBBBB\n";
+    private static volatile String etag = ETAG;
+    private static final AtomicInteger bodiesSent = new AtomicInteger();
+
+    public static void main(String ... args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("ETag", etag);
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+                bodiesSent.incrementAndGet();
+            }
+            exchange.close();
+        });
+        server.start();
+
+        Path dir = Files.createTempDirectory("crl-test");
+        Path cache = dir.resolve("crl.cache");
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+        try {
+            CRL crl = new CRL(url, cache);
+            check(!crl.loadCache(), "no cache should exist yet");
+            check(!crl.isLoaded(), "should not be loaded before a refresh");
+
+            check(crl.refresh() == CRL.Refresh.UPDATED, "first refresh should download");
+            check(crl.isLoaded() && crl.size() == 2, "expected 2 entries, found " + crl.size());
+            check(crl.isRevoked("AAAA") && !crl.isRevoked("CCCC"), "wrong revocation result");
+            check(Files.exists(cache), "list should be cached to disk");
+
+            check(crl.refresh() == CRL.Refresh.UNCHANGED, "unchanged list should answer 304");
+            check(bodiesSent.get() == 1, "unchanged list should not be sent again");
+            check(crl.isRevoked("BBBB"), "304 should keep the current list");
+
+            CRL restarted = new CRL(url, cache);
+            check(restarted.loadCache() && restarted.isLoaded(), "cache should load on startup");
+            check(restarted.isRevoked("AAAA") && restarted.size() == 2, "cached list doesn't match");
+            check(restarted.refresh() == CRL.Refresh.UNCHANGED, "cached etag should be sent on the first refresh");
+
+            body = "CCCC\n";
+            etag = "\"v2\"";
+            check(crl.refresh() == CRL.Refresh.UPDATED, "changed list should download");
+            check(crl.isRevoked("CCCC") && !crl.isRevoked("AAAA"), "changed list should replace the old one");
+
+            server.stop(0);
+            check(crl.refresh() == CRL.Refresh.FAILED, "unreachable server should fail");
+            check(crl.isRevoked("CCCC"), "failed refresh should keep the current list");
+
+            System.out.println("CRL tests passed");
+        }
+        finally {
+            server.stop(0);
+            Files.deleteIfExists(cache);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package qz.auth;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.ssl.Base64;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.Random;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Compares the original signature check (copy, serialize, regex, new Signature per call) against {@link SignatureVerifier},
+ * after first confirming both produce the same hash for awkward content.
+ */
+public class SignatureVerifierBenchmark {
+
+    private static final int ITERATIONS = 20;
+
+    public static void main(String ... args) throws Exception {
+        // awkward content must hash identically to the original path
+        JSONObject tricky = new JSONObject()
+                .put("call", "print")
+                .put("params", new JSONObject()
+                        .put("data", new JSONArray()
+                                .put("a/b </script> \\/ \"q\" \\ \t\n\r\b\f \u0001\u001f é 😀")
+                                .put(new JSONObject().put("flavor", "plain").put("data", ""))
+                                .put(JSONObject.NULL)
+                                .put(1.5).put(-2).put(1e21).put(true))
+                        .put("options", new JSONObject().put("copies", 2).put("nested", new JSONArray().put(new JSONArray()))))
+                .put("timestamp", System.currentTimeMillis());
+        check(DigestUtils.sha256Hex(legacyContent(tricky)).equals(SignatureVerifier.digest(tricky)), "tricky content hashed differently");
+        check(DigestUtils.sha256Hex(legacyContent(new JSONObject().put("call", "getVersion"))).equals(SignatureVerifier.digest(new JSONObject().put("call", "getVersion"))), "sparse message hashed differently");
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+
+        for(int size : new int[] {1024, 1024 * 1024, 8 * 1024 * 1024}) {
+            JSONObject message = createMessage(size);
+            String signature = sign(keys.getPrivate(), DigestUtils.sha256Hex(legacyContent(message)));
+
+            check(legacyVerify(keys.getPublic(), message, signature), "legacy verify failed");
+            check(fastVerify(keys.getPublic(), message, signature), "fast verify failed");
+
+            long legacy = 0, fast = 0;
+            for(int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                legacyVerify(keys.getPublic(), message, signature);
+                legacy += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                fastVerify(keys.getPublic(), message, signature);
+                fast += System.nanoTime() - start;
+            }
+
+            System.out.printf("%,10d bytes: legacy %8.3f ms, fast %8.3f ms%n", size, legacy / 1e6 / ITERATIONS, fast / 1e6 / ITERATIONS);
+        }
+    }
+
+    /** Content as built by the original {@code validSignature} */
+    private static String legacyContent(JSONObject message) throws JSONException {
+        JSONObject copy = new JSONObject(message, new String[] {"call", "params", "timestamp"});
+        return copy.toString().replaceAll("\\\\/", "/");
+    }
+
+    private static boolean legacyVerify(PublicKey key, JSONObject message, String signature) throws Exception {
+        Signature verifier = Signature.getInstance(Certificate.Algorithm.SHA256.name);
+        verifier.initVerify(key);
+        verifier.update(DigestUtils.sha256Hex(legacyContent(message)).getBytes(StandardCharsets.UTF_8));
+        return verifier.verify(Base64.decodeBase64(signature));
+    }
+
+    private static boolean fastVerify(PublicKey key, JSONObject message, String signature) throws Exception {
+        return SignatureVerifier.verify("benchmark", key, Certificate.Algorithm.SHA256, signature, SignatureVerifier.digest(message));
+    }
+
+    private static JSONObject createMessage(int size) throws JSONException {
+        byte[] bytes = new byte[size * 3 / 4];
+        new Random(size).nextBytes(bytes);
+
+        return new JSONObject()
+                .put("call", "print")
+                .put("params", new JSONObject()
+                        .put("printer", new JSONObject().put("name", "Zebra/ZP450"))
+                        .put("options", new JSONObject().put("copies", 1))
+                        .put("data", new JSONArray().put(new JSONObject()
+                                                                 .put("type", "raw")
+                                                                 .put("format", "command")
+                                                                 .put("flavor", "base64")
+                                                                 .put("data", Base64.encodeBase64String(bytes)))))
+                .put("timestamp", System.currentTimeMillis());
+    }
+
+    private static String sign(PrivateKey key, String hash) throws GeneralSecurityException {
+        Signature signer = Signature.getInstance(Certificate.Algorithm.SHA256.name);
+        signer.initSign(key);
+        signer.update(hash.getBytes(StandardCharsets.UTF_8));
+        return Base64.encodeBase64String(signer.sign());
+    }
+}
@@ -0,0 +1,84 @@
+package qz.common;
+
+import qz.utils.ByteUtilities;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Checks the chunked builder against a plain byte array through random appends, inserts and clears, that searches
+ * find matches spanning chunks, and that slices keep their contents however the builder changes afterwards.
+ */
+public class ByteArrayBuilderTests {
+
+    public static void main(String ... args) throws Exception {
+        Random random = new Random(42);
+        ByteArrayBuilder builder = new ByteArrayBuilder(4);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        for(int i = 0; i < 2000; i++) {
+            byte[] bytes = new byte[random.nextInt(600)];
+            random.nextBytes(bytes);
+            if (random.nextBoolean()) {
+                builder.append(bytes);
+                expected.write(bytes);
+            } else {
+                for(byte b : bytes) { builder.append(b); }
+                expected.write(bytes);
+            }
+
+            if (i % 50 == 0) {
+                byte[] current = expected.toByteArray();
+                int start = random.nextInt(current.length + 1), end = start + random.nextInt(current.length - start + 1);
+                builder.clearRange(start, end);
+                expected.reset();
+                expected.write(current, 0, start);
+                expected.write(current, end, current.length - end);
+            }
+            if (i % 70 == 0) {
+                byte[] current = expected.toByteArray();
+                int at = random.nextInt(current.length + 1);
+                builder.insert(at, bytes);
+                expected.reset();
+                expected.write(current, 0, at);
+                expected.write(bytes);
+                expected.write(current, at, current.length - at);
+            }
+        }
+        check(builder.getLength() == expected.size(), "length should follow every change");
+        check(Arrays.equals(builder.getByteArray(), expected.toByteArray()), "contents should follow every change");
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        builder.writeTo(streamed);
+        check(Arrays.equals(streamed.toByteArray(), expected.toByteArray()), "streamed contents should match");
+
+        // matches across chunk boundaries
+        ByteArrayBuilder split = new ByteArrayBuilder(2);
+        split.append("ab^X".getBytes(StandardCharsets.US_ASCII)).append(new ByteArrayBuilder("Zcd^".getBytes(StandardCharsets.US_ASCII))).append("XZ".getBytes(StandardCharsets.US_ASCII));
+        check(split.indexOf("^XZ".getBytes(StandardCharsets.US_ASCII), 0) == 2, "match spanning chunks should be found");
+        check(split.indexOf("^XZ".getBytes(StandardCharsets.US_ASCII), 3) == 7, "search should start from the given index");
+        check(split.indexOf("^XX".getBytes(StandardCharsets.US_ASCII), 0) == -1, "missing pattern shouldn't be found");
+
+        // slices share storage, but keep their contents as the builder changes
+        ByteArrayBuilder source = new ByteArrayBuilder();
+        source.append("0123456789".getBytes(StandardCharsets.US_ASCII));
+        ByteArrayBuilder slice = source.slice(2, 6);
+        source.clearRange(4, 10);
+        source.append("abcdef".getBytes(StandardCharsets.US_ASCII));
+        slice.append("xy".getBytes(StandardCharsets.US_ASCII));
+        check(new String(slice.getByteArray(), StandardCharsets.US_ASCII).equals("2345xy"), "slice should keep its contents");
+        check(new String(source.getByteArray(), StandardCharsets.US_ASCII).equals("0123abcdef"), "source shouldn't see slice changes");
+
+        List<ByteArrayBuilder> pages = ByteUtilities.splitByteArray(split, "^XZ".getBytes(StandardCharsets.US_ASCII), 1);
+        check(pages.size() == 2, "data should split after each pattern");
+        check(new String(pages.get(0).getByteArray(), StandardCharsets.US_ASCII).equals("ab^XZ"), "first page should end with the pattern");
+        check(new String(pages.get(1).getByteArray(), StandardCharsets.US_ASCII).equals("cd^XZ"), "second page should end with the pattern");
+
+        System.out.println("Byte array builder tests passed");
+    }
+}
@@ -0,0 +1,127 @@
+package qz.printer;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Checks job cost estimates are proportionate, that small jobs share the budget while large ones wait their turn,
+ * that heap pressure holds back new jobs without ever blocking the only running job, and that jobs held back don't keep
+ * other destinations from printing.
+ */
+public class PrintAdmissionTests {
+
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String ... args) throws Exception {
+        long label = PrintAdmission.estimate(rawLabel());
+        long pdf = PrintAdmission.estimate(rasterPdf());
+        System.out.printf("ZPL label: %d KB, rasterized PDF: %d MB%n", label / 1024, pdf / MB);
+        check(label < 8 * MB, "small raw label should be cheap");
+        check(pdf > 100 * MB, "rasterized PDF should be expensive");
+
+        // a 1 GB heap at 60% fits many labels at once, but only one big PDF
+        PrintAdmission admission = new PrintAdmission(614 * MB, () -> false);
+        for(int i = 0; i < 50; i++) {
+            check(admission.tryAcquire(label), "label " + i + " should be admitted");
+        }
+        for(int i = 0; i < 50; i++) {
+            admission.release(label);
+        }
+
+        check(admission.tryAcquire(pdf), "first PDF should be admitted");
+        check(!admission.tryAcquire(pdf), "second PDF should wait for the first");
+        admission.release(pdf);
+        check(admission.tryAcquire(pdf), "second PDF should run once the first finishes");
+        admission.release(pdf);
+
+        // larger than the whole budget still runs when nothing else is
+        check(admission.tryAcquire(admission.getBudget() * 2), "oversized job should run alone");
+        admission.release(admission.getBudget() * 2);
+
+        AtomicBoolean pressure = new AtomicBoolean(true);
+        PrintAdmission pressured = new PrintAdmission(614 * MB, pressure::get);
+        check(pressured.tryAcquire(label), "the only job should run despite pressure");
+        check(!pressured.tryAcquire(label), "new jobs should wait while under pressure");
+        check(pressured.tryAcquire(0), "jobs paid for ahead of time should run despite pressure");
+        pressure.set(false);
+        check(pressured.tryAcquire(label), "jobs should resume once pressure eases");
+
+        checkQueue();
+
+        System.out.println("Print admission tests passed");
+    }
+
+    /**
+     * Keeps one big job printing to a stand-in printer which never reads, with another queued behind it for a second
+     * printer, and checks a small job for a third destination still prints on the only free worker thread.
+     */
+    private static void checkQueue() throws Exception {
+        long heap = Runtime.getRuntime().maxMemory();
+        System.setProperty("print.memory.budget", String.valueOf(Math.max(1, (64 * MB * 100 + heap - 1) / heap)));
+        System.setProperty("print.job.threads", "2");
+        System.setProperty("print.host.idle", "0");
+        System.setProperty("security.print.tofile", "true");
+
+        // big enough that two can't run together, and that the first fills the socket's buffers
+        long budget = PrintAdmission.getInstance().getBudget();
+        String payload = new String(new char[(int)(budget * 3 / 10)]).replace('\0', 'x');
+        Object owner = new Object();
+        Path archive = Files.createTempFile("qz-admission", ".txt");
+
+        try(ServerSocket stalled = new ServerSocket(0); ServerSocket waiting = new ServerSocket(0)) {
+            PrintJob big = PrintQueue.submit(null, owner, hostJob(stalled, payload));
+            PrintJob queued = PrintQueue.submit(null, owner, hostJob(waiting, payload));
+            check(big.getCost() + queued.getCost() > budget && big.getCost() < budget, "big jobs should only fit alone");
+
+            PrintJob small = PrintQueue.submit(null, owner, new JSONObject()
+                    .put("printer", new JSONObject().put("file", archive.toString()))
+                    .put("data", new JSONArray().put("^XA^FDsmall^FS^XZ")));
+            long deadline = System.currentTimeMillis() + 10000;
+            while(!small.getState().isFinished() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            check(small.getState().isFinished(), "small job shouldn't wait behind a big job held back for memory");
+            check(small.getState() == PrintJob.State.COMPLETE, "small job should print: " + small.getError());
+            check(big.getState() != PrintJob.State.QUEUED && !big.getState().isFinished(), "first big job should still be printing");
+            check(queued.getState() == PrintJob.State.QUEUED, "second big job should still be held back");
+
+            PrintQueue.cancel(big.getId(), owner);
+            PrintQueue.cancel(queued.getId(), owner);
+        }
+        finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+
+    private static JSONObject hostJob(ServerSocket printer, String payload) throws JSONException {
+        return new JSONObject()
+                .put("printer", new JSONObject().put("host", "127.0.0.1").put("port", printer.getLocalPort()))
+                .put("data", new JSONArray().put(payload));
+    }
+
+    private static JSONObject rawLabel() throws JSONException {
+        return new JSONObject()
+                .put("printer", new JSONObject().put("name", "Zebra"))
+                .put("data", new JSONArray().put("^XA^FO50,50^ADN,36,20^FDShipping label^FS^XZ"));
+    }
+
+    private static JSONObject rasterPdf() throws JSONException {
+        char[] payload = new char[4 * 1024 * 1024];
+        return new JSONObject()
+                .put("printer", new JSONObject().put("name", "Office"))
+                .put("options", new JSONObject().put("density", 600).put("rasterize", true))
+                .put("data", new JSONArray().put(new JSONObject()
+                                                         .put("type", "pixel")
+                                                         .put("format", "pdf")
+                                                         .put("flavor", "base64")
+                                                         .put("data", new String(payload))));
+    }
+}
@@ -0,0 +1,125 @@
+package qz.printer;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import qz.auth.Certificate;
+import qz.common.ByteArrayBuilder;
+import qz.ws.SocketConnection;
+
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static qz.utils.TestUtilities.check;
+import static qz.utils.TestUtilities.receive;
+
+/**
+ * Journals a raw job which is interrupted part way through, checking that a reloaded journal ignores a torn record,
+ * that only the sending client can resume the job, that resuming only sends the pages left, and that compaction
+ * leaves nothing behind once it's done.  Also checks a job finished before its pages are written is never accepted,
+ * that jobs from connections without a trusted certificate aren't journaled at all, and that jobs not resumed in time
+ * are dropped along with their pages, whether the journal is running or reloaded.
+ */
+public class PrintJournalTests {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    public static void main(String ... args) throws Exception {
+        System.setProperty("print.host.idle", "0"); // the stand-in printer counts a connection per page
+        Path dir = Files.createTempDirectory("qz-journal");
+        String owner = "client-a";
+
+        try(ServerSocket printer = new ServerSocket(0)) {
+            JSONObject params = new JSONObject()
+                    .put("printer", new JSONObject().put("host", "127.0.0.1").put("port", printer.getLocalPort()))
+                    .put("options", new JSONObject().put("copies", 2))
+                    .put("data", new JSONArray());
+
+            PrintJournal journal = new PrintJournal(dir, DAY);
+            PrintJob job = new PrintJob("1", 1, null, owner, params, null);
+            PrintJournal.Entry entry = journal.accept(job, Arrays.asList(page("one"), page("two"), page("three")), 2);
+            entry.sent(0, 0);
+            entry.sent(0, 1);
+            entry.release();
+            entry.awaitPages();
+
+            // a job printed before its pages were all written is never accepted
+            CountDownLatch slow = new CountDownLatch(1);
+            PrintJournal.Entry finished = journal.accept(new PrintJob("2", 2, null, owner, params, null), () -> {
+                try { slow.await(); } catch(InterruptedException ignore) {}
+                return Arrays.asList(page("fast")).iterator();
+            }, 1);
+            finished.sent(0, 0);
+            finished.finish();
+            slow.countDown();
+            finished.awaitPages();
+            check(!Files.exists(dir.resolve(finished.getId() + ".pages")), "finished job's pages shouldn't be kept");
+            check(journal.toJSON(owner).length() == 1, "finished job shouldn't be listed");
+
+            // anonymous sites share one identity, so their jobs aren't journaled for each other to find
+            SocketConnection anonymous = new SocketConnection(Certificate.UNKNOWN, null);
+            check(journal.accept(new PrintJob("3", 3, null, anonymous, params, null), Arrays.asList(page("anonymous")), 1) == null,
+                  "jobs without a trusted certificate shouldn't be journaled");
+            check(journal.toJSON(anonymous).length() == 0, "connections without a trusted certificate shouldn't list jobs");
+
+            // a record torn by a crash part way through writing it
+            Files.write(dir.resolve("journal.log"), "0badc0de {\"op\":\"sent\",\"id\"".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+            PrintJournal reloaded = new PrintJournal(dir, DAY);
+            JSONArray unfinished = reloaded.toJSON(owner);
+            check(unfinished.length() == 1, "interrupted job should be listed");
+            check(unfinished.getJSONObject(0).getInt("sent") == 2, "sent pages should be reloaded");
+            check(reloaded.toJSON("client-b").length() == 0, "other clients shouldn't see the job");
+            check(reloaded.claim(entry.getId(), "client-b") == null, "other clients shouldn't resume the job");
+
+            PrintJournal.Entry resumed = reloaded.claim(entry.getId(), owner);
+            check(resumed != null, "job should be claimed for resuming");
+            check(reloaded.claim(entry.getId(), owner) == null, "job shouldn't be resumed twice at once");
+
+            CompletableFuture<String> received = receive(printer, 4).thenApply(pages -> String.join("", pages));
+            PrintJob resumedJob = PrintQueue.resume(null, owner, resumed);
+            resumedJob.await();
+            check(resumedJob.getState() == PrintJob.State.COMPLETE, "resumed job should complete: " + resumedJob.getError());
+            check(received.get(5, TimeUnit.SECONDS).equals("threeonetwothree"), "only unsent pages should be sent");
+            check(reloaded.toJSON(owner).length() == 0, "finished job shouldn't be listed");
+
+            reloaded.compact();
+            check(new String(Files.readAllBytes(dir.resolve("journal.log")), StandardCharsets.UTF_8).isEmpty(), "compacted log should be empty");
+            check(!Files.exists(dir.resolve(entry.getId() + ".pages")), "finished job's pages should be deleted");
+            check(new PrintJournal(dir, DAY).toJSON(owner).length() == 0, "finished job shouldn't come back after a restart");
+
+            Path expiring = Files.createTempDirectory("qz-journal-expire");
+            PrintJournal running = new PrintJournal(expiring, 200);
+            PrintJournal.Entry stale = running.accept(new PrintJob("4", 4, null, owner, params, null), Arrays.asList(page("stale")), 1);
+            stale.release();
+            stale.awaitPages();
+            PrintJournal.Entry printing = running.accept(new PrintJob("5", 5, null, owner, params, null), Arrays.asList(page("printing")), 1);
+            printing.awaitPages();
+            Thread.sleep(300);
+
+            running.expire();
+            check(running.toJSON(owner).length() == 1, "only the job being printed should be left: " + running.toJSON(owner));
+            check(!Files.exists(expiring.resolve(stale.getId() + ".pages")), "expired job's pages should be deleted");
+            PrintJournal restarted = new PrintJournal(expiring, DAY);
+            check(restarted.toJSON(owner).length() == 1, "expired job shouldn't come back after a restart");
+            restarted.compact(); // waits out the compaction it started on opening, so it can't race the next one
+
+            PrintJournal reloading = new PrintJournal(expiring, 200);
+            check(reloading.toJSON(owner).length() == 0, "job left unfinished too long shouldn't be loaded");
+            reloading.compact();
+            check(!Files.exists(expiring.resolve(printing.getId() + ".pages")), "pages of a job expired on load should be deleted");
+        }
+
+        System.out.println("Print journal tests passed");
+    }
+
+    private static ByteArrayBuilder page(String data) {
+        return new ByteArrayBuilder(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
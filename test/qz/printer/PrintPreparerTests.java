@@ -0,0 +1,87 @@
+package qz.printer;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static qz.utils.TestUtilities.check;
+import static qz.utils.TestUtilities.receive;
+
+/**
+ * Prepares raw prints for a local stand-in printer, checking that committed prints are sent as prepared, that
+ * discarded and expired prints can no longer be committed, that each connection can only hold so many while they're
+ * charged to admission, and that failures surface on commit.
+ */
+public class PrintPreparerTests {
+
+    public static void main(String ... args) throws Exception {
+        System.setProperty("print.prepare.ttl", "1");
+        System.setProperty("print.prepare.limit", "2");
+        System.setProperty("print.host.idle", "0"); // the stand-in printer reads each job until the connection closes
+        Object owner = new Object();
+
+        try(ServerSocket printer = new ServerSocket(0)) {
+            PreparedPrint print = PrintPreparer.prepare(owner, rawPrint(printer.getLocalPort(), "^XA^FDprepared^FS^XZ"));
+            check(print.getId() != null, "prepared print should have a handle");
+            print.await();
+            check("READY".equals(print.toJSON().getString("state")), "print should be ready once prepared");
+
+            check(PrintPreparer.take(print.getId(), new Object()) == null, "other connections shouldn't see the print");
+            CompletableFuture<String> received = receive(printer);
+            PrintJob job = PrintQueue.submit(null, owner, PrintPreparer.take(print.getId(), owner));
+            job.await();
+            check(job.getState() == PrintJob.State.COMPLETE, "committed print should complete: " + job.getError());
+            check(received.get(5, TimeUnit.SECONDS).equals("^XA^FDprepared^FS^XZ"), "printer should receive the prepared data");
+            check(PrintPreparer.take(print.getId(), owner) == null, "print shouldn't be committed twice");
+
+            PreparedPrint discarded = PrintPreparer.prepare(owner, rawPrint(printer.getLocalPort(), "discard"));
+            check(PrintPreparer.discard(discarded.getId(), owner), "print should be discarded");
+            check(PrintPreparer.take(discarded.getId(), owner) == null, "discarded print shouldn't be committed");
+
+            PreparedPrint expired = PrintPreparer.prepare(owner, rawPrint(printer.getLocalPort(), "expire"));
+            Thread.sleep(1500);
+            check(PrintPreparer.take(expired.getId(), owner) == null, "expired print shouldn't be committed");
+
+            PrintAdmission admission = PrintAdmission.getInstance();
+            PreparedPrint first = PrintPreparer.prepare(owner, rawPrint(printer.getLocalPort(), "first"));
+            PreparedPrint second = PrintPreparer.prepare(owner, rawPrint(printer.getLocalPort(), "second"));
+            check(admission.getInUse() > 0, "held prints should be charged to admission");
+            try {
+                PrintPreparer.prepare(owner, rawPrint(printer.getLocalPort(), "third"));
+                throw new AssertionError("prints beyond the limit shouldn't be prepared");
+            }
+            catch(IllegalStateException expected) {}
+
+            Object other = new Object();
+            PreparedPrint others = PrintPreparer.prepare(other, rawPrint(printer.getLocalPort(), "other"));
+            check(others != null, "other connections should have a limit of their own");
+
+            first.await();
+            second.await();
+            others.await();
+            PrintPreparer.release(owner);
+            PrintPreparer.release(other);
+            check(admission.getInUse() == 0, "released prints should no longer be charged");
+        }
+
+        JSONObject broken = rawPrint(9100, "unused");
+        broken.getJSONArray("data").put(0, new JSONObject().put("type", "raw").put("format", "image").put("flavor", "base64").put("data", "bm90IGFuIGltYWdl"));
+        PreparedPrint failing = PrintPreparer.prepare(owner, broken);
+        PrintJob failed = PrintQueue.submit(null, owner, PrintPreparer.take(failing.getId(), owner));
+        failed.await();
+        check(failed.getState() == PrintJob.State.FAILED, "failed preparation should fail the job");
+        System.out.println("Failed as expected: " + failed.getError());
+
+        System.out.println("Print preparer tests passed");
+    }
+
+    private static JSONObject rawPrint(int port, String data) throws JSONException {
+        return new JSONObject()
+                .put("printer", new JSONObject().put("host", "127.0.0.1").put("port", port))
+                .put("data", new JSONArray().put(data));
+    }
+}
@@ -0,0 +1,79 @@
+package qz.printer;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static qz.utils.TestUtilities.check;
+import static qz.utils.TestUtilities.receive;
+
+/**
+ * Prints one raw call to two local stand-in printers, a file and a printer which can't be resolved, checking the data
+ * is prepared and charged to admission once, and that each destination reports its own result.
+ */
+public class PrintQueueTests {
+
+    public static void main(String ... args) throws Exception {
+        System.setProperty("security.print.tofile", "true");
+        System.setProperty("print.host.idle", "0"); // the stand-in printers read each job until the connection closes
+        Object owner = new Object();
+        Path archive = Files.createTempFile("qz-fanout", ".txt");
+
+        try(ServerSocket first = new ServerSocket(0); ServerSocket second = new ServerSocket(0)) {
+            JSONObject params = new JSONObject()
+                    .put("printer", new JSONArray()
+                            .put(new JSONObject().put("host", "127.0.0.1").put("port", first.getLocalPort()))
+                            .put(new JSONObject().put("file", archive.toString()))
+                            .put(new JSONObject().put("file", archive.toString() + ".exe"))
+                            .put(new JSONObject().put("host", "127.0.0.1").put("port", second.getLocalPort())))
+                    .put("data", new JSONArray().put("^XA^FDfan out^FS^XZ"));
+
+            CompletableFuture<String> firstReceived = receive(first);
+            CompletableFuture<String> secondReceived = receive(second);
+
+            long shared = PrintAdmission.estimate(firstPrinter(params));
+            List<PrintJob> jobs = PrintQueue.submitAll(null, owner, params);
+            // the unresolvable printer's job isn't shared, and pays for itself while it runs
+            long charged = PrintAdmission.getInstance().getInUse();
+            check(charged <= shared + jobs.get(2).getCost(), "shared data should be charged to admission once, not per printer: " + charged);
+            check(jobs.size() == 4, "each printer should get a job");
+            check(jobs.get(0).getPrepared() != null && jobs.get(0).getPrepared() == jobs.get(1).getPrepared()
+                          && jobs.get(0).getPrepared() == jobs.get(3).getPrepared(), "data should be prepared once for every printer");
+
+            for(PrintJob job : jobs) {
+                job.await();
+            }
+
+            // jobs release what they were admitted with just after reporting they're done
+            for(int i = 0; i < 20 && PrintAdmission.getInstance().getInUse() > 0; i++) {
+                Thread.sleep(50);
+            }
+            check(PrintAdmission.getInstance().getInUse() == 0, "shared data should be released once every printer is done");
+            check(jobs.get(0).getState() == PrintJob.State.COMPLETE, "first printer should complete: " + jobs.get(0).getError());
+            check(jobs.get(1).getState() == PrintJob.State.COMPLETE, "file should complete: " + jobs.get(1).getError());
+            check(jobs.get(2).getState() == PrintJob.State.FAILED, "unresolvable printer should fail on its own");
+            check(jobs.get(3).getState() == PrintJob.State.COMPLETE, "second printer should complete: " + jobs.get(3).getError());
+            System.out.println("Failed as expected: " + jobs.get(2).getError());
+
+            check(firstReceived.get(5, TimeUnit.SECONDS).equals("^XA^FDfan out^FS^XZ"), "first printer should receive the data");
+            check(secondReceived.get(5, TimeUnit.SECONDS).equals("^XA^FDfan out^FS^XZ"), "second printer should receive the data");
+            check(new String(Files.readAllBytes(archive), StandardCharsets.UTF_8).equals("^XA^FDfan out^FS^XZ"), "file should receive the data");
+        }
+        finally {
+            Files.deleteIfExists(archive);
+        }
+
+        System.out.println("Print queue tests passed");
+    }
+
+    private static JSONObject firstPrinter(JSONObject params) throws Exception {
+        return new JSONObject(params.toString()).put("printer", params.getJSONArray("printer").getJSONObject(0));
+    }
+}
@@ -0,0 +1,190 @@
+package qz.printer.action;
+
+import qz.common.ByteArrayBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Prints to a local stand-in printer, checking jobs share one connection, that a connection the printer drops is
+ * replaced without losing the next job, that jobs sent at once each get a connection, that idle connections are
+ * closed once kept long enough, that a printer which stops reading fails the write once timed out, and that a printer
+ * which reads slowly isn't mistaken for one which stopped.
+ */
+public class HostConnectionsTests {
+
+    public static void main(String ... args) throws Exception {
+        System.setProperty("print.host.idle", "1");
+        System.setProperty("print.host.timeout", "5");
+
+        HostConnections connections = new HostConnections();
+        try(StandInPrinter printer = new StandInPrinter()) {
+            for(int i = 0; i < 5; i++) {
+                connections.write("127.0.0.1", printer.getPort(), label(i));
+            }
+            check(printer.await(1, "label 0label 1label 2label 3label 4"), "jobs should share one connection: " + printer.received);
+            check(connections.getIdleCount() == 1, "connection should be kept for the next job");
+
+            // printer times the connection out on its end
+            printer.dropAll();
+            Thread.sleep(100);
+            connections.write("127.0.0.1", printer.getPort(), label(5));
+            check(printer.await(2, "label 5"), "dropped connection should be replaced: " + printer.received);
+
+            // sent at once, so neither can wait for the other's connection
+            ExecutorService senders = Executors.newFixedThreadPool(2);
+            CyclicBarrier together = new CyclicBarrier(2);
+            List<Future<Object>> sent = senders.invokeAll(Arrays.asList(
+                    () -> { together.await(); connections.write("127.0.0.1", printer.getPort(), label(6)); return null; },
+                    () -> { together.await(); connections.write("127.0.0.1", printer.getPort(), label(7)); return null; }));
+            for(Future<Object> future : sent) { future.get(5, TimeUnit.SECONDS); }
+            senders.shutdown();
+            check(connections.getIdleCount() <= 2, "no more connections should be kept than were needed at once");
+
+            Thread.sleep(1500);
+            check(connections.getIdleCount() == 0, "idle connections should be closed");
+            check(printer.awaitClosed(), "printer should see idle connections closed");
+        }
+
+        System.setProperty("print.host.idle", "0");
+        try(StandInPrinter printer = new StandInPrinter()) {
+            connections.write("127.0.0.1", printer.getPort(), label(8));
+            check(connections.getIdleCount() == 0, "connection shouldn't be kept when disabled");
+            check(printer.awaitClosed(), "printer should see the job's connection closed");
+        }
+
+        // a printer which stops reading, more than the socket buffers can hold
+        System.setProperty("print.host.timeout", "1");
+        try(ServerSocket stuck = new ServerSocket(0)) {
+            long started = System.currentTimeMillis();
+            try {
+                connections.write("127.0.0.1", stuck.getLocalPort(), new ByteArrayBuilder(new byte[64 * 1024 * 1024]));
+                throw new AssertionError("write to a printer which stopped reading should fail");
+            }
+            catch(SocketTimeoutException expected) {
+                check(System.currentTimeMillis() - started < 5000, "stalled write should fail once timed out");
+            }
+        }
+
+        // a printer which keeps reading, but takes longer than the timeout to read each large chunk
+        try(ServerSocket slow = new ServerSocket()) {
+            slow.setReceiveBufferSize(64 * 1024);
+            slow.bind(new InetSocketAddress("127.0.0.1", 0));
+            byte[] data = new byte[8 * 1024 * 1024];
+            CompletableFuture<Long> received = CompletableFuture.supplyAsync(() -> {
+                try(Socket socket = slow.accept(); InputStream in = socket.getInputStream()) {
+                    long total = 0;
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while((read = in.read(buffer)) != -1) {
+                        total += read;
+                        Thread.sleep(30);
+                    }
+                    return total;
+                }
+                catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            connections.write("127.0.0.1", slow.getLocalPort(), new ByteArrayBuilder(data));
+            check(received.get(30, TimeUnit.SECONDS) == data.length, "slow printer should receive all of the data");
+        }
+
+        System.out.println("Host connection tests passed");
+    }
+
+    private static ByteArrayBuilder label(int i) {
+        return new ByteArrayBuilder(("label " + i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Accepts any number of connections, collecting what's written to each
+     */
+    private static class StandInPrinter implements AutoCloseable {
+        private final ServerSocket server = new ServerSocket(0);
+        private final List<Socket> open = new CopyOnWriteArrayList<>();
+        private final List<StringBuffer> received = new CopyOnWriteArrayList<>();
+
+        StandInPrinter() throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while(true) {
+                        Socket socket = server.accept();
+                        StringBuffer data = new StringBuffer();
+                        open.add(socket);
+                        received.add(data);
+                        Thread reader = new Thread(() -> read(socket, data));
+                        reader.setDaemon(true);
+                        reader.start();
+                    }
+                }
+                catch(IOException ignore) {
+                    // closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void read(Socket socket, StringBuffer data) {
+            try(InputStream in = socket.getInputStream()) {
+                byte[] buffer = new byte[1024];
+                int read;
+                while((read = in.read(buffer)) != -1) {
+                    data.append(new String(buffer, 0, read, StandardCharsets.US_ASCII));
+                }
+            }
+            catch(IOException ignore) {
+                // dropped
+            }
+            finally {
+                open.remove(socket);
+            }
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        /**
+         * @return If {@code connections} have been accepted, the last of which received {@code expected}
+         */
+        boolean await(int connections, String expected) throws InterruptedException {
+            for(int i = 0; i < 50; i++) {
+                if (received.size() == connections && received.get(connections - 1).toString().equals(expected)) { return true; }
+                Thread.sleep(20);
+            }
+            return false;
+        }
+
+        boolean awaitClosed() throws InterruptedException {
+            for(int i = 0; i < 50 && !open.isEmpty(); i++) {
+                Thread.sleep(20);
+            }
+            return open.isEmpty();
+        }
+
+        void dropAll() throws IOException {
+            for(Socket socket : open) {
+                socket.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            dropAll();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package qz.printer.action;
+
+import javax.print.*;
+import javax.print.attribute.HashPrintRequestAttributeSet;
+import javax.print.attribute.PrintJobAttributeSet;
+import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.event.PrintJobAttributeListener;
+import javax.print.event.PrintJobEvent;
+import javax.print.event.PrintJobListener;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Sends jobs to a stand-in print service that reports back late, with a failure, never, or only after taking longer than
+ * the timeout to send, checking each print completes or fails accordingly, and that only a limited number are left in flight.
+ */
+public class PrintCompletionTests {
+
+    public static void main(String ... args) throws Exception {
+        System.setProperty("print.spool.timeout", "1");
+        System.setProperty("print.spool.inflight", "2");
+        PrintRequestAttributeSet attributes = new HashPrintRequestAttributeSet();
+
+        try {
+            PrintCompletion.await(PrintCompletion.submit(new StandInJob(PrintJobEvent.JOB_FAILED, 50), null, attributes));
+            throw new AssertionError("failed jobs should fail the print");
+        }
+        catch(PrintException expected) {
+            System.out.println("Failed as expected: " + expected.getMessage());
+        }
+
+        try {
+            PrintCompletion.await(PrintCompletion.submit(new StandInJob(0, 0), null, attributes));
+            throw new AssertionError("jobs never reported on should time out");
+        }
+        catch(PrintException expected) {
+            System.out.println("Timed out as expected: " + expected.getMessage());
+        }
+
+        long start = System.currentTimeMillis();
+        PrintCompletion.await(PrintCompletion.submit(new StandInJob(PrintJobEvent.JOB_COMPLETE, 200), null, attributes));
+        check(System.currentTimeMillis() - start < 800, "completion shouldn't wait longer than the printer takes");
+
+        // services which only return once the job is sent shouldn't have the time spent sending count against them
+        PrintCompletion.await(PrintCompletion.submit(new StandInJob(PrintJobEvent.JOB_COMPLETE, 200, 1500), null, attributes));
+
+        PrintCompletion spooled = new PrintCompletion();
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        spooled.add(first);
+        spooled.add(CompletableFuture.completedFuture(null));
+        CompletableFuture<Void> third = CompletableFuture.runAsync(() -> {
+            try { spooled.add(CompletableFuture.completedFuture(null)); } catch(PrintException e) { throw new RuntimeException(e); }
+        });
+        Thread.sleep(200);
+        check(!third.isDone(), "a third job shouldn't be sent while two are in flight");
+        first.complete(null);
+        third.get(5, TimeUnit.SECONDS);
+        spooled.awaitAll();
+
+        System.out.println("Print completion tests passed");
+    }
+
+    /**
+     * Takes {@code sending} milliseconds to return from {@code print}, then reports {@code reason} on a thread of its own
+     * after {@code delay} milliseconds, or nothing if {@code reason} is 0
+     */
+    private static class StandInJob implements DocPrintJob {
+        private final int reason;
+        private final long delay;
+        private final long sending;
+        private PrintJobListener listener;
+
+        StandInJob(int reason, long delay) {
+            this(reason, delay, 0);
+        }
+
+        StandInJob(int reason, long delay, long sending) {
+            this.reason = reason;
+            this.delay = delay;
+            this.sending = sending;
+        }
+
+        @Override
+        public void print(Doc doc, PrintRequestAttributeSet attributes) {
+            try { Thread.sleep(sending); } catch(InterruptedException ignore) {}
+            if (reason == 0) { return; }
+
+            new Thread(() -> {
+                try { Thread.sleep(delay); } catch(InterruptedException ignore) {}
+                PrintJobEvent event = new PrintJobEvent(this, reason);
+                if (reason == PrintJobEvent.JOB_FAILED) {
+                    listener.printJobFailed(event);
+                } else {
+                    listener.printJobCompleted(event);
+                }
+            }).start();
+        }
+
+        @Override
+        public void addPrintJobListener(PrintJobListener listener) { this.listener = listener; }
+
+        @Override
+        public PrintService getPrintService() { return null; }
+
+        @Override
+        public PrintJobAttributeSet getAttributes() { return null; }
+
+        @Override
+        public void removePrintJobListener(PrintJobListener listener) {}
+
+        @Override
+        public void addPrintJobAttributeListener(PrintJobAttributeListener listener, PrintJobAttributeSet attributes) {}
+
+        @Override
+        public void removePrintJobAttributeListener(PrintJobAttributeListener listener) {}
+    }
+}
@@ -0,0 +1,91 @@
+package qz.printer.action;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import qz.printer.PrintOptions;
+import qz.printer.PrintOutput;
+import qz.utils.PrintingUtilities;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Converts raw data mixing many images with plain commands, checking images converted in parallel are put back in the
+ * same order as when converted one at a time, and that a bad image still reports which one it was.
+ */
+public class PrintRawTests {
+
+    public static void main(String ... args) throws Exception {
+        System.setProperty("print.cache.memory", "0");
+        System.setProperty("print.convert.threads", "4");
+        System.setProperty("security.print.tofile", "true");
+
+        JSONArray data = new JSONArray();
+        for(int i = 0; i < 12; i++) {
+            data.put("^XA^FDitem " + i + "^FS");
+            data.put(new JSONObject()
+                             .put("type", "raw")
+                             .put("format", "image")
+                             .put("flavor", "base64")
+                             .put("data", pngBase64(8 + i * 8))
+                             .put("options", new JSONObject().put("language", "ZPL")));
+        }
+
+        byte[] parallel = convert(data);
+
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        for(int i = 0; i < data.length(); i++) {
+            sequential.write(convert(new JSONArray().put(data.get(i))));
+        }
+        check(Arrays.equals(parallel, sequential.toByteArray()), "parallel conversion should match converting one at a time");
+
+        data.put(5, new JSONObject().put("type", "raw").put("format", "image").put("flavor", "base64").put("data", "bm90IGFuIGltYWdl"));
+        try {
+            convert(data);
+            throw new AssertionError("bad image should fail the conversion");
+        }
+        catch(UnsupportedOperationException expected) {
+            check(expected.getMessage().contains("bm90IGFuIGltYWdl"), "failure should name the bad element");
+        }
+
+        System.out.println("Print raw tests passed");
+    }
+
+    private static byte[] convert(JSONArray data) throws Exception {
+        Path file = Files.createTempFile("qz-raw", ".txt");
+        try {
+            PrintOutput output = new PrintOutput(new JSONObject().put("file", file.toString()));
+            PrintOptions options = new PrintOptions(new JSONObject(), output, PrintingUtilities.Format.COMMAND);
+
+            PrintRaw raw = new PrintRaw();
+            raw.parseData(data, options);
+            raw.print(output, options);
+            return Files.readAllBytes(file);
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static String pngBase64(int size) throws Exception {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, size, size);
+        g.setColor(Color.BLACK);
+        g.fillOval(0, 0, size, size / 2);
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+}
@@ -0,0 +1,117 @@
+package qz.printer.action;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import qz.common.ByteArrayBuilder;
+import qz.printer.PrintOptions;
+import qz.printer.PrintOutput;
+import qz.utils.PrintingUtilities;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static qz.utils.TestUtilities.check;
+import static qz.utils.TestUtilities.receive;
+
+/**
+ * Spools pages through a slow consumer, checking only a few are readied ahead of the one being sent, that copies and
+ * already sent pages come out in order, and that failures, errors and closing stop the spooler.  Then prints a long
+ * raw run split on its spool end to a local stand-in printer, checking each page arrives in order for every copy.
+ */
+public class RawSpoolerTests {
+
+    public static void main(String ... args) throws Exception {
+        System.setProperty("print.spool.ahead", "2");
+        System.setProperty("print.journal", "false");
+        System.setProperty("print.host.idle", "0"); // the stand-in printer counts a connection per page
+
+        List<ByteArrayBuilder> pages = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            pages.add(new ByteArrayBuilder(("page " + i).getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        AtomicInteger built = new AtomicInteger();
+        try(RawSpooler<String> spooler = new RawSpooler<>(pages, 2, (copy, page) -> copy == 0 && page % 5 == 0, (page, data) -> {
+            built.incrementAndGet();
+            return new String(data.getByteArray(), StandardCharsets.US_ASCII);
+        })) {
+            int taken = 0;
+            RawSpooler.Page<String> next;
+            while((next = spooler.next()) != null) {
+                taken++;
+                check(next.data.equals("page " + next.page), "page should carry its own data");
+                check(!(next.copy == 0 && next.page % 5 == 0), "sent pages should be skipped");
+                Thread.sleep(5);
+                check(built.get() <= taken + 3, "only a few pages should be readied ahead: " + built.get() + " built, " + taken + " taken");
+            }
+            check(taken == 36, "every unsent page of every copy should be spooled");
+        }
+
+        try(RawSpooler<String> spooler = new RawSpooler<>(pages, 1, null, (page, data) -> {
+            if (page == 3) { throw new IOException("page 3 is bad"); }
+            return "";
+        })) {
+            int taken = 0;
+            try {
+                while(spooler.next() != null) { taken++; }
+                throw new AssertionError("build failure should fail the spool");
+            }
+            catch(IOException expected) {
+                check(taken == 3 && expected.getMessage().equals("page 3 is bad"), "failure should follow the pages built before it");
+            }
+        }
+
+        try(RawSpooler<String> spooler = new RawSpooler<>(pages, 1, null, (page, data) -> {
+            if (page == 1) { throw new StackOverflowError("page 1 is too deep"); }
+            return "";
+        })) {
+            check(spooler.next() != null, "pages before an error should be spooled");
+            try {
+                spooler.next();
+                throw new AssertionError("build error should fail the spool");
+            }
+            catch(IOException expected) {
+                check(expected.getCause() instanceof StackOverflowError, "error should be reported rather than leave the spool waiting");
+            }
+        }
+
+        AtomicInteger afterClose = new AtomicInteger();
+        RawSpooler<String> closing = new RawSpooler<>(pages, 100, null, (page, data) -> { afterClose.incrementAndGet(); return ""; });
+        closing.next();
+        closing.close();
+        int stopped = afterClose.get();
+        Thread.sleep(100);
+        check(afterClose.get() == stopped && stopped < 10, "nothing should be built once closed");
+        check(closing.next() == null, "closed spooler should have no more pages");
+
+        // a long run split on its spool end, two copies
+        try(ServerSocket server = new ServerSocket(0)) {
+            StringBuilder labels = new StringBuilder();
+            for(int i = 0; i < 200; i++) {
+                labels.append("^XA^FDlabel ").append(i).append("^FS^XZ");
+            }
+            CompletableFuture<List<String>> received = receive(server, 400);
+
+            PrintOutput output = new PrintOutput(new JSONObject().put("host", "127.0.0.1").put("port", server.getLocalPort()));
+            PrintOptions options = new PrintOptions(new JSONObject().put("copies", 2).put("spool", new JSONObject().put("size", 1).put("end", "^XZ")),
+                                                    output, PrintingUtilities.Format.COMMAND);
+            PrintRaw raw = new PrintRaw();
+            raw.parseData(new JSONArray().put(labels.toString()), options);
+            raw.print(output, options);
+
+            List<String> sent = received.get(30, TimeUnit.SECONDS);
+            for(int i = 0; i < 400; i++) {
+                check(sent.get(i).equals("^XA^FDlabel " + (i % 200) + "^FS^XZ"), "page " + i + " arrived out of order: " + sent.get(i));
+            }
+        }
+
+        System.out.println("Raw spooler tests passed");
+    }
+}
@@ -0,0 +1,100 @@
+package qz.printer.action;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import qz.printer.PrintOptions;
+import qz.printer.PrintOutput;
+import qz.utils.PrintingUtilities;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Checks cache keys follow content and options, that memory and disk stay within their limits, and that a raw image
+ * printed twice is only converted once.
+ */
+public class RenderCacheTests {
+
+    public static void main(String ... args) throws Exception {
+        byte[] logo = {1, 2, 3, 4};
+        String key = new RenderCache.Key("raw-IMAGE").add(logo).add(new JSONObject("{\"language\":\"ZPL\",\"x\":1}")).build();
+        String reordered = new RenderCache.Key("raw-IMAGE").add(logo).add(new JSONObject("{\"x\":1,\"language\":\"ZPL\"}")).build();
+        String otherLanguage = new RenderCache.Key("raw-IMAGE").add(logo).add(new JSONObject("{\"language\":\"EPL\",\"x\":1}")).build();
+        String otherData = new RenderCache.Key("raw-IMAGE").add(new byte[] {1, 2, 3, 5}).add(new JSONObject("{\"language\":\"ZPL\",\"x\":1}")).build();
+        check(key.equals(reordered), "option order shouldn't change the key");
+        check(!key.equals(otherLanguage), "options should change the key");
+        check(!key.equals(otherData), "content should change the key");
+
+        // memory only, room for two 40 byte entries
+        RenderCache memory = new RenderCache(100, null, 0);
+        memory.putCommand("a", new byte[40]);
+        memory.putCommand("b", new byte[40]);
+        check(memory.getCommand("a") != null, "a should be cached");
+        memory.putCommand("c", new byte[40]);
+        check(memory.getCommand("b") == null, "least recently used entry should be evicted");
+        check(memory.getCommand("a") != null && memory.getCommand("c") != null, "recently used entries should stay");
+        memory.putCommand("huge", new byte[200]);
+        check(memory.getCommand("huge") == null, "entries over the limit shouldn't be kept");
+
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+        memory.putImage("image", image);
+        check(memory.getImage("image") == image, "decoded images should be cached");
+        check(memory.getCommand("image") == null, "images and commands shouldn't mix");
+
+        JSONObject stats = memory.toJSON();
+        System.out.println("Memory cache: " + stats);
+        check(stats.getLong("memoryUsed") <= 100, "memory should stay within its limit");
+        check(stats.getLong("hits") > 0 && stats.getLong("misses") > 0 && stats.getLong("evictions") > 0, "metrics should be counted");
+
+        // disk entries outlive the instance, and are trimmed oldest first
+        Path dir = Files.createTempDirectory("render-cache");
+        RenderCache disk = new RenderCache(0, dir, 100);
+        disk.putCommand("first", new byte[] {7, 7, 7});
+        check(Arrays.equals(new RenderCache(0, dir, 100).getCommand("first"), new byte[] {7, 7, 7}), "commands should survive a restart");
+        // file times may be too coarse to order entries written within the same second
+        for(File file : dir.toFile().listFiles()) {
+            check(file.setLastModified(System.currentTimeMillis() - 60000), "unable to age " + file);
+        }
+        for(int i = 0; i < 5; i++) {
+            disk.putCommand("fill" + i, new byte[30]);
+        }
+        check(disk.toJSON().getLong("diskUsed") <= 100, "disk should stay within its limit");
+        check(disk.getCommand("first") == null, "oldest disk entries should be trimmed");
+
+        // the second print of the same image reuses the first conversion
+        PrintingUtilities.Format format = PrintingUtilities.Format.COMMAND;
+        PrintOutput output = new PrintOutput(new JSONObject().put("host", "localhost"));
+        PrintOptions options = new PrintOptions(new JSONObject(), output, format);
+        JSONArray data = new JSONArray().put(new JSONObject()
+                                                     .put("type", "raw")
+                                                     .put("format", "image")
+                                                     .put("flavor", "base64")
+                                                     .put("data", pngBase64())
+                                                     .put("options", new JSONObject().put("language", "ZPL")));
+
+        long before = RenderCache.getInstance().toJSON().getLong("hits");
+        new PrintRaw().parseData(data, options);
+        new PrintRaw().parseData(data, options);
+        JSONObject shared = RenderCache.getInstance().toJSON();
+        System.out.println("Shared cache: " + shared);
+        check(shared.getLong("hits") == before + 1, "second conversion should be a cache hit");
+
+        System.out.println("Render cache tests passed");
+    }
+
+    private static String pngBase64() throws Exception {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(4, 4, 0xFFFFFF);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+}
@@ -0,0 +1,94 @@
+package qz.printer.action.raw;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import qz.common.ByteArrayBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Checks templates merge rows given as arrays or objects, keep binary template bytes intact, can only be used by the
+ * connection which registered them, and reject unclosed placeholders and templates fetched from a location.
+ */
+public class RawTemplateTests {
+
+    public static void main(String ... args) throws Exception {
+        Object owner = new Object();
+
+        RawTemplate label = RawTemplate.register(owner, new JSONObject()
+                .put("name", "label")
+                .put("data", "^XA^FO50,50^FD{{name}}^FS^FO50,100^FD{{ city }}^FS^FO50,150^FD{{name}}^FS^XZ"));
+        check(label.getFields().equals(Arrays.asList("name", "city")), "fields should be listed in order of first use");
+        check(!exists(label.getToken(), new Object()), "another connection shouldn't be able to use the template");
+
+        JSONArray rows = new JSONArray()
+                .put(new JSONArray().put("Ada").put("London"))
+                .put(new JSONObject().put("city", "Z\u00FCrich").put("name", "Bob"))
+                .put(new JSONArray().put("Cy"));
+        ByteArrayBuilder out = new ByteArrayBuilder();
+        RawTemplate.get(label.getToken(), owner).merge(rows, text -> text.getBytes("UTF-8"), out);
+        String merged = new String(out.getByteArray(), StandardCharsets.UTF_8);
+        System.out.println(merged);
+        check(merged.equals("^XA^FO50,50^FDAda^FS^FO50,100^FDLondon^FS^FO50,150^FDAda^FS^XZ"
+                                    + "^XA^FO50,50^FDBob^FS^FO50,100^FDZ\u00FCrich^FS^FO50,150^FDBob^FS^XZ"
+                                    + "^XA^FO50,50^FDCy^FS^FO50,100^FD^FS^FO50,150^FDCy^FS^XZ"), "rows should merge in order");
+
+        // print data references templates by token, claimed for the connection printing it
+        JSONArray printData = new JSONArray().put(new JSONObject().put("type", "raw").put("format", "template")
+                                                          .put("options", new JSONObject().put("template", label.getToken())));
+        try {
+            RawTemplate.claim(printData, new Object());
+            throw new AssertionError("another connection shouldn't be able to print the template");
+        }
+        catch(IOException expected) {}
+        RawTemplate.claim(printData, owner);
+        check(printData.getJSONObject(0).getJSONObject("options").get("template") == label, "token should be swapped for the template");
+
+        // binary templates keep their bytes, only values are encoded
+        byte[] escpos = {0x1B, 0x40, (byte)0xFE, '<', 'n', '>', 0x0A};
+        RawTemplate receipt = RawTemplate.register(owner, new JSONObject()
+                .put("flavor", "base64")
+                .put("open", "<").put("close", ">")
+                .put("data", Base64.getEncoder().encodeToString(escpos)));
+        ByteArrayBuilder binary = new ByteArrayBuilder();
+        receipt.merge(new JSONArray().put(new JSONArray().put("\u00E9")), text -> text.getBytes("ISO-8859-1"), binary);
+        check(Arrays.equals(binary.getByteArray(), new byte[] {0x1B, 0x40, (byte)0xFE, (byte)0xE9, 0x0A}), "binary template bytes should be kept");
+
+        // same name replaces the earlier template
+        RawTemplate replaced = RawTemplate.register(owner, new JSONObject().put("name", "label").put("data", "{{sku}}"));
+        check(replaced.getFields().equals(Arrays.asList("sku")), "replacement should be compiled");
+        check(!exists(label.getToken(), owner), "replaced template should be gone");
+
+        try {
+            RawTemplate.register(owner, new JSONObject().put("data", "^FD{{name^FS"));
+            throw new AssertionError("unclosed placeholder should be rejected");
+        }
+        catch(IllegalArgumentException expected) {}
+
+        try {
+            RawTemplate.register(owner, new JSONObject().put("flavor", "file").put("data", "http://127.0.0.1/").put("open", "<").put("close", ">"));
+            throw new AssertionError("templates fetched from a location should be rejected");
+        }
+        catch(IllegalArgumentException expected) {}
+
+        RawTemplate.release(owner);
+        check(!exists(replaced.getToken(), owner) && !exists(receipt.getToken(), owner), "templates should be released with their connection");
+
+        System.out.println("Raw template tests passed");
+    }
+
+    private static boolean exists(String token, Object owner) {
+        try {
+            RawTemplate.get(token, owner);
+            return true;
+        }
+        catch(Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package qz.printer.status;
+
+import qz.common.ByteArrayBuilder;
+import qz.printer.info.NativePrinter;
+
+import java.nio.charset.StandardCharsets;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Streams a few labels as one job to the CUPS queue named by {@code -Dcups.printer}, such as one added for a local
+ * {@code ippeveprinter}, checking each is sent as a document of the same job, that a finished job can't be added to,
+ * and that a job closed before its last label is cancelled rather than left open.  Skipped without a queue to print to.
+ */
+public class CupsRawJobTests {
+
+    public static void main(String ... args) throws Exception {
+        String queue = System.getProperty("cups.printer");
+        if (queue == null || queue.isEmpty() || !CupsRawJob.isAvailable()) {
+            System.out.println("CUPS raw job tests skipped, set -Dcups.printer to a CUPS queue to run them");
+            return;
+        }
+        NativePrinter printer = new NativePrinter(queue);
+
+        int jobId = 0;
+        try(CupsRawJob job = new CupsRawJob(printer, "CupsRawJobTests")) {
+            for(int i = 0; i < 3; i++) {
+                job.send(label(i), i == 2);
+                if (i == 0) { jobId = job.getJobId(); }
+                check(jobId > 0 && job.getJobId() == jobId, "every label should be sent to the same job");
+            }
+
+            try {
+                job.send(label(3), true);
+                throw new AssertionError("finished job shouldn't be added to");
+            }
+            catch(IllegalStateException expected) {}
+        }
+
+        try(CupsRawJob job = new CupsRawJob(printer, "CupsRawJobTests (cancelled)")) {
+            job.send(label(4), false);
+            check(job.getJobId() > jobId, "unfinished job should be a new job");
+        }
+
+        System.out.println("CUPS raw job tests passed");
+    }
+
+    private static ByteArrayBuilder label(int i) {
+        return new ByteArrayBuilder(("^XA^FDlabel " + i + "^FS^XZ").getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,229 @@
+package qz.utils;
+
+import qz.common.ByteArrayBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Compares the original byte searches (a full scan into a {@code LinkedList} for every lookup) against
+ * {@link ByteMatcher}, after first confirming both find the same matches in random data, whether searched whole, in
+ * chunks, or fed a piece at a time.
+ */
+public class ByteMatcherBenchmark {
+
+    private static final int ITERATIONS = 20;
+
+    public static void main(String ... args) throws Exception {
+        Random random = new Random(7);
+
+        // random data over a small alphabet, so patterns match often and partially
+        for(int round = 0; round < 500; round++) {
+            byte[] data = randomBytes(random, random.nextInt(400));
+            byte[] pattern = randomBytes(random, 1 + random.nextInt(4));
+            check(Arrays.equals(legacyIndicesOfMatches(data, pattern), ByteUtilities.indicesOfMatches(data, pattern)), "indices differ");
+
+            int from = random.nextInt(data.length + 1);
+            check(equal(legacyFirstMatchingIndex(data, pattern, from), ByteUtilities.firstMatchingIndex(data, pattern, from)), "first match differs");
+
+            byte[][] patterns = {pattern, randomBytes(random, 1 + random.nextInt(4)), randomBytes(random, 1 + random.nextInt(4))};
+            for(ByteMatcher matcher : new ByteMatcher[] {new ByteMatcher(pattern), new ByteMatcher(patterns)}) {
+                byte[][] used = matcher.getPatternCount() == 1? new byte[][] {pattern}:patterns;
+                List<long[]> expected = naiveMatches(data, used);
+
+                check(sameMatches(expected, wholeMatches(matcher, data)), "whole search differs");
+                check(sameMatches(expected, pieceMatches(matcher, data, random)), "piecewise search differs");
+                check(sameMatches(expected, chunkedMatches(matcher, data, random)), "chunked search differs");
+            }
+        }
+
+        // several delimiters at once, such as a batch mixing ZPL and EPL labels
+        ByteMatcher ends = new ByteMatcher("^XZ".getBytes(StandardCharsets.US_ASCII), "P1\n".getBytes(StandardCharsets.US_ASCII));
+        ByteArrayBuilder batch = new ByteArrayBuilder("^XA^FDone^FS^XZN\nA50,0,0,1,1,1,N,\"two\"\nP1\n^XA^FDthree^FS^XZ".getBytes(StandardCharsets.US_ASCII));
+        List<ByteArrayBuilder> split = ByteUtilities.splitByteArray(batch, ends, 1);
+        check(split.size() == 3, "each label should split");
+        check(new String(split.get(1).getByteArray(), StandardCharsets.US_ASCII).equals("N\nA50,0,0,1,1,1,N,\"two\"\nP1\n"), "EPL label should split on its own end");
+
+        for(int size : new int[] {64 * 1024, 1024 * 1024, 8 * 1024 * 1024}) {
+            byte[] data = createLabels(size);
+            byte[] end = "^XZ".getBytes(StandardCharsets.US_ASCII);
+
+            check(legacySplit(data, end, 1).size() == ByteUtilities.splitByteArray(data, end, 1).size(), "split differs");
+
+            System.out.printf("%,10d bytes: first match legacy %8.3f ms, fast %8.3f ms; split legacy %8.3f ms, fast %8.3f ms%n", size,
+                              time(() -> legacyFirstMatchingIndex(data, end, 0)), time(() -> ByteUtilities.firstMatchingIndex(data, end, 0)),
+                              time(() -> legacySplit(data, end, 1)), time(() -> ByteUtilities.splitByteArray(data, end, 1)));
+        }
+    }
+
+    /**
+     * @return Average milliseconds taken by {@code task}, timed separately from the others so none pays for another's garbage
+     */
+    private static double time(Runnable task) {
+        System.gc();
+        long total = 0;
+        for(int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            total += System.nanoTime() - start;
+        }
+        return total / 1e6 / ITERATIONS;
+    }
+
+    /** Original {@code ByteUtilities.indicesOfMatches} */
+    private static Integer[] legacyIndicesOfMatches(byte[] target, byte[] match) {
+        if (target == null || match == null || target.length == 0
+                || match.length == 0 || match.length > target.length) {
+            return new Integer[0];
+        }
+
+        LinkedList<Integer> indexes = new LinkedList<>();
+
+        outer:
+        for(int i = 0; i < target.length - match.length + 1; i++) {
+            for(int j = 0; j < match.length; j++) {
+                if (target[i + j] != match[j]) {
+                    continue outer;
+                }
+            }
+
+            indexes.add(i);
+        }
+
+        return indexes.toArray(new Integer[indexes.size()]);
+    }
+
+    /** Original {@code ByteUtilities.firstMatchingIndex} */
+    private static Integer legacyFirstMatchingIndex(byte[] target, byte[] match, int fromIndex) {
+        for(Integer idx : legacyIndicesOfMatches(target, match)) {
+            if (idx >= fromIndex) {
+                return idx;
+            }
+        }
+
+        return null;
+    }
+
+    /** Original {@code ByteUtilities.splitByteArray}, copying each split */
+    private static List<byte[]> legacySplit(byte[] src, byte[] pattern, int count) {
+        List<byte[]> splits = new ArrayList<>();
+        Integer[] split = legacyIndicesOfMatches(src, pattern);
+
+        int counted = 0, start = 0, end = 0;
+        for(int index : split) {
+            if (index < end) { continue; }
+            end = index + pattern.length;
+            if (++counted == count) {
+                splits.add(Arrays.copyOfRange(src, start, end));
+                start = end;
+                counted = 0;
+            }
+        }
+        if (counted > 0) {
+            splits.add(Arrays.copyOfRange(src, start, end));
+        }
+
+        return splits;
+    }
+
+    /** Non-overlapping matches in the order they end, the longest first where several end together */
+    private static List<long[]> naiveMatches(byte[] data, byte[][] patterns) {
+        List<long[]> matches = new ArrayList<>();
+        int from = 0;
+        for(int end = 1; end <= data.length; end++) {
+            int best = -1;
+            for(int p = 0; p < patterns.length; p++) {
+                int start = end - patterns[p].length;
+                if (start >= from && Arrays.equals(Arrays.copyOfRange(data, start, end), patterns[p])
+                        && (best < 0 || patterns[p].length > patterns[best].length)) {
+                    best = p;
+                }
+            }
+            if (best >= 0) {
+                matches.add(new long[] {end - patterns[best].length, end});
+                from = end;
+            }
+        }
+
+        return matches;
+    }
+
+    private static List<long[]> wholeMatches(ByteMatcher matcher, byte[] data) {
+        List<long[]> matches = new ArrayList<>();
+        ByteMatcher.Match match;
+        int from = 0;
+        while((match = matcher.find(data, from, data.length)) != null) {
+            matches.add(new long[] {match.getStart(), match.getEnd()});
+            from = (int)match.getEnd();
+        }
+        return matches;
+    }
+
+    private static List<long[]> pieceMatches(ByteMatcher matcher, byte[] data, Random random) {
+        List<long[]> matches = new ArrayList<>();
+        ByteMatcher.Search search = matcher.search();
+        int offset = 0;
+        while(offset < data.length) {
+            int length = Math.min(data.length - offset, random.nextInt(6));
+            ByteMatcher.Match match = search.next(data, offset, length);
+            if (match != null) {
+                matches.add(new long[] {match.getStart(), match.getEnd()});
+            }
+            offset = (int)search.getPosition();
+        }
+        return matches;
+    }
+
+    private static List<long[]> chunkedMatches(ByteMatcher matcher, byte[] data, Random random) {
+        ByteArrayBuilder builder = new ByteArrayBuilder();
+        int offset = 0;
+        while(offset < data.length) {
+            int length = Math.min(data.length - offset, 1 + random.nextInt(5));
+            builder.append(new ByteArrayBuilder(Arrays.copyOfRange(data, offset, offset + length)));
+            offset += length;
+        }
+
+        List<long[]> matches = new ArrayList<>();
+        ByteMatcher.Match match;
+        int from = 0;
+        while((match = builder.find(matcher, from)) != null) {
+            matches.add(new long[] {match.getStart(), match.getEnd()});
+            from = (int)match.getEnd();
+        }
+        return matches;
+    }
+
+    private static boolean sameMatches(List<long[]> expected, List<long[]> actual) {
+        if (expected.size() != actual.size()) { return false; }
+        for(int i = 0; i < expected.size(); i++) {
+            if (!Arrays.equals(expected.get(i), actual.get(i))) { return false; }
+        }
+        return true;
+    }
+
+    private static boolean equal(Integer a, Integer b) {
+        return a == null? b == null:a.equals(b);
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            bytes[i] = (byte)('a' + random.nextInt(3));
+        }
+        return bytes;
+    }
+
+    private static byte[] createLabels(int size) {
+        StringBuilder labels = new StringBuilder(size + 64);
+        for(int i = 0; labels.length() < size; i++) {
+            labels.append("^XA^FO50,50^A0N,40,40^FDLabel ").append(i).append("^FS^FO50,100^BCN,80^FD").append(100000 + i).append("^FS^XZ");
+        }
+        return labels.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
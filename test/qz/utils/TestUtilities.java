@@ -0,0 +1,65 @@
+package qz.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Helpers shared by the tests and benchmarks, which run from their own {@code main} methods.
+ */
+public class TestUtilities {
+
+    private TestUtilities() {}
+
+    /**
+     * Fails the test with {@code message} unless {@code condition} holds
+     */
+    public static void check(boolean condition, String message) {
+        if (!condition) { throw new AssertionError(message); }
+    }
+
+    /**
+     * Stands in for a raw network printer, reading a single connection until it's closed
+     *
+     * @return Everything written to the connection
+     */
+    public static CompletableFuture<String> receive(ServerSocket server) {
+        return receive(server, 1).thenApply(received -> received.get(0));
+    }
+
+    /**
+     * Stands in for a raw network printer, accepting {@code connections} connections one after another and reading
+     * each until it's closed
+     *
+     * @return Everything written to each connection, in the order they were accepted
+     */
+    public static CompletableFuture<List<String>> receive(ServerSocket server, int connections) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<String> received = new ArrayList<>();
+            try {
+                for(int i = 0; i < connections; i++) {
+                    try(Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[1024];
+                        int read;
+                        while((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                        received.add(new String(out.toByteArray(), StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+            return received;
+        });
+    }
+
+}
@@ -0,0 +1,47 @@
+package qz.ws;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import qz.common.SpooledData;
+import qz.utils.PrintingUtilities;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static qz.utils.TestUtilities.check;
+
+public class MessageReaderTests {
+    public static void main(String ... args) throws JSONException, IOException {
+        StringBuilder large = new StringBuilder();
+        for(int i = 0; i < 5000; i++) {
+            large.append("line ").append(i).append(" \"quoted\" \\ \u00e9\u4e2d\ud83d\ude00\n");
+        }
+
+        JSONObject source = new JSONObject()
+                .put("call", "print")
+                .put("uid", "abc123")
+                .put("params", new JSONObject()
+                        .put("data", new JSONArray()
+                                .put(large.toString())
+                                .put(new JSONObject().put("type", "raw").put("data", large.toString()))
+                                .put("small")));
+
+        try(MessageReader reader = new MessageReader(new StringReader(source.toString()), 1024)) {
+            JSONArray data = reader.toJSON().getJSONObject("params").getJSONArray("data");
+
+            check(reader.hasSpooled(), "large values were not spooled");
+            check(data.get(0) instanceof SpooledData && large.toString().equals(data.get(0).toString()), "spooled array element differs");
+            check(data.getJSONObject(1).get("data") instanceof SpooledData && large.toString().equals(data.getJSONObject(1).get("data").toString()), "spooled data object differs");
+            check("small".equals(data.get(2)), "small value was altered");
+            check(reader.getMessage().length() < 1024, "skeleton still contains spooled data");
+            check(PrintingUtilities.describeData(data.getJSONObject(1).get("data")).length() < 100, "spooled data should be described rather than read back");
+        }
+
+        try(MessageReader reader = new MessageReader(new StringReader("ping"), 1024)) {
+            check("ping".equals(reader.getMessage()), "non-json message was altered");
+        }
+
+        System.out.println("All MessageReader tests passed");
+    }
+}
@@ -0,0 +1,148 @@
+package qz.ws;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import qz.utils.PrintingUtilities;
+
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+import static qz.utils.TestUtilities.check;
+
+/**
+ * Sends a print which waits on a stalled stand-in printer, checking a later call from the same connection still runs
+ * while it prints and that the print replies once the printer catches up.  Then fills a connection's lane, checking
+ * the dispatcher counts running, waiting and rejected calls.
+ */
+public class RequestDispatcherTests {
+
+    public static void main(String ... args) throws Exception {
+        System.setProperty("print.host.idle", "0"); // the stand-in printer reads the job until the connection closes
+        System.setProperty("print.journal", "false");
+
+        BlockingQueue<JSONObject> replies = new LinkedBlockingQueue<>();
+        Session session = session(replies);
+        Object owner = new Object();
+        RequestDispatcher dispatcher = new RequestDispatcher(4, 8);
+
+        try(ServerSocket printer = new ServerSocket(0)) {
+            // large enough to fill the socket's buffers, so the print can't finish until the printer reads it
+            char[] data = new char[16 * 1024 * 1024];
+            Arrays.fill(data, 'A');
+            JSONObject params = new JSONObject()
+                    .put("printer", new JSONObject().put("host", "127.0.0.1").put("port", printer.getLocalPort()))
+                    .put("data", new JSONArray().put(new String(data)));
+
+            CountDownLatch stalled = new CountDownLatch(1);
+            CompletableFuture<Long> received = CompletableFuture.supplyAsync(() -> {
+                try(Socket socket = printer.accept(); InputStream in = socket.getInputStream()) {
+                    stalled.await();
+                    long total = 0;
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while((read = in.read(buffer)) != -1) {
+                        total += read;
+                    }
+                    return total;
+                }
+                catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            dispatcher.submit(owner, () -> {
+                try {
+                    PrintingUtilities.processPrintRequest(session, "print", owner, params);
+                }
+                catch(JSONException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            CountDownLatch next = new CountDownLatch(1);
+            check(dispatcher.submit(owner, next::countDown), "second call should be queued");
+            check(next.await(5, TimeUnit.SECONDS), "second call should run while the print is still waiting on the printer");
+            check(replies.isEmpty(), "print shouldn't reply before the printer has read it: " + replies.peek());
+
+            // the lane counts a call as active until just after it returns
+            for(int i = 0; i < 20 && dispatcher.getActive() > 0; i++) {
+                Thread.sleep(50);
+            }
+            JSONObject status = dispatcher.toJSON();
+            check(status.getInt("queued") == 0 && status.getInt("active") == 0, "both calls should have left the lane: " + status);
+            check(status.getLong("rejected") == 0, "nothing should have been rejected: " + status);
+
+            stalled.countDown();
+            JSONObject reply = replies.poll(30, TimeUnit.SECONDS);
+            check(reply != null, "print should reply once it's done");
+            check("print".equals(reply.optString("uid")) && !reply.has("error"), "print should succeed: " + reply);
+            check(received.get(5, TimeUnit.SECONDS) == data.length, "printer should receive all of the data");
+        }
+        finally {
+            dispatcher.shutdown();
+        }
+
+        RequestDispatcher shallow = new RequestDispatcher(2, 1);
+        try {
+            CountDownLatch blocked = new CountDownLatch(1);
+            CountDownLatch running = new CountDownLatch(1);
+            shallow.submit(owner, () -> {
+                running.countDown();
+                try { blocked.await(); }
+                catch(InterruptedException ignore) {}
+            });
+            check(running.await(5, TimeUnit.SECONDS), "first call should start");
+            check(shallow.submit(owner, () -> {}), "one call should be allowed to wait behind it");
+            check(!shallow.submit(owner, () -> {}), "calls beyond the queue depth should be rejected");
+
+            JSONObject status = shallow.toJSON();
+            check(status.getInt("active") == 1 && status.getInt("queued") == 1 && status.getLong("rejected") == 1,
+                  "dispatcher should count the running, waiting and rejected calls: " + status);
+            blocked.countDown();
+        }
+        finally {
+            shallow.shutdown();
+        }
+
+        System.out.println("Request dispatcher tests passed");
+    }
+
+    /**
+     * Stands in for an open websocket session, collecting every message sent to it
+     */
+    private static Session session(BlockingQueue<JSONObject> replies) {
+        RemoteEndpoint remote = (RemoteEndpoint)Proxy.newProxyInstance(RemoteEndpoint.class.getClassLoader(), new Class[] {RemoteEndpoint.class}, (proxy, method, params) -> {
+            if ("sendString".equals(method.getName())) {
+                replies.add(new JSONObject((String)params[0]));
+                if (params.length > 1 && params[1] != null) { ((WriteCallback)params[1]).writeSuccess(); }
+            }
+            return null;
+        });
+
+        return (Session)Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[] {Session.class}, (proxy, method, params) -> {
+            switch(method.getName()) {
+                case "isOpen":
+                    return true;
+                case "getRemote":
+                    return remote;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == params[0];
+                case "toString":
+                    return "StandInSession";
+                default:
+                    return null;
+            }
+        });
+    }
+
+}